@@ -1,18 +1,22 @@
 package com.eriqaugustine.ocr.classifier;
 
 import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
-import com.eriqaugustine.ocr.image.CharacterImage;
 import com.eriqaugustine.ocr.image.WrapImage;
-import com.eriqaugustine.ocr.utils.ListUtils;
+import com.eriqaugustine.ocr.utils.Props;
 import com.eriqaugustine.ocr.utils.StringUtils;
 import com.eriqaugustine.ocr.utils.MapUtils;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A classifier specialized for ORCing characters.
@@ -22,6 +26,11 @@ public abstract class CharacterClassifier
       implements OCRClassifier {
    private static Logger logger = LogManager.getLogger(CharacterClassifier.class.getName());
 
+   private static final String FEATURE_STORE_PREFIX = "features";
+
+   // How many rendered training images are held at once (see renderFeatures()).
+   private static final int RENDER_BATCH_SIZE = 64;
+
    public CharacterClassifier(int featureVectorLength) {
       super(featureVectorLength, " "); // A space is the default class.
    }
@@ -30,18 +39,159 @@ public abstract class CharacterClassifier
       super(featureVectorLength, " ", reduce); // A space is the default class.
    }
 
+   /**
+    * Train on |characters| rendered in each of |fonts|.
+    * The features go through a FeatureStore, so a character only ever gets rendered once per font.
+    * The rendered training set is completely described by the characters, fonts, and rendering attributes,
+    *  so a cached model is looked up by those before anything gets rendered.
+    */
    protected boolean train(String characters,
                            String[] fonts,
                            Map<String, String> classifierAttributes) {
       String allCharacters = "";
-      List<WrapImage> allImages = new ArrayList<WrapImage>();
-
-      for (String font : fonts) {
+      for (int i = 0; i < fonts.length; i++) {
          allCharacters += characters;
-         ListUtils.append(allImages, CharacterImage.generateFontImages(characters, font));
       }
 
-      return train(allImages, allCharacters, fonts, classifierAttributes);
+      classifierAttributes = getTrainingAttributes(fonts, classifierAttributes);
+      String trainingKey = getTrainingKey(characters);
+
+      // Check for a cached model before rendering anything.
+      if (loadCachedModel(trainingKey, classifierAttributes)) {
+         return true;
+      }
+
+      FeatureStore store = getFeatureStore(classifierAttributes);
+
+      for (int i = 0; i < fonts.length; i++) {
+         if (!storeFontFeatures(store, characters, fonts[i])) {
+            return false;
+         }
+      }
+
+      // The features get streamed out of the store instead of all being read in.
+      TrainingFeatures features = store.getTrainingFeatures(fonts, characters);
+      if (features == null) {
+         logger.error("Training features are missing from the store.");
+         return false;
+      }
+
+      // The model gets cached under |trainingKey| instead of a digest of the features.
+      if (!trainFeatures(features, StringUtils.charSplit(allCharacters), classifierAttributes, false)) {
+         return false;
+      }
+
+      cacheModel(trainingKey, classifierAttributes);
+      return true;
+   }
+
+   /**
+    * The training config (see VectorClassifier.getTrainingConfig()) that
+    *  train(|characters|, |fonts|, |classifierAttributes|) gives its model, without training anything.
+    */
+   protected String getTrainingConfig(String characters,
+                                      String[] fonts,
+                                      Map<String, String> classifierAttributes) {
+      return getTrainingConfig(getTrainingKey(characters), getTrainingAttributes(fonts, classifierAttributes));
+   }
+
+   private static String getTrainingKey(String characters) {
+      return "characters: " + characters;
+   }
+
+   /**
+    * The version of this classifier's feature extraction.
+    * It is part of every cached model and feature store key,
+    *  so bump it whenever a change makes the extractor give different features.
+    */
+   protected int getExtractorVersion() {
+      return 1;
+   }
+
+   /**
+    * Add the rendering settings and extractor version to a copy of |classifierAttributes|
+    *  (the caller's map is not touched).
+    */
+   private Map<String, String> getTrainingAttributes(String[] fonts,
+                                                     Map<String, String> classifierAttributes) {
+      Map<String, String> rtn = new HashMap<String, String>(classifierAttributes);
+      rtn.put("extractor_version", Integer.toString(getExtractorVersion()));
+      rtn.put("font_size", Integer.toString(Props.getInt("DEFAULT_FONT_SIZE", 128)));
+      rtn.put("white_threshold", Integer.toString(Props.getInt("DEFAULT_WHITE_THRESHOLD", 150)));
+      rtn.put("fonts", StringUtils.join(fonts, ", "));
+
+      return rtn;
+   }
+
+   /**
+    * Make sure that |store| has the features for |characters| rendered in |font|.
+    * Only the characters that are not already in |store| get rendered (and then put in the store).
+    * Returns false if the store could not be updated.
+    */
+   private boolean storeFontFeatures(FeatureStore store, String characters, String font) {
+      String missingCharacters = store.getMissingCharacters(font, characters);
+      if (missingCharacters.length() == 0) {
+         return true;
+      }
+
+      try {
+         store.put(font, missingCharacters, renderFeatures(missingCharacters, font));
+      } catch (IOException ex) {
+         logger.error("Unable to store training features.", ex);
+         return false;
+      }
+
+      return true;
+   }
+
+   /**
+    * Render each character in |font| and get its features.
+    * Rendering goes through JMagick (WrapImage.getCharacterImage()), which is not known to be thread safe,
+    *  so all the rendering is done on the calling thread.
+    * Each batch of RENDER_BATCH_SIZE images goes through getAllFeatureValues()
+    *  and is dropped before the next batch is rendered.
+    * That extraction is only parallel (on the shared feature pool) with the PACKED image backend,
+    *  with MAGICK the extractors' scale and scrub are JMagick calls too, so it stays on the calling thread.
+    */
+   private double[][] renderFeatures(String characters, String font) {
+      double[][] rtn = new double[characters.length()][];
+
+      for (int start = 0; start < characters.length(); start += RENDER_BATCH_SIZE) {
+         int end = Math.min(characters.length(), start + RENDER_BATCH_SIZE);
+
+         List<WrapImage> images = new ArrayList<WrapImage>(end - start);
+         for (int i = start; i < end; i++) {
+            images.add(WrapImage.getCharacterImage(characters.charAt(i), true, font));
+         }
+
+         double[][] features = getAllFeatureValues(images);
+         System.arraycopy(features, 0, rtn, start, features.length);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The store is named for everything (except the character and font) that goes into the features:
+    *  the store layout (FeatureStore.VERSION), this classifier's type and feature length,
+    *  and all the attributes except the fonts (which include the extractor version).
+    * So, subclasses need to put their extraction parameters in the attributes.
+    */
+   private FeatureStore getFeatureStore(Map<String, String> classifierAttributes) {
+      Map<String, String> storeAttributes = new TreeMap<String, String>(classifierAttributes);
+      storeAttributes.remove("fonts");
+
+      String key = DigestUtils.sha1Hex(FeatureStore.VERSION + "\n" +
+                                       getClass().getName() + "\n" +
+                                       featureVectorLength + "\n" +
+                                       storeAttributes.toString());
+
+      return new FeatureStore(new File(Props.getString("CACHE_DIR"),
+                                       String.format("%s_%s-%s",
+                                                     FEATURE_STORE_PREFIX,
+                                                     getClass().getSimpleName(),
+                                                     key)),
+                              featureVectorLength);
    }
 
    /**
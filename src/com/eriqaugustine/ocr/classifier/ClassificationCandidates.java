@@ -0,0 +1,123 @@
+package com.eriqaugustine.ocr.classifier;
+
+/**
+ * The top candidates for a single classification, best first.
+ * Each candidate is a class label and a score (probability) in [0, 1].
+ *
+ * This gets produced for every character on a page, so it is just two fixed size arrays
+ *  and can be reused between classifications (see VectorClassifier.classifyWithScores()).
+ * A reused instance also keeps the classifier's scratch space (the reduced features and the class distribution),
+ *  so classifying into it does not allocate them again.
+ */
+public class ClassificationCandidates {
+   private final String[] labels;
+   private final double[] scores;
+
+   private int size;
+
+   // Scratch for the classifier, only (re)allocated when the size changes.
+   private double[] reducedFeatures;
+   private double[] distribution;
+
+   /**
+    * |capacity| is the maximum number of candidates that will be kept (k).
+    */
+   public ClassificationCandidates(int capacity) {
+      assert(capacity > 0);
+
+      labels = new String[capacity];
+      scores = new double[capacity];
+      size = 0;
+   }
+
+   public int capacity() {
+      return labels.length;
+   }
+
+   /**
+    * The number of actual candidates.
+    * This will be less than capacity() if there were not enough classes (or the classification failed).
+    */
+   public int size() {
+      return size;
+   }
+
+   public String getLabel(int rank) {
+      assert(rank < size);
+      return labels[rank];
+   }
+
+   public double getScore(int rank) {
+      assert(rank < size);
+      return scores[rank];
+   }
+
+   /**
+    * The top candidate, or null if there are no candidates.
+    */
+   public String best() {
+      return size == 0 ? null : labels[0];
+   }
+
+   public void clear() {
+      size = 0;
+   }
+
+   /**
+    * Offer up a candidate.
+    * It will only be kept if it is one of the top capacity() candidates seen since the last clear().
+    * Ties go to the candidate that was offered first.
+    */
+   public void offer(String label, double score) {
+      if (size == labels.length && score <= scores[size - 1]) {
+         return;
+      }
+
+      // Insertion, k is always small.
+      int position = size == labels.length ? size - 1 : size++;
+      while (position > 0 && scores[position - 1] < score) {
+         labels[position] = labels[position - 1];
+         scores[position] = scores[position - 1];
+         position--;
+      }
+
+      labels[position] = label;
+      scores[position] = score;
+   }
+
+   /**
+    * Get scratch space for |size| reduced features.
+    */
+   double[] getReducedFeatures(int size) {
+      if (reducedFeatures == null || reducedFeatures.length != size) {
+         reducedFeatures = new double[size];
+      }
+
+      return reducedFeatures;
+   }
+
+   /**
+    * Get scratch space for a distribution over |numClasses| classes.
+    */
+   double[] getDistribution(int numClasses) {
+      if (distribution == null || distribution.length != numClasses) {
+         distribution = new double[numClasses];
+      }
+
+      return distribution;
+   }
+
+   public String toString() {
+      StringBuilder builder = new StringBuilder("[");
+
+      for (int i = 0; i < size; i++) {
+         if (i > 0) {
+            builder.append(", ");
+         }
+
+         builder.append(String.format("%s: %.4f", labels[i], scores[i]));
+      }
+
+      return builder.append("]").toString();
+   }
+}
@@ -0,0 +1,271 @@
+package com.eriqaugustine.ocr.classifier;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent store of the feature vectors for rendered training characters.
+ * A store is a directory that is named for everything that goes into a feature vector
+ *  except for the character and font (the extractor, its parameters, the rendering size, ...),
+ *  see CharacterClassifier.getFeatureStore().
+ * In it, each font gets a single file (see ModelFile) with:
+ *  - Font (string)
+ *  - Number of features (int)
+ *  - Characters (string)
+ *  - Features, one row per character (doubles)
+ *
+ * The features are kept as doubles (exactly what the extractor gave) and read straight out of the mapped file,
+ *  so training sees the same values that classification does.
+ */
+public class FeatureStore {
+   private static Logger logger = LogManager.getLogger(FeatureStore.class.getName());
+
+   // The layout of the store files, it is part of the store's name (see CharacterClassifier.getFeatureStore()).
+   // 2: features are doubles (they were floats).
+   public static final int VERSION = 2;
+
+   private static final String FILE_SUFFIX = ".features";
+
+   private final File dir;
+   private final int numFeatures;
+
+   public FeatureStore(File dir, int numFeatures) {
+      this.dir = dir;
+      this.numFeatures = numFeatures;
+   }
+
+   /**
+    * Get the features for each character in |characters|.
+    * Characters that are not in the store get null.
+    */
+   public double[][] get(String font, String characters) {
+      double[][] rtn = new double[characters.length()][];
+
+      FontFeatures stored = read(font);
+      if (stored == null) {
+         return rtn;
+      }
+
+      for (int i = 0; i < characters.length(); i++) {
+         Integer row = stored.rows.get(characters.charAt(i));
+         if (row == null) {
+            continue;
+         }
+
+         rtn[i] = new double[numFeatures];
+         for (int j = 0; j < numFeatures; j++) {
+            rtn[i][j] = stored.features.get(row.intValue() * numFeatures + j);
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Get the (unique) characters in |characters| that are not in the store for |font|.
+    */
+   public String getMissingCharacters(String font, String characters) {
+      FontFeatures stored = read(font);
+
+      String rtn = "";
+      for (int i = 0; i < characters.length(); i++) {
+         char character = characters.charAt(i);
+
+         if ((stored == null || !stored.rows.containsKey(character)) && rtn.indexOf(character) == -1) {
+            rtn += character;
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Get the training features for |characters| rendered in each of |fonts|
+    *  (all the characters in the first font, then all in the second, ...).
+    * The features are read right out of the mapped files as they are needed,
+    *  so they are never all in memory at once.
+    * Returns null if any of the characters are not in the store.
+    */
+   public TrainingFeatures getTrainingFeatures(String[] fonts, String characters) {
+      DoubleBuffer[] fontFeatures = new DoubleBuffer[fonts.length];
+      int[] rows = new int[fonts.length * characters.length()];
+
+      for (int i = 0; i < fonts.length; i++) {
+         FontFeatures stored = read(fonts[i]);
+         if (stored == null) {
+            return null;
+         }
+
+         fontFeatures[i] = stored.features;
+
+         for (int j = 0; j < characters.length(); j++) {
+            Integer row = stored.rows.get(characters.charAt(j));
+            if (row == null) {
+               return null;
+            }
+
+            rows[i * characters.length() + j] = row.intValue();
+         }
+      }
+
+      return new StoredTrainingFeatures(fontFeatures, characters.length(), rows);
+   }
+
+   /**
+    * Add the features for some characters to the store.
+    * |features| is 1-1 with |characters|.
+    * The font's file is rewritten (with the old characters) and then swapped in,
+    *  so other processes will never see a partial file.
+    */
+   public void put(String font, String characters, double[][] features) throws IOException {
+      assert(characters.length() == features.length);
+
+      FontFeatures stored = read(font);
+
+      StringBuilder allCharacters = new StringBuilder();
+      Map<Character, double[]> allFeatures = new HashMap<Character, double[]>();
+
+      if (stored != null) {
+         for (Map.Entry<Character, Integer> entry : stored.rows.entrySet()) {
+            double[] row = new double[numFeatures];
+            for (int j = 0; j < numFeatures; j++) {
+               row[j] = stored.features.get(entry.getValue().intValue() * numFeatures + j);
+            }
+
+            allCharacters.append(entry.getKey().charValue());
+            allFeatures.put(entry.getKey(), row);
+         }
+      }
+
+      for (int i = 0; i < characters.length(); i++) {
+         assert(features[i].length == numFeatures);
+
+         if (allFeatures.put(characters.charAt(i), features[i]) == null) {
+            allCharacters.append(characters.charAt(i));
+         }
+      }
+
+      double[] matrix = new double[allCharacters.length() * numFeatures];
+      for (int i = 0; i < allCharacters.length(); i++) {
+         double[] row = allFeatures.get(allCharacters.charAt(i));
+         for (int j = 0; j < numFeatures; j++) {
+            matrix[i * numFeatures + j] = row[j];
+         }
+      }
+
+      dir.mkdirs();
+
+      File file = getFile(font);
+      File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+
+      DataOutputStream out = ModelFile.create(tempFile);
+      try {
+         ModelFile.writeString(out, font);
+         out.writeInt(numFeatures);
+         ModelFile.writeString(out, allCharacters.toString());
+         ModelFile.writeDoubles(out, matrix);
+      } finally {
+         out.close();
+      }
+
+      if (!tempFile.renameTo(file)) {
+         // Some platforms will not rename over an existing file.
+         file.delete();
+         if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to write feature store file: " + file);
+         }
+      }
+   }
+
+   private FontFeatures read(String font) {
+      File file = getFile(font);
+      if (!file.isFile()) {
+         return null;
+      }
+
+      try {
+         ByteBuffer in = ModelFile.open(file);
+
+         String storedFont = ModelFile.readString(in);
+         int storedNumFeatures = in.getInt();
+         String characters = ModelFile.readString(in);
+         DoubleBuffer features = ModelFile.mapDoubles(in);
+
+         if (!storedFont.equals(font) || storedNumFeatures != numFeatures ||
+             features.limit() != characters.length() * numFeatures) {
+            logger.warn("Ignoring a mismatched feature store file: " + file);
+            return null;
+         }
+
+         Map<Character, Integer> rows = new HashMap<Character, Integer>();
+         for (int i = 0; i < characters.length(); i++) {
+            rows.put(characters.charAt(i), i);
+         }
+
+         return new FontFeatures(rows, features);
+      } catch (IOException ex) {
+         logger.warn("Ignoring a bad feature store file: " + file, ex);
+         return null;
+      }
+   }
+
+   /**
+    * Font names can have just about anything in them, so the file is named by a hash.
+    */
+   private File getFile(String font) {
+      return new File(dir, DigestUtils.sha1Hex(font) + FILE_SUFFIX);
+   }
+
+   private static class FontFeatures {
+      // {character: row}
+      public final Map<Character, Integer> rows;
+      public final DoubleBuffer features;
+
+      public FontFeatures(Map<Character, Integer> rows, DoubleBuffer features) {
+         this.rows = rows;
+         this.features = features;
+      }
+   }
+
+   private class StoredTrainingFeatures implements TrainingFeatures {
+      private final DoubleBuffer[] fontFeatures;
+      private final int numCharacters;
+      // The row in the font's features for each sample.
+      private final int[] rows;
+
+      public StoredTrainingFeatures(DoubleBuffer[] fontFeatures, int numCharacters, int[] rows) {
+         this.fontFeatures = fontFeatures;
+         this.numCharacters = numCharacters;
+         this.rows = rows;
+      }
+
+      public int size() {
+         return rows.length;
+      }
+
+      public int getNumberOfFeatures() {
+         return numFeatures;
+      }
+
+      public void get(int index, double[] features) {
+         assert(features.length == numFeatures);
+
+         DoubleBuffer stored = fontFeatures[index / numCharacters];
+         int offset = rows[index] * numFeatures;
+
+         for (int i = 0; i < numFeatures; i++) {
+            features[i] = stored.get(offset + i);
+         }
+      }
+   }
+}
@@ -0,0 +1,763 @@
+package com.eriqaugustine.ocr.classifier;
+
+import com.eriqaugustine.ocr.utils.Props;
+import com.eriqaugustine.ocr.utils.SystemUtils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * An approximate nearest neighbor classifier that searches a HNSW
+ *  (Hierarchical Navigable Small World) graph instead of scanning every training row.
+ * See Malkov and Yashunin, "Efficient and robust approximate nearest neighbor search using
+ *  Hierarchical Navigable Small World graphs".
+ *
+ * Everything else (normalization, distance, voting) is the same as NearestNeighborClassifier.
+ * Like any other WEKA classifier, the built graph is serialized into the classifier cache
+ *  (see SerializedWekaClassifier), so it only needs to be built once.
+ *
+ * Properties (all optional):
+ *  - HNSW_M: the number of links per node per layer (layer 0 gets twice as many). Default 16.
+ *  - HNSW_EF_CONSTRUCTION: the size of the candidate list while building. Default 200.
+ *  - HNSW_EF_SEARCH: the size of the candidate list while searching. Default 64.
+ *    Higher is better recall and slower search.
+ *    This is the only parameter that can change after building (it is re-read when loading from the cache).
+ */
+public class HNSWClassifier extends NearestNeighborClassifier {
+   private static Logger logger = LogManager.getLogger(HNSWClassifier.class.getName());
+
+   private static final long serialVersionUID = 1L;
+
+   private static final int DEFAULT_M = 16;
+   private static final int DEFAULT_EF_CONSTRUCTION = 200;
+   private static final int DEFAULT_EF_SEARCH = 64;
+
+   // Keep the graph the same for the same training data.
+   private static final long SEED = 6022;
+
+   // The number of training rows to measure recall with after building.
+   private static final int RECALL_SAMPLE_SIZE = 100;
+
+   private int m;
+   private int efConstruction;
+   private int efSearch;
+
+   // [node][layer] = [neighbor, ...]
+   private int[][][] links;
+   private int entryPoint;
+   private int maxLevel;
+
+   // The recall (against exact search) measured right after building.
+   private double buildRecall;
+
+   private transient ThreadLocal<VisitedSet> visitedSets;
+
+   public HNSWClassifier() {
+      super();
+
+      m = Props.has("HNSW_M") ? Props.getInt("HNSW_M") : DEFAULT_M;
+      efConstruction = Props.has("HNSW_EF_CONSTRUCTION") ?
+                       Props.getInt("HNSW_EF_CONSTRUCTION") : DEFAULT_EF_CONSTRUCTION;
+      efSearch = Props.has("HNSW_EF_SEARCH") ? Props.getInt("HNSW_EF_SEARCH") : DEFAULT_EF_SEARCH;
+
+      buildRecall = -1;
+   }
+
+   public int getM() {
+      return m;
+   }
+
+   /**
+    * Only has an effect before building.
+    */
+   public void setM(int m) {
+      assert(m > 1);
+      this.m = m;
+   }
+
+   public int getEfConstruction() {
+      return efConstruction;
+   }
+
+   /**
+    * Only has an effect before building.
+    */
+   public void setEfConstruction(int efConstruction) {
+      assert(efConstruction > 0);
+      this.efConstruction = efConstruction;
+   }
+
+   public int getEfSearch() {
+      return efSearch;
+   }
+
+   public void setEfSearch(int efSearch) {
+      assert(efSearch > 0);
+      this.efSearch = efSearch;
+   }
+
+   /**
+    * The recall measured on a sample of the training data right after building (-1 if not built).
+    * Each sampled row is left out of its own results.
+    */
+   public double getBuildRecall() {
+      return buildRecall;
+   }
+
+   /**
+    * Options (on top of the NearestNeighborClassifier options):
+    *  -M <links per node>
+    *  -C <ef construction>
+    *  -S <ef search>
+    */
+   public void setOptions(String[] options) throws Exception {
+      List<String> remaining = new ArrayList<String>();
+
+      for (int i = 0; i < options.length; i++) {
+         if (options[i].equals("-M")) {
+            setM(Integer.parseInt(options[++i]));
+         } else if (options[i].equals("-C")) {
+            setEfConstruction(Integer.parseInt(options[++i]));
+         } else if (options[i].equals("-S")) {
+            setEfSearch(Integer.parseInt(options[++i]));
+         } else {
+            remaining.add(options[i]);
+         }
+      }
+
+      super.setOptions(remaining.toArray(new String[0]));
+   }
+
+   public String[] getOptions() {
+      List<String> options = new ArrayList<String>(Arrays.asList(super.getOptions()));
+
+      options.add("-M");
+      options.add("" + m);
+      options.add("-C");
+      options.add("" + efConstruction);
+      options.add("-S");
+      options.add("" + efSearch);
+
+      return options.toArray(new String[0]);
+   }
+
+   /**
+    * Get the approximate k nearest training rows (closest first).
+    */
+   public int[] nearestNeighbors(double[] features) {
+      assert(features.length == getNumFeatures());
+
+      return search(normalize(features), Math.min(getNumNeighbors(), getNumTrainingRows()));
+   }
+
+   /**
+    * Queries are independent, so a batch is just split between threads.
+    * On a serial thread (see SystemUtils.setSerialThread()), the whole batch is done on the calling thread.
+    */
+   public int[][] nearestNeighbors(final double[][] features) {
+      final int[][] rtn = new int[features.length][];
+
+      int threads = Math.max(1, Math.min(getNumThreads(), features.length));
+      if (threads == 1 || SystemUtils.isSerialThread()) {
+         for (int i = 0; i < features.length; i++) {
+            rtn[i] = nearestNeighbors(features[i]);
+         }
+
+         return rtn;
+      }
+
+      int queriesPerThread = (features.length + threads - 1) / threads;
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+      for (int start = 0; start < features.length; start += queriesPerThread) {
+         final int rangeStart = start;
+         final int rangeEnd = Math.min(features.length, start + queriesPerThread);
+
+         tasks.add(new Callable<Void>() {
+            public Void call() {
+               for (int i = rangeStart; i < rangeEnd; i++) {
+                  rtn[i] = nearestNeighbors(features[i]);
+               }
+
+               return null;
+            }
+         });
+      }
+
+      runAll(tasks);
+
+      return rtn;
+   }
+
+   /**
+    * The fraction of the true k nearest neighbors (from a full scan) that the graph search finds.
+    * |features| should not be training data (see getBuildRecall()).
+    */
+   public double measureRecall(double[][] features) {
+      int hits = 0;
+      int total = 0;
+
+      for (double[] queryFeatures : features) {
+         int[] approximate = nearestNeighbors(queryFeatures);
+         int[] exact = exactNearestNeighbors(queryFeatures);
+
+         hits += countCommon(approximate, exact);
+         total += exact.length;
+      }
+
+      return total == 0 ? 1.0 : (double)hits / total;
+   }
+
+   protected void buildIndex() {
+      int numNodes = getNumTrainingRows();
+      Random random = new Random(SEED);
+      double levelMultiplier = 1.0 / Math.log(m);
+
+      links = new int[numNodes][][];
+      entryPoint = -1;
+      maxLevel = -1;
+      visitedSets = null;
+
+      VisitedSet visited = new VisitedSet(numNodes);
+
+      for (int node = 0; node < numNodes; node++) {
+         int level = (int)(-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+         insert(node, level, visited);
+      }
+
+      buildRecall = sampleRecall(random);
+      logger.info(String.format("Built HNSW graph (%d nodes, %d layers, M = %d, efConstruction = %d)." +
+                                " Recall@%d (efSearch = %d): %.4f",
+                                numNodes, maxLevel + 1, m, efConstruction,
+                                getNumNeighbors(), efSearch, buildRecall));
+   }
+
+   /**
+    * @inheritDoc
+    * The graph is appended after the training data, efSearch is left to the config.
+    * Layout:
+    *  - M (int)
+    *  - ef construction (int)
+    *  - Entry point (int)
+    *  - Max level (int)
+    *  - Build recall (double)
+    *  - Number of layers for each node (ints)
+    *  - Number of links for each node and layer (ints)
+    *  - All the links, in node and then layer order (ints)
+    */
+   public void writeModel(DataOutputStream out) throws IOException {
+      super.writeModel(out);
+
+      int numNodes = links.length;
+      int[] numLayers = new int[numNodes];
+      int totalLayers = 0;
+      int totalLinks = 0;
+
+      for (int node = 0; node < numNodes; node++) {
+         numLayers[node] = links[node].length;
+         totalLayers += links[node].length;
+
+         for (int[] layerLinks : links[node]) {
+            totalLinks += layerLinks.length;
+         }
+      }
+
+      int[] numLinks = new int[totalLayers];
+      int[] flatLinks = new int[totalLinks];
+      int layerIndex = 0;
+      int linkIndex = 0;
+
+      for (int node = 0; node < numNodes; node++) {
+         for (int[] layerLinks : links[node]) {
+            numLinks[layerIndex++] = layerLinks.length;
+            System.arraycopy(layerLinks, 0, flatLinks, linkIndex, layerLinks.length);
+            linkIndex += layerLinks.length;
+         }
+      }
+
+      out.writeInt(m);
+      out.writeInt(efConstruction);
+      out.writeInt(entryPoint);
+      out.writeInt(maxLevel);
+      out.writeDouble(buildRecall);
+      ModelFile.writeInts(out, numLayers);
+      ModelFile.writeInts(out, numLinks);
+      ModelFile.writeInts(out, flatLinks);
+   }
+
+   public void readModel(ByteBuffer in) throws IOException {
+      super.readModel(in);
+
+      m = in.getInt();
+      efConstruction = in.getInt();
+      entryPoint = in.getInt();
+      maxLevel = in.getInt();
+      buildRecall = in.getDouble();
+
+      // The flat arrays are only read through once, straight out of the mapping.
+      IntBuffer numLayers = ModelFile.mapInts(in);
+      IntBuffer numLinks = ModelFile.mapInts(in);
+      IntBuffer flatLinks = ModelFile.mapInts(in);
+
+      if (numLayers.remaining() != getNumTrainingRows()) {
+         throw new IOException("Malformed HNSW model.");
+      }
+
+      links = new int[numLayers.remaining()][][];
+      visitedSets = null;
+
+      try {
+         for (int node = 0; node < links.length; node++) {
+            links[node] = new int[numLayers.get()][];
+
+            for (int layer = 0; layer < links[node].length; layer++) {
+               links[node][layer] = new int[numLinks.get()];
+               flatLinks.get(links[node][layer]);
+            }
+         }
+      } catch (BufferUnderflowException ex) {
+         throw new IOException("Malformed HNSW model.", ex);
+      }
+   }
+
+   private void insert(int node, int level, VisitedSet visited) {
+      links[node] = new int[level + 1][];
+      for (int layer = 0; layer <= level; layer++) {
+         links[node][layer] = new int[0];
+      }
+
+      if (entryPoint == -1) {
+         entryPoint = node;
+         maxLevel = level;
+         return;
+      }
+
+      double[] query = getTrainingRow(node);
+
+      int current = entryPoint;
+      double currentDistance = squaredDistance(query, current);
+
+      // Greedy walk down the layers above the new node.
+      for (int layer = maxLevel; layer > level; layer--) {
+         current = greedyClosest(query, current, currentDistance, layer);
+         currentDistance = squaredDistance(query, current);
+      }
+
+      for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+         DistanceHeap candidates = searchLayer(query, current, currentDistance, layer, efConstruction, visited);
+         int[] candidateIds = new int[candidates.size()];
+         double[] candidateDistances = new double[candidates.size()];
+         candidates.drainAscending(candidateIds, candidateDistances);
+
+         int[] neighbors = selectNeighbors(candidateIds, candidateDistances, m);
+         links[node][layer] = neighbors;
+
+         for (int neighbor : neighbors) {
+            connect(neighbor, node, layer);
+         }
+
+         current = candidateIds[0];
+         currentDistance = candidateDistances[0];
+      }
+
+      if (level > maxLevel) {
+         entryPoint = node;
+         maxLevel = level;
+      }
+   }
+
+   /**
+    * Add a link from |node| to |newNeighbor|, pruning |node|'s links if there are too many.
+    */
+   private void connect(int node, int newNeighbor, int layer) {
+      int[] current = links[node][layer];
+      int maxLinks = layer == 0 ? 2 * m : m;
+
+      int[] expanded = Arrays.copyOf(current, current.length + 1);
+      expanded[current.length] = newNeighbor;
+
+      if (expanded.length <= maxLinks) {
+         links[node][layer] = expanded;
+         return;
+      }
+
+      // Too many links, pick the best ones again.
+      double[] distances = new double[expanded.length];
+      for (int i = 0; i < expanded.length; i++) {
+         distances[i] = squaredDistance(node, expanded[i]);
+      }
+
+      sortByDistance(expanded, distances);
+      links[node][layer] = selectNeighbors(expanded, distances, maxLinks);
+   }
+
+   /**
+    * The neighbor selection heuristic: go through the candidates (closest first) and only keep
+    *  a candidate if it is closer to the base than it is to any already kept neighbor.
+    * This keeps links going in different directions.
+    * If that leaves less than |maxNeighbors| links, the closest skipped candidates fill the rest.
+    */
+   private int[] selectNeighbors(int[] candidates, double[] distances, int maxNeighbors) {
+      int[] selected = new int[Math.min(maxNeighbors, candidates.length)];
+      int numSelected = 0;
+
+      boolean[] skipped = new boolean[candidates.length];
+
+      for (int i = 0; i < candidates.length && numSelected < selected.length; i++) {
+         boolean keep = true;
+
+         for (int j = 0; j < numSelected; j++) {
+            if (squaredDistance(candidates[i], selected[j]) < distances[i]) {
+               keep = false;
+               break;
+            }
+         }
+
+         if (keep) {
+            selected[numSelected++] = candidates[i];
+         } else {
+            skipped[i] = true;
+         }
+      }
+
+      for (int i = 0; i < candidates.length && numSelected < selected.length; i++) {
+         if (skipped[i]) {
+            selected[numSelected++] = candidates[i];
+         }
+      }
+
+      return selected;
+   }
+
+   private int[] search(double[] query, int k) {
+      if (entryPoint == -1 || k == 0) {
+         return new int[0];
+      }
+
+      int current = entryPoint;
+      double currentDistance = squaredDistance(query, current);
+
+      for (int layer = maxLevel; layer > 0; layer--) {
+         current = greedyClosest(query, current, currentDistance, layer);
+         currentDistance = squaredDistance(query, current);
+      }
+
+      DistanceHeap results = searchLayer(query, current, currentDistance, 0,
+                                         Math.max(efSearch, k), getVisitedSet());
+
+      int[] ids = new int[results.size()];
+      double[] distances = new double[results.size()];
+      results.drainAscending(ids, distances);
+
+      return Arrays.copyOf(ids, Math.min(k, ids.length));
+   }
+
+   /**
+    * Keep moving to the closest neighbor until nothing is closer.
+    */
+   private int greedyClosest(double[] query, int start, double startDistance, int layer) {
+      int current = start;
+      double currentDistance = startDistance;
+
+      boolean changed = true;
+      while (changed) {
+         changed = false;
+
+         for (int neighbor : links[current][layer]) {
+            double distance = squaredDistance(query, neighbor);
+            if (distance < currentDistance) {
+               current = neighbor;
+               currentDistance = distance;
+               changed = true;
+            }
+         }
+      }
+
+      return current;
+   }
+
+   /**
+    * A best-first search of a single layer.
+    * Returns (as a max heap) the |ef| closest nodes found.
+    */
+   private DistanceHeap searchLayer(double[] query, int start, double startDistance,
+                                    int layer, int ef, VisitedSet visited) {
+      visited.reset();
+      visited.visit(start);
+
+      DistanceHeap candidates = new DistanceHeap(ef, false);
+      DistanceHeap results = new DistanceHeap(ef, true);
+
+      candidates.push(start, startDistance);
+      results.push(start, startDistance);
+
+      while (candidates.size() > 0) {
+         double closestDistance = candidates.peekDistance();
+         int closest = candidates.pop();
+
+         if (closestDistance > results.peekDistance() && results.size() >= ef) {
+            break;
+         }
+
+         for (int neighbor : links[closest][layer]) {
+            if (!visited.visit(neighbor)) {
+               continue;
+            }
+
+            double distance = squaredDistance(query, neighbor);
+            if (results.size() < ef || distance < results.peekDistance()) {
+               candidates.push(neighbor, distance);
+               results.push(neighbor, distance);
+
+               if (results.size() > ef) {
+                  results.pop();
+               }
+            }
+         }
+      }
+
+      return results;
+   }
+
+   /**
+    * The sampled training rows are in the graph, so each one would always find itself.
+    * To not inflate the recall, a row is left out of both its exact and approximate neighbors.
+    */
+   private double sampleRecall(Random random) {
+      int numNodes = getNumTrainingRows();
+      int k = Math.min(getNumNeighbors(), numNodes - 1);
+      int samples = Math.min(RECALL_SAMPLE_SIZE, numNodes);
+
+      int hits = 0;
+      int total = 0;
+
+      for (int i = 0; i < samples; i++) {
+         int row = random.nextInt(numNodes);
+         double[] query = getTrainingRow(row);
+
+         int[] exact = withoutRow(scanNearestNeighbors(query, k + 1), row, k);
+         hits += countCommon(withoutRow(search(query, k + 1), row, k), exact);
+         total += exact.length;
+      }
+
+      return total == 0 ? 1.0 : (double)hits / total;
+   }
+
+   /**
+    * The first (at most) |k| of |ids| that are not |row|.
+    */
+   private static int[] withoutRow(int[] ids, int row, int k) {
+      int[] rtn = new int[Math.min(k, ids.length)];
+      int size = 0;
+
+      for (int i = 0; i < ids.length && size < rtn.length; i++) {
+         if (ids[i] != row) {
+            rtn[size++] = ids[i];
+         }
+      }
+
+      return Arrays.copyOf(rtn, size);
+   }
+
+   private VisitedSet getVisitedSet() {
+      synchronized (this) {
+         if (visitedSets == null) {
+            final int numNodes = getNumTrainingRows();
+
+            visitedSets = new ThreadLocal<VisitedSet>() {
+               protected VisitedSet initialValue() {
+                  return new VisitedSet(numNodes);
+               }
+            };
+         }
+      }
+
+      return visitedSets.get();
+   }
+
+   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+
+      // The search size is not part of the graph, so let the current config decide it.
+      if (Props.has("HNSW_EF_SEARCH")) {
+         efSearch = Props.getInt("HNSW_EF_SEARCH");
+      }
+   }
+
+   private static int countCommon(int[] a, int[] b) {
+      int count = 0;
+
+      for (int aValue : a) {
+         for (int bValue : b) {
+            if (aValue == bValue) {
+               count++;
+               break;
+            }
+         }
+      }
+
+      return count;
+   }
+
+   private static void sortByDistance(int[] ids, double[] distances) {
+      // Insertion sort, these are at most 2M + 1 long.
+      for (int i = 1; i < ids.length; i++) {
+         int id = ids[i];
+         double distance = distances[i];
+
+         int j = i - 1;
+         while (j >= 0 && distances[j] > distance) {
+            ids[j + 1] = ids[j];
+            distances[j + 1] = distances[j];
+            j--;
+         }
+
+         ids[j + 1] = id;
+         distances[j + 1] = distance;
+      }
+   }
+
+   /**
+    * Marks for the nodes that have been seen in a single search.
+    * Instead of clearing the marks for every search, the generation changes.
+    */
+   private static class VisitedSet {
+      private final int[] marks;
+      private int generation;
+
+      public VisitedSet(int size) {
+         marks = new int[size];
+         generation = 0;
+      }
+
+      public void reset() {
+         generation++;
+
+         if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(marks, 0);
+            generation = 1;
+         }
+      }
+
+      /**
+       * Returns false if the node was already visited.
+       */
+      public boolean visit(int node) {
+         if (marks[node] == generation) {
+            return false;
+         }
+
+         marks[node] = generation;
+         return true;
+      }
+   }
+
+   /**
+    * A binary heap of (node, distance).
+    * A max heap has the farthest node on top.
+    */
+   private static class DistanceHeap {
+      private int[] ids;
+      private double[] distances;
+      private int size;
+      private final boolean max;
+
+      public DistanceHeap(int capacity, boolean max) {
+         ids = new int[Math.max(1, capacity + 1)];
+         distances = new double[ids.length];
+         size = 0;
+         this.max = max;
+      }
+
+      public int size() {
+         return size;
+      }
+
+      public double peekDistance() {
+         return distances[0];
+      }
+
+      public void push(int id, double distance) {
+         if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            distances = Arrays.copyOf(distances, size * 2);
+         }
+
+         int position = size++;
+         while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!before(distance, distances[parent])) {
+               break;
+            }
+
+            ids[position] = ids[parent];
+            distances[position] = distances[parent];
+            position = parent;
+         }
+
+         ids[position] = id;
+         distances[position] = distance;
+      }
+
+      public int pop() {
+         int rtn = ids[0];
+
+         size--;
+         int lastId = ids[size];
+         double lastDistance = distances[size];
+
+         int position = 0;
+         while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+               break;
+            }
+
+            if (child + 1 < size && before(distances[child + 1], distances[child])) {
+               child++;
+            }
+
+            if (!before(distances[child], lastDistance)) {
+               break;
+            }
+
+            ids[position] = ids[child];
+            distances[position] = distances[child];
+            position = child;
+         }
+
+         ids[position] = lastId;
+         distances[position] = lastDistance;
+
+         return rtn;
+      }
+
+      /**
+       * Empty a max heap into arrays sorted closest first.
+       */
+      public void drainAscending(int[] outIds, double[] outDistances) {
+         assert(max);
+
+         for (int i = size - 1; i >= 0; i--) {
+            outDistances[i] = distances[0];
+            outIds[i] = pop();
+         }
+      }
+
+      private boolean before(double a, double b) {
+         return max ? a > b : a < b;
+      }
+   }
+}
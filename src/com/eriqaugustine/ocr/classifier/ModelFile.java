@@ -0,0 +1,249 @@
+package com.eriqaugustine.ocr.classifier;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A versioned binary file for a trained classifier (see VectorClassifier.saveModel())
+ *  or stored training features (see FeatureStore).
+ * Everything in the file is a flat array or a string, so there is no object graph to rebuild.
+ * Loading maps the file (FileChannel.map()), so any processes loading the same model share the file's pages.
+ * The read*() methods bulk copy an array out of the mapping (for arrays that get used in hot loops),
+ *  and the map*() methods just give a view of the mapping (for arrays that only get read through once,
+ *  or that are too big to copy).
+ *
+ * Layout (all big endian):
+ *  - Magic (MAGIC bytes)
+ *  - Version (int)
+ *  - Whatever the writer puts in with the write*() methods.
+ *
+ * Arrays are written as their length (int) followed by their values.
+ * Strings are written as their number of UTF-8 bytes (int) followed by the bytes.
+ */
+public class ModelFile {
+   // 3: VectorClassifier models have their training config.
+   public static final int VERSION = 3;
+
+   private static final byte[] MAGIC = {'J', 'O', 'C', 'R', 'M', 'O', 'D', 'L'};
+
+   // How many bytes to convert at a time when writing arrays.
+   private static final int CHUNK_BYTES = 64 * 1024;
+
+   /**
+    * Static access only.
+    */
+   private ModelFile() {
+   }
+
+   /**
+    * Open a new model file for writing and put the header in.
+    */
+   public static DataOutputStream create(File file) throws IOException {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+      out.write(MAGIC);
+      out.writeInt(VERSION);
+
+      return out;
+   }
+
+   /**
+    * Map a model file and check its header.
+    * The returned buffer is positioned right after the header.
+    */
+   public static ByteBuffer open(File file) throws IOException {
+      RandomAccessFile randomFile = new RandomAccessFile(file, "r");
+
+      try {
+         FileChannel channel = randomFile.getChannel();
+
+         if (channel.size() > Integer.MAX_VALUE) {
+            throw new IOException("Model file is too large to map: " + file);
+         }
+
+         // The mapping stays valid after the channel is closed.
+         ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+         byte[] magic = new byte[MAGIC.length];
+         if (in.remaining() < MAGIC.length + 4) {
+            throw new IOException("Not a model file: " + file);
+         }
+
+         in.get(magic);
+         if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a model file: " + file);
+         }
+
+         int version = in.getInt();
+         if (version != VERSION) {
+            throw new IOException(String.format("Unsupported model file version (%d, expected %d): %s",
+                                                version, VERSION, file));
+         }
+
+         return in;
+      } finally {
+         randomFile.close();
+      }
+   }
+
+   public static void writeString(DataOutputStream out, String value) throws IOException {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   public static String readString(ByteBuffer in) throws IOException {
+      byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      return new String(bytes, "UTF-8");
+   }
+
+   public static void writeBytes(DataOutputStream out, byte[] values) throws IOException {
+      out.writeInt(values.length);
+      out.write(values);
+   }
+
+   public static byte[] readBytes(ByteBuffer in) {
+      byte[] rtn = new byte[in.getInt()];
+      in.get(rtn);
+      return rtn;
+   }
+
+   public static void writeBooleans(DataOutputStream out, boolean[] values) throws IOException {
+      byte[] bytes = new byte[values.length];
+      for (int i = 0; i < values.length; i++) {
+         bytes[i] = (byte)(values[i] ? 1 : 0);
+      }
+
+      writeBytes(out, bytes);
+   }
+
+   public static boolean[] readBooleans(ByteBuffer in) {
+      byte[] bytes = readBytes(in);
+
+      boolean[] rtn = new boolean[bytes.length];
+      for (int i = 0; i < bytes.length; i++) {
+         rtn[i] = bytes[i] != 0;
+      }
+
+      return rtn;
+   }
+
+   public static void writeInts(DataOutputStream out, int[] values) throws IOException {
+      out.writeInt(values.length);
+
+      byte[] chunk = new byte[Math.min(CHUNK_BYTES, values.length * 4)];
+      int perChunk = chunk.length / 4;
+
+      for (int start = 0; start < values.length; start += perChunk) {
+         int count = Math.min(perChunk, values.length - start);
+         ByteBuffer.wrap(chunk).asIntBuffer().put(values, start, count);
+         out.write(chunk, 0, count * 4);
+      }
+   }
+
+   public static int[] readInts(ByteBuffer in) {
+      int[] rtn = new int[in.getInt()];
+
+      in.asIntBuffer().get(rtn);
+      in.position(in.position() + rtn.length * 4);
+
+      return rtn;
+   }
+
+   /**
+    * Get a view of an int array without copying it out of |in|.
+    * |in| is moved past the array.
+    */
+   public static IntBuffer mapInts(ByteBuffer in) {
+      int length = in.getInt();
+
+      IntBuffer rtn = in.slice().asIntBuffer();
+      rtn.limit(length);
+      in.position(in.position() + length * 4);
+
+      return rtn;
+   }
+
+   public static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+      out.writeInt(values.length);
+
+      byte[] chunk = new byte[Math.min(CHUNK_BYTES, values.length * 4)];
+      int perChunk = chunk.length / 4;
+
+      for (int start = 0; start < values.length; start += perChunk) {
+         int count = Math.min(perChunk, values.length - start);
+         ByteBuffer.wrap(chunk).asFloatBuffer().put(values, start, count);
+         out.write(chunk, 0, count * 4);
+      }
+   }
+
+   public static float[] readFloats(ByteBuffer in) {
+      float[] rtn = new float[in.getInt()];
+
+      in.asFloatBuffer().get(rtn);
+      in.position(in.position() + rtn.length * 4);
+
+      return rtn;
+   }
+
+   /**
+    * Get a view of a float array without copying it out of |in|.
+    * |in| is moved past the array.
+    */
+   public static FloatBuffer mapFloats(ByteBuffer in) {
+      int length = in.getInt();
+
+      FloatBuffer rtn = in.slice().asFloatBuffer();
+      rtn.limit(length);
+      in.position(in.position() + length * 4);
+
+      return rtn;
+   }
+
+   public static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+      out.writeInt(values.length);
+
+      byte[] chunk = new byte[Math.min(CHUNK_BYTES, values.length * 8)];
+      int perChunk = chunk.length / 8;
+
+      for (int start = 0; start < values.length; start += perChunk) {
+         int count = Math.min(perChunk, values.length - start);
+         ByteBuffer.wrap(chunk).asDoubleBuffer().put(values, start, count);
+         out.write(chunk, 0, count * 8);
+      }
+   }
+
+   public static double[] readDoubles(ByteBuffer in) {
+      double[] rtn = new double[in.getInt()];
+
+      in.asDoubleBuffer().get(rtn);
+      in.position(in.position() + rtn.length * 8);
+
+      return rtn;
+   }
+
+   /**
+    * Get a view of a double array without copying it out of |in|.
+    * |in| is moved past the array.
+    */
+   public static DoubleBuffer mapDoubles(ByteBuffer in) {
+      int length = in.getInt();
+
+      DoubleBuffer rtn = in.slice().asDoubleBuffer();
+      rtn.limit(length);
+      in.position(in.position() + length * 8);
+
+      return rtn;
+   }
+}
@@ -0,0 +1,1137 @@
+package com.eriqaugustine.ocr.classifier;
+
+import com.eriqaugustine.ocr.utils.Props;
+import com.eriqaugustine.ocr.utils.SystemUtils;
+
+import weka.classifiers.Classifier;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A brute force k-nearest neighbor classifier that replaces WEKA's IBk.
+ * It is a WEKA Classifier so that it can be used (and cached) anywhere IBk can,
+ *  but VectorClassifier talks to it directly with raw feature vectors.
+ *
+ * Like IBk's defaults, the distance is euclidean with every feature normalized to the training range
+ *  ((value - min) / (max - min), features with no range are ignored).
+ * The training vectors are normalized once and kept in a single row-major array
+ *  (doubles, floats, or 8 bit levels, see Precision).
+ *
+ * The distance loop is unrolled so that the JIT can vectorize it, and (optionally) a distance
+ *  is abandoned as soon as it is worse than the current k-th best (partial distance).
+ * Batches of queries are blocked so that a block of training rows stays in cache for all the queries.
+ * Both single queries (split by training rows) and batches (split by query) can be spread over threads.
+ *
+ * Properties (all optional):
+ *  - KNN_NEIGHBORS: k (default 1).
+ *  - KNN_THREADS: number of threads to scan with, 0 means all processors (default 1).
+ *  - KNN_EARLY_TERMINATION: use partial distances (default true).
+ *  - KNN_PRECISION: how the training data is held, see Precision (default DOUBLE).
+ */
+public class NearestNeighborClassifier extends Classifier {
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * How the (normalized) training data is held and scored.
+    *  DOUBLE - 8 bytes a value (the original behavior).
+    *  FLOAT - 4 bytes a value. Queries are also rounded to floats and distances are added up as floats.
+    *  INT8 - 1 byte a value. Normalized values are always in [0, 1] for the training data,
+    *   so the per feature min/max normalization is the per feature scale and each value is
+    *   rounded to one of INT8_LEVELS + 1 evenly spaced levels.
+    *   Queries are not quantized (they can be outside of the training range), only scaled to the levels.
+    * FLOAT and INT8 are a memory trade, not a speed one: they did not make queries any faster.
+    * On the hiragana grid (PLOVE, 400 KLT features) they made the same predictions as DOUBLE,
+    *  but check a real training set with KNNPrecisionTest before switching.
+    */
+   public static enum Precision {
+      DOUBLE,
+      FLOAT,
+      INT8
+   }
+
+   // The largest quantized value.
+   private static final int INT8_LEVELS = 255;
+
+   // Distances in quantized levels times this are distances in normalized units.
+   private static final double INT8_SQUARED_UNIT = 1.0 / (INT8_LEVELS * INT8_LEVELS);
+
+   // The value of every level (indexed by (byte & 0xFF)).
+   // Looking a level up is much cheaper than converting it from an int in the distance loops.
+   private static final float[] LEVEL_VALUES = makeLevelValues();
+
+   // Check the partial distance every time this many features are added.
+   private static final int PARTIAL_DISTANCE_STRIDE = 16;
+
+   // The approximate number of bytes of training data to scan for a block of queries.
+   private static final int BLOCK_BYTES = 128 * 1024;
+
+   // Don't bother splitting up a single query unless there are at least this many rows per thread.
+   private static final int MIN_ROWS_PER_THREAD = 512;
+
+   private int numNeighbors;
+   private int numThreads;
+   private boolean earlyTermination;
+   private Precision precision;
+
+   private int numFeatures;
+   private int numTrainingRows;
+   private int numClasses;
+   private int classIndex;
+
+   // [row * numFeatures + feature], already normalized.
+   // Only the one for |precision| is kept, the others are null.
+   private double[] trainingData;
+   private float[] floatTrainingData;
+   // Levels in [0, INT8_LEVELS], read them with (value & 0xFF).
+   private byte[] quantizedTrainingData;
+   private int[] trainingClasses;
+
+   // Normalized value = (value - featureMins[i]) * featureScales[i].
+   private double[] featureMins;
+   private double[] featureScales;
+
+   private transient ExecutorService pool;
+
+   public NearestNeighborClassifier() {
+      numNeighbors = Props.has("KNN_NEIGHBORS") ? Props.getInt("KNN_NEIGHBORS") : 1;
+      earlyTermination = !Props.has("KNN_EARLY_TERMINATION") ||
+                         Boolean.parseBoolean(Props.getString("KNN_EARLY_TERMINATION"));
+      setNumThreads(Props.has("KNN_THREADS") ? Props.getInt("KNN_THREADS") : 1);
+      precision = Props.has("KNN_PRECISION") ?
+                  Precision.valueOf(Props.getString("KNN_PRECISION").toUpperCase()) : Precision.DOUBLE;
+   }
+
+   public int getNumNeighbors() {
+      return numNeighbors;
+   }
+
+   public void setNumNeighbors(int numNeighbors) {
+      assert(numNeighbors > 0);
+      this.numNeighbors = numNeighbors;
+   }
+
+   public int getNumThreads() {
+      return numThreads;
+   }
+
+   /**
+    * Anything less than 1 means to use all the available processors.
+    */
+   public void setNumThreads(int numThreads) {
+      if (numThreads < 1) {
+         numThreads = Runtime.getRuntime().availableProcessors();
+      }
+
+      this.numThreads = numThreads;
+
+      synchronized (this) {
+         if (pool != null) {
+            pool.shutdown();
+            pool = null;
+         }
+      }
+   }
+
+   public boolean getEarlyTermination() {
+      return earlyTermination;
+   }
+
+   public void setEarlyTermination(boolean earlyTermination) {
+      this.earlyTermination = earlyTermination;
+   }
+
+   public Precision getPrecision() {
+      return precision;
+   }
+
+   /**
+    * If the classifier is already built, the training data gets converted.
+    * Going to a lower precision gives the same data as building at that precision
+    *  (except for values right on a rounding boundary), going up just widens the values that are there.
+    */
+   public void setPrecision(Precision precision) {
+      if (precision == this.precision) {
+         return;
+      }
+
+      // Not built yet.
+      if (numTrainingRows == 0) {
+         this.precision = precision;
+         return;
+      }
+
+      double[] row = new double[numFeatures];
+      Precision oldPrecision = this.precision;
+      double[] oldData = trainingData;
+      float[] oldFloatData = floatTrainingData;
+      byte[] oldQuantizedData = quantizedTrainingData;
+
+      this.precision = precision;
+      allocateTrainingData();
+
+      for (int i = 0; i < numTrainingRows; i++) {
+         readRow(oldPrecision, oldData, oldFloatData, oldQuantizedData, i, row);
+         putTrainingRow(i, row);
+      }
+   }
+
+   /**
+    * The number of bytes used by the training data.
+    */
+   public long getTrainingDataBytes() {
+      return (long)numTrainingRows * numFeatures * bytesPerValue();
+   }
+
+   /**
+    * Options:
+    *  -K <number of neighbors>
+    *  -T <number of threads>
+    *  -F (full distances, no early termination)
+    *  -P <precision> (see Precision)
+    */
+   public void setOptions(String[] options) throws Exception {
+      for (int i = 0; i < options.length; i++) {
+         if (options[i].equals("-K")) {
+            setNumNeighbors(Integer.parseInt(options[++i]));
+         } else if (options[i].equals("-T")) {
+            setNumThreads(Integer.parseInt(options[++i]));
+         } else if (options[i].equals("-F")) {
+            setEarlyTermination(false);
+         } else if (options[i].equals("-P")) {
+            setPrecision(Precision.valueOf(options[++i].toUpperCase()));
+         }
+      }
+   }
+
+   public String[] getOptions() {
+      List<String> options = new ArrayList<String>();
+
+      options.add("-K");
+      options.add("" + numNeighbors);
+      options.add("-T");
+      options.add("" + numThreads);
+      options.add("-P");
+      options.add(precision.name());
+
+      if (!earlyTermination) {
+         options.add("-F");
+      }
+
+      return options.toArray(new String[0]);
+   }
+
+   public void buildClassifier(Instances data) throws Exception {
+      classIndex = data.classIndex();
+      numClasses = data.numClasses();
+      numFeatures = data.numAttributes() - 1;
+      numTrainingRows = data.numInstances();
+
+      if (numTrainingRows == 0) {
+         throw new IllegalArgumentException("Cannot build a nearest neighbor classifier with no training data.");
+      }
+
+      trainingClasses = new int[numTrainingRows];
+      for (int i = 0; i < numTrainingRows; i++) {
+         trainingClasses[i] = (int)data.instance(i).classValue();
+      }
+
+      // The rows are read straight out of |data|, so the only other copy is the training matrix.
+      final Instances rows = data;
+      build(new TrainingFeatures() {
+         public int size() {
+            return rows.numInstances();
+         }
+
+         public int getNumberOfFeatures() {
+            return numFeatures;
+         }
+
+         public void get(int index, double[] features) {
+            System.arraycopy(getFeatures(rows.instance(index).toDoubleArray()), 0, features, 0, numFeatures);
+         }
+      });
+   }
+
+   /**
+    * Build straight from raw (unnormalized) feature vectors.
+    * |classes| are the class indexes and must be in [0, |numClasses|).
+    */
+   public void buildClassifier(double[][] features, int[] classes, int numClasses) {
+      assert(features.length == classes.length);
+      assert(features.length > 0);
+      assert(numClasses > 0);
+
+      this.classIndex = -1;
+      this.numClasses = numClasses;
+      this.numFeatures = features[0].length;
+      this.numTrainingRows = features.length;
+      this.trainingClasses = classes.clone();
+
+      final double[][] rows = features;
+      build(new TrainingFeatures() {
+         public int size() {
+            return rows.length;
+         }
+
+         public int getNumberOfFeatures() {
+            return numFeatures;
+         }
+
+         public void get(int index, double[] features) {
+            System.arraycopy(rows[index], 0, features, 0, numFeatures);
+         }
+      });
+   }
+
+   public double classifyInstance(Instance instance) throws Exception {
+      return classify(getFeatures(instance.toDoubleArray()));
+   }
+
+   public double[] distributionForInstance(Instance instance) throws Exception {
+      return distribution(getFeatures(instance.toDoubleArray()));
+   }
+
+   /**
+    * Get the class index for a single raw feature vector.
+    */
+   public int classify(double[] features) {
+      return maxIndex(distribution(features));
+   }
+
+   /**
+    * Get the class indexes for a batch of raw feature vectors.
+    */
+   public int[] classify(double[][] features) {
+      double[][] distributions = distribution(features);
+      int[] rtn = new int[distributions.length];
+
+      for (int i = 0; i < distributions.length; i++) {
+         rtn[i] = maxIndex(distributions[i]);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Get the class probabilities for a single raw feature vector.
+    * Same as IBk: every class starts with a small prior and each neighbor is one vote.
+    */
+   public double[] distribution(double[] features) {
+      return makeDistribution(nearestNeighbors(features));
+   }
+
+   /**
+    * Same as distribution(double[]), but fill in |out| (which must be the number of classes long).
+    */
+   public void distribution(double[] features, double[] out) {
+      makeDistribution(nearestNeighbors(features), out);
+   }
+
+   public double[][] distribution(double[][] features) {
+      int[][] neighbors = nearestNeighbors(features);
+      double[][] rtn = new double[neighbors.length][];
+
+      for (int i = 0; i < neighbors.length; i++) {
+         rtn[i] = makeDistribution(neighbors[i]);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Get the indexes of the k nearest training rows (closest first).
+    * Subclasses can override this (and the batch version) to use an index instead of a full scan.
+    */
+   public int[] nearestNeighbors(double[] features) {
+      return exactNearestNeighbors(features);
+   }
+
+   public int[][] nearestNeighbors(double[][] features) {
+      return exactNearestNeighbors(features);
+   }
+
+   /**
+    * Get the true k nearest training rows with a full scan.
+    */
+   public int[] exactNearestNeighbors(double[] features) {
+      assert(features.length == numFeatures);
+
+      final double[] query = normalize(features);
+      final float[] floatQuery = toFloatQuery(query);
+      final int k = Math.min(numNeighbors, numTrainingRows);
+
+      int threads = Math.min(numThreads, numTrainingRows / MIN_ROWS_PER_THREAD);
+      if (threads <= 1 || SystemUtils.isSerialThread()) {
+         Neighbors neighbors = new Neighbors(k);
+         scan(query, floatQuery, 0, numTrainingRows, neighbors);
+         return neighbors.indexes;
+      }
+
+      // Each thread gets a range of rows, then merge all the results.
+      List<Callable<Neighbors>> tasks = new ArrayList<Callable<Neighbors>>();
+      int rowsPerThread = (numTrainingRows + threads - 1) / threads;
+
+      for (int start = 0; start < numTrainingRows; start += rowsPerThread) {
+         final int rangeStart = start;
+         final int rangeEnd = Math.min(numTrainingRows, start + rowsPerThread);
+
+         tasks.add(new Callable<Neighbors>() {
+            public Neighbors call() {
+               Neighbors neighbors = new Neighbors(k);
+               scan(query, floatQuery, rangeStart, rangeEnd, neighbors);
+               return neighbors;
+            }
+         });
+      }
+
+      Neighbors rtn = new Neighbors(k);
+      for (Neighbors partial : runAll(tasks)) {
+         for (int i = 0; i < partial.size; i++) {
+            rtn.offer(partial.distances[i], partial.indexes[i]);
+         }
+      }
+
+      return rtn.indexes;
+   }
+
+   /**
+    * Get the true nearest neighbors for a batch of queries.
+    * The queries are split between threads, and each thread goes through the training data
+    *  a block at a time so that the block is reused for all of the thread's queries.
+    */
+   public int[][] exactNearestNeighbors(double[][] features) {
+      final double[][] queries = new double[features.length][];
+      final float[][] floatQueries = new float[features.length][];
+      for (int i = 0; i < features.length; i++) {
+         assert(features[i].length == numFeatures);
+         queries[i] = normalize(features[i]);
+         floatQueries[i] = toFloatQuery(queries[i]);
+      }
+
+      final int[][] rtn = new int[queries.length][];
+      final int k = Math.min(numNeighbors, numTrainingRows);
+
+      int threads = SystemUtils.isSerialThread() ? 1 : Math.max(1, Math.min(numThreads, queries.length));
+      int queriesPerThread = (queries.length + threads - 1) / Math.max(1, threads);
+
+      List<Callable<Neighbors>> tasks = new ArrayList<Callable<Neighbors>>();
+      for (int start = 0; start < queries.length; start += queriesPerThread) {
+         final int rangeStart = start;
+         final int rangeEnd = Math.min(queries.length, start + queriesPerThread);
+
+         tasks.add(new Callable<Neighbors>() {
+            public Neighbors call() {
+               scanBlocked(queries, floatQueries, rangeStart, rangeEnd, k, rtn);
+               return null;
+            }
+         });
+      }
+
+      if (tasks.size() == 1) {
+         try {
+            tasks.get(0).call();
+         } catch (Exception ex) {
+            throw new RuntimeException(ex);
+         }
+      } else {
+         runAll(tasks);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Write out the built classifier as flat arrays (see ModelFile).
+    * The number of threads is not written, it belongs to the machine that loads the model.
+    * Layout:
+    *  - Number of neighbors (int)
+    *  - Early termination (boolean)
+    *  - Precision (string)
+    *  - Number of classes (int)
+    *  - Class index (int)
+    *  - Feature mins (doubles)
+    *  - Feature scales (doubles)
+    *  - Training classes (ints)
+    *  - Training data, normalized and row-major (doubles, floats, or bytes depending on the precision)
+    */
+   public void writeModel(DataOutputStream out) throws IOException {
+      out.writeInt(numNeighbors);
+      out.writeBoolean(earlyTermination);
+      ModelFile.writeString(out, precision.name());
+      out.writeInt(numClasses);
+      out.writeInt(classIndex);
+      ModelFile.writeDoubles(out, featureMins);
+      ModelFile.writeDoubles(out, featureScales);
+      ModelFile.writeInts(out, trainingClasses);
+
+      switch (precision) {
+         case DOUBLE:
+            ModelFile.writeDoubles(out, trainingData);
+            break;
+         case FLOAT:
+            ModelFile.writeFloats(out, floatTrainingData);
+            break;
+         case INT8:
+            ModelFile.writeBytes(out, quantizedTrainingData);
+            break;
+      }
+   }
+
+   /**
+    * Read back what writeModel() wrote.
+    * This replaces buildClassifier().
+    * The training data is converted to this classifier's precision (see setPrecision())
+    *  if it was written with a different one.
+    */
+   public void readModel(ByteBuffer in) throws IOException {
+      Precision configuredPrecision = precision;
+
+      numNeighbors = in.getInt();
+      earlyTermination = in.get() != 0;
+
+      try {
+         precision = Precision.valueOf(ModelFile.readString(in));
+      } catch (IllegalArgumentException ex) {
+         throw new IOException("Malformed nearest neighbor model.", ex);
+      }
+
+      numClasses = in.getInt();
+      classIndex = in.getInt();
+      featureMins = ModelFile.readDoubles(in);
+      featureScales = ModelFile.readDoubles(in);
+      trainingClasses = ModelFile.readInts(in);
+
+      trainingData = null;
+      floatTrainingData = null;
+      quantizedTrainingData = null;
+
+      int dataLength = 0;
+      switch (precision) {
+         case DOUBLE:
+            trainingData = ModelFile.readDoubles(in);
+            dataLength = trainingData.length;
+            break;
+         case FLOAT:
+            floatTrainingData = ModelFile.readFloats(in);
+            dataLength = floatTrainingData.length;
+            break;
+         case INT8:
+            quantizedTrainingData = ModelFile.readBytes(in);
+            dataLength = quantizedTrainingData.length;
+            break;
+      }
+
+      numFeatures = featureMins.length;
+      numTrainingRows = trainingClasses.length;
+
+      if (featureScales.length != numFeatures || dataLength != numTrainingRows * numFeatures) {
+         throw new IOException("Malformed nearest neighbor model.");
+      }
+
+      setPrecision(configuredPrecision);
+   }
+
+   /**
+    * Two passes over |rows|: one for the per feature range and one to fill in the (normalized) training matrix.
+    * Only a single raw row is held at a time.
+    */
+   private void build(TrainingFeatures rows) {
+      double[] row = new double[numFeatures];
+      double[] maxes = new double[numFeatures];
+
+      featureMins = new double[numFeatures];
+      featureScales = new double[numFeatures];
+
+      Arrays.fill(featureMins, Double.POSITIVE_INFINITY);
+      Arrays.fill(maxes, Double.NEGATIVE_INFINITY);
+
+      for (int i = 0; i < numTrainingRows; i++) {
+         rows.get(i, row);
+
+         for (int feature = 0; feature < numFeatures; feature++) {
+            featureMins[feature] = Math.min(featureMins[feature], row[feature]);
+            maxes[feature] = Math.max(maxes[feature], row[feature]);
+         }
+      }
+
+      for (int feature = 0; feature < numFeatures; feature++) {
+         double min = featureMins[feature];
+         double max = maxes[feature];
+         featureScales[feature] = (max > min) ? 1.0 / (max - min) : 0.0;
+      }
+
+      allocateTrainingData();
+      for (int i = 0; i < numTrainingRows; i++) {
+         rows.get(i, row);
+         putTrainingRow(i, normalize(row));
+      }
+
+      buildIndex();
+   }
+
+   /**
+    * Make an empty training matrix for the current precision and drop any others.
+    */
+   private void allocateTrainingData() {
+      int size = numTrainingRows * numFeatures;
+
+      trainingData = precision == Precision.DOUBLE ? new double[size] : null;
+      floatTrainingData = precision == Precision.FLOAT ? new float[size] : null;
+      quantizedTrainingData = precision == Precision.INT8 ? new byte[size] : null;
+   }
+
+   /**
+    * Store a normalized row at the current precision.
+    */
+   private void putTrainingRow(int row, double[] normalized) {
+      int offset = row * numFeatures;
+
+      switch (precision) {
+         case DOUBLE:
+            System.arraycopy(normalized, 0, trainingData, offset, numFeatures);
+            break;
+         case FLOAT:
+            for (int i = 0; i < numFeatures; i++) {
+               floatTrainingData[offset + i] = (float)normalized[i];
+            }
+            break;
+         case INT8:
+            for (int i = 0; i < numFeatures; i++) {
+               long level = Math.round(normalized[i] * INT8_LEVELS);
+               quantizedTrainingData[offset + i] = (byte)Math.max(0, Math.min(INT8_LEVELS, level));
+            }
+            break;
+      }
+   }
+
+   /**
+    * Read a normalized row back out of training data that was stored at |rowPrecision|.
+    */
+   private void readRow(Precision rowPrecision, double[] data, float[] floatData, byte[] quantizedData,
+                        int row, double[] rtn) {
+      int offset = row * numFeatures;
+
+      switch (rowPrecision) {
+         case DOUBLE:
+            System.arraycopy(data, offset, rtn, 0, numFeatures);
+            break;
+         case FLOAT:
+            for (int i = 0; i < numFeatures; i++) {
+               rtn[i] = floatData[offset + i];
+            }
+            break;
+         case INT8:
+            for (int i = 0; i < numFeatures; i++) {
+               rtn[i] = (quantizedData[offset + i] & 0xFF) / (double)INT8_LEVELS;
+            }
+            break;
+      }
+   }
+
+   private int bytesPerValue() {
+      switch (precision) {
+         case FLOAT:
+            return 4;
+         case INT8:
+            return 1;
+         default:
+            return 8;
+      }
+   }
+
+   private static float[] makeLevelValues() {
+      float[] rtn = new float[256];
+
+      for (int i = 0; i < rtn.length; i++) {
+         rtn[i] = i;
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The form of a normalized query that the FLOAT and INT8 scans use (null for DOUBLE).
+    * For INT8, the query is put in quantization levels.
+    */
+   private float[] toFloatQuery(double[] normalizedQuery) {
+      if (precision == Precision.DOUBLE) {
+         return null;
+      }
+
+      double scale = precision == Precision.INT8 ? INT8_LEVELS : 1.0;
+      float[] rtn = new float[numFeatures];
+
+      for (int i = 0; i < numFeatures; i++) {
+         rtn[i] = (float)(normalizedQuery[i] * scale);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Called once the normalized training data is ready.
+    * Subclasses that search with an index should build it here.
+    */
+   protected void buildIndex() {
+   }
+
+   /**
+    * Full scan for the k nearest rows to a query that is already normalized.
+    */
+   protected int[] scanNearestNeighbors(double[] normalizedQuery, int k) {
+      Neighbors neighbors = new Neighbors(k);
+      scan(normalizedQuery, toFloatQuery(normalizedQuery), 0, numTrainingRows, neighbors);
+      return neighbors.indexes;
+   }
+
+   /**
+    * A copy of a (normalized) training row.
+    */
+   protected double[] getTrainingRow(int row) {
+      double[] rtn = new double[numFeatures];
+      readRow(precision, trainingData, floatTrainingData, quantizedTrainingData, row, rtn);
+      return rtn;
+   }
+
+   protected int getNumTrainingRows() {
+      return numTrainingRows;
+   }
+
+   protected int getNumFeatures() {
+      return numFeatures;
+   }
+
+   /**
+    * The full squared distance between a normalized query and a training row.
+    * The query is kept as doubles, so this works the same with any precision.
+    */
+   protected double squaredDistance(double[] normalizedQuery, int row) {
+      int offset = row * numFeatures;
+      double sum = 0;
+
+      for (int feature = 0; feature < numFeatures; feature += PARTIAL_DISTANCE_STRIDE) {
+         int end = Math.min(numFeatures, feature + PARTIAL_DISTANCE_STRIDE);
+
+         switch (precision) {
+            case FLOAT:
+               sum += distanceRange(normalizedQuery, floatTrainingData, offset, feature, end);
+               break;
+            case INT8:
+               sum += distanceRange(normalizedQuery, quantizedTrainingData, offset, feature, end) *
+                      INT8_SQUARED_UNIT;
+               break;
+            default:
+               sum += distanceRange(normalizedQuery, 0, trainingData, offset, feature, end);
+               break;
+         }
+      }
+
+      return sum;
+   }
+
+   /**
+    * The full squared distance between two training rows.
+    */
+   protected double squaredDistance(int rowA, int rowB) {
+      int offsetA = rowA * numFeatures;
+      int offsetB = rowB * numFeatures;
+      double sum = 0;
+
+      for (int feature = 0; feature < numFeatures; feature += PARTIAL_DISTANCE_STRIDE) {
+         int end = Math.min(numFeatures, feature + PARTIAL_DISTANCE_STRIDE);
+
+         switch (precision) {
+            case FLOAT:
+               sum += distanceRange(floatTrainingData, offsetA, floatTrainingData, offsetB, feature, end);
+               break;
+            case INT8:
+               sum += distanceRange(quantizedTrainingData, offsetA, offsetB, feature, end) * INT8_SQUARED_UNIT;
+               break;
+            default:
+               sum += distanceRange(trainingData, offsetA, trainingData, offsetB, feature, end);
+               break;
+         }
+      }
+
+      return sum;
+   }
+
+   /**
+    * |floatQueries| are the same queries from toFloatQuery() (nulls for DOUBLE).
+    */
+   private void scanBlocked(double[][] queries, float[][] floatQueries,
+                            int queryStart, int queryEnd, int k, int[][] results) {
+      Neighbors[] neighbors = new Neighbors[queryEnd - queryStart];
+      for (int i = 0; i < neighbors.length; i++) {
+         neighbors[i] = new Neighbors(k);
+      }
+
+      int blockRows = Math.max(1, BLOCK_BYTES / (bytesPerValue() * Math.max(1, numFeatures)));
+
+      for (int blockStart = 0; blockStart < numTrainingRows; blockStart += blockRows) {
+         int blockEnd = Math.min(numTrainingRows, blockStart + blockRows);
+
+         for (int i = queryStart; i < queryEnd; i++) {
+            scan(queries[i], floatQueries[i], blockStart, blockEnd, neighbors[i - queryStart]);
+         }
+      }
+
+      for (int i = queryStart; i < queryEnd; i++) {
+         results[i] = neighbors[i - queryStart].indexes;
+      }
+   }
+
+   /**
+    * Offer all the training rows in [rowStart, rowEnd) to |neighbors|.
+    */
+   private void scan(double[] query, float[] floatQuery, int rowStart, int rowEnd, Neighbors neighbors) {
+      for (int row = rowStart; row < rowEnd; row++) {
+         double distance = distance(query, floatQuery, row * numFeatures, neighbors.worstDistance());
+         if (distance < neighbors.worstDistance()) {
+            neighbors.offer(distance, row);
+         }
+      }
+   }
+
+   /**
+    * The squared distance between a query and the training row at |offset|.
+    * |query| is used for DOUBLE and |floatQuery| (see toFloatQuery()) for everything else.
+    * If early termination is on, the result is only accurate if it is less than |bound|.
+    */
+   private double distance(double[] query, float[] floatQuery, int offset, double bound) {
+      double sum = 0;
+
+      // Always add in the same chunks so that the result does not depend on early termination.
+      for (int feature = 0; feature < numFeatures; feature += PARTIAL_DISTANCE_STRIDE) {
+         int end = Math.min(numFeatures, feature + PARTIAL_DISTANCE_STRIDE);
+
+         switch (precision) {
+            case FLOAT:
+               sum += distanceRange(floatQuery, 0, floatTrainingData, offset, feature, end);
+               break;
+            case INT8:
+               sum += distanceRange(floatQuery, quantizedTrainingData, offset, feature, end) * INT8_SQUARED_UNIT;
+               break;
+            default:
+               sum += distanceRange(query, 0, trainingData, offset, feature, end);
+               break;
+         }
+
+         if (earlyTermination && sum >= bound) {
+            return sum;
+         }
+      }
+
+      return sum;
+   }
+
+   /**
+    * Four independent accumulators so the adds do not form one long dependency chain.
+    */
+   private static double distanceRange(double[] query, int queryOffset,
+                                       double[] data, int offset,
+                                       int start, int end) {
+      double sum0 = 0;
+      double sum1 = 0;
+      double sum2 = 0;
+      double sum3 = 0;
+
+      int i = start;
+      for (; i + 3 < end; i += 4) {
+         double diff0 = query[queryOffset + i] - data[offset + i];
+         double diff1 = query[queryOffset + i + 1] - data[offset + i + 1];
+         double diff2 = query[queryOffset + i + 2] - data[offset + i + 2];
+         double diff3 = query[queryOffset + i + 3] - data[offset + i + 3];
+
+         sum0 += diff0 * diff0;
+         sum1 += diff1 * diff1;
+         sum2 += diff2 * diff2;
+         sum3 += diff3 * diff3;
+      }
+
+      for (; i < end; i++) {
+         double diff = query[queryOffset + i] - data[offset + i];
+         sum0 += diff * diff;
+      }
+
+      return (sum0 + sum1) + (sum2 + sum3);
+   }
+
+   /**
+    * Same as the double version, but all in floats.
+    */
+   private static double distanceRange(float[] query, int queryOffset,
+                                       float[] data, int offset,
+                                       int start, int end) {
+      float sum0 = 0;
+      float sum1 = 0;
+      float sum2 = 0;
+      float sum3 = 0;
+
+      int i = start;
+      for (; i + 3 < end; i += 4) {
+         float diff0 = query[queryOffset + i] - data[offset + i];
+         float diff1 = query[queryOffset + i + 1] - data[offset + i + 1];
+         float diff2 = query[queryOffset + i + 2] - data[offset + i + 2];
+         float diff3 = query[queryOffset + i + 3] - data[offset + i + 3];
+
+         sum0 += diff0 * diff0;
+         sum1 += diff1 * diff1;
+         sum2 += diff2 * diff2;
+         sum3 += diff3 * diff3;
+      }
+
+      for (; i < end; i++) {
+         float diff = query[queryOffset + i] - data[offset + i];
+         sum0 += diff * diff;
+      }
+
+      return (sum0 + sum1) + (sum2 + sum3);
+   }
+
+   /**
+    * A double query against float training data.
+    */
+   private static double distanceRange(double[] query, float[] data, int offset, int start, int end) {
+      double sum0 = 0;
+      double sum1 = 0;
+
+      int i = start;
+      for (; i + 1 < end; i += 2) {
+         double diff0 = query[i] - data[offset + i];
+         double diff1 = query[i + 1] - data[offset + i + 1];
+
+         sum0 += diff0 * diff0;
+         sum1 += diff1 * diff1;
+      }
+
+      for (; i < end; i++) {
+         double diff = query[i] - data[offset + i];
+         sum0 += diff * diff;
+      }
+
+      return sum0 + sum1;
+   }
+
+   /**
+    * A query that is already in quantization levels against quantized training data.
+    * The result is in squared levels.
+    */
+   private static double distanceRange(float[] query, byte[] data, int offset, int start, int end) {
+      float sum0 = 0;
+      float sum1 = 0;
+      float sum2 = 0;
+      float sum3 = 0;
+
+      int i = start;
+      for (; i + 3 < end; i += 4) {
+         float diff0 = query[i] - LEVEL_VALUES[data[offset + i] & 0xFF];
+         float diff1 = query[i + 1] - LEVEL_VALUES[data[offset + i + 1] & 0xFF];
+         float diff2 = query[i + 2] - LEVEL_VALUES[data[offset + i + 2] & 0xFF];
+         float diff3 = query[i + 3] - LEVEL_VALUES[data[offset + i + 3] & 0xFF];
+
+         sum0 += diff0 * diff0;
+         sum1 += diff1 * diff1;
+         sum2 += diff2 * diff2;
+         sum3 += diff3 * diff3;
+      }
+
+      for (; i < end; i++) {
+         float diff = query[i] - LEVEL_VALUES[data[offset + i] & 0xFF];
+         sum0 += diff * diff;
+      }
+
+      return (sum0 + sum1) + (sum2 + sum3);
+   }
+
+   /**
+    * A normalized double query against quantized training data.
+    * The result is in squared levels.
+    */
+   private static double distanceRange(double[] query, byte[] data, int offset, int start, int end) {
+      double sum = 0;
+
+      for (int i = start; i < end; i++) {
+         double diff = query[i] * INT8_LEVELS - LEVEL_VALUES[data[offset + i] & 0xFF];
+         sum += diff * diff;
+      }
+
+      return sum;
+   }
+
+   /**
+    * Two quantized training rows, in squared levels.
+    * A range is at most PARTIAL_DISTANCE_STRIDE long, so the sum always fits in an int.
+    */
+   private static double distanceRange(byte[] data, int offsetA, int offsetB, int start, int end) {
+      int sum = 0;
+
+      for (int i = start; i < end; i++) {
+         int diff = (data[offsetA + i] & 0xFF) - (data[offsetB + i] & 0xFF);
+         sum += diff * diff;
+      }
+
+      return sum;
+   }
+
+   /**
+    * Put raw features into the same space as the training data.
+    */
+   protected double[] normalize(double[] features) {
+      double[] rtn = new double[numFeatures];
+
+      for (int i = 0; i < numFeatures; i++) {
+         rtn[i] = (features[i] - featureMins[i]) * featureScales[i];
+      }
+
+      return rtn;
+   }
+
+   private double[] makeDistribution(int[] neighbors) {
+      double[] rtn = new double[numClasses];
+      makeDistribution(neighbors, rtn);
+      return rtn;
+   }
+
+   private void makeDistribution(int[] neighbors, double[] rtn) {
+      assert(rtn.length == numClasses);
+
+      double prior = 1.0 / Math.max(1, numTrainingRows);
+      double total = prior * numClasses;
+      for (int i = 0; i < numClasses; i++) {
+         rtn[i] = prior;
+      }
+
+      for (int neighbor : neighbors) {
+         rtn[trainingClasses[neighbor]] += 1.0;
+         total += 1.0;
+      }
+
+      for (int i = 0; i < numClasses; i++) {
+         rtn[i] /= total;
+      }
+   }
+
+   /**
+    * Pull the features out of a full WEKA value array (skip the class).
+    */
+   private double[] getFeatures(double[] values) {
+      if (classIndex < 0 || classIndex >= values.length) {
+         return values;
+      }
+
+      double[] rtn = new double[values.length - 1];
+      System.arraycopy(values, 0, rtn, 0, classIndex);
+      System.arraycopy(values, classIndex + 1, rtn, classIndex, values.length - classIndex - 1);
+
+      return rtn;
+   }
+
+   private static int maxIndex(double[] values) {
+      int rtn = 0;
+
+      for (int i = 1; i < values.length; i++) {
+         if (values[i] > values[rtn]) {
+            rtn = i;
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Run all the tasks on the classifier's thread pool and wait for them.
+    * On a serial thread (see SystemUtils.setSerialThread()), they are just run in order on the calling thread.
+    */
+   protected <T> List<T> runAll(List<Callable<T>> tasks) {
+      List<T> rtn = new ArrayList<T>(tasks.size());
+
+      if (SystemUtils.isSerialThread()) {
+         try {
+            for (Callable<T> task : tasks) {
+               rtn.add(task.call());
+            }
+         } catch (Exception ex) {
+            throw new RuntimeException("Nearest neighbor scan failed.", ex);
+         }
+
+         return rtn;
+      }
+
+      try {
+         for (Future<T> future : getPool().invokeAll(tasks)) {
+            rtn.add(future.get());
+         }
+      } catch (ExecutionException ex) {
+         throw new RuntimeException("Nearest neighbor scan failed.", ex.getCause());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted during nearest neighbor scan.", ex);
+      }
+
+      return rtn;
+   }
+
+   private synchronized ExecutorService getPool() {
+      if (pool == null) {
+         pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+               Thread thread = new Thread(runnable, "knn-scan");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+
+      return pool;
+   }
+
+   /**
+    * The k best rows seen so far, closest first.
+    * Ties go to the row that was seen first.
+    */
+   private static class Neighbors {
+      public final double[] distances;
+      public final int[] indexes;
+      public int size;
+
+      public Neighbors(int k) {
+         distances = new double[k];
+         indexes = new int[k];
+         size = 0;
+      }
+
+      public double worstDistance() {
+         return size < distances.length ? Double.POSITIVE_INFINITY : distances[size - 1];
+      }
+
+      public void offer(double distance, int index) {
+         if (distance >= worstDistance()) {
+            return;
+         }
+
+         int position = size < distances.length ? size++ : size - 1;
+         while (position > 0 && distances[position - 1] > distance) {
+            distances[position] = distances[position - 1];
+            indexes[position] = indexes[position - 1];
+            position--;
+         }
+
+         distances[position] = distance;
+         indexes[position] = index;
+      }
+   }
+}
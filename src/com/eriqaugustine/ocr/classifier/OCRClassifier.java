@@ -2,9 +2,18 @@ package com.eriqaugustine.ocr.classifier;
 
 import com.eriqaugustine.ocr.image.WrapImage;
 
+import java.util.List;
+
 /**
  * A classifier specialized for ORCing characters.
  */
 public interface OCRClassifier {
    public String classify(WrapImage image);
+
+   /**
+    * Classify many images at once.
+    * The result is 1-1 with |images|.
+    * Implementations should take advantage of the batch instead of just calling classify() on each image.
+    */
+   public List<String> classify(List<WrapImage> images);
 }
@@ -156,21 +156,57 @@ public class OverlappingRegionClassifier implements OCRClassifier {
    }
 
    public String classify(WrapImage image) {
-      // Get the density of the image to decide which classifier to use.
+      return classifiers[getClassifierIndex(image)].classify(image);
+   }
+
+   /**
+    * Split the images up by the classifier that will handle them
+    *  and give each classifier its images as a single batch.
+    */
+   public List<String> classify(List<WrapImage> images) {
+      // We can't make arrays of generics.
+      List<List<WrapImage>> groupImages = new ArrayList<List<WrapImage>>();
+      for (int i = 0; i < classifiers.length; i++) {
+         groupImages.add(new ArrayList<WrapImage>());
+      }
+
+      int[] groups = new int[images.size()];
+      for (int i = 0; i < images.size(); i++) {
+         groups[i] = getClassifierIndex(images.get(i));
+         groupImages.get(groups[i]).add(images.get(i));
+      }
+
+      List<List<String>> groupResults = new ArrayList<List<String>>();
+      for (int i = 0; i < classifiers.length; i++) {
+         if (groupImages.get(i).size() == 0) {
+            groupResults.add(null);
+         } else {
+            groupResults.add(classifiers[i].classify(groupImages.get(i)));
+         }
+      }
+
+      // Put the results back in the original order.
+      int[] groupPositions = new int[classifiers.length];
+      List<String> rtn = new ArrayList<String>(images.size());
+      for (int i = 0; i < images.size(); i++) {
+         rtn.add(groupResults.get(groups[i]).get(groupPositions[groups[i]]++));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Use the density of the image to decide which classifier to use.
+    */
+   private int getClassifierIndex(WrapImage image) {
       double density = CharacterImage.getDensityMap(image, 1, 1)[0][0];
-      OCRClassifier classifierToUse = null;
 
       for (int i = 0; i < densityBreaks.length; i++) {
          if (density < densityBreaks[i]) {
-            classifierToUse = classifiers[i];
-            break;
+            return i;
          }
       }
 
-      if (classifierToUse == null) {
-         classifierToUse = classifiers[classifiers.length - 1];
-      }
-
-      return classifierToUse.classify(image);
+      return classifiers.length - 1;
    }
 }
@@ -2,7 +2,7 @@ package com.eriqaugustine.ocr.classifier;
 
 import com.eriqaugustine.ocr.image.WrapImage;
 import com.eriqaugustine.ocr.pdc.PDC;
-import com.eriqaugustine.ocr.pdc.PDCInfo;
+import com.eriqaugustine.ocr.pdc.PDCExtractor;
 import com.eriqaugustine.ocr.utils.MapUtils;
 import com.eriqaugustine.ocr.utils.ImageUtils;
 import com.eriqaugustine.ocr.utils.StringUtils;
@@ -27,6 +27,9 @@ public class PDCClassifier extends CharacterClassifier {
    private final int groupSize;
    private final boolean combineDirections;
 
+   // Features get extracted on many threads at once (see VectorClassifier.getAllFeatureValues()).
+   private final ThreadLocal<PDCExtractor> extractors;
+
    public PDCClassifier(String characters, String[] fonts) throws Exception {
       this(characters, DEFAULT_COMBINE_DIRECTIONS, DEFAULT_GROUP_SIZE, fonts);
    }
@@ -51,6 +54,13 @@ public class PDCClassifier extends CharacterClassifier {
       this.combineDirections = combineDirections;
       this.groupSize = groupSize;
 
+      extractors = new ThreadLocal<PDCExtractor>() {
+         protected PDCExtractor initialValue() {
+            return new PDCExtractor(PDCClassifier.this.combineDirections,
+                                    PDCClassifier.this.groupSize);
+         }
+      };
+
       boolean res = train(
             trainingCharacters,
             fonts,
@@ -83,22 +93,7 @@ public class PDCClassifier extends CharacterClassifier {
     * @inheritDoc
     */
    protected double[] getFeatureValues(WrapImage image) {
-      PDCInfo info = PDC.pdc(image);
-
-      double[] dcFeatures = null;
-      if (combineDirections) {
-         if (groupSize > 1) {
-            dcFeatures = info.halfGroupedDimensions(groupSize);
-         } else {
-            dcFeatures = info.halfPDCDimensions();
-         }
-      } else {
-         if (groupSize > 1) {
-            dcFeatures = info.fullGroupedDimensions(groupSize);
-         } else {
-            dcFeatures = info.fullPDCDimensions();
-         }
-      }
+      double[] dcFeatures = extractors.get().extract(image);
 
       // Add the character densities.
       double[] characterDensities = ImageUtils.regionDensities(image,
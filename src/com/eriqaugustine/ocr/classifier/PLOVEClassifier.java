@@ -3,11 +3,14 @@ package com.eriqaugustine.ocr.classifier;
 import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
 import com.eriqaugustine.ocr.image.WrapImage;
 import com.eriqaugustine.ocr.plove.PLOVE;
+import com.eriqaugustine.ocr.plove.PloveExtractor;
 import com.eriqaugustine.ocr.utils.SystemUtils;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -19,6 +22,9 @@ import java.util.List;
 public class PLOVEClassifier extends CharacterClassifier {
    private static Logger logger = LogManager.getLogger(PLOVEClassifier.class.getName());
 
+   // Features get extracted on many threads at once (see VectorClassifier.getAllFeatureValues()).
+   private static final ThreadLocal<PloveExtractor> extractors = new ThreadLocal<PloveExtractor>();
+
    public PLOVEClassifier(String trainingCharacters, String[] fonts, FeatureVectorReducer reduce) throws Exception {
       super(PLOVE.getNumberOfFeatures(), reduce);
       train(trainingCharacters, fonts);
@@ -29,6 +35,32 @@ public class PLOVEClassifier extends CharacterClassifier {
       train(trainingCharacters, fonts);
    }
 
+   /**
+    * Load a classifier that was saved with saveModel() instead of training one.
+    */
+   public PLOVEClassifier(File modelFile) throws Exception {
+      super(PLOVE.getNumberOfFeatures());
+
+      if (!loadModel(modelFile)) {
+         throw new IOException("Unable to load classifier model: " + modelFile);
+      }
+   }
+
+   /**
+    * Load a classifier that was saved with saveModel(),
+    *  but only if it was trained just like PLOVEClassifier(|trainingCharacters|, |fonts|, |reduce|) would train it.
+    * A stale model (different characters, fonts, reducer, or rendering settings) throws like a bad one.
+    */
+   public PLOVEClassifier(File modelFile, String trainingCharacters, String[] fonts,
+                          FeatureVectorReducer reduce) throws Exception {
+      super(PLOVE.getNumberOfFeatures(), reduce);
+
+      String expectedConfig = getTrainingConfig(trainingCharacters, fonts, new HashMap<String, String>());
+      if (!loadModel(modelFile, expectedConfig)) {
+         throw new IOException("Unable to load classifier model (or it is stale): " + modelFile);
+      }
+   }
+
    private void train(String trainingCharacters, String[] fonts) throws Exception {
       SystemUtils.memoryMark("Training BEGIN", System.err);
 
@@ -50,6 +82,14 @@ public class PLOVEClassifier extends CharacterClassifier {
     * @inheritDoc
     */
    protected double[] getFeatureValues(WrapImage image) {
-      return PLOVE.plove(image);
+      PloveExtractor extractor = extractors.get();
+
+      // PLOVE.SCALE_SIZE can be changed at any time (see PLOVESizeTest).
+      if (extractor == null || extractor.getSideLength() != PLOVE.SCALE_SIZE) {
+         extractor = new PloveExtractor();
+         extractors.set(extractor);
+      }
+
+      return extractor.extract(image);
    }
 }
@@ -0,0 +1,55 @@
+package com.eriqaugustine.ocr.classifier;
+
+import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
+import com.eriqaugustine.ocr.features.FeaturePipeline;
+import com.eriqaugustine.ocr.image.WrapImage;
+import com.eriqaugustine.ocr.utils.MapUtils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+
+/**
+ * A classifier over the combined features of a FeaturePipeline (eg. PLOVE + PDC + densities).
+ * Each character only gets preprocessed once no matter how many kinds of features are used.
+ */
+public class PipelineClassifier extends CharacterClassifier {
+   private static Logger logger = LogManager.getLogger(PipelineClassifier.class.getName());
+
+   private final FeaturePipeline pipeline;
+
+   public PipelineClassifier(String trainingCharacters, String[] fonts,
+                             FeaturePipeline pipeline) throws Exception {
+      super(pipeline.getNumberOfFeatures());
+      this.pipeline = pipeline;
+      train(trainingCharacters, fonts);
+   }
+
+   public PipelineClassifier(String trainingCharacters, String[] fonts,
+                             FeaturePipeline pipeline, FeatureVectorReducer reduce) throws Exception {
+      super(pipeline.getNumberOfFeatures(), reduce);
+      this.pipeline = pipeline;
+      train(trainingCharacters, fonts);
+   }
+
+   private void train(String trainingCharacters, String[] fonts) throws Exception {
+      // The pipeline decides what the features are, so it needs to be in the cache keys.
+      boolean res = train(
+            trainingCharacters,
+            fonts,
+            MapUtils.inlinePut(new HashMap<String, String>(), "pipeline", pipeline.getDescription()));
+
+      if (!res) {
+         logger.fatal("Failed to train a classifier.");
+         System.exit(1);
+      }
+   }
+
+   /**
+    * @inheritDoc
+    */
+   protected double[] getFeatureValues(WrapImage image) {
+      return pipeline.extract(image);
+   }
+}
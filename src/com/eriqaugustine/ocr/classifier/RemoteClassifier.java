@@ -8,13 +8,17 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A wrapper to a classifier on another JVM (possibly server).
+ * Every request is a batch of images (see NetUtils.sendImages()),
+ *  classify(WrapImage) is just a batch of one.
+ * Large batches are split into requests that the server will take, all on the same connection.
  * TODO(eriq): We REALLY need to not make a new connection for each transfer.
  * TODO(eriq): We should be able to request a specific classifier that the server uses.
- * TODO(eriq): We need to extend the OCRClassifier api to accept multiple images
- *  so we don't have to make so many calls.
  */
 public class RemoteClassifier implements OCRClassifier {
    private static Logger logger = LogManager.getLogger(RemoteClassifier.class.getName());
@@ -36,16 +40,38 @@ public class RemoteClassifier implements OCRClassifier {
    }
 
    public String classify(WrapImage image) {
-      String rtn = null;
+      return classify(Collections.singletonList(image)).get(0);
+   }
+
+   /**
+    * Send all the images over a single connection,
+    *  in as few requests as the server will take (see NetUtils.splitBatches()).
+    * If any request fails, every classification will be null.
+    */
+   public List<String> classify(List<WrapImage> images) {
+      List<String> rtn = null;
       Socket socket = null;
 
       try {
          socket = new Socket(server, port);
-         NetUtils.sendImage(socket, image);
-         rtn = NetUtils.getString(socket);
+         rtn = new ArrayList<String>(images.size());
+
+         for (List<WrapImage> batch : NetUtils.splitBatches(images)) {
+            List<String> classes = null;
+            if (NetUtils.sendImages(socket, batch)) {
+               classes = NetUtils.getStrings(socket);
+            }
+
+            if (classes == null || classes.size() != batch.size()) {
+               rtn = null;
+               break;
+            }
+
+            rtn.addAll(classes);
+         }
       } catch (Exception ex) {
          logger.error("Error in remote classification", ex);
-         return null;
+         rtn = null;
       } finally {
          if (socket != null) {
             try {
@@ -57,6 +83,13 @@ public class RemoteClassifier implements OCRClassifier {
          }
       }
 
+      if (rtn == null || rtn.size() != images.size()) {
+         rtn = new ArrayList<String>(images.size());
+         for (int i = 0; i < images.size(); i++) {
+            rtn.add(null);
+         }
+      }
+
       return rtn;
    }
 }
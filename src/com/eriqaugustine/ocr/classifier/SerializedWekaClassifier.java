@@ -2,6 +2,7 @@ package com.eriqaugustine.ocr.classifier;
 
 import com.eriqaugustine.ocr.utils.Props;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -10,16 +11,19 @@ import weka.classifiers.Classifier;
 import weka.core.Instances;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Handles serializing and caching for weka classifiers.
@@ -49,12 +53,33 @@ public class SerializedWekaClassifier {
    public static Classifier fetchClassifier(Class<? extends Classifier> type, Instances trainingSet,
                                             boolean cache,
                                             Map<String, String> attributes, String notes) {
+      String trainingDigest = null;
+
+      if (cache) {
+         MessageDigest digest = newTrainingDigest();
+         for (int i = 0; i < trainingSet.numInstances(); i++) {
+            updateTrainingDigest(digest, trainingSet.instance(i).toDoubleArray());
+         }
+
+         trainingDigest = Hex.encodeHexString(digest.digest());
+      }
+
+      return fetchClassifier(type, trainingSet, trainingDigest, cache, attributes, notes);
+   }
+
+   /**
+    * Same as above, but the caller already has a digest of the training set
+    *  (usually built with updateTrainingDigest() as the training instances were made).
+    */
+   public static Classifier fetchClassifier(Class<? extends Classifier> type, Instances trainingSet,
+                                            String trainingDigest, boolean cache,
+                                            Map<String, String> attributes, String notes) {
       // Boring.
       if (!cache) {
          return makeClassifier(type, trainingSet);
       }
 
-      String id = cacheKey(type, attributes, trainingSet);
+      String id = cacheKey(type, attributes, trainingDigest);
       String cacheDirPath = String.format("%s%s%s_%s",
                                           Props.getString("CACHE_DIR"),
                                           File.separator,
@@ -79,7 +104,7 @@ public class SerializedWekaClassifier {
    private static Classifier makeClassifier(Class<? extends Classifier> type,
                                             Instances trainingSet) {
       try {
-         Classifier classy = (Classifier)type.newInstance();
+         Classifier classy = type.getDeclaredConstructor().newInstance();
          classy.buildClassifier(trainingSet);
          return classy;
       } catch (Exception ex) {
@@ -89,34 +114,41 @@ public class SerializedWekaClassifier {
    }
 
    /**
-    * Generate the unique key for the cache.
+    * Start a digest for a training set.
+    * Feed it every training instance (in order) with updateTrainingDigest().
     */
-   private static String cacheKey(Class<? extends Classifier> classifierType,
-                                  Map<String, String> attributes,
-                                  Instances trainingSet) {
+   public static MessageDigest newTrainingDigest() {
       try {
-         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-
-         // Add the full name of the classifier.
-         byte[] nameBytes = classifierType.getName().getBytes();
-         byteStream.write(nameBytes, 0, nameBytes.length);
-
-         // Now the attributes.
-         byte[] attributeBytes = attributes.toString().getBytes();
-         byteStream.write(attributeBytes, 0, attributeBytes.length);
-
-         // Ensure that the training set is used as part of the key.
-         ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
-         objectStream.writeObject(trainingSet);
-         objectStream.close();
+         return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException ex) {
+         // Every JVM has to have SHA-1.
+         throw new RuntimeException(ex);
+      }
+   }
 
-         String hex = DigestUtils.sha1Hex(byteStream.toByteArray());
+   /**
+    * Add the values of a single training instance (including the class) to a training digest.
+    */
+   public static void updateTrainingDigest(MessageDigest digest, double[] values) {
+      ByteBuffer bytes = ByteBuffer.allocate(8 * values.length);
+      bytes.asDoubleBuffer().put(values);
+      digest.update(bytes.array());
+   }
 
-         // Include the shortname of the classifier in the id (for readability).
-         return String.format("%s-%s", classifierType.getSimpleName(), hex);
-      } catch (Exception ex) {
-         return null;
-      }
+   /**
+    * Generate the unique key for the cache.
+    * The training set is represented by its digest so that it never has to be serialized.
+    */
+   private static String cacheKey(Class<? extends Classifier> classifierType,
+                                  Map<String, String> attributes,
+                                  String trainingDigest) {
+      // Sort the attributes so the key does not depend on the type of map.
+      String hex = DigestUtils.sha1Hex(classifierType.getName() +
+                                       new TreeMap<String, String>(attributes).toString() +
+                                       trainingDigest);
+
+      // Include the shortname of the classifier in the id (for readability).
+      return String.format("%s-%s", classifierType.getSimpleName(), hex);
    }
 
    /**
@@ -0,0 +1,17 @@
+package com.eriqaugustine.ocr.classifier;
+
+/**
+ * A training set that is read one sample at a time.
+ * Training may read through the samples more than once (see FeatureVectorReducer.observe()),
+ *  so the same index must always give the same features.
+ */
+public interface TrainingFeatures {
+   public int size();
+
+   public int getNumberOfFeatures();
+
+   /**
+    * Put the features for sample |index| in |features|.
+    */
+   public void get(int index, double[] features);
+}
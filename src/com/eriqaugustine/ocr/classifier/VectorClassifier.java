@@ -7,6 +7,12 @@ import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
 import com.eriqaugustine.ocr.classifier.reduce.KLTReducer;
 import com.eriqaugustine.ocr.classifier.reduce.EntropyReducer;
 
+import com.eriqaugustine.ocr.image.WrapImage;
+import com.eriqaugustine.ocr.utils.Props;
+import com.eriqaugustine.ocr.utils.SystemUtils;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -16,12 +22,28 @@ import weka.core.FastVector;
 import weka.core.Instance;
 import weka.core.Instances;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A classifier for numeric vectors.
@@ -31,7 +53,17 @@ import java.util.Set;
 public abstract class VectorClassifier<ToClassify> {
    private static Logger logger = LogManager.getLogger(VectorClassifier.class.getName());
 
-   private static final String DEFAULT_WEKA_CLASSIFIER = "weka.classifiers.lazy.IBk";
+   // The built-in version of weka.classifiers.lazy.IBk, unless VECTOR_CLASSIFIER says otherwise
+   //  (like com.eriqaugustine.ocr.classifier.HNSWClassifier).
+   private static final String DEFAULT_WEKA_CLASSIFIER =
+         Props.getString("VECTOR_CLASSIFIER", "com.eriqaugustine.ocr.classifier.NearestNeighborClassifier");
+
+   private static final String MODEL_CACHE_PREFIX = "model";
+
+   private static final int FEATURE_THREADS = Runtime.getRuntime().availableProcessors();
+
+   // Lazily made by getFeaturePool().
+   private static ExecutorService featurePool = null;
 
    private Classifier classifier;
 
@@ -47,10 +79,17 @@ public abstract class VectorClassifier<ToClassify> {
    // The list (FastVector) of classes is always the first element.
    private FastVector featureAttributes;
 
+   // An empty dataset that all unclassified instances point to.
+   // Instances only need a dataset to know their attributes.
+   private Instances unclassifiedHeader;
+
    private final String defaultClass;
 
    protected final int featureVectorLength;
 
+   // What the current model was trained with (see getTrainingConfig()), empty if it is not known.
+   private String trainingConfig;
+
    // TODO(eriq): We no longer need to pass in featureVectorLength since the reducer can tell us.
    protected VectorClassifier(int featureVectorLength,
                               String defaultClass) {
@@ -74,6 +113,8 @@ public abstract class VectorClassifier<ToClassify> {
       this.classifier = null;
       this.classes = null;
       this.featureAttributes = null;
+      this.unclassifiedHeader = null;
+      this.trainingConfig = "";
    }
 
    /**
@@ -110,8 +151,6 @@ public abstract class VectorClassifier<ToClassify> {
     * Train the classifier.
     * This needs to be done before any classification attempt.
     */
-   // Suppress the classifier Class cast.
-   @SuppressWarnings("unchecked")
    protected boolean train(List<ToClassify> trainingContents,
                            List<String> trainingClasses,
                            String wekaClassifier,
@@ -121,6 +160,84 @@ public abstract class VectorClassifier<ToClassify> {
       assert(trainingContents.size() > 0);
       assert(trainingContents.size() == trainingClasses.size());
 
+      return trainFeatures(getAllTrainingFeatures(trainingContents),
+                           trainingClasses,
+                           wekaClassifier,
+                           classifierNotes,
+                           classifierAttributes,
+                           useCache);
+   }
+
+   protected boolean trainFeatures(double[][] trainingFeatures,
+                                   List<String> trainingClasses,
+                                   Map<String, String> classifierAttributes) {
+      return trainFeatures(trainingFeatures,
+                           trainingClasses,
+                           DEFAULT_WEKA_CLASSIFIER,
+                           "",
+                           classifierAttributes,
+                           true);
+   }
+
+   protected boolean trainFeatures(double[][] trainingFeatures,
+                                   List<String> trainingClasses,
+                                   String wekaClassifier,
+                                   String classifierNotes,
+                                   Map<String, String> classifierAttributes,
+                                   boolean useCache) {
+      return trainFeatures(new ArrayTrainingFeatures(trainingFeatures),
+                           trainingClasses,
+                           wekaClassifier,
+                           classifierNotes,
+                           classifierAttributes,
+                           useCache);
+   }
+
+   protected boolean trainFeatures(TrainingFeatures trainingFeatures,
+                                   List<String> trainingClasses,
+                                   Map<String, String> classifierAttributes) {
+      return trainFeatures(trainingFeatures, trainingClasses, classifierAttributes, true);
+   }
+
+   protected boolean trainFeatures(TrainingFeatures trainingFeatures,
+                                   List<String> trainingClasses,
+                                   Map<String, String> classifierAttributes,
+                                   boolean useCache) {
+      return trainFeatures(trainingFeatures,
+                           trainingClasses,
+                           DEFAULT_WEKA_CLASSIFIER,
+                           "",
+                           classifierAttributes,
+                           useCache);
+   }
+
+   /**
+    * Same as train(), but for training features that have already been extracted.
+    * |trainingFeatures| is 1-1 with |trainingClasses|.
+    * If |useCache| is set, the model is cached under a digest of the training features and classes
+    *  (see getModelCacheFile()), so a cached model is only ever used for the exact same training set.
+    * The features are only ever read one sample at a time,
+    *  so they never all need to be in memory as doubles.
+    */
+   protected boolean trainFeatures(TrainingFeatures trainingFeatures,
+                                   List<String> trainingClasses,
+                                   String wekaClassifier,
+                                   String classifierNotes,
+                                   Map<String, String> classifierAttributes,
+                                   boolean useCache) {
+      assert(trainingFeatures.size() > 0);
+      assert(trainingFeatures.size() == trainingClasses.size());
+
+      String config = null;
+      if (useCache) {
+         config = getTrainingConfig(digestTraining(trainingFeatures, trainingClasses),
+                                    wekaClassifier, classifierAttributes);
+
+         if (loadCachedModel(config)) {
+            return true;
+         }
+      }
+
       Set<String> seenClasses = new HashSet<String>();
       for (String seenClass : trainingClasses) {
          seenClasses.add(seenClass);
@@ -133,15 +250,17 @@ public abstract class VectorClassifier<ToClassify> {
 
       // |featureAttributes| will be initialized AFTER training reduction.
 
-      Instances trainingSet = prepTraining(trainingContents, trainingClasses);
+      Instances trainingSet = prepTraining(trainingFeatures, trainingClasses);
 
+      // The whole model gets cached below (see cacheModel()),
+      //  so the classifier does not also need its own SerializedWekaClassifier cache (or the digest for it).
       try {
          Class<? extends Classifier> classifierClass =
-               (Class<? extends Classifier>)Class.forName(wekaClassifier);
+               Class.forName(wekaClassifier).asSubclass(Classifier.class);
 
          classifier = SerializedWekaClassifier.fetchClassifier(classifierClass,
                                                                trainingSet,
-                                                               useCache,
+                                                               false,
                                                                classifierAttributes,
                                                                classifierNotes);
       } catch (Exception ex) {
@@ -154,6 +273,260 @@ public abstract class VectorClassifier<ToClassify> {
          return false;
       }
 
+      trainingConfig = "";
+      if (useCache) {
+         cacheModel(config);
+      }
+
+      return true;
+   }
+
+   /**
+    * Try to load a model that was cached by cacheModel() under the same |trainingKey|
+    *  (with the default WEKA classifier).
+    * This lets subclasses skip making their training contents altogether,
+    *  but it is only safe if |trainingKey| (along with the attributes) completely describes
+    *  the training set: everything that goes into the contents and the classes
+    *  (like the characters, fonts, and extractor version for rendered characters).
+    */
+   protected boolean loadCachedModel(String trainingKey, Map<String, String> classifierAttributes) {
+      return loadCachedModel(getTrainingConfig(trainingKey, classifierAttributes));
+   }
+
+   /**
+    * Cache the trained model under |trainingKey| (see loadCachedModel(String, Map)).
+    */
+   protected void cacheModel(String trainingKey, Map<String, String> classifierAttributes) {
+      cacheModel(getTrainingConfig(trainingKey, classifierAttributes));
+   }
+
+   private boolean loadCachedModel(String config) {
+      File modelFile = getModelCacheFile(config);
+      if (!modelFile.isFile()) {
+         return false;
+      }
+
+      if (!loadModel(modelFile, config)) {
+         logger.warn("Ignoring a bad model cache: " + modelFile);
+         return false;
+      }
+
+      return true;
+   }
+
+   /**
+    * Cache the current model, which was trained with |config|.
+    */
+   private void cacheModel(String config) {
+      trainingConfig = config;
+
+      File modelFile = getModelCacheFile(config);
+      try {
+         saveModel(modelFile);
+      } catch (IOException ex) {
+         logger.warn("Unable to cache the classifier model.", ex);
+         modelFile.delete();
+      }
+   }
+
+   /**
+    * A digest of every training sample (raw features and class, in order).
+    * This is one extra read through the features, but no reduction or training.
+    */
+   private static String digestTraining(TrainingFeatures trainingFeatures, List<String> trainingClasses) {
+      MessageDigest digest = SerializedWekaClassifier.newTrainingDigest();
+      double[] rawFeatures = new double[trainingFeatures.getNumberOfFeatures()];
+
+      try {
+         for (int i = 0; i < trainingFeatures.size(); i++) {
+            trainingFeatures.get(i, rawFeatures);
+            SerializedWekaClassifier.updateTrainingDigest(digest, rawFeatures);
+            digest.update(trainingClasses.get(i).getBytes("UTF-8"));
+            digest.update((byte)0);
+         }
+      } catch (UnsupportedEncodingException ex) {
+         // Every JVM has UTF-8.
+         throw new RuntimeException(ex);
+      }
+
+      return Hex.encodeHexString(digest.digest());
+   }
+
+   /**
+    * Describe everything that goes into a model trained with the default WEKA classifier:
+    *  see getTrainingConfig(String, String, Map).
+    */
+   protected String getTrainingConfig(String trainingKey, Map<String, String> classifierAttributes) {
+      return getTrainingConfig(trainingKey, DEFAULT_WEKA_CLASSIFIER, classifierAttributes);
+   }
+
+   /**
+    * Describe everything that goes into a model:
+    *  this classifier's type and feature length, the reducer and its parameters,
+    *  the WEKA classifier, the attributes, and |trainingKey|
+    *  (a digest of the training set, or a complete description of it, see loadCachedModel(String, Map)).
+    * Two models with the same config are interchangeable.
+    * The config is saved with the model, and it keys the model cache.
+    */
+   protected String getTrainingConfig(String trainingKey,
+                                      String wekaClassifier,
+                                      Map<String, String> classifierAttributes) {
+      StringBuilder config = new StringBuilder();
+
+      config.append(getClass().getName()).append('\n');
+      config.append(featureVectorLength).append('\n');
+      config.append(reducer.getClass().getName()).append(reducer.getParameters()).append('\n');
+      config.append(wekaClassifier).append('\n');
+      config.append(new TreeMap<String, String>(classifierAttributes)).append('\n');
+      config.append(trainingKey);
+
+      return config.toString();
+   }
+
+   /**
+    * The config (see getTrainingConfig(String, String, Map)) that the current model was trained with.
+    * Empty if it is not known (like a model that was trained without the cache).
+    */
+   public String getTrainingConfig() {
+      return trainingConfig;
+   }
+
+   private File getModelCacheFile(String config) {
+      return new File(Props.getString("CACHE_DIR"),
+                      String.format("%s_%s-%s.model",
+                                    MODEL_CACHE_PREFIX,
+                                    getClass().getSimpleName(),
+                                    DigestUtils.sha1Hex(config)));
+   }
+
+   /**
+    * Write the trained classifier to a model file (see ModelFile).
+    * The model can be loaded back with loadModel() without any training.
+    * Layout (after the ModelFile header):
+    *  - Classifier type (string)
+    *  - Training config (string, see getTrainingConfig())
+    *  - Feature vector length (int)
+    *  - Number of classes (int)
+    *  - Classes (strings)
+    *  - Reducer type (string)
+    *  - Reducer (see FeatureVectorReducer.writeModel())
+    *  - WEKA classifier type (string)
+    *  - WEKA classifier: NearestNeighborClassifier.writeModel() for the built-in classifiers,
+    *    otherwise Java serialization (bytes).
+    */
+   public void saveModel(File file) throws IOException {
+      if (classifier == null) {
+         logger.error("Attempting to save an untrained classfiier.");
+         throw new RuntimeException("Attempting to save an untrained classfiier.");
+      }
+
+      DataOutputStream out = ModelFile.create(file);
+
+      try {
+         ModelFile.writeString(out, getClass().getName());
+         ModelFile.writeString(out, trainingConfig);
+         out.writeInt(featureVectorLength);
+
+         out.writeInt(classes.size());
+         for (int i = 0; i < classes.size(); i++) {
+            ModelFile.writeString(out, (String)classes.elementAt(i));
+         }
+
+         ModelFile.writeString(out, reducer.getClass().getName());
+         reducer.writeModel(out);
+
+         ModelFile.writeString(out, classifier.getClass().getName());
+         if (classifier instanceof NearestNeighborClassifier) {
+            ((NearestNeighborClassifier)classifier).writeModel(out);
+         } else {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
+            objectStream.writeObject(classifier);
+            objectStream.close();
+
+            ModelFile.writeBytes(out, byteStream.toByteArray());
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Load a model written by saveModel().
+    * This replaces training (the reducer passed to the constructor is replaced by the model's).
+    */
+   protected boolean loadModel(File file) {
+      return loadModel(file, null);
+   }
+
+   /**
+    * Same as loadModel(File), but refuse the model unless it was trained with |expectedConfig|
+    *  (see getTrainingConfig(String, String, Map)).
+    * Use this to make sure a model file is not stale.
+    * A null |expectedConfig| takes any model.
+    */
+   protected boolean loadModel(File file, String expectedConfig) {
+      try {
+         ByteBuffer in = ModelFile.open(file);
+
+         String type = ModelFile.readString(in);
+         if (!type.equals(getClass().getName())) {
+            logger.error(String.format("Model is for a %s, not a %s.", type, getClass().getName()));
+            return false;
+         }
+
+         String modelConfig = ModelFile.readString(in);
+         if (expectedConfig != null && !expectedConfig.equals(modelConfig)) {
+            logger.warn("Model was not trained with the expected config (it is stale): " + file);
+            return false;
+         }
+
+         int modelFeatureVectorLength = in.getInt();
+         if (modelFeatureVectorLength != featureVectorLength) {
+            logger.error(String.format("Model has %d features, expected %d.",
+                                       modelFeatureVectorLength, featureVectorLength));
+            return false;
+         }
+
+         int numClasses = in.getInt();
+         FastVector modelClasses = new FastVector(numClasses);
+         for (int i = 0; i < numClasses; i++) {
+            modelClasses.addElement(ModelFile.readString(in));
+         }
+
+         Class<? extends FeatureVectorReducer> reducerClass =
+               Class.forName(ModelFile.readString(in)).asSubclass(FeatureVectorReducer.class);
+         FeatureVectorReducer modelReducer = reducerClass.getConstructor(int.class).newInstance(featureVectorLength);
+         modelReducer.readModel(in);
+
+         Class<? extends Classifier> classifierClass =
+               Class.forName(ModelFile.readString(in)).asSubclass(Classifier.class);
+         Classifier modelClassifier;
+
+         if (NearestNeighborClassifier.class.isAssignableFrom(classifierClass)) {
+            modelClassifier = classifierClass.getDeclaredConstructor().newInstance();
+            ((NearestNeighborClassifier)modelClassifier).readModel(in);
+         } else {
+            ObjectInputStream objectStream =
+                  new ObjectInputStream(new ByteArrayInputStream(ModelFile.readBytes(in)));
+            modelClassifier = (Classifier)objectStream.readObject();
+            objectStream.close();
+         }
+
+         classes = modelClasses;
+         reducer = modelReducer;
+         featureAttributes = getFeatureAttributes();
+
+         unclassifiedHeader = new Instances("Unclassified", featureAttributes, 0);
+         unclassifiedHeader.setClassIndex(0);
+
+         classifier = modelClassifier;
+         trainingConfig = modelConfig;
+      } catch (Exception ex) {
+         logger.error("Unable to load a classifier model.", ex);
+         return false;
+      }
+
       return true;
    }
 
@@ -168,6 +541,41 @@ public abstract class VectorClassifier<ToClassify> {
     */
    protected abstract double[] getFeatureValues(ToClassify objToClassify);
 
+   /**
+    * Change how the built-in nearest neighbor classifier holds its training data
+    *  (see NearestNeighborClassifier.setPrecision()).
+    * Returns false if there is no trained NearestNeighborClassifier.
+    */
+   public boolean setNearestNeighborPrecision(NearestNeighborClassifier.Precision precision) {
+      if (!(classifier instanceof NearestNeighborClassifier)) {
+         return false;
+      }
+
+      ((NearestNeighborClassifier)classifier).setPrecision(precision);
+      return true;
+   }
+
+   /**
+    * How many of the true nearest neighbors (from a full scan) the approximate classifier (HNSWClassifier)
+    *  finds for |objs|, see HNSWClassifier.measureRecall().
+    * |objs| should not be training data. Empty objects are skipped.
+    * Returns -1 if there is no trained HNSWClassifier.
+    */
+   public double measureNearestNeighborRecall(List<ToClassify> objs) {
+      if (!(classifier instanceof HNSWClassifier)) {
+         return -1;
+      }
+
+      List<ToClassify> nonEmpty = new ArrayList<ToClassify>();
+      for (ToClassify obj : objs) {
+         if (!isEmpty(obj)) {
+            nonEmpty.add(obj);
+         }
+      }
+
+      return ((HNSWClassifier)classifier).measureRecall(reducer.reduceSamples(getAllFeatureValues(nonEmpty)));
+   }
+
    public String classify(ToClassify objToClassify) {
       if (classifier == null) {
          logger.error("Attempting to use an untrained classfiier.");
@@ -180,24 +588,253 @@ public abstract class VectorClassifier<ToClassify> {
       }
 
       try {
-         Instance instance = prepUnclassed(objToClassify);
-         int prediction = (int)classifier.classifyInstance(instance);
-         return instance.classAttribute().value(prediction);
+         int prediction = predict(reducer.reduceSample(getFeatureValues(objToClassify)));
+         return unclassifiedHeader.classAttribute().value(prediction);
       } catch (Exception ex) {
          logger.error("Classification error.", ex);
          return null;
       }
    }
 
-   private Instance prepUnclassed(ToClassify objToClassify) {
-      return prepUnclassed(reducer.reduceSample(getFeatureValues(objToClassify)));
+   /**
+    * Get the top |k| classes for an object along with their probabilities.
+    */
+   public ClassificationCandidates classifyWithScores(ToClassify objToClassify, int k) {
+      ClassificationCandidates rtn = new ClassificationCandidates(k);
+      classifyWithScores(objToClassify, rtn);
+      return rtn;
+   }
+
+   /**
+    * Same as classifyWithScores(ToClassify, int), but fill in |candidates|
+    *  (which decides k with its capacity) so that it can be reused.
+    * The reduced features and the distribution (for the built-in nearest neighbor classifier)
+    *  go into |candidates|' scratch space, so reusing it only leaves the feature extraction allocating.
+    * Empty objects get the default class with a score of 1.
+    * If the classification fails, |candidates| will be empty.
+    */
+   public void classifyWithScores(ToClassify objToClassify, ClassificationCandidates candidates) {
+      if (classifier == null) {
+         logger.error("Attempting to use an untrained classfiier.");
+         throw new RuntimeException("Attempting to use an untrained classfiier.");
+      }
+
+      candidates.clear();
+
+      if (isEmpty(objToClassify)) {
+         candidates.offer(defaultClass, 1.0);
+         return;
+      }
+
+      try {
+         Attribute classAttribute = unclassifiedHeader.classAttribute();
+
+         double[] reducedFeatures = candidates.getReducedFeatures(reducer.getOutputSize());
+         reducer.reduceSample(getFeatureValues(objToClassify), reducedFeatures);
+
+         double[] distribution =
+               predictDistribution(reducedFeatures, candidates.getDistribution(classAttribute.numValues()));
+
+         for (int i = 0; i < distribution.length; i++) {
+            candidates.offer(classAttribute.value(i), distribution[i]);
+         }
+      } catch (Exception ex) {
+         logger.error("Classification error.", ex);
+         candidates.clear();
+      }
+   }
+
+   /**
+    * Classify a batch of objects.
+    * The result is 1-1 with |objsToClassify|.
+    * The features are extracted together (in parallel with the PACKED backend), reduced together,
+    *  and then every instance is classified against the same header.
+    */
+   public List<String> classify(List<ToClassify> objsToClassify) {
+      if (classifier == null) {
+         logger.error("Attempting to use an untrained classfiier.");
+         throw new RuntimeException("Attempting to use an untrained classfiier.");
+      }
+
+      String[] results = new String[objsToClassify.size()];
+
+      // Empty objects just get the default class, no need to get their features.
+      List<ToClassify> nonEmpty = new ArrayList<ToClassify>();
+      int[] positions = new int[objsToClassify.size()];
+
+      for (int i = 0; i < objsToClassify.size(); i++) {
+         if (isEmpty(objsToClassify.get(i))) {
+            results[i] = defaultClass;
+         } else {
+            positions[nonEmpty.size()] = i;
+            nonEmpty.add(objsToClassify.get(i));
+         }
+      }
+
+      double[][] featureValues = reducer.reduceSamples(getAllFeatureValues(nonEmpty));
+
+      if (classifier instanceof NearestNeighborClassifier) {
+         try {
+            int[] predictions = ((NearestNeighborClassifier)classifier).classify(featureValues);
+
+            for (int i = 0; i < predictions.length; i++) {
+               results[positions[i]] = unclassifiedHeader.classAttribute().value(predictions[i]);
+            }
+         } catch (Exception ex) {
+            logger.error("Classification error.", ex);
+            for (int i = 0; i < featureValues.length; i++) {
+               results[positions[i]] = null;
+            }
+         }
+      } else {
+         for (int i = 0; i < featureValues.length; i++) {
+            try {
+               results[positions[i]] = unclassifiedHeader.classAttribute().value(predict(featureValues[i]));
+            } catch (Exception ex) {
+               logger.error("Classification error.", ex);
+               results[positions[i]] = null;
+            }
+         }
+      }
+
+      List<String> rtn = new ArrayList<String>(results.length);
+      for (String result : results) {
+         rtn.add(result);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Get the features for many objects.
+    * The objects are split into contiguous chunks and each chunk is done on a thread
+    *  from the feature pool (see getFeaturePool()).
+    * On a serial thread (see SystemUtils.setSerialThread()), which includes the feature pool's own threads,
+    *  it is all done on the calling thread.
+    * Extraction works on the images (scale, scrub, ...), so it is only done concurrently
+    *  with the PACKED image backend (see WrapImage.Backend),
+    *  JMagick is not known to be safe to use from multiple threads.
+    */
+   protected double[][] getAllFeatureValues(final List<ToClassify> contents) {
+      final double[][] rtn = new double[contents.size()][];
+
+      int numThreads = Math.min(FEATURE_THREADS, contents.size());
+      if (numThreads <= 1 || SystemUtils.isSerialThread() ||
+          WrapImage.getBackend() != WrapImage.Backend.PACKED) {
+         for (int i = 0; i < contents.size(); i++) {
+            rtn[i] = getFeatureValues(contents.get(i));
+         }
+
+         return rtn;
+      }
+
+      ExecutorService pool = getFeaturePool();
+
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+         int chunkSize = (contents.size() + numThreads - 1) / numThreads;
+
+         for (int start = 0; start < contents.size(); start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(contents.size(), start + chunkSize);
+
+            futures.add(pool.submit(new Runnable() {
+               public void run() {
+                  for (int i = chunkStart; i < chunkEnd; i++) {
+                     rtn[i] = getFeatureValues(contents.get(i));
+                  }
+               }
+            }));
+         }
+
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } catch (ExecutionException ex) {
+         throw new RuntimeException("Feature extraction failed.", ex.getCause());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted during feature extraction.", ex);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The pool that all feature extraction is done on.
+    * It is shared by every classifier (and every caller), so no matter how many threads are classifying
+    *  at once, there are never more than FEATURE_THREADS extracting features.
+    */
+   protected static synchronized ExecutorService getFeaturePool() {
+      if (featurePool == null) {
+         featurePool = Executors.newFixedThreadPool(FEATURE_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+               Thread thread = new Thread(serialRunnable(runnable), "feature-extract");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+
+      return featurePool;
+   }
+
+   /**
+    * Work on the feature pool's threads should not go back to the pool (it would just wait on itself).
+    */
+   private static Runnable serialRunnable(final Runnable runnable) {
+      return new Runnable() {
+         public void run() {
+            SystemUtils.setSerialThread(true);
+            runnable.run();
+         }
+      };
+   }
+
+   /**
+    * Get the predicted class index for some reduced features.
+    * The built-in classifier gets the raw features and is safe to use concurrently,
+    *  WEKA classifiers need instances and are not.
+    */
+   private int predict(double[] featureValues) throws Exception {
+      if (classifier instanceof NearestNeighborClassifier) {
+         return ((NearestNeighborClassifier)classifier).classify(featureValues);
+      }
+
+      Instance instance = prepUnclassed(featureValues);
+      synchronized (classifier) {
+         return (int)classifier.classifyInstance(instance);
+      }
+   }
+
+   /**
+    * The built-in nearest neighbor classifier fills in (and returns) |out|,
+    *  WEKA classifiers return their own array.
+    */
+   private double[] predictDistribution(double[] featureValues, double[] out) throws Exception {
+      if (classifier instanceof NearestNeighborClassifier) {
+         ((NearestNeighborClassifier)classifier).distribution(featureValues, out);
+         return out;
+      }
+
+      Instance instance = prepUnclassed(featureValues);
+      synchronized (classifier) {
+         return classifier.distributionForInstance(instance);
+      }
    }
 
    private Instance prepUnclassed(double[] featureValues) {
-      assert(featureValues.length == reducer.getOutputSize());
+      Instance instance = newInstance(featureValues);
+      instance.setDataset(unclassifiedHeader);
 
-      Instances instances = new Instances("Unclassified", featureAttributes, 1);
-      instances.setClassIndex(0);
+      return instance;
+   }
+
+   /**
+    * Make an instance (without a dataset) for some reduced features.
+    */
+   private Instance newInstance(double[] featureValues) {
+      assert(featureValues.length == reducer.getOutputSize());
 
       // Note that the first spot is reserved for the class value.
       // Set the values for the feature instances.
@@ -206,27 +843,43 @@ public abstract class VectorClassifier<ToClassify> {
          instance.setValue(1 + i, featureValues[i]);
       }
 
-      instances.add(instance);
-
-      return instances.instance(0);
+      return instance;
    }
 
-   private Instances prepTraining(List<ToClassify> trainingContents,
+   private Instances prepTraining(TrainingFeatures rawTrainingFeatures,
                                   List<String> trainingClasses) {
-      // Collect all the features in one place so we can possibly reduce them.
-      // The first thing we need to do is reduce the training set so the reducer has full information.
-      double[][] trainingFeatures = reducer.reduceTraining(getAllTrainingFeatures(trainingContents), trainingClasses.toArray(new String[0]));
+      assert(rawTrainingFeatures.getNumberOfFeatures() == reducer.getInputSize());
+
+      String[] classLabels = trainingClasses.toArray(new String[0]);
+      double[] rawFeatures = new double[rawTrainingFeatures.getNumberOfFeatures()];
+
+      // The first thing we need to do is train the reducer so it has full information.
+      do {
+         for (int i = 0; i < rawTrainingFeatures.size(); i++) {
+            rawTrainingFeatures.get(i, rawFeatures);
+            reducer.observe(rawFeatures, classLabels[i]);
+         }
+      } while (reducer.finish());
 
       // Get the featureAttributes AFTER reduction because we will not know how many feature we will have.
       featureAttributes = getFeatureAttributes();
 
+      unclassifiedHeader = new Instances("Unclassified", featureAttributes, 0);
+      unclassifiedHeader.setClassIndex(0);
+
       Instances trainingSet = new Instances("VectorInstances",
                                             featureAttributes,
-                                            trainingFeatures.length);
+                                            rawTrainingFeatures.size());
       trainingSet.setClassIndex(0);
 
-      for (int i = 0; i < trainingFeatures.length; i++) {
-         Instance instance = prepUnclassed(trainingFeatures[i]);
+      // Instances copy the values, so the same buffer can be used for every sample.
+      double[] reducedFeatures = new double[reducer.getOutputSize()];
+
+      for (int i = 0; i < rawTrainingFeatures.size(); i++) {
+         rawTrainingFeatures.get(i, rawFeatures);
+         reducer.reduceSample(rawFeatures, reducedFeatures);
+
+         Instance instance = prepUnclassed(reducedFeatures);
          // Set the class value.
          instance.setValue((Attribute)featureAttributes.elementAt(0), trainingClasses.get(i));
 
@@ -239,15 +892,10 @@ public abstract class VectorClassifier<ToClassify> {
    /**
     * Get all the features for a training set.
     * This is its own method so that subclasses have a chance to override.
+    * By default, this is the same (parallel) extraction as classification uses.
     */
    protected double[][] getAllTrainingFeatures(List<ToClassify> trainingContents) {
-      double[][] rtn = new double[trainingContents.size()][];
-
-      for (int i = 0; i < trainingContents.size(); i++) {
-         rtn[i] = getFeatureValues(trainingContents.get(i));
-      }
-
-      return rtn;
+      return getAllFeatureValues(trainingContents);
    }
 
    /**
@@ -273,4 +921,27 @@ public abstract class VectorClassifier<ToClassify> {
 
       return features;
    }
+
+   /**
+    * Training features that are already all in memory.
+    */
+   private static class ArrayTrainingFeatures implements TrainingFeatures {
+      private final double[][] features;
+
+      public ArrayTrainingFeatures(double[][] features) {
+         this.features = features;
+      }
+
+      public int size() {
+         return features.length;
+      }
+
+      public int getNumberOfFeatures() {
+         return features.length == 0 ? 0 : features[0].length;
+      }
+
+      public void get(int index, double[] rtn) {
+         System.arraycopy(features[index], 0, rtn, 0, rtn.length);
+      }
+   }
 }
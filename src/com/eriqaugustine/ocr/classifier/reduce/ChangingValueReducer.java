@@ -1,7 +1,12 @@
 package com.eriqaugustine.ocr.classifier.reduce;
 
+import com.eriqaugustine.ocr.classifier.ModelFile;
 import com.eriqaugustine.ocr.utils.MathUtils;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Only keep features that show some change in the training set.
  * This will only remove features that are 100% useless, it is very conservative.
@@ -13,6 +18,9 @@ public class ChangingValueReducer extends FeatureVectorReducer {
     */
    boolean[] activeFeatures;
 
+   // The first sample seen in training, everything else gets compared against it.
+   private double[] firstSample;
+
    public ChangingValueReducer(int inputSize) {
       super(inputSize);
 
@@ -23,14 +31,37 @@ public class ChangingValueReducer extends FeatureVectorReducer {
    }
 
    public double[] reduceSample(double[] data) {
-      assert(data.length == super.inputSize);
-
       double[] rtn = new double[super.outputSize];
+      reduceSample(data, rtn);
+      return rtn;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void reduceSample(double[] data, double[] out) {
+      assert(data.length == super.inputSize);
+      assert(out.length == super.outputSize);
 
       int count = 0;
       for (int i = 0; i < data.length; i++) {
          if (activeFeatures[i]) {
-            rtn[count++] = data[i];
+            out[count++] = data[i];
+         }
+      }
+   }
+
+   /**
+    * The index of every feature that is kept, in order.
+    * Lets other reducers pull the kept features right out of a sample.
+    */
+   int[] getActiveIndexes() {
+      int[] rtn = new int[super.outputSize];
+
+      int count = 0;
+      for (int i = 0; i < activeFeatures.length; i++) {
+         if (activeFeatures[i]) {
+            rtn[count++] = i;
          }
       }
 
@@ -41,24 +72,10 @@ public class ChangingValueReducer extends FeatureVectorReducer {
       assert(data.length > 0);
       assert(data[0].length == super.inputSize);
 
-      int numKeepFeatures = 0;
-
-      // Check each column for changing values.
-      for (int col = 0; col < data[0].length; col++) {
-         double initialValue = data[0][col];
-         int row;
-
-         for (row = 1; row < data.length; row++) {
-            if (!MathUtils.doubleEquals(initialValue, data[row][col])) {
-               numKeepFeatures++;
-               activeFeatures[col] = true;
-               break;
-            }
-         }
+      for (int i = 0; i < data.length; i++) {
+         observe(data[i], classLabels[i]);
       }
-
-      // Set the output size.
-      super.outputSize = numKeepFeatures;
+      finish();
 
       // Reduce each training vector.
       double[][] rtn = new double[data.length][];
@@ -68,4 +85,65 @@ public class ChangingValueReducer extends FeatureVectorReducer {
 
       return rtn;
    }
+
+   /**
+    * @inheritDoc
+    * Only the first sample is kept, every other sample just gets checked against it.
+    */
+   public void observe(double[] sample, String classLabel) {
+      assert(sample.length == super.inputSize);
+
+      if (firstSample == null) {
+         firstSample = sample.clone();
+         return;
+      }
+
+      // Check each column for changing values.
+      for (int col = 0; col < sample.length; col++) {
+         if (!activeFeatures[col] && !MathUtils.doubleEquals(firstSample[col], sample[col])) {
+            activeFeatures[col] = true;
+         }
+      }
+   }
+
+   /**
+    * @inheritDoc
+    * Only one pass is ever needed.
+    */
+   public boolean finish() {
+      assert(firstSample != null);
+
+      int numKeepFeatures = 0;
+      for (boolean active : activeFeatures) {
+         if (active) {
+            numKeepFeatures++;
+         }
+      }
+
+      // Set the output size.
+      super.outputSize = numKeepFeatures;
+      firstSample = null;
+
+      return false;
+   }
+
+   /**
+    * Layout:
+    *  - Output size (int)
+    *  - Active features (booleans)
+    */
+   public void writeModel(DataOutputStream out) throws IOException {
+      out.writeInt(super.outputSize);
+      ModelFile.writeBooleans(out, activeFeatures);
+   }
+
+   public void readModel(ByteBuffer in) throws IOException {
+      super.outputSize = in.getInt();
+      activeFeatures = ModelFile.readBooleans(in);
+
+      if (activeFeatures.length != super.inputSize) {
+         throw new IOException(String.format("Model has %d features, reducer expects %d.",
+                                             activeFeatures.length, super.inputSize));
+      }
+   }
 }
@@ -1,5 +1,6 @@
 package com.eriqaugustine.ocr.classifier.reduce;
 
+import com.eriqaugustine.ocr.classifier.ModelFile;
 import com.eriqaugustine.ocr.utils.MathUtils;
 
 import org.apache.commons.math3.linear.EigenDecomposition;
@@ -9,8 +10,19 @@ import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Use entropy to chose the best N features.
@@ -18,6 +30,13 @@ import java.util.Map;
  *
  * The data will get bucketed into |numBuckets| equally sized intervals.
  * The range of the discretized data is [0, |numBuckets|).
+ *
+ * Streaming training (observe()/finish()) takes at least two passes:
+ *  the first finds the range of the training data (and the classes),
+ *  the rest count every (bucket, class) pair for a block of attributes at a time.
+ * Only |STREAMING_TABLE_ENTRIES| table entries are ever held, so a large number of features or classes
+ *  costs more passes instead of more memory.
+ * The chosen features are exactly the same as reduceTraining().
  */
 public class EntropyReducer extends FeatureVectorReducer {
    private static Logger logger = LogManager.getLogger(EntropyReducer.class.getName());
@@ -35,6 +54,10 @@ public class EntropyReducer extends FeatureVectorReducer {
    // private static final int DEFAULT_NUM_BUCKETS = 10;
    // private static final int DEFAULT_NUM_BUCKETS = 5;
 
+   // The most (bucket, class) table entries that streaming training holds at once (a count and a first seen each).
+   // Attributes are counted in blocks that fit, one pass over the training set per block.
+   private static final int STREAMING_TABLE_ENTRIES = 1 << 21;
+
    /**
     * The attributes that will be kept.
     * NOTE: This array is in parallel with the REDUCED ATTRRIBUTES returned from |changingValueReducer|.
@@ -42,9 +65,15 @@ public class EntropyReducer extends FeatureVectorReducer {
     */
    private boolean[] activeFeatures;
 
+   // The index in the full (un-CVR'd) features for each output feature.
+   private int[] outputIndexes;
+
    private int numBuckets;
 
-   private FeatureVectorReducer changingValueReducer;
+   private ChangingValueReducer changingValueReducer;
+
+   // Streaming training state, only around between the first observe() and the last finish().
+   private StreamingStats stats;
 
    public EntropyReducer(int inputSize) {
       this(inputSize, DEFAULT_FEATURE_SET_SIZE, DEFAULT_NUM_BUCKETS);
@@ -58,97 +87,295 @@ public class EntropyReducer extends FeatureVectorReducer {
       changingValueReducer = new ChangingValueReducer(inputSize);
    }
 
-   public double[] reduceSample(double[] data) {
-      assert(data.length == super.inputSize);
+   /**
+    * @inheritDoc
+    */
+   public String getParameters() {
+      return String.format("%s, num_buckets=%d", super.getParameters(), numBuckets);
+   }
 
-      double[] reducedData = changingValueReducer.reduceSample(data);
+   public double[] reduceSample(double[] data) {
       double[] rtn = new double[super.outputSize];
+      reduceSample(data, rtn);
+      return rtn;
+   }
 
-      int outputIndex = 0;
-      for (int i = 0; i < activeFeatures.length; i++) {
-         if (activeFeatures[i]) {
-            rtn[outputIndex++] = reducedData[i];
-         }
-      }
+   /**
+    * @inheritDoc
+    * The CVR and the chosen features are both applied in a single pass, right out of |data|.
+    */
+   public void reduceSample(double[] data, double[] out) {
+      assert(data.length == super.inputSize);
+      assert(out.length == super.outputSize);
 
-      return rtn;
+      for (int i = 0; i < outputIndexes.length; i++) {
+         out[i] = data[outputIndexes[i]];
+      }
    }
 
-   // In our discretized data, we will continually use -1 to represent an absent value.
-   // The valid range of the discretized data is [0, |numBuckets|).
-   // For the class label arrays, we will use null.
    public double[][] reduceTraining(double[][] data, String[] trainingClasses) {
       assert(data.length > 0);
       assert(data[0].length == super.inputSize);
       assert(data.length == trainingClasses.length);
 
-      int[][] discretizedData = changingValueReducer.reduceTraining(discretizeTrainingData(data), trainingClasses);
+      final int[][] discretizedData = changingValueReducer.reduceTraining(discretizeTrainingData(data), trainingClasses);
+
+      // Classes get ids in the order they first show up.
+      List<String> classes = new ArrayList<String>();
+      final int[] classIds = getClassIds(trainingClasses, classes);
 
       // Now that we know the size of the reduced features, initialize them.
-      activeFeatures = new boolean[discretizedData[0].length];
-      for (int i = 0; i < activeFeatures.length; i++) {
-         activeFeatures[i] = false;
+      int[] attributes = new int[discretizedData[0].length];
+      for (int i = 0; i < attributes.length; i++) {
+         attributes[i] = i;
+      }
+
+      // Every attribute gets its own table, built straight from its (discretized) column.
+      TableBuilder builder = new TableBuilder() {
+         public void fill(int attribute, ContingencyTable table) {
+            for (int i = 0; i < discretizedData.length; i++) {
+               table.add(discretizedData[i][attribute], classIds[i], i);
+            }
+         }
+      };
+
+      int[] classCounts = new int[classes.size()];
+      for (int classId : classIds) {
+         classCounts[classId]++;
+      }
+
+      double[] gainRatios = informationGainRatios(attributes, builder, classes.toArray(new String[0]),
+                                                  classCounts, data.length);
+
+      // TODO(eriq): Properly deal with this.
+      assert(attributes.length >= super.outputSize);
+
+      setActiveFeatures(chooseFeatures(gainRatios, super.outputSize));
+
+      // Make sure to use the original data, and not the discretized data.
+      double[][] rtn = new double[data.length][];
+      for (int i = 0; i < rtn.length; i++) {
+         rtn[i] = reduceSample(data[i]);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void observe(double[] sample, String classLabel) {
+      assert(sample.length == super.inputSize);
+
+      if (stats == null) {
+         stats = new StreamingStats();
+      }
+
+      if (stats.pass == 0) {
+         stats.observeRange(sample, classLabel);
+      } else {
+         stats.observeCounts(sample, classLabel);
+      }
+   }
+
+   /**
+    * @inheritDoc
+    * The first pass only finds the range, so a second pass is always needed.
+    * After that, there is another pass for every block of attributes that still needs to be counted.
+    */
+   public boolean finish() {
+      assert(stats != null);
+
+      if (stats.pass == 0) {
+         stats.startCounts();
+         return true;
       }
 
+      // The CVR only sees the first counting pass.
+      if (stats.blockStart == 0) {
+         changingValueReducer.finish();
+      }
+
+      // The CVR reduced attributes in this block, in order.
+      int[] blockAttributes = stats.getChangingAttributes(stats.blockStart, stats.blockEnd);
+
+      final StreamingStats finalStats = stats;
+      TableBuilder builder = new TableBuilder() {
+         public void fill(int attribute, ContingencyTable table) {
+            int offset = (attribute - finalStats.blockStart) * numBuckets * finalStats.numClasses;
+            table.set(finalStats.counts, finalStats.firstSeen, offset);
+         }
+      };
+
+      double[] blockRatios = informationGainRatios(blockAttributes, builder, stats.classNames,
+                                                   stats.classCounts, stats.numSamples);
+      for (int i = 0; i < blockAttributes.length; i++) {
+         stats.gainRatios[blockAttributes[i]] = blockRatios[i];
+      }
+
+      if (stats.blockEnd < super.inputSize) {
+         stats.startBlock(stats.blockEnd);
+         return true;
+      }
+
+      // All the CVR reduced attributes, in order.
+      int[] attributes = stats.getChangingAttributes(0, super.inputSize);
+      assert(attributes.length == changingValueReducer.getOutputSize());
+
       // TODO(eriq): Properly deal with this.
-      assert(discretizedData[0].length >= super.outputSize);
+      assert(attributes.length >= super.outputSize);
 
-      for (int attributeCount = 0; attributeCount < super.outputSize; attributeCount++) {
-         // Check all the still active attributes and find the one with the highest information gain ratio.
+      double[] gainRatios = new double[attributes.length];
+      for (int i = 0; i < attributes.length; i++) {
+         gainRatios[i] = stats.gainRatios[attributes[i]];
+      }
+
+      setActiveFeatures(chooseFeatures(gainRatios, super.outputSize));
+      stats = null;
+
+      return false;
+   }
+
+   /**
+    * Set the chosen features (in the CVR'd features) and map them back to the full features.
+    */
+   private void setActiveFeatures(boolean[] chosenFeatures) {
+      activeFeatures = chosenFeatures;
+
+      int[] cvrIndexes = changingValueReducer.getActiveIndexes();
+      assert(cvrIndexes.length == activeFeatures.length);
+
+      outputIndexes = new int[super.outputSize];
+      int count = 0;
+      for (int i = 0; i < activeFeatures.length; i++) {
+         if (activeFeatures[i]) {
+            outputIndexes[count++] = cvrIndexes[i];
+         }
+      }
+      assert(count == outputIndexes.length);
+   }
+
+   /**
+    * Greedily choose the |numFeatures| attributes with the highest gain ratio.
+    * The gain ratio of an attribute does not depend on the attributes that were already chosen,
+    *  so the ratios only need to be computed once.
+    * Ties (and NaNs) are broken the same way as the original round-by-round search:
+    *  the first remaining attribute is the starting max and only a strictly larger ratio replaces it.
+    */
+   private static boolean[] chooseFeatures(double[] gainRatios, int numFeatures) {
+      boolean[] rtn = new boolean[gainRatios.length];
+
+      for (int attributeCount = 0; attributeCount < numFeatures; attributeCount++) {
          double maxGainRatio = Double.NaN;
          int maxIndex = -1;
 
-         double gainRatio;
-         double currentDatasetEntropy = datasetEntropy(trainingClasses);
-
-         for (int i = 0; i < discretizedData[0].length; i++) {
-            // Skip attributes that have been emptied out.
-            if (discretizedData[0][i] == -1) {
+         for (int i = 0; i < gainRatios.length; i++) {
+            if (rtn[i]) {
                continue;
             }
 
-            gainRatio = informationGainRatio(discretizedData, trainingClasses, i, currentDatasetEntropy);
-
-            if (maxIndex == -1 || gainRatio > maxGainRatio) {
+            if (maxIndex == -1 || gainRatios[i] > maxGainRatio) {
                maxIndex = i;
-               maxGainRatio = gainRatio;
+               maxGainRatio = gainRatios[i];
             }
          }
 
-         // Active the chosen feature.
-         activeFeatures[maxIndex] = true;
+         rtn[maxIndex] = true;
+      }
+
+      return rtn;
+   }
 
-         // Remove the chosen attribute from the dataset.
-         for (int i = 0; i < discretizedData.length; i++) {
-            discretizedData[i][maxIndex] = -1;
+   /**
+    * Get the information gain ratio for each of |attributes|.
+    * The attributes are handed out one at a time to a thread per processor,
+    *  and each thread reuses a single table.
+    * |classCounts| is the number of samples in each class (by id).
+    */
+   private double[] informationGainRatios(final int[] attributes, final TableBuilder builder,
+                                          final String[] classNames, int[] classCounts,
+                                          final int numSamples) {
+      final double[] rtn = new double[attributes.length];
+      final AtomicInteger nextAttribute = new AtomicInteger(0);
+
+      final double dataEntropy = classEntropy(classNames, classCounts, null, classNames.length, numSamples);
+
+      Runnable worker = new Runnable() {
+         public void run() {
+            ContingencyTable table = new ContingencyTable(numBuckets, classNames.length);
+
+            int index;
+            while ((index = nextAttribute.getAndIncrement()) < attributes.length) {
+               table.clear();
+               builder.fill(attributes[index], table);
+               rtn[index] = table.informationGainRatio(classNames, numSamples, dataEntropy);
+            }
          }
+      };
+
+      int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), attributes.length);
+      if (numThreads <= 1) {
+         worker.run();
+         return rtn;
       }
 
-      // Make sure to use the original data, and not the discretized data.
-      double[][] rtn = new double[data.length][];
-      for (int i = 0; i < rtn.length; i++) {
-         rtn[i] = reduceSample(data[i]);
+      ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+         for (int i = 0; i < numThreads; i++) {
+            futures.add(pool.submit(worker));
+         }
+
+         for (Future<?> future : futures) {
+            future.get();
+         }
+      } catch (ExecutionException ex) {
+         throw new RuntimeException("Information gain computation failed.", ex.getCause());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted during information gain computation.", ex);
+      } finally {
+         pool.shutdownNow();
       }
 
       return rtn;
    }
 
+   /**
+    * Layout:
+    *  - Output size (int)
+    *  - Number of buckets (int)
+    *  - The ChangingValueReducer
+    *  - Active features (booleans)
+    */
+   public void writeModel(DataOutputStream out) throws IOException {
+      out.writeInt(super.outputSize);
+      out.writeInt(numBuckets);
+      changingValueReducer.writeModel(out);
+      ModelFile.writeBooleans(out, activeFeatures);
+   }
+
+   public void readModel(ByteBuffer in) throws IOException {
+      super.outputSize = in.getInt();
+      numBuckets = in.getInt();
+      changingValueReducer.readModel(in);
+      boolean[] readFeatures = ModelFile.readBooleans(in);
+
+      if (readFeatures.length != changingValueReducer.getOutputSize()) {
+         throw new IOException(String.format("Model has %d active features, the CVR kept %d.",
+                                             readFeatures.length, changingValueReducer.getOutputSize()));
+      }
+
+      setActiveFeatures(readFeatures);
+   }
+
    private int[][] discretizeTrainingData(double[][] data) {
       assert(data.length > 0);
 
       double[] trainingRange = MathUtils.range(data[0]);
-
-      double[] rowRange;
       for (int i = 1; i < data.length; i++) {
-         rowRange = MathUtils.range(data[i]);
-
-         if (rowRange[0] < trainingRange[0]) {
-            trainingRange[0] = rowRange[0];
-         }
-
-         if (rowRange[1] > trainingRange[1]) {
-            trainingRange[1] = rowRange[1];
-         }
+         updateRange(trainingRange, data[i]);
       }
 
       int[][] rtn = new int[data.length][];
@@ -159,132 +386,337 @@ public class EntropyReducer extends FeatureVectorReducer {
       return rtn;
    }
 
+   /**
+    * Widen |range| to cover |data|.
+    */
+   private static void updateRange(double[] range, double[] data) {
+      double[] dataRange = MathUtils.range(data);
+
+      if (dataRange[0] < range[0]) {
+         range[0] = dataRange[0];
+      }
+
+      if (dataRange[1] > range[1]) {
+         range[1] = dataRange[1];
+      }
+   }
+
    private int[] discretizeData(double[] data, double[] range) {
       int[] rtn = new int[data.length];
+      discretizeData(data, range, rtn);
+      return rtn;
+   }
 
+   private void discretizeData(double[] data, double[] range, int[] out) {
       for (int i = 0; i < data.length; i++) {
          if (data[i] < range[0]) {
-            rtn[i] = 0;
+            out[i] = 0;
          // The subtraction is just to protect against an unlikely divide-by-zero.
          } else if (data[i] >= (range[1] - 0.000001)) {
-            rtn[i] = numBuckets - 1;
+            out[i] = numBuckets - 1;
          } else {
-           rtn[i] = (int)(((data[i] - range[0]) / (range[1] - range[0])) * numBuckets);
+           out[i] = (int)(((data[i] - range[0]) / (range[1] - range[0])) * numBuckets);
          }
       }
+   }
+
+   /**
+    * Map each class label to an id.
+    * Ids are given out in the order that the classes first show up, and the classes are put in |classes|.
+    */
+   private static int[] getClassIds(String[] classLabels, List<String> classes) {
+      Map<String, Integer> ids = new HashMap<String, Integer>();
+      int[] rtn = new int[classLabels.length];
+
+      for (int i = 0; i < classLabels.length; i++) {
+         Integer id = ids.get(classLabels[i]);
+         if (id == null) {
+            id = Integer.valueOf(classes.size());
+            ids.put(classLabels[i], id);
+            classes.add(classLabels[i]);
+         }
+
+         rtn[i] = id.intValue();
+      }
 
       return rtn;
    }
 
-   private double informationGain(int[][] data, String[] classLabels, int attributeIndex) {
-      return informationGain(data, classLabels, attributeIndex, datasetEntropy(classLabels));
-   }
+   /**
+    * The entropy of a class distribution.
+    * |counts| is indexed by class id and |insertionOrder| has the ids of the |numPresent| classes
+    *  that are in the distribution, in the order they first showed up (null for all the ids in order).
+    *
+    * The classes are summed in the iteration order of a HashMap with the classes inserted
+    *  in |insertionOrder|. That is the order the entropy has always been summed in,
+    *  and the last bits of the sum decide ties between attributes.
+    *  So, keep it to keep the chosen features (and existing models) the same.
+    */
+   private static double classEntropy(String[] classes, int[] counts, int[] insertionOrder,
+                                      int numPresent, int datasetSize) {
+      Map<String, Integer> classDistribution = new HashMap<String, Integer>();
+      for (int i = 0; i < numPresent; i++) {
+         int id = insertionOrder == null ? i : insertionOrder[i];
+         classDistribution.put(classes[id], Integer.valueOf(counts[id]));
+      }
 
-   private double informationGain(int[][] data, String[] classLabels,
-                                  int attributeIndex, double dataEntropy) {
-      return dataEntropy - attributeEntropy(data, classLabels, attributeIndex);
+      double entropy = 0;
+      for (Integer classCount : classDistribution.values()) {
+         double classProbability = (double)classCount.intValue() / datasetSize;
+         entropy += (classProbability * Math.log(classProbability));
+      }
+
+      return entropy * -1.0;
    }
 
-   private double informationGainRatio(int[][] data, String[] classLabels,
-                                       int attributeIndex) {
-      return informationGainRatio(data, classLabels, attributeIndex, datasetEntropy(classLabels));
+   /**
+    * Fills in the table for a single attribute.
+    */
+   private static interface TableBuilder {
+      public void fill(int attribute, ContingencyTable table);
    }
 
-   private double informationGainRatio(int[][] data, String[] classLabels,
-                                       int attributeIndex, double dataEntropy) {
-      int datasetSize = 0;
-      double splitEntropy = 0;
+   /**
+    * The number of samples with each (bucket, class) for a single attribute.
+    * Along with the counts, the first sample for each (bucket, class) is kept
+    *  so the classes in a bucket can be put in the order they showed up.
+    */
+   private static class ContingencyTable {
+      private final int numBuckets;
+      private final int numClasses;
 
-      // For every possible value of this attribute.
-      for (int attributeValue = 0; attributeValue < numBuckets; attributeValue++) {
-         datasetSize = 0;
+      // [bucket][class] flattened.
+      private final int[] counts;
+      // -1 for never seen.
+      private final int[] firstSeen;
 
-         // Count all documents whose value for this attribute is |attributeValue|.
-         for (int i = 0; i < classLabels.length; i++) {
-            if (data[i][attributeIndex] != -1 && data[i][attributeIndex] == attributeValue) {
-               datasetSize++;
-            }
-         }
+      // Scratch.
+      private final int[] bucketCounts;
+      private final int[] order;
 
-         if (datasetSize > 0) {
-            splitEntropy += (((double)datasetSize / data.length) * MathUtils.log2((double)datasetSize / data.length));
-         }
+      public ContingencyTable(int numBuckets, int numClasses) {
+         this.numBuckets = numBuckets;
+         this.numClasses = numClasses;
+
+         counts = new int[numBuckets * numClasses];
+         firstSeen = new int[numBuckets * numClasses];
+         bucketCounts = new int[numClasses];
+         order = new int[numClasses];
+
+         clear();
       }
 
-      splitEntropy *= -1.0;
+      public void clear() {
+         Arrays.fill(counts, 0);
+         Arrays.fill(firstSeen, -1);
+      }
 
-      return informationGain(data, classLabels, attributeIndex, dataEntropy) / splitEntropy;
-   }
+      public void add(int bucket, int classId, int sample) {
+         int index = bucket * numClasses + classId;
 
-   // Get the entropy of the dataset after splitting on |attributeIndex|.
-   // Remember: Values in |data| with -1 and classLabels with null are not valid.
-   //  They indicate that that attribute or document respectivley have been removed.
-   private double attributeEntropy(int[][] data, String[] classLabels, int attributeIndex) {
-      double entropy = 0;
+         counts[index]++;
+         if (firstSeen[index] == -1) {
+            firstSeen[index] = sample;
+         }
+      }
 
-      String[] labelsForAttribute = new String[classLabels.length];
-      int datasetSize = 0;
+      /**
+       * Copy in a table that starts at |offset| in some larger tables.
+       */
+      public void set(int[] allCounts, int[] allFirstSeen, int offset) {
+         System.arraycopy(allCounts, offset, counts, 0, counts.length);
+         System.arraycopy(allFirstSeen, offset, firstSeen, 0, firstSeen.length);
+      }
 
-      // For every possible value of this attribute.
-      for (int attributeValue = 0; attributeValue < numBuckets; attributeValue++) {
-         datasetSize = 0;
+      public int bucketSize(int bucket) {
+         int size = 0;
+         for (int classId = 0; classId < numClasses; classId++) {
+            size += counts[bucket * numClasses + classId];
+         }
+
+         return size;
+      }
 
-         // Collect all documents whose value for this attribute is |attributeValue|.
-         for (int i = 0; i < classLabels.length; i++) {
-            if (data[i][attributeIndex] != -1 && data[i][attributeIndex] == attributeValue) {
-               labelsForAttribute[i] = classLabels[i];
-               datasetSize++;
-            } else {
-               labelsForAttribute[i] = null;
+      /**
+       * The information gain (from splitting on this attribute) over the split entropy.
+       */
+      public double informationGainRatio(String[] classNames, int numSamples, double dataEntropy) {
+         double splitEntropy = 0;
+         for (int bucket = 0; bucket < numBuckets; bucket++) {
+            int datasetSize = bucketSize(bucket);
+
+            if (datasetSize > 0) {
+               splitEntropy += (((double)datasetSize / numSamples) * MathUtils.log2((double)datasetSize / numSamples));
             }
          }
+         splitEntropy *= -1.0;
+
+         // The entropy of the dataset after splitting on this attribute.
+         double entropy = 0;
+         for (int bucket = 0; bucket < numBuckets; bucket++) {
+            int base = bucket * numClasses;
+
+            int datasetSize = 0;
+            int numPresent = 0;
+            for (int classId = 0; classId < numClasses; classId++) {
+               bucketCounts[classId] = counts[base + classId];
+               datasetSize += bucketCounts[classId];
+
+               if (bucketCounts[classId] > 0) {
+                  // Insertion sort by when the class first showed up in this bucket.
+                  int position = numPresent++;
+                  while (position > 0 && firstSeen[base + order[position - 1]] > firstSeen[base + classId]) {
+                     order[position] = order[position - 1];
+                     position--;
+                  }
+                  order[position] = classId;
+               }
+            }
 
-         entropy += ((datasetSize / (double)classLabels.length) * datasetEntropy(labelsForAttribute));
-      }
+            entropy += ((datasetSize / (double)numSamples) *
+                        classEntropy(classNames, bucketCounts, order, numPresent, datasetSize));
+         }
 
-      return entropy;
+         return (dataEntropy - entropy) / splitEntropy;
+      }
    }
 
-   private double datasetEntropy(String[] classLabels) {
-      Map<String, Integer> classDistribution = getClassDistribution(classLabels);
+   /**
+    * Everything that streaming training needs to know about the training set.
+    * Nothing here grows with the number of samples,
+    *  and the tables never grow past |STREAMING_TABLE_ENTRIES| (no matter the number of attributes or classes).
+    */
+   private class StreamingStats {
+      public int pass;
+
+      // Pass 0
+      public double[] trainingRange;
+      public Map<String, Integer> classIds;
+      public List<String> classes;
+
+      // Counting passes
+      public int numClasses;
+      public String[] classNames;
+      public int[] classCounts;
+      public int numSamples;
+      // The attributes being counted in this pass: [|blockStart|, |blockEnd|).
+      public int blockStart;
+      public int blockEnd;
+      public int blockSize;
+      // [attribute - |blockStart|][bucket][class] flattened.
+      public int[] counts;
+      // The first sample that had each [attribute - |blockStart|][bucket][class] (-1 for none).
+      public int[] firstSeen;
+      // [attribute][bucket] flattened, filled in on the first counting pass.
+      public boolean[] seenBuckets;
+      // The gain ratio of every changing attribute that has been counted so far (by full attribute index).
+      public double[] gainRatios;
+      public int[] buckets;
+      public double[] discretized;
+
+      public StreamingStats() {
+         pass = 0;
+         trainingRange = null;
+         classIds = new HashMap<String, Integer>();
+         classes = new ArrayList<String>();
+      }
 
-      int datasetSize = 0;
-      for (int i = 0; i < classLabels.length; i++) {
-         if (classLabels[i] != null) {
-            datasetSize++;
+      public void observeRange(double[] sample, String classLabel) {
+         if (trainingRange == null) {
+            trainingRange = MathUtils.range(sample);
+         } else {
+            updateRange(trainingRange, sample);
+         }
+
+         // Classes get ids in the order they first show up.
+         if (!classIds.containsKey(classLabel)) {
+            classIds.put(classLabel, Integer.valueOf(classes.size()));
+            classes.add(classLabel);
          }
       }
 
-      return datasetEntropy(classDistribution, datasetSize);
-   }
+      public void startCounts() {
+         numClasses = classes.size();
+         classNames = classes.toArray(new String[0]);
+         classCounts = new int[numClasses];
 
-   private double datasetEntropy(Map<String, Integer> classDistribution, int datasetSize) {
-      double entropy = 0;
-      for (Integer classCount : classDistribution.values()) {
-         double classProbability = (double)classCount.intValue() / datasetSize;
-         entropy += (classProbability * Math.log(classProbability));
+         int tableSize = numBuckets * numClasses;
+         blockSize = Math.max(1, Math.min(inputSize, STREAMING_TABLE_ENTRIES / tableSize));
+
+         counts = new int[blockSize * tableSize];
+         firstSeen = new int[counts.length];
+         seenBuckets = new boolean[inputSize * numBuckets];
+         gainRatios = new double[inputSize];
+
+         buckets = new int[inputSize];
+         discretized = new double[inputSize];
+
+         logger.debug(String.format("Counting %d attributes in blocks of %d.", inputSize, blockSize));
+
+         startBlock(0);
       }
 
-      return entropy * -1.0;
-   }
+      public void startBlock(int start) {
+         pass++;
+         numSamples = 0;
 
-   // A null class label represents absent data.
-   // This can happen when splitting up a dataset.
-   private Map<String, Integer> getClassDistribution(String[] classLabels) {
-      Map<String, Integer> classDistribution = new HashMap<String, Integer>();
+         blockStart = start;
+         blockEnd = Math.min(start + blockSize, inputSize);
+
+         Arrays.fill(counts, 0);
+         Arrays.fill(firstSeen, -1);
+      }
+
+      public void observeCounts(double[] sample, String classLabel) {
+         int classId = classIds.get(classLabel).intValue();
+         discretizeData(sample, trainingRange, buckets);
+
+         for (int i = blockStart; i < blockEnd; i++) {
+            int index = ((i - blockStart) * numBuckets + buckets[i]) * numClasses + classId;
 
-      for (String classLabel : classLabels) {
-         if (classLabel == null) {
-            continue;
+            counts[index]++;
+            if (firstSeen[index] == -1) {
+               firstSeen[index] = numSamples;
+            }
          }
 
-         if (!classDistribution.containsKey(classLabel)) {
-            classDistribution.put(classLabel, new Integer(1));
-         } else {
-            classDistribution.put(classLabel, new Integer(classDistribution.get(classLabel).intValue() + 1));
+         if (blockStart == 0) {
+            for (int i = 0; i < inputSize; i++) {
+               seenBuckets[i * numBuckets + buckets[i]] = true;
+               discretized[i] = buckets[i];
+            }
+
+            // The CVR works on the discretized data.
+            changingValueReducer.observe(discretized, classLabel);
+
+            classCounts[classId]++;
          }
+
+         numSamples++;
       }
 
-      return classDistribution;
+      /**
+       * The attributes in [|start|, |end|) that the CVR kept (they have more than one bucket).
+       * The CVR has its own copy of this, but does not expose it.
+       */
+      public int[] getChangingAttributes(int start, int end) {
+         int[] rtn = new int[end - start];
+         int count = 0;
+
+         for (int attribute = start; attribute < end; attribute++) {
+            int numSeen = 0;
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+               if (seenBuckets[attribute * numBuckets + bucket]) {
+                  numSeen++;
+               }
+            }
+
+            if (numSeen > 1) {
+               rtn[count++] = attribute;
+            }
+         }
+
+         return Arrays.copyOf(rtn, count);
+      }
    }
 }
@@ -1,10 +1,30 @@
 package com.eriqaugustine.ocr.classifier.reduce;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Reduce a feature set down to the important features.
  * Consider the reduceTraining() method an initializer/
  * It muct be called once before any call to reduceSample().
  *
+ * Instead of reduceTraining(), a reducer can be trained one sample at a time
+ *  (so the whole training set never needs to be in memory at once):
+ * <pre>
+ * do {
+ *    for (every training sample) {
+ *       reducer.observe(sample, classLabel);
+ *    }
+ * } while (reducer.finish());
+ * </pre>
+ * Reducers that need more than one look at the training set (eg. to find its range first)
+ *  will return true from finish() until they are done.
+ * Every pass must give the same samples in the same order.
+ * Afterwards, the reduced training set is just reduceSample() on each sample.
+ *
  * getOutputSize() is not reliable until reduceTraining() is called.
  * (The reducer may not know how much is can reduce until it sees the training set).
  */
@@ -12,6 +32,10 @@ public abstract class FeatureVectorReducer {
    protected final int inputSize;
    protected int outputSize;
 
+   // Only used by the default observe()/finish() for reducers that cannot stream.
+   private List<double[]> observedSamples;
+   private List<String> observedLabels;
+
    public FeatureVectorReducer(int inputSize) {
       this(inputSize, -1);
    }
@@ -35,6 +59,14 @@ public abstract class FeatureVectorReducer {
       return outputSize;
    }
 
+   /**
+    * The settings that change what this reducer learns in training.
+    * Used to tell reducers apart in caches.
+    */
+   public String getParameters() {
+      return String.format("input_size=%d, output_size=%d", inputSize, outputSize);
+   }
+
    /**
     * These integer versions are not reccomended because of precision problems.
     */
@@ -76,6 +108,77 @@ public abstract class FeatureVectorReducer {
       return rtn;
    }
 
+   /**
+    * Reduce a sample into |out| (which must be getOutputSize() long).
+    * Callers that reduce a lot of samples can keep reusing the same |out|.
+    * Reducers that can reduce without allocating should override this.
+    */
+   public void reduceSample(double[] data, double[] out) {
+      double[] reduced = reduceSample(data);
+      assert(out.length == reduced.length);
+
+      System.arraycopy(reduced, 0, out, 0, reduced.length);
+   }
+
+   /**
+    * Reduce many samples at once (each row is a sample).
+    * Reducers that can do the whole batch as a single operation should override this.
+    */
+   public double[][] reduceSamples(double[][] data) {
+      double[][] rtn = new double[data.length][];
+
+      for (int i = 0; i < data.length; i++) {
+         rtn[i] = reduceSample(data[i]);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Look at a single training sample.
+    * |sample| is not kept, so the caller is free to reuse it.
+    * By default, the samples are just collected and given to reduceTraining() in finish().
+    * Reducers that can learn incrementally should override both this and finish().
+    */
+   public void observe(double[] sample, String classLabel) {
+      assert(sample.length == inputSize);
+
+      if (observedSamples == null) {
+         observedSamples = new ArrayList<double[]>();
+         observedLabels = new ArrayList<String>();
+      }
+
+      observedSamples.add(sample.clone());
+      observedLabels.add(classLabel);
+   }
+
+   /**
+    * Done with a pass of observe().
+    * Returns true if the reducer needs to see every sample again (in the same order).
+    */
+   public boolean finish() {
+      assert(observedSamples != null);
+
+      reduceTraining(observedSamples.toArray(new double[0][]),
+                     observedLabels.toArray(new String[0]));
+
+      observedSamples = null;
+      observedLabels = null;
+
+      return false;
+   }
+
    public abstract double[] reduceSample(double[] data);
    public abstract double[][] reduceTraining(double[][] data, String[] classLabels);
+
+   /**
+    * Write out everything that reduceTraining() learned (see ModelFile).
+    */
+   public abstract void writeModel(DataOutputStream out) throws IOException;
+
+   /**
+    * Read back what writeModel() wrote.
+    * Afterwards, the reducer is ready to use without calling reduceTraining().
+    */
+   public abstract void readModel(ByteBuffer in) throws IOException;
 }
@@ -1,5 +1,6 @@
 package com.eriqaugustine.ocr.classifier.reduce;
 
+import com.eriqaugustine.ocr.classifier.ModelFile;
 import com.eriqaugustine.ocr.utils.MathUtils;
 
 import org.apache.commons.math3.linear.EigenDecomposition;
@@ -9,12 +10,25 @@ import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Do a KLT (PCA (Principle Components Analysis)) reduction.
  * Before doing a KLT reduction, a ChangingValueReduction will be used.
  * Finding eigen vectors is not always possible,
  * especially if there are many more feature than observations (as with our ocr situation).
  * So, doing a ChangingValueReduction will help to reduction the input features into the eigen decomposition.
+ *
+ * Streaming training (observe()/finish()) takes two passes:
+ *  the first runs the CVR and finds the column means,
+ *  the second accumulates the covariance of the CVR reduced features.
+ * Only the covariance matrix (CVR size squared) is ever held, never the training set.
+ *
+ * With Decomposition.TRUNCATED, the covariance matrix is never built at all.
+ * Only the top |outputSize| eigen vectors are found (see TruncatedPCA),
+ *  which takes a few more passes over the training set.
  */
 public class KLTReducer extends FeatureVectorReducer {
    private static Logger logger = LogManager.getLogger(KLTReducer.class.getName());
@@ -24,14 +38,55 @@ public class KLTReducer extends FeatureVectorReducer {
    // private static final int DEFAULT_FEATURE_SET_SIZE = 1024;
    private static final int DEFAULT_FEATURE_SET_SIZE = 1000;
 
-   private FeatureVectorReducer changingValueReducer;
+   private static final int DEFAULT_OVERSAMPLING = 10;
+   private static final int DEFAULT_POWER_ITERATIONS = 2;
+
+   /**
+    * How the eigen vectors of the covariance get found.
+    *  FULL - Build the full covariance matrix and decompose all of it (the original behavior).
+    *  TRUNCATED - Only find the top eigen vectors with randomized subspace iteration.
+    *   Much faster and smaller when |outputSize| is well under the number of features.
+    *   Training fails (IllegalArgumentException) if fewer than |outputSize| features change.
+    *   FULL keeps the first |outputSize| ROWS of the eigen vector matrix
+    *    (see setTransformation()), which needs every eigen vector.
+    *    TRUNCATED keeps the top |outputSize| eigen vectors themselves (a textbook PCA).
+    *    So, the two will not give the same features.
+    */
+   public static enum Decomposition {
+      FULL,
+      TRUNCATED
+   }
+
+   // Samples are projected this many at a time in reduceSamples().
+   private static final int PROJECTION_TILE_SIZE = 8;
+
+   private ChangingValueReducer changingValueReducer;
+
+   private final Decomposition decomposition;
 
    /**
     * A matrix that will transform a feature vector (each row is a document, and each column is a feature)
     * into the reduced feature set.
     * Mutiply this by the transpose of the data minus the mean to get the transpose of the final data.
+    * Kept flat and row-major (|super.outputSize| x |projectionCols|).
     */
-   private RealMatrix transformationMatrix;
+   private double[] projection;
+   private int projectionCols;
+
+   // The index in the full (un-CVR'd) features for each column of |projection|.
+   private int[] projectionIndexes;
+
+   // Streaming training state.
+   private int observePass;
+   private int numObserved;
+   // Column sums in the first pass, then the CVR reduced means.
+   private double[] columnSums;
+   private double[] means;
+   // Lower triangle of the co-moment matrix (sum of centered products).
+   private double[][] coMoments;
+   private double[] centered;
+   // Only for TRUNCATED.
+   private TruncatedPCA truncatedPCA;
 
    public KLTReducer(int inputSize) {
       this(inputSize, DEFAULT_FEATURE_SET_SIZE);
@@ -39,39 +94,290 @@ public class KLTReducer extends FeatureVectorReducer {
 
    // TODO(eriq): Deal with the situtation where the CVR says that there are less values than |outputSize|.
    public KLTReducer(int inputSize, int outputSize) {
+      this(inputSize, outputSize, Decomposition.FULL);
+   }
+
+   public KLTReducer(int inputSize, int outputSize, Decomposition decomposition) {
       super(inputSize, outputSize);
 
+      this.decomposition = decomposition;
       changingValueReducer = new ChangingValueReducer(inputSize);
    }
 
+   /**
+    * @inheritDoc
+    * The eigen vectors get canonical signs (see canonicalizeSigns()), which FULL did not always do.
+    * So, that is in the parameters to keep caches from before it from being used.
+    */
+   public String getParameters() {
+      if (decomposition == Decomposition.FULL) {
+         return String.format("%s, signs=canonical", super.getParameters());
+      }
+
+      return String.format("%s, decomposition=%s, oversampling=%d, power_iterations=%d",
+                           super.getParameters(), decomposition,
+                           DEFAULT_OVERSAMPLING, DEFAULT_POWER_ITERATIONS);
+   }
+
    public double[] reduceSample(double[] data) {
+      double[] rtn = new double[super.outputSize];
+      reduceSample(data, rtn);
+      return rtn;
+   }
+
+   /**
+    * @inheritDoc
+    * The CVR and the transformation are done in a single pass, right out of |data|.
+    */
+   public void reduceSample(double[] data, double[] out) {
       assert(data.length == super.inputSize);
+      assert(out.length == super.outputSize);
+
+      for (int row = 0; row < super.outputSize; row++) {
+         int offset = row * projectionCols;
+
+         double sum = 0;
+         for (int col = 0; col < projectionCols; col++) {
+            sum += projection[offset + col] * data[projectionIndexes[col]];
+         }
+
+         out[row] = sum;
+      }
+   }
 
-      double[] reducedData = changingValueReducer.reduceSample(data);
+   /**
+    * @inheritDoc
+    * The samples get transformed a tile at a time (each row of the transformation is used for the
+    *  whole tile while it is still in cache).
+    * Each value is summed in the same order as reduceSample(), so the results are exactly the same.
+    */
+   public double[][] reduceSamples(double[][] data) {
+      double[][] rtn = new double[data.length][super.outputSize];
+      double[] tile = new double[PROJECTION_TILE_SIZE * projectionCols];
 
-      RealMatrix dataMatrix = new Array2DRowRealMatrix(1, reducedData.length);
-      dataMatrix.setRow(0, reducedData);
+      for (int tileStart = 0; tileStart < data.length; tileStart += PROJECTION_TILE_SIZE) {
+         int tileSize = Math.min(PROJECTION_TILE_SIZE, data.length - tileStart);
 
-      RealMatrix finalData = transformationMatrix.multiply(dataMatrix.transpose()).transpose();
+         // Pull out just the CVR'd features.
+         for (int sample = 0; sample < tileSize; sample++) {
+            double[] sampleData = data[tileStart + sample];
+            assert(sampleData.length == super.inputSize);
+
+            int offset = sample * projectionCols;
+            for (int col = 0; col < projectionCols; col++) {
+               tile[offset + col] = sampleData[projectionIndexes[col]];
+            }
+         }
 
-      return finalData.getRow(0);
+         for (int row = 0; row < super.outputSize; row++) {
+            int rowOffset = row * projectionCols;
+
+            int sample = 0;
+
+            // Four samples at once, so the sums do not have to wait on each other.
+            for (; sample + 4 <= tileSize; sample += 4) {
+               int offset0 = sample * projectionCols;
+               int offset1 = offset0 + projectionCols;
+               int offset2 = offset1 + projectionCols;
+               int offset3 = offset2 + projectionCols;
+
+               double sum0 = 0;
+               double sum1 = 0;
+               double sum2 = 0;
+               double sum3 = 0;
+               for (int col = 0; col < projectionCols; col++) {
+                  double value = projection[rowOffset + col];
+                  sum0 += value * tile[offset0 + col];
+                  sum1 += value * tile[offset1 + col];
+                  sum2 += value * tile[offset2 + col];
+                  sum3 += value * tile[offset3 + col];
+               }
+
+               rtn[tileStart + sample][row] = sum0;
+               rtn[tileStart + sample + 1][row] = sum1;
+               rtn[tileStart + sample + 2][row] = sum2;
+               rtn[tileStart + sample + 3][row] = sum3;
+            }
+
+            for (; sample < tileSize; sample++) {
+               int sampleOffset = sample * projectionCols;
+
+               double sum = 0;
+               for (int col = 0; col < projectionCols; col++) {
+                  sum += projection[rowOffset + col] * tile[sampleOffset + col];
+               }
+
+               rtn[tileStart + sample][row] = sum;
+            }
+         }
+      }
+
+      return rtn;
    }
 
    public double[][] reduceTraining(double[][] data, String[] classLabels) {
       assert(data.length > 0);
       assert(data[0].length == super.inputSize);
 
-      double[][] reducedData = changingValueReducer.reduceTraining(data, classLabels);
+      if (decomposition == Decomposition.TRUNCATED) {
+         // The truncated decomposition only ever works through the samples, so just stream them.
+         do {
+            for (int i = 0; i < data.length; i++) {
+               observe(data[i], classLabels[i]);
+            }
+         } while (finish());
 
-      RealMatrix dataMatrix = new Array2DRowRealMatrix(reducedData);
+         return reduceSamples(data);
+      }
+
+      double[][] reducedData = changingValueReducer.reduceTraining(data, classLabels);
 
       // NOTE(eriq): The math says that we should first center our data.
       //  But, centering the data (subtracting the mean) gives up much worse results...
-      // RealMatrix centeredData = dataMatrix.subtract(getMeanMatrix(dataMatrix));
-      RealMatrix centeredData = dataMatrix;
+      //  So, the (uncentered) data is transformed as-is.
 
       Covariance covariance = new Covariance(reducedData);
-      EigenDecomposition eigenDecomp = new EigenDecomposition(covariance.getCovarianceMatrix());
+      setTransformation(covariance.getCovarianceMatrix(), reducedData[0].length);
+
+      return reduceSamples(data);
+   }
+
+   /**
+    * @inheritDoc
+    */
+   public void observe(double[] sample, String classLabel) {
+      assert(sample.length == super.inputSize);
+
+      if (observePass == 0) {
+         if (columnSums == null) {
+            columnSums = new double[super.inputSize];
+            numObserved = 0;
+         }
+
+         changingValueReducer.observe(sample, classLabel);
+
+         for (int i = 0; i < sample.length; i++) {
+            columnSums[i] += sample[i];
+         }
+         numObserved++;
+
+         return;
+      }
+
+      double[] reducedData = changingValueReducer.reduceSample(sample);
+      for (int i = 0; i < reducedData.length; i++) {
+         centered[i] = reducedData[i] - means[i];
+      }
+
+      if (truncatedPCA != null) {
+         truncatedPCA.add(centered);
+         return;
+      }
+
+      for (int row = 0; row < centered.length; row++) {
+         double value = centered[row];
+         double[] coMomentRow = coMoments[row];
+
+         for (int col = 0; col <= row; col++) {
+            coMomentRow[col] += value * centered[col];
+         }
+      }
+   }
+
+   /**
+    * @inheritDoc
+    * The covariance is accumulated as centered co-moments (the means are known from the first pass),
+    *  which is the same math as commons' Covariance, but the rounding is not bit for bit the same.
+    */
+   public boolean finish() {
+      if (observePass == 0) {
+         assert(numObserved > 0);
+
+         changingValueReducer.finish();
+
+         means = changingValueReducer.reduceSample(columnSums);
+         for (int i = 0; i < means.length; i++) {
+            means[i] /= numObserved;
+         }
+
+         if (decomposition == Decomposition.TRUNCATED) {
+            // There can not be more components than there are (changing) features.
+            if (means.length < super.outputSize) {
+               throw new IllegalArgumentException(String.format(
+                     "Only %d features change in the training set, but %d components were requested.",
+                     means.length, super.outputSize));
+            }
+
+            truncatedPCA = new TruncatedPCA(means.length, super.outputSize,
+                                            DEFAULT_OVERSAMPLING, DEFAULT_POWER_ITERATIONS);
+         } else {
+            coMoments = new double[means.length][];
+            for (int row = 0; row < means.length; row++) {
+               coMoments[row] = new double[row + 1];
+            }
+         }
+         centered = new double[means.length];
+
+         columnSums = null;
+         observePass = 1;
+
+         return true;
+      }
+
+      if (truncatedPCA != null) {
+         if (truncatedPCA.endPass()) {
+            return true;
+         }
+
+         // The components are rows, the signs are fixed for columns.
+         RealMatrix components = new Array2DRowRealMatrix(truncatedPCA.getComponents(), false);
+         components = canonicalizeSigns(components.transpose()).transpose();
+
+         truncatedPCA = null;
+         means = null;
+         centered = null;
+         observePass = 0;
+
+         setProjection(components);
+         return false;
+      }
+
+      int size = means.length;
+
+      // Bias corrected, just like Covariance.
+      // EigenDecomposition needs the full matrix, but the triangle does not need to be held alongside it.
+      // Rows are filled in from the bottom up so that the upper half of every row can come from the full rows
+      //  that are already built, and each row of the triangle is dropped as soon as it is used.
+      double[][] covariance = new double[size][];
+      for (int row = size - 1; row >= 0; row--) {
+         double[] covarianceRow = new double[size];
+         for (int col = 0; col <= row; col++) {
+            covarianceRow[col] = coMoments[row][col] / (numObserved - 1);
+         }
+
+         for (int col = row + 1; col < size; col++) {
+            covarianceRow[col] = covariance[col][row];
+         }
+
+         covariance[row] = covarianceRow;
+         coMoments[row] = null;
+      }
+
+      means = null;
+      coMoments = null;
+      centered = null;
+      observePass = 0;
+
+      setTransformation(new Array2DRowRealMatrix(covariance, false), size);
+
+      return false;
+   }
+
+   /**
+    * Keep the top |super.outputSize| eigen vectors of |covariance|.
+    */
+   private void setTransformation(RealMatrix covariance, int numReducedFeatures) {
+      EigenDecomposition eigenDecomp = new EigenDecomposition(covariance);
 
       // Get the eigen vectors.
       // Transpose them (each eigen vector is now in a row).
@@ -79,14 +385,93 @@ public class KLTReducer extends FeatureVectorReducer {
       // TODO(eriq): Verify |reducedFeatureVectorLength| > |num reduced features|.
       // NOTE(eriq): Are the eigen vectors along the vertical or horizontal.
       // transformationMatrix = eigenDecomp.getV().transpose();
-      transformationMatrix = eigenDecomp.getV();
+      RealMatrix transformationMatrix = eigenDecomp.getV();
+
+      canonicalizeSigns(transformationMatrix);
 
       // Get only the top |super.outputSize| eigen vectors.
-      transformationMatrix = transformationMatrix.getSubMatrix(0, super.outputSize - 1, 0, reducedData[0].length - 1);
+      transformationMatrix = transformationMatrix.getSubMatrix(0, super.outputSize - 1, 0, numReducedFeatures - 1);
+
+      setProjection(transformationMatrix);
+   }
+
+   /**
+    * Flatten out the transformation and pair up its columns with the CVR'd features.
+    */
+   private void setProjection(RealMatrix transformationMatrix) {
+      assert(transformationMatrix.getRowDimension() == super.outputSize);
+
+      int cols = transformationMatrix.getColumnDimension();
+      double[] flatMatrix = new double[super.outputSize * cols];
+      for (int row = 0; row < super.outputSize; row++) {
+         System.arraycopy(transformationMatrix.getRow(row), 0, flatMatrix, row * cols, cols);
+      }
+
+      setProjection(flatMatrix, cols);
+   }
+
+   private void setProjection(double[] flatMatrix, int cols) {
+      projectionIndexes = changingValueReducer.getActiveIndexes();
+      assert(projectionIndexes.length == cols);
+
+      projection = flatMatrix;
+      projectionCols = cols;
+   }
 
-      RealMatrix finalData = transformationMatrix.multiply(centeredData.transpose()).transpose();
+   /**
+    * The sign of each eigen vector (column of |vectors|) is arbitrary, and a tiny change in the covariance
+    *  (like accumulating it in a different order) can flip it.
+    * So, make the largest component of every eigen vector positive.
+    * |vectors| is changed in place and returned.
+    */
+   private static RealMatrix canonicalizeSigns(RealMatrix vectors) {
+      for (int col = 0; col < vectors.getColumnDimension(); col++) {
+         double largest = 0;
+         for (int row = 0; row < vectors.getRowDimension(); row++) {
+            double value = vectors.getEntry(row, col);
+            if (Math.abs(value) > Math.abs(largest)) {
+               largest = value;
+            }
+         }
+
+         if (largest < 0) {
+            vectors.setColumnVector(col, vectors.getColumnVector(col).mapMultiply(-1.0));
+         }
+      }
+
+      return vectors;
+   }
+
+   /**
+    * Layout:
+    *  - Output size (int)
+    *  - The ChangingValueReducer
+    *  - Transformation matrix rows (int)
+    *  - Transformation matrix columns (int)
+    *  - Transformation matrix, row-major (doubles)
+    */
+   public void writeModel(DataOutputStream out) throws IOException {
+      out.writeInt(super.outputSize);
+      changingValueReducer.writeModel(out);
+      out.writeInt(super.outputSize);
+      out.writeInt(projectionCols);
+      ModelFile.writeDoubles(out, projection);
+   }
+
+   public void readModel(ByteBuffer in) throws IOException {
+      super.outputSize = in.getInt();
+      changingValueReducer.readModel(in);
+
+      int rows = in.getInt();
+      int cols = in.getInt();
+      double[] flatMatrix = ModelFile.readDoubles(in);
+
+      if (flatMatrix.length != rows * cols || rows != super.outputSize ||
+          cols != changingValueReducer.getOutputSize()) {
+         throw new IOException("Malformed transformation matrix in model.");
+      }
 
-      return finalData.getData();
+      setProjection(flatMatrix, cols);
    }
 
    private RealMatrix getMeanMatrix(RealMatrix matrix) {
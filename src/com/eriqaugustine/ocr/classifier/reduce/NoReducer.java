@@ -1,5 +1,9 @@
 package com.eriqaugustine.ocr.classifier.reduce;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Do no reduction!.
  */
@@ -14,10 +18,40 @@ public class NoReducer extends FeatureVectorReducer {
       return data;
    }
 
+   /**
+    * @inheritDoc
+    */
+   public void reduceSample(double[] data, double[] out) {
+      assert(data.length == super.inputSize);
+      assert(out.length == super.inputSize);
+
+      System.arraycopy(data, 0, out, 0, data.length);
+   }
+
    public double[][] reduceTraining(double[][] data, String[] classLabels) {
       assert(data.length > 0);
       assert(data[0].length == super.inputSize);
 
       return data;
    }
+
+   /**
+    * Nothing to learn.
+    */
+   public void observe(double[] sample, String classLabel) {
+      assert(sample.length == super.inputSize);
+   }
+
+   public boolean finish() {
+      return false;
+   }
+
+   /**
+    * Nothing to write.
+    */
+   public void writeModel(DataOutputStream out) throws IOException {
+   }
+
+   public void readModel(ByteBuffer in) throws IOException {
+   }
 }
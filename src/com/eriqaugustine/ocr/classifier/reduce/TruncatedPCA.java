@@ -0,0 +1,493 @@
+package com.eriqaugustine.ocr.classifier.reduce;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Find just the top eigen vectors of the covariance of some (centered) samples
+ *  without ever building the covariance matrix.
+ * This is randomized subspace iteration (Halko, Martinsson, and Tropp):
+ *  multiply the covariance by a random block of vectors a few times (re-orthonormalizing between)
+ *  and then solve the small eigen problem in the space that the block spans.
+ *
+ * The covariance is only ever multiplied through the samples (C * Q = X' * (X * Q) / (n - 1)),
+ *  so each multiplication is a pass over the samples (|powerIterations| + 2 passes in all):
+ * <pre>
+ * do {
+ *    for (every centered sample) {
+ *       pca.add(sample);
+ *    }
+ * } while (pca.endPass());
+ * double[][] components = pca.getComponents();
+ * </pre>
+ * Samples are gathered into blocks and all the matrix work is done on flat, row-major arrays
+ *  split up over a thread per processor.
+ * The random block is seeded, so the same samples always give the same components.
+ */
+class TruncatedPCA {
+   private static final int BLOCK_SIZE = 128;
+   private static final long SEED = 4;
+
+   // Columns that lose this much of their length to orthogonalization are treated as zero.
+   private static final double RANK_EPSILON = 1e-10;
+
+   private final int dimension;
+   private final int numComponents;
+   // |numComponents| plus oversampling.
+   private final int blockWidth;
+   private final int powerIterations;
+
+   private final int numThreads;
+   private ExecutorService pool;
+
+   // The block that the covariance gets multiplied by, |dimension| x |blockWidth|.
+   private double[] basis;
+   // Covariance times |basis|, |dimension| x |blockWidth|.
+   private double[] product;
+
+   // The samples waiting to be multiplied in, |BLOCK_SIZE| x |dimension|.
+   private final double[] samples;
+   private int numBlockSamples;
+   // The block samples times |basis|, |BLOCK_SIZE| x |blockWidth|.
+   private final double[] projected;
+
+   private int numSamples;
+   private int pass;
+
+   private double[][] components;
+
+   public TruncatedPCA(int dimension, int numComponents, int oversampling, int powerIterations) {
+      assert(numComponents > 0 && numComponents <= dimension);
+      assert(oversampling >= 0);
+      assert(powerIterations >= 0);
+
+      this.dimension = dimension;
+      this.numComponents = numComponents;
+      this.blockWidth = Math.min(dimension, numComponents + oversampling);
+      this.powerIterations = powerIterations;
+
+      numThreads = Runtime.getRuntime().availableProcessors();
+      pool = null;
+
+      Random random = new Random(SEED);
+      basis = new double[dimension * blockWidth];
+      for (int i = 0; i < basis.length; i++) {
+         basis[i] = random.nextGaussian();
+      }
+
+      product = new double[dimension * blockWidth];
+
+      samples = new double[BLOCK_SIZE * dimension];
+      numBlockSamples = 0;
+      projected = new double[BLOCK_SIZE * blockWidth];
+
+      numSamples = 0;
+      pass = 0;
+      components = null;
+   }
+
+   /**
+    * Look at a centered sample.
+    * |sample| is copied, so the caller is free to reuse it.
+    */
+   public void add(double[] sample) {
+      assert(sample.length == dimension);
+      assert(components == null);
+
+      System.arraycopy(sample, 0, samples, numBlockSamples * dimension, dimension);
+      numBlockSamples++;
+
+      if (numBlockSamples == BLOCK_SIZE) {
+         flushBlock();
+      }
+
+      if (pass == 0) {
+         numSamples++;
+      }
+   }
+
+   /**
+    * Done with a pass of add().
+    * Returns true if the samples need to be seen again (in the same order).
+    */
+   public boolean endPass() {
+      assert(components == null);
+
+      flushBlock();
+
+      double scale = 1.0 / Math.max(1, numSamples - 1);
+      for (int i = 0; i < product.length; i++) {
+         product[i] *= scale;
+      }
+
+      // The first pass multiplies in the random block, then there is a pass for each power iteration.
+      // The last pass is only used to solve the small problem.
+      if (pass <= powerIterations) {
+         // Orthonormalize twice, the second time cleans up the rounding from the first.
+         orthonormalize(product);
+         orthonormalize(product);
+
+         double[] temp = basis;
+         basis = product;
+         product = temp;
+         Arrays.fill(product, 0);
+
+         pass++;
+         return true;
+      }
+
+      components = solve();
+
+      if (pool != null) {
+         pool.shutdown();
+         pool = null;
+      }
+
+      basis = null;
+      product = null;
+
+      return false;
+   }
+
+   /**
+    * The top eigen vectors of the covariance (one per row), largest eigen value first.
+    */
+   public double[][] getComponents() {
+      assert(components != null);
+      return components;
+   }
+
+   /**
+    * product += samples' * (samples * basis)
+    */
+   private void flushBlock() {
+      if (numBlockSamples == 0) {
+         return;
+      }
+
+      final int blockSamples = numBlockSamples;
+
+      // projected = samples * basis
+      runRanges(blockSamples, new RangeTask() {
+         public void run(int start, int end) {
+            for (int sample = start; sample < end; sample++) {
+               int sampleOffset = sample * dimension;
+               int projectedOffset = sample * blockWidth;
+
+               for (int col = 0; col < blockWidth; col++) {
+                  projected[projectedOffset + col] = 0;
+               }
+
+               for (int i = 0; i < dimension; i++) {
+                  double value = samples[sampleOffset + i];
+                  if (value == 0) {
+                     continue;
+                  }
+
+                  int basisOffset = i * blockWidth;
+                  for (int col = 0; col < blockWidth; col++) {
+                     projected[projectedOffset + col] += value * basis[basisOffset + col];
+                  }
+               }
+            }
+         }
+      });
+
+      // product += samples' * projected
+      runRanges(dimension, new RangeTask() {
+         public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+               int productOffset = i * blockWidth;
+
+               for (int sample = 0; sample < blockSamples; sample++) {
+                  double value = samples[sample * dimension + i];
+                  if (value == 0) {
+                     continue;
+                  }
+
+                  int projectedOffset = sample * blockWidth;
+                  for (int col = 0; col < blockWidth; col++) {
+                     product[productOffset + col] += value * projected[projectedOffset + col];
+                  }
+               }
+            }
+         }
+      });
+
+      numBlockSamples = 0;
+   }
+
+   /**
+    * Make the columns of |matrix| (|dimension| x |blockWidth|) orthonormal (in place).
+    * This is Gram-Schmidt with every column orthogonalized twice (which is enough to keep it orthogonal
+    *  to working precision) on a column-major copy, with the work for each column split up by rows.
+    * Columns with no length left (the samples do not span that many dimensions) become zeros.
+    */
+   private void orthonormalize(final double[] matrix) {
+      final double[][] columns = new double[blockWidth][dimension];
+      for (int i = 0; i < dimension; i++) {
+         for (int col = 0; col < blockWidth; col++) {
+            columns[col][i] = matrix[i * blockWidth + col];
+         }
+      }
+
+      for (int col = 0; col < blockWidth; col++) {
+         final double[] column = columns[col];
+         double originalNorm = Math.sqrt(dot(column, column));
+
+         for (int round = 0; round < 2; round++) {
+            final double[] coefficients = projectionCoefficients(columns, col);
+
+            runRanges(dimension, new RangeTask() {
+               public void run(int start, int end) {
+                  for (int prev = 0; prev < coefficients.length; prev++) {
+                     double coefficient = coefficients[prev];
+                     double[] prevColumn = columns[prev];
+
+                     for (int i = start; i < end; i++) {
+                        column[i] -= coefficient * prevColumn[i];
+                     }
+                  }
+               }
+            });
+         }
+
+         double norm = Math.sqrt(dot(column, column));
+         double scale = (norm <= originalNorm * RANK_EPSILON || norm == 0) ? 0 : 1.0 / norm;
+         for (int i = 0; i < dimension; i++) {
+            column[i] *= scale;
+         }
+      }
+
+      for (int i = 0; i < dimension; i++) {
+         for (int col = 0; col < blockWidth; col++) {
+            matrix[i * blockWidth + col] = columns[col][i];
+         }
+      }
+   }
+
+   /**
+    * The dot product of |columns|[|col|] with each of the columns before it.
+    * Each thread sums its own rows, then the partial sums are added up (always in row order,
+    *  so the result does not depend on which thread finishes first).
+    */
+   private double[] projectionCoefficients(final double[][] columns, final int col) {
+      final double[] rtn = new double[col];
+      if (col == 0) {
+         return rtn;
+      }
+
+      final Map<Integer, double[]> partials = new TreeMap<Integer, double[]>();
+
+      runRanges(dimension, new RangeTask() {
+         public void run(int start, int end) {
+            double[] partial = new double[col];
+            double[] column = columns[col];
+
+            for (int prev = 0; prev < col; prev++) {
+               double[] prevColumn = columns[prev];
+
+               double sum = 0;
+               for (int i = start; i < end; i++) {
+                  sum += column[i] * prevColumn[i];
+               }
+               partial[prev] = sum;
+            }
+
+            synchronized (partials) {
+               partials.put(start, partial);
+            }
+         }
+      });
+
+      for (double[] partial : partials.values()) {
+         for (int prev = 0; prev < col; prev++) {
+            rtn[prev] += partial[prev];
+         }
+      }
+
+      return rtn;
+   }
+
+   private static double dot(double[] a, double[] b) {
+      double rtn = 0;
+      for (int i = 0; i < a.length; i++) {
+         rtn += a[i] * b[i];
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Solve the small eigen problem B = basis' * C * basis (= basis' * product)
+    *  and bring the top vectors back up to full size.
+    */
+   private double[][] solve() {
+      double[][] small = multiplyTransposed(basis, product);
+
+      // Only symmetric up to rounding.
+      for (int row = 0; row < blockWidth; row++) {
+         for (int col = 0; col < row; col++) {
+            double value = (small[row][col] + small[col][row]) / 2.0;
+            small[row][col] = value;
+            small[col][row] = value;
+         }
+      }
+
+      EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(small, false));
+      final double[] values = eigen.getRealEigenvalues();
+      final RealMatrix vectors = eigen.getV();
+
+      // Largest first.
+      Integer[] order = new Integer[blockWidth];
+      for (int i = 0; i < blockWidth; i++) {
+         order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return Double.compare(values[b.intValue()], values[a.intValue()]);
+         }
+      });
+
+      final double[][] rtn = new double[numComponents][dimension];
+      final double[] chosen = new double[blockWidth * numComponents];
+      for (int component = 0; component < numComponents; component++) {
+         for (int k = 0; k < blockWidth; k++) {
+            chosen[k * numComponents + component] = vectors.getEntry(k, order[component].intValue());
+         }
+      }
+
+      // rtn' = basis * chosen
+      runRanges(dimension, new RangeTask() {
+         public void run(int start, int end) {
+            for (int i = start; i < end; i++) {
+               int basisOffset = i * blockWidth;
+
+               for (int component = 0; component < numComponents; component++) {
+                  double sum = 0;
+                  for (int k = 0; k < blockWidth; k++) {
+                     sum += basis[basisOffset + k] * chosen[k * numComponents + component];
+                  }
+
+                  rtn[component][i] = sum;
+               }
+            }
+         }
+      });
+
+      return rtn;
+   }
+
+   /**
+    * a' * b for two |dimension| x |blockWidth| matrices.
+    * Each thread sums its own rows, then the partial sums are added up in row order.
+    */
+   private double[][] multiplyTransposed(final double[] a, final double[] b) {
+      final Map<Integer, double[]> partials = new TreeMap<Integer, double[]>();
+
+      runRanges(dimension, new RangeTask() {
+         public void run(int start, int end) {
+            double[] partial = new double[blockWidth * blockWidth];
+
+            for (int i = start; i < end; i++) {
+               int offset = i * blockWidth;
+
+               for (int row = 0; row < blockWidth; row++) {
+                  double value = a[offset + row];
+                  if (value == 0) {
+                     continue;
+                  }
+
+                  int partialOffset = row * blockWidth;
+                  for (int col = 0; col < blockWidth; col++) {
+                     partial[partialOffset + col] += value * b[offset + col];
+                  }
+               }
+            }
+
+            synchronized (partials) {
+               partials.put(start, partial);
+            }
+         }
+      });
+
+      double[][] rtn = new double[blockWidth][blockWidth];
+      for (double[] partial : partials.values()) {
+         for (int row = 0; row < blockWidth; row++) {
+            for (int col = 0; col < blockWidth; col++) {
+               rtn[row][col] += partial[row * blockWidth + col];
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Split [0, |size|) into a range per thread and run |task| on each.
+    */
+   private void runRanges(int size, final RangeTask task) {
+      int numRanges = Math.min(numThreads, size);
+      if (numRanges <= 1) {
+         task.run(0, size);
+         return;
+      }
+
+      List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(numRanges);
+      for (int i = 0; i < numRanges; i++) {
+         final int start = (int)((long)size * i / numRanges);
+         final int end = (int)((long)size * (i + 1) / numRanges);
+
+         tasks.add(new Callable<Object>() {
+            public Object call() {
+               task.run(start, end);
+               return null;
+            }
+         });
+      }
+
+      try {
+         for (Future<Object> future : getPool().invokeAll(tasks)) {
+            future.get();
+         }
+      } catch (ExecutionException ex) {
+         throw new RuntimeException("Truncated PCA failed.", ex.getCause());
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted during truncated PCA.", ex);
+      }
+   }
+
+   private ExecutorService getPool() {
+      if (pool == null) {
+         pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+               Thread thread = new Thread(runnable, "truncated-pca");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+
+      return pool;
+   }
+
+   private static interface RangeTask {
+      public void run(int start, int end);
+   }
+}
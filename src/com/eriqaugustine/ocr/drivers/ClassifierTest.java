@@ -12,6 +12,9 @@ import com.eriqaugustine.ocr.utils.SystemUtils;
 
 import com.eriqaugustine.ocr.utils.Props;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * The base to for a quick classifier spot check.
  * This will handle most of the setup, it just needs a constructed classifier.
@@ -44,13 +47,20 @@ public abstract class ClassifierTest {
 
       SystemUtils.memoryMark("Test BEGIN", System.err);
 
+      // Classify the whole grid as a single batch.
+      List<WrapImage> allGridImages = new ArrayList<WrapImage>();
+      for (WrapImage[] gridRow : gridTextImages) {
+         for (WrapImage gridTextImage : gridRow) {
+            allGridImages.add(gridTextImage);
+         }
+      }
+      List<String> predictions = classy.classify(allGridImages);
+
       for (int row = 0; row < gridTextImages.length; row++) {
          for (int col = 0; col < gridTextImages[row].length; col++) {
-            WrapImage gridTextImage = gridTextImages[row][col];
-
-            // System.out.println(ImageUtils.asciiImage(gridTextImage) + "\n-\n");
+            // System.out.println(ImageUtils.asciiImage(gridTextImages[row][col]) + "\n-\n");
 
-            String prediction = classy.classify(gridTextImage);
+            String prediction = predictions.get(count);
 
             if (verbose) {
                System.out.print(String.format("Classify (%d, %d)[%s]: {%s}",
@@ -0,0 +1,68 @@
+package com.eriqaugustine.ocr.drivers;
+
+import com.eriqaugustine.ocr.classifier.CharacterClassifier;
+import com.eriqaugustine.ocr.classifier.PLOVEClassifier;
+import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
+import com.eriqaugustine.ocr.classifier.reduce.KLTReducer;
+import com.eriqaugustine.ocr.image.TextImage;
+import com.eriqaugustine.ocr.image.WrapImage;
+import com.eriqaugustine.ocr.plove.PLOVE;
+
+import com.eriqaugustine.ocr.utils.FontUtils;
+import com.eriqaugustine.ocr.utils.Props;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compare the approximate nearest neighbor classifier (HNSWClassifier) against the exact search
+ *  on the ClassifierTest set.
+ * VECTOR_CLASSIFIER must be com.eriqaugustine.ocr.classifier.HNSWClassifier.
+ * Reports the accuracy and time (like the other classifier tests) and the recall of the
+ *  test characters' neighbors (none of which are in the training data).
+ * Optionally takes the number of KLT features (400 by default, like PLOVEClassifierTest).
+ */
+public class HNSWRecallTest extends ClassifierTest {
+   public static void main(String[] args) throws Exception {
+      int numFeatures = 400;
+      if (args.length > 0) {
+         numFeatures = Integer.parseInt(args[0]);
+      }
+
+      HNSWRecallTest test = new HNSWRecallTest();
+      test.run(numFeatures);
+   }
+
+   private void run(int numFeatures) throws Exception {
+      FeatureVectorReducer reduce = new KLTReducer(PLOVE.getNumberOfFeatures(), numFeatures);
+
+      CharacterClassifier classy =
+         new PLOVEClassifier(trainingCharacters,
+                             Props.getList("CLASSIFIER_TRAINING_FONTS").toArray(new String[0]),
+                             reduce);
+
+      long startTime = System.currentTimeMillis();
+      double res = classifierTest(classy, false);
+      long totalTime = System.currentTimeMillis() - startTime;
+
+      FontUtils.registerLocalFonts();
+
+      WrapImage baseImage = WrapImage.getImageFromFile("testImages/partHiragana.png");
+
+      List<WrapImage> testImages = new ArrayList<WrapImage>();
+      for (WrapImage[] gridRow : TextImage.gridBreakup(baseImage)) {
+         for (WrapImage gridTextImage : gridRow) {
+            testImages.add(gridTextImage);
+         }
+      }
+
+      double recall = classy.measureNearestNeighborRecall(testImages);
+      if (recall < 0) {
+         System.err.println("The classifier is not a HNSWClassifier (see VECTOR_CLASSIFIER).");
+         return;
+      }
+
+      System.out.println(String.format("%6.3f, PLOVE, HNSW, %d, %d, recall %6.4f",
+                                       res, numFeatures, totalTime, recall));
+   }
+}
@@ -10,14 +10,20 @@ import com.eriqaugustine.ocr.utils.Props;
 
 /**
  * Quck test for PLOVEClassifier.
+ * Optionally takes the KLTReducer.Decomposition to use (FULL by default).
  */
 public class KLTReducerTest extends ClassifierTest {
    public static void main(String[] args) throws Exception {
+      KLTReducer.Decomposition decomposition = KLTReducer.Decomposition.FULL;
+      if (args.length > 0) {
+         decomposition = KLTReducer.Decomposition.valueOf(args[0].toUpperCase());
+      }
+
       KLTReducerTest test = new KLTReducerTest();
-      test.run();
+      test.run(decomposition);
    }
 
-   private void run() throws Exception {
+   private void run(KLTReducer.Decomposition decomposition) throws Exception {
       int numFeaturesStart = 300;
       int numFeaturesEnd = 2400;
       int numFeaturesDelta = 50;
@@ -31,7 +37,7 @@ public class KLTReducerTest extends ClassifierTest {
       System.err.println();
 
       for (int numFeatures = numFeaturesStart; numFeatures <= numFeaturesEnd; numFeatures += numFeaturesDelta) {
-         FeatureVectorReducer reduce = new KLTReducer(PLOVE.getNumberOfFeatures(), numFeatures);
+         FeatureVectorReducer reduce = new KLTReducer(PLOVE.getNumberOfFeatures(), numFeatures, decomposition);
 
          OCRClassifier classy =
             new PLOVEClassifier(trainingCharacters, fonts, reduce);
@@ -40,7 +46,8 @@ public class KLTReducerTest extends ClassifierTest {
          double res = classifierTest(classy, false);
          long totalTime = System.currentTimeMillis() - startTime;
 
-         System.out.println(String.format("%6.3f, PLOVE, KNN, %d, %d", res, numFeatures, totalTime));
+         System.out.println(String.format("%6.3f, PLOVE, KNN, %d, %d, %s",
+                                          res, numFeatures, totalTime, decomposition));
          System.gc();
       }
    }
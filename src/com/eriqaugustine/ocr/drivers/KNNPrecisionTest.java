@@ -0,0 +1,52 @@
+package com.eriqaugustine.ocr.drivers;
+
+import com.eriqaugustine.ocr.classifier.CharacterClassifier;
+import com.eriqaugustine.ocr.classifier.NearestNeighborClassifier;
+import com.eriqaugustine.ocr.classifier.PLOVEClassifier;
+import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
+import com.eriqaugustine.ocr.classifier.reduce.KLTReducer;
+import com.eriqaugustine.ocr.plove.PLOVE;
+
+import com.eriqaugustine.ocr.utils.Props;
+
+/**
+ * Compare the accuracy of the nearest neighbor precisions (NearestNeighborClassifier.Precision)
+ *  on the ClassifierTest set.
+ * The classifier is trained once and then converted down through each precision,
+ *  so KNN_PRECISION should be DOUBLE (any cached model gets converted to it first).
+ * Optionally takes the number of KLT features (400 by default, like PLOVEClassifierTest).
+ */
+public class KNNPrecisionTest extends ClassifierTest {
+   public static void main(String[] args) throws Exception {
+      int numFeatures = 400;
+      if (args.length > 0) {
+         numFeatures = Integer.parseInt(args[0]);
+      }
+
+      KNNPrecisionTest test = new KNNPrecisionTest();
+      test.run(numFeatures);
+   }
+
+   private void run(int numFeatures) throws Exception {
+      FeatureVectorReducer reduce = new KLTReducer(PLOVE.getNumberOfFeatures(), numFeatures);
+
+      CharacterClassifier classy =
+         new PLOVEClassifier(trainingCharacters,
+                             Props.getList("CLASSIFIER_TRAINING_FONTS").toArray(new String[0]),
+                             reduce);
+
+      for (NearestNeighborClassifier.Precision precision : NearestNeighborClassifier.Precision.values()) {
+         if (!classy.setNearestNeighborPrecision(precision)) {
+            System.err.println("The classifier is not a NearestNeighborClassifier.");
+            return;
+         }
+
+         long startTime = System.currentTimeMillis();
+         double res = classifierTest(classy, false);
+         long totalTime = System.currentTimeMillis() - startTime;
+
+         System.out.println(String.format("%6.3f, PLOVE, KNN, %d, %d, %s",
+                                          res, numFeatures, totalTime, precision));
+      }
+   }
+}
@@ -0,0 +1,66 @@
+package com.eriqaugustine.ocr.drivers;
+
+import com.eriqaugustine.ocr.image.CharacterImage;
+import com.eriqaugustine.ocr.image.WrapImage;
+import com.eriqaugustine.ocr.pdc.PDC;
+import com.eriqaugustine.ocr.pdc.PDCExtractor;
+import com.eriqaugustine.ocr.utils.Props;
+
+import java.util.Arrays;
+
+/**
+ * Compare PDC.pdc() (with PDCInfo.fullPDCDimensions()) and PDCExtractor.
+ * Reports the time per character for each and how many characters got different features
+ *  (which should always be zero).
+ */
+public class PDCExtractorTest {
+   private static final int ITERATIONS = 10;
+
+   public static void main(String[] args) throws Exception {
+      String characters = args.length > 0 ? args[0] :
+                          Props.getString("KANA_FULL") + Props.getString("PUNCTUATION");
+      WrapImage[] images = CharacterImage.generateFontImages(characters);
+
+      PDCExtractor extractor = new PDCExtractor(false, 1);
+      double[] features = new double[extractor.getNumberOfFeatures()];
+
+      int mismatches = 0;
+      for (WrapImage image : images) {
+         extractor.extract(image, features);
+         if (!Arrays.equals(PDC.pdc(image).fullPDCDimensions(), features)) {
+            mismatches++;
+         }
+      }
+
+      // Warm up both before timing.
+      long pdcTime = 0;
+      long extractorTime = 0;
+
+      for (int i = 0; i <= ITERATIONS; i++) {
+         long startTime = System.nanoTime();
+         for (WrapImage image : images) {
+            PDC.pdc(image).fullPDCDimensions();
+         }
+         long pdcEnd = System.nanoTime();
+
+         for (WrapImage image : images) {
+            extractor.extract(image, features);
+         }
+         long extractorEnd = System.nanoTime();
+
+         if (i > 0) {
+            pdcTime += pdcEnd - startTime;
+            extractorTime += extractorEnd - pdcEnd;
+         }
+      }
+
+      double perCharacter = 1000.0 * ITERATIONS * images.length;
+
+      System.out.println("Characters,PDCUS,ExtractorUS,Mismatches");
+      System.out.println(String.format("%d,%.1f,%.1f,%d",
+                                       images.length,
+                                       pdcTime / perCharacter,
+                                       extractorTime / perCharacter,
+                                       mismatches));
+   }
+}
@@ -0,0 +1,41 @@
+package com.eriqaugustine.ocr.drivers;
+
+import com.eriqaugustine.ocr.classifier.CharacterClassifier;
+import com.eriqaugustine.ocr.classifier.PipelineClassifier;
+import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
+import com.eriqaugustine.ocr.classifier.reduce.KLTReducer;
+import com.eriqaugustine.ocr.features.FeatureBlock;
+import com.eriqaugustine.ocr.features.FeaturePipeline;
+import com.eriqaugustine.ocr.features.PDCBlock;
+import com.eriqaugustine.ocr.features.PloveBlock;
+import com.eriqaugustine.ocr.features.RegionDensityBlock;
+
+import com.eriqaugustine.ocr.utils.Props;
+
+/**
+ * Quick test for PipelineClassifier with PLOVE, PDC, and density features together.
+ */
+public class PipelineClassifierTest extends ClassifierTest {
+   public static void main(String[] args) throws Exception {
+      PipelineClassifierTest test = new PipelineClassifierTest();
+      test.run();
+   }
+
+   private void run() throws Exception {
+      FeaturePipeline pipeline = new FeaturePipeline(new FeatureBlock[]{
+         new PloveBlock(),
+         new PDCBlock(false, 1),
+         new RegionDensityBlock(8)
+      });
+
+      FeatureVectorReducer reduce = new KLTReducer(pipeline.getNumberOfFeatures(), 400);
+
+      CharacterClassifier classy =
+         new PipelineClassifier(trainingCharacters,
+                                Props.getList("CLASSIFIER_TRAINING_FONTS").toArray(new String[0]),
+                                pipeline,
+                                reduce);
+
+      classifierTest(classy, true);
+   }
+}
@@ -0,0 +1,91 @@
+package com.eriqaugustine.ocr.drivers;
+
+import com.eriqaugustine.ocr.image.WrapImage;
+
+/**
+ * Run the same image operations on both of the WrapImage backends.
+ * Reports the time for each operation and how many pixels ended up different.
+ */
+public class RasterBackendTest {
+   private static final int ITERATIONS = 10;
+
+   public static void main(String[] args) throws Exception {
+      String path = args.length > 0 ? args[0] : "testImages/page.png";
+
+      System.out.println("Operation,MagickMS,PackedMS,DiffPixels,MaxDiff");
+
+      for (String operation : new String[]{"load", "copy", "discrete", "shrink",
+                                           "scale", "blur", "edge", "scrub"}) {
+         long magickTime = time(WrapImage.Backend.MAGICK, path, operation);
+         WrapImage magickImage = run(WrapImage.Backend.MAGICK, path, operation);
+
+         long packedTime = time(WrapImage.Backend.PACKED, path, operation);
+         WrapImage packedImage = run(WrapImage.Backend.PACKED, path, operation);
+
+         int[] diff = diff(magickImage, packedImage);
+
+         System.out.println(String.format("%s,%d,%d,%d,%d",
+                                          operation, magickTime, packedTime, diff[0], diff[1]));
+      }
+   }
+
+   private static long time(WrapImage.Backend backend, String path, String operation) {
+      long startTime = System.currentTimeMillis();
+
+      for (int i = 0; i < ITERATIONS; i++) {
+         run(backend, path, operation);
+      }
+
+      return (System.currentTimeMillis() - startTime) / ITERATIONS;
+   }
+
+   private static WrapImage run(WrapImage.Backend backend, String path, String operation) {
+      WrapImage.setBackend(backend);
+      WrapImage image = WrapImage.getImageFromFile(path);
+
+      if (operation.equals("copy")) {
+         image = image.copy();
+      } else if (operation.equals("discrete")) {
+         image.getDiscretePixels();
+      } else if (operation.equals("shrink")) {
+         image = image.shrink();
+      } else if (operation.equals("scale")) {
+         image.scale(image.width() / 3, image.height() / 3);
+      } else if (operation.equals("blur")) {
+         image.blur(3, 1);
+      } else if (operation.equals("edge")) {
+         image.edge(1);
+      } else if (operation.equals("scrub")) {
+         image.scrub(150, 10);
+      }
+
+      // Make sure the pixels actually get touched.
+      image.getAveragePixels();
+
+      return image;
+   }
+
+   /**
+    * Returns {number of different pixels, max intensity difference}.
+    */
+   private static int[] diff(WrapImage a, WrapImage b) {
+      if (a.width() != b.width() || a.height() != b.height()) {
+         return new int[]{-1, -1};
+      }
+
+      byte[] aPixels = a.getAveragePixels();
+      byte[] bPixels = b.getAveragePixels();
+
+      int count = 0;
+      int max = 0;
+      for (int i = 0; i < aPixels.length; i++) {
+         int delta = Math.abs((0xFF & aPixels[i]) - (0xFF & bPixels[i]));
+         if (delta != 0) {
+            count++;
+            max = Math.max(max, delta);
+         }
+      }
+
+      return new int[]{count, max};
+   }
+}
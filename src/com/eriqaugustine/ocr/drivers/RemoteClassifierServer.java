@@ -11,55 +11,521 @@ import com.eriqaugustine.ocr.utils.NetUtils;
 import com.eriqaugustine.ocr.utils.Props;
 import com.eriqaugustine.ocr.utils.SystemUtils;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple server to handle tranlations.
  * This will keep a translator in memory so it doesn't have to be retrained.
+ * When using the configured fonts, the trained classifier is also kept in a model file
+ *  (CLASSIFIER_MODEL_FILE) so that later starts can just map it instead of training.
+ * Delete the model file to force retraining.
+ *
+ * Every connection gets its own thread that reads requests (see NetUtils.getImages())
+ *  and writes the answers (see NetUtils.getStrings()) in order.
+ * A connection can carry any number of requests, it is closed when the client closes it
+ *  or after it has been idle for too long.
+ * Connection threads only read the (still encoded) images, the decoding and the actual classification
+ *  are handed to a fixed pool of workers so that slow clients only ever hold a connection thread, never a worker.
+ * Each worker does a whole classification itself (see SystemUtils.setSerialThread()),
+ *  so there are never more than REMOTE_SERVER_WORKERS threads classifying.
+ * JMagick is not known to be safe to use from multiple threads,
+ *  so there is only ever a single worker unless the image backend is PACKED (see WrapImage.Backend).
+ *
+ * Backpressure:
+ *  - Once there are REMOTE_SERVER_CONNECTIONS open connections, no more are accepted
+ *    (new clients wait in the listen backlog).
+ *  - A request takes its place in the queue before its images are read,
+ *    so once there are REMOTE_SERVER_QUEUE requests waiting for a worker, connection threads
+ *    stop reading their sockets until a worker frees up.
+ *    Every request is at most NetUtils.MAX_BATCH_BYTES,
+ *    so requests never hold more than (workers + REMOTE_SERVER_QUEUE) of those.
+ *
+ * Configuration:
+ *  - DEFAULT_TRANSLATION_SERVER_PORT: the port to listen on.
+ *  - REMOTE_SERVER_CONNECTIONS: the most connections open at once (default 64).
+ *  - REMOTE_SERVER_WORKERS: classification threads, 0 means all processors (default 0, always 1 with MAGICK).
+ *  - REMOTE_SERVER_QUEUE: the most requests waiting for a worker (default 64).
+ *  - REMOTE_SERVER_IDLE_TIMEOUT: milliseconds a connection can sit without sending anything (default 30000).
  */
 public class RemoteClassifierServer {
+   private static Logger logger = LogManager.getLogger(RemoteClassifierServer.class.getName());
+
+   // How long shutdown() waits for requests that are already in to finish.
+   private static final int SHUTDOWN_WAIT_SECONDS = 10;
+
+   private final OCRClassifier classifier;
+   private final ServerSocket serverSocket;
+   private final int idleTimeout;
+
+   private final ExecutorService connectionPool;
+   private final ExecutorService workerPool;
+
+   // One for every connection that can be open.
+   private final Semaphore connectionPermits;
+   // One for every request that can be running or waiting for a worker.
+   private final Semaphore requestPermits;
+
+   // So shutdown() can get to the connections.
+   private final Set<Socket> openSockets;
+
+   private volatile boolean running;
+
+   // Latencies are in nanoseconds.
+   // The total latency of a request is from when it was read to when its answer was ready,
+   //  the queue latency is the part of that spent waiting for a worker.
+   private final AtomicLong numRequests;
+   private final AtomicLong numImages;
+   private final AtomicLong totalLatency;
+   private final AtomicLong totalQueueLatency;
+   private final AtomicLong maxLatency;
+
    public static void main(String[] args) throws Exception {
-      String[] fonts = null;
+      OCRClassifier classy = null;
       if (args.length == 0) {
-         fonts = Props.getList("CLASSIFIER_TRAINING_FONTS").toArray(new String[0]);
+         classy = getModelClassifier(Props.getList("CLASSIFIER_TRAINING_FONTS").toArray(new String[0]));
       } else {
-         fonts = args;
+         classy = getClassifier(args);
       }
 
-      OCRClassifier classy = getClassifier(fonts);
-      ServerSocket socket = new ServerSocket(Props.getInt("DEFAULT_TRANSLATION_SERVER_PORT"));
+      final RemoteClassifierServer server =
+            new RemoteClassifierServer(classy, Props.getInt("DEFAULT_TRANSLATION_SERVER_PORT"));
 
-      while (true) {
-         Socket clientSocket = socket.accept();
-         WrapImage image = NetUtils.getImage(clientSocket);
+      Runtime.getRuntime().addShutdownHook(new Thread("classifier-server-shutdown") {
+         public void run() {
+            server.shutdown();
+         }
+      });
+
+      server.serve();
+   }
 
-         String text = classy.classify(image);
-         NetUtils.sendString(clientSocket, text);
+   /**
+    * Everything except the port comes from the REMOTE_SERVER_* properties.
+    */
+   public RemoteClassifierServer(OCRClassifier classifier, int port) throws IOException {
+      this(classifier, port,
+           Props.has("REMOTE_SERVER_CONNECTIONS") ? Props.getInt("REMOTE_SERVER_CONNECTIONS") : 64,
+           Props.has("REMOTE_SERVER_WORKERS") ? Props.getInt("REMOTE_SERVER_WORKERS") : 0,
+           Props.has("REMOTE_SERVER_QUEUE") ? Props.getInt("REMOTE_SERVER_QUEUE") : 64,
+           Props.has("REMOTE_SERVER_IDLE_TIMEOUT") ? Props.getInt("REMOTE_SERVER_IDLE_TIMEOUT") : 30000);
+   }
+
+   /**
+    * |numWorkers| < 1 means all the processors.
+    * An |idleTimeout| of 0 lets connections stay idle forever.
+    */
+   public RemoteClassifierServer(OCRClassifier classifier, int port,
+                                 int maxConnections, int numWorkers, int maxQueued,
+                                 int idleTimeout) throws IOException {
+      if (numWorkers < 1) {
+         numWorkers = Runtime.getRuntime().availableProcessors();
+      }
 
-         clientSocket.close();
+      if (numWorkers > 1 && WrapImage.getBackend() != WrapImage.Backend.PACKED) {
+         logger.info("Using a single classifier worker, only the PACKED image backend is used concurrently.");
+         numWorkers = 1;
       }
+
+      this.classifier = classifier;
+      this.idleTimeout = Math.max(0, idleTimeout);
+
+      connectionPermits = new Semaphore(Math.max(1, maxConnections));
+      requestPermits = new Semaphore(numWorkers + Math.max(0, maxQueued));
+
+      connectionPool = Executors.newCachedThreadPool(namedThreads("classifier-connection", false));
+      // The request permits keep the queue from ever filling up.
+      workerPool = new ThreadPoolExecutor(numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(numWorkers + Math.max(0, maxQueued)),
+                                          namedThreads("classifier-worker", true));
+
+      openSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+      numRequests = new AtomicLong();
+      numImages = new AtomicLong();
+      totalLatency = new AtomicLong();
+      totalQueueLatency = new AtomicLong();
+      maxLatency = new AtomicLong();
+
+      serverSocket = new ServerSocket(port);
+      running = true;
    }
 
-   public static OCRClassifier getClassifier(String[] fonts) throws Exception {
-      SystemUtils.memoryMark("Training BEGIN", System.err);
+   /**
+    * Accept connections until shutdown() is called.
+    */
+   public void serve() {
+      logger.info("Classifier server listening on port " + serverSocket.getLocalPort() + ".");
 
-      /*
-      FeatureVectorReducer reduce = new NoReducer(PLOVE.getNumberOfFeatures());
-      */
+      while (running) {
+         try {
+            connectionPermits.acquire();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+
+         final Socket socket;
+         try {
+            socket = serverSocket.accept();
+         } catch (IOException ex) {
+            connectionPermits.release();
+
+            if (running) {
+               logger.error("Unable to accept a connection.", ex);
+               continue;
+            }
+
+            break;
+         }
+
+         openSockets.add(socket);
 
-      // String trainingCharacters = Props.getString("HIRAGANA");
-      String trainingCharacters = Props.getString("KANA_FULL") + Props.getString("PUNCTUATION");
-      // String trainingCharacters = Props.getString("KYOIKU_FULL") + Props.getString("KANA_FULL") + Props.getString("PUNCTUATION");
+         try {
+            connectionPool.execute(new Runnable() {
+               public void run() {
+                  try {
+                     handleConnection(socket);
+                  } finally {
+                     closeConnection(socket);
+                  }
+               }
+            });
+         } catch (RejectedExecutionException ex) {
+            // Shutting down.
+            closeConnection(socket);
+         }
+      }
+   }
+
+   /**
+    * Stop accepting connections, let the requests that are already in finish
+    *  (waiting at most SHUTDOWN_WAIT_SECONDS), and then close everything.
+    * Safe to call more than once.
+    */
+   public void shutdown() {
+      synchronized (this) {
+         if (!running) {
+            return;
+         }
+
+         running = false;
+      }
+
+      logger.info("Classifier server shutting down.");
+
+      try {
+         serverSocket.close();
+      } catch (IOException ex) {
+         // We are done with it anyways.
+      }
+
+      workerPool.shutdown();
+      connectionPool.shutdown();
+
+      // Idle connections see the end of their input, the ones with a request in still get their answer.
+      for (Socket socket : openSockets) {
+         try {
+            socket.shutdownInput();
+         } catch (IOException ex) {
+            // Already closed.
+         }
+      }
 
-      FeatureVectorReducer reduce = new KLTReducer(PLOVE.getNumberOfFeatures(), 400);
-      // FeatureVectorReducer reduce = new KLTReducer(PLOVE.getNumberOfFeatures(), 1024);
-      // FeatureVectorReducer reduce = new NoReducer(PLOVE.getNumberOfFeatures());
+      try {
+         if (!connectionPool.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn("Classifier server connections did not finish in time, dropping them.");
+         }
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      }
+
+      // Anything that never got to a worker fails, so its connection stops waiting on it.
+      // Those tasks never ran, so they never released their permits.
+      for (Runnable task : workerPool.shutdownNow()) {
+         if (((Future<?>)task).cancel(false)) {
+            requestPermits.release();
+         }
+      }
+      connectionPool.shutdownNow();
+      for (Socket socket : openSockets) {
+         closeConnection(socket);
+      }
+
+      logger.info(getStatsSummary());
+   }
+
+   public long getNumRequests() {
+      return numRequests.get();
+   }
+
+   /**
+    * The mean time from reading a request to having its answer, in milliseconds.
+    */
+   public double getMeanLatency() {
+      long count = numRequests.get();
+      return count == 0 ? 0 : totalLatency.get() / (count * 1000000.0);
+   }
+
+   /**
+    * The mean time that a request waited for a worker, in milliseconds.
+    */
+   public double getMeanQueueLatency() {
+      long count = numRequests.get();
+      return count == 0 ? 0 : totalQueueLatency.get() / (count * 1000000.0);
+   }
+
+   /**
+    * The longest time from reading a request to having its answer, in milliseconds.
+    */
+   public double getMaxLatency() {
+      return maxLatency.get() / 1000000.0;
+   }
+
+   public String getStatsSummary() {
+      return String.format("Classifier server: %d requests (%d images), latency mean %.2f ms (%.2f ms queued), max %.2f ms.",
+                           numRequests.get(), numImages.get(),
+                           getMeanLatency(), getMeanQueueLatency(), getMaxLatency());
+   }
 
-      OCRClassifier classy = new PLOVEClassifier(trainingCharacters, fonts, reduce);
+   /**
+    * Answer requests on |socket| until it closes, goes idle, or the server shuts down.
+    */
+   private void handleConnection(Socket socket) {
+      DataInputStream inStream;
+
+      try {
+         socket.setSoTimeout(idleTimeout);
+         socket.setTcpNoDelay(true);
+         inStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      } catch (IOException ex) {
+         logger.error("Unable to set up a connection.", ex);
+         return;
+      }
+
+      while (running) {
+         int numImages;
+
+         try {
+            numImages = NetUtils.readImageCount(inStream);
+         } catch (EOFException ex) {
+            // The client is done.
+            return;
+         } catch (SocketTimeoutException ex) {
+            logger.debug("Closing an idle connection.");
+            return;
+         } catch (IOException ex) {
+            if (running) {
+               logger.error("Unable to read a request.", ex);
+            }
+            return;
+         }
+
+         // The rest of the request is only read once it has a place in the queue.
+         try {
+            requestPermits.acquire();
+         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+
+         List<byte[]> encodedImages;
+         try {
+            encodedImages = NetUtils.readImageBytes(inStream, numImages);
+         } catch (IOException ex) {
+            requestPermits.release();
+
+            if (running) {
+               logger.error("Unable to read a request.", ex);
+            }
+            return;
+         }
+
+         List<String> classes = classify(encodedImages);
+         if (classes == null || !NetUtils.sendStrings(socket, classes)) {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Decode and classify a request on a worker.
+    * The caller must already hold a request permit, it is released once the request is done.
+    * If the decoding or classification fails, every class is null (like RemoteClassifier does).
+    * Returns null if the server is shutting down.
+    */
+   private List<String> classify(final List<byte[]> encodedImages) {
+      final long receivedTime = System.nanoTime();
+      // When a worker picked up the request.
+      final long[] startTime = new long[1];
+
+      Future<List<String>> future;
+      try {
+         future = workerPool.submit(new Callable<List<String>>() {
+            public List<String> call() {
+               try {
+                  startTime[0] = System.nanoTime();
+                  return classifier.classify(NetUtils.decodeImages(encodedImages));
+               } finally {
+                  requestPermits.release();
+               }
+            }
+         });
+      } catch (RejectedExecutionException ex) {
+         requestPermits.release();
+         return null;
+      }
+
+      List<String> rtn;
+      try {
+         rtn = future.get();
+      } catch (ExecutionException ex) {
+         logger.error("Error classifying a request.", ex.getCause());
+
+         rtn = new ArrayList<String>(encodedImages.size());
+         for (int i = 0; i < encodedImages.size(); i++) {
+            rtn.add(null);
+         }
+      } catch (CancellationException ex) {
+         return null;
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         return null;
+      }
+
+      recordRequest(encodedImages.size(), startTime[0] - receivedTime, System.nanoTime() - receivedTime);
+
+      return rtn;
+   }
+
+   private void recordRequest(int requestImages, long queueLatency, long latency) {
+      numRequests.incrementAndGet();
+      numImages.addAndGet(requestImages);
+      totalQueueLatency.addAndGet(queueLatency);
+      totalLatency.addAndGet(latency);
+
+      long max = maxLatency.get();
+      while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+         max = maxLatency.get();
+      }
+
+      if (logger.isDebugEnabled()) {
+         logger.debug(String.format("Classified %d images in %.2f ms (%.2f ms queued).",
+                                    requestImages, latency / 1000000.0, queueLatency / 1000000.0));
+      }
+   }
+
+   private void closeConnection(Socket socket) {
+      if (!openSockets.remove(socket)) {
+         return;
+      }
+
+      try {
+         socket.close();
+      } catch (IOException ex) {
+         // We tried...
+      }
+
+      connectionPermits.release();
+   }
+
+   /**
+    * Serial threads (see SystemUtils.setSerialThread()) do all of a classification themselves.
+    */
+   private static ThreadFactory namedThreads(final String name, final boolean serial) {
+      return new ThreadFactory() {
+         public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+               public void run() {
+                  SystemUtils.setSerialThread(serial);
+                  runnable.run();
+               }
+            }, name);
+            thread.setDaemon(true);
+            return thread;
+         }
+      };
+   }
+
+   /**
+    * Load the classifier from the model file if it exists, otherwise train it and write the model file.
+    * A model file that was trained with a different config (see getClassifier()) gets retrained and replaced.
+    */
+   public static OCRClassifier getModelClassifier(String[] fonts) throws Exception {
+      if (!Props.has("CLASSIFIER_MODEL_FILE")) {
+         return getClassifier(fonts);
+      }
+
+      File modelFile = new File(Props.getString("CLASSIFIER_MODEL_FILE"));
+
+      if (modelFile.isFile()) {
+         try {
+            SystemUtils.memoryMark("Model Load BEGIN", System.err);
+            PLOVEClassifier classy = new PLOVEClassifier(modelFile, getTrainingCharacters(), fonts, getReducer());
+            SystemUtils.memoryMark("Model Load END", System.err);
+
+            return classy;
+         } catch (IOException ex) {
+            logger.warn("Retraining, the model file does not match the current training: " + modelFile);
+         }
+      }
+
+      PLOVEClassifier classy = getClassifier(fonts);
+      classy.saveModel(modelFile);
+
+      return classy;
+   }
+
+   public static PLOVEClassifier getClassifier(String[] fonts) throws Exception {
+      SystemUtils.memoryMark("Training BEGIN", System.err);
+
+      PLOVEClassifier classy = new PLOVEClassifier(getTrainingCharacters(), fonts, getReducer());
 
       SystemUtils.memoryMark("Training END", System.err);
 
       return classy;
    }
+
+   private static String getTrainingCharacters() {
+      // return Props.getString("HIRAGANA");
+      return Props.getString("KANA_FULL") + Props.getString("PUNCTUATION");
+      // return Props.getString("KYOIKU_FULL") + Props.getString("KANA_FULL") + Props.getString("PUNCTUATION");
+   }
+
+   private static FeatureVectorReducer getReducer() {
+      /*
+      return new NoReducer(PLOVE.getNumberOfFeatures());
+      */
+
+      return new KLTReducer(PLOVE.getNumberOfFeatures(), 400);
+      // return new KLTReducer(PLOVE.getNumberOfFeatures(), 1024);
+      // return new NoReducer(PLOVE.getNumberOfFeatures());
+   }
 }
@@ -0,0 +1,90 @@
+package com.eriqaugustine.ocr.drivers;
+
+import com.eriqaugustine.ocr.classifier.CharacterClassifier;
+import com.eriqaugustine.ocr.classifier.ClassificationCandidates;
+import com.eriqaugustine.ocr.classifier.PLOVEClassifier;
+import com.eriqaugustine.ocr.classifier.reduce.FeatureVectorReducer;
+import com.eriqaugustine.ocr.classifier.reduce.KLTReducer;
+import com.eriqaugustine.ocr.image.TextImage;
+import com.eriqaugustine.ocr.image.WrapImage;
+import com.eriqaugustine.ocr.plove.PLOVE;
+
+import com.eriqaugustine.ocr.utils.FontUtils;
+import com.eriqaugustine.ocr.utils.Props;
+
+/**
+ * Check how often the right character is in the top k candidates (VectorClassifier.classifyWithScores())
+ *  on the ClassifierTest set.
+ * A single ClassificationCandidates is reused for every character.
+ * Prints the candidates for every character that is not the top candidate.
+ * Optionally takes k (5 by default) and the number of KLT features (400 by default, like PLOVEClassifierTest).
+ */
+public class TopKClassifierTest extends ClassifierTest {
+   public static void main(String[] args) throws Exception {
+      int k = 5;
+      if (args.length > 0) {
+         k = Integer.parseInt(args[0]);
+      }
+
+      int numFeatures = 400;
+      if (args.length > 1) {
+         numFeatures = Integer.parseInt(args[1]);
+      }
+
+      TopKClassifierTest test = new TopKClassifierTest();
+      test.run(k, numFeatures);
+   }
+
+   private void run(int k, int numFeatures) throws Exception {
+      FeatureVectorReducer reduce = new KLTReducer(PLOVE.getNumberOfFeatures(), numFeatures);
+
+      CharacterClassifier classy =
+         new PLOVEClassifier(trainingCharacters,
+                             Props.getList("CLASSIFIER_TRAINING_FONTS").toArray(new String[0]),
+                             reduce);
+
+      FontUtils.registerLocalFonts();
+
+      // Same as ClassifierTest.
+      String characters = "あいうえおかきくけこさしすせそたちつてとなにぬねの" +
+                          "はひふへほまみむめもやわゆんよらりるれろ";
+
+      WrapImage baseImage = WrapImage.getImageFromFile("testImages/partHiragana.png");
+
+      ClassificationCandidates candidates = new ClassificationCandidates(k);
+
+      int count = 0;
+      int topHits = 0;
+      int topKHits = 0;
+
+      long startTime = System.currentTimeMillis();
+
+      for (WrapImage[] gridRow : TextImage.gridBreakup(baseImage)) {
+         for (WrapImage gridTextImage : gridRow) {
+            String expected = "" + characters.charAt(count);
+            classy.classifyWithScores(gridTextImage, candidates);
+
+            if (expected.equals(candidates.best())) {
+               topHits++;
+            } else {
+               System.out.println(String.format("Classify [%s]: %s", expected, candidates));
+            }
+
+            for (int rank = 0; rank < candidates.size(); rank++) {
+               if (expected.equals(candidates.getLabel(rank))) {
+                  topKHits++;
+                  break;
+               }
+            }
+
+            count++;
+         }
+      }
+
+      long totalTime = System.currentTimeMillis() - startTime;
+
+      System.out.println(String.format("%6.3f, %6.3f, PLOVE, KNN, %d, %d, top %d",
+                                       (double)topHits / count, (double)topKHits / count,
+                                       numFeatures, totalTime, k));
+   }
+}
@@ -0,0 +1,29 @@
+package com.eriqaugustine.ocr.features;
+
+/**
+ * A single kind of feature in a FeaturePipeline.
+ * Blocks only ever see the shared NormalizedCharacter, so all the preprocessing is done once
+ *  no matter how many blocks are in the pipeline.
+ *
+ * Blocks get used from many threads at once (see VectorClassifier.getAllFeatureValues()),
+ *  so any scratch space needs to be kept per thread.
+ */
+public interface FeatureBlock {
+   /**
+    * A short description of the block and its parameters.
+    * This goes into the cache keys for anything trained on the features.
+    */
+   public String getDescription();
+
+   /**
+    * The number of features this block gives for characters that are normalized to
+    *  |sideLength| x |sideLength|.
+    */
+   public int getNumberOfFeatures(int sideLength);
+
+   /**
+    * Put the features for |character| in |features| starting at |offset|.
+    * Empty characters should get all zeros.
+    */
+   public void extract(NormalizedCharacter character, double[] features, int offset);
+}
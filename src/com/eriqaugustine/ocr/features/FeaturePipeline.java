@@ -0,0 +1,145 @@
+package com.eriqaugustine.ocr.features;
+
+import com.eriqaugustine.ocr.image.PeripheralScanner;
+import com.eriqaugustine.ocr.image.WrapImage;
+import com.eriqaugustine.ocr.plove.PLOVE;
+
+import java.util.Arrays;
+
+/**
+ * Builds a single feature vector for a character out of several FeatureBlocks.
+ * The character is normalized once (copy, scale, scrub, discretize, find the peripheral points)
+ *  and then every block reads from that same NormalizedCharacter.
+ * The features from each block are concatenated in the order that the blocks were given.
+ *
+ * A pipeline is thread safe. Each thread gets its own NormalizedCharacter to reuse.
+ */
+public class FeaturePipeline {
+   /**
+    * The number of layers of peripheral points that get found.
+    * This is the same for PLOVE and PDC.
+    */
+   public static final int NUM_LAYERS = 3;
+
+   private final int sideLength;
+   private final int whiteThreshold;
+   private final int minBlobSize;
+
+   private final FeatureBlock[] blocks;
+   private final int[] offsets;
+   private final int numFeatures;
+
+   private final PeripheralScanner scanner;
+   private final ThreadLocal<NormalizedCharacter> characters;
+
+   /**
+    * Normalize the same way that PLOVE does.
+    */
+   public FeaturePipeline(FeatureBlock[] blocks) {
+      this(PLOVE.SCALE_SIZE, PLOVE.WHITE_THRESHOLD, PLOVE.MIN_BLOB_SIZE, blocks);
+   }
+
+   /**
+    * Characters will be scaled to |sideLength| x |sideLength| and then scrubbed
+    *  (a |minBlobSize| of zero will skip scrubbing) and discretized with |whiteThreshold|.
+    */
+   public FeaturePipeline(int sideLength, int whiteThreshold, int minBlobSize, FeatureBlock[] blocks) {
+      assert(sideLength > 0 && sideLength % 2 == 0);
+      assert(blocks.length > 0);
+
+      this.sideLength = sideLength;
+      this.whiteThreshold = whiteThreshold;
+      this.minBlobSize = minBlobSize;
+      this.blocks = Arrays.copyOf(blocks, blocks.length);
+
+      offsets = new int[blocks.length];
+      int count = 0;
+      for (int i = 0; i < blocks.length; i++) {
+         offsets[i] = count;
+         count += blocks[i].getNumberOfFeatures(sideLength);
+      }
+      numFeatures = count;
+
+      scanner = new PeripheralScanner(sideLength, NUM_LAYERS, true);
+      characters = new ThreadLocal<NormalizedCharacter>() {
+         protected NormalizedCharacter initialValue() {
+            return new NormalizedCharacter(scanner);
+         }
+      };
+   }
+
+   public int getSideLength() {
+      return sideLength;
+   }
+
+   public int getNumberOfFeatures() {
+      return numFeatures;
+   }
+
+   /**
+    * Everything that goes into the features: the normalization and each block.
+    * Use this in the cache keys for anything trained on the features.
+    */
+   public String getDescription() {
+      StringBuilder rtn = new StringBuilder();
+      rtn.append(String.format("side=%d, white=%d, blob=%d: ", sideLength, whiteThreshold, minBlobSize));
+
+      for (int i = 0; i < blocks.length; i++) {
+         if (i > 0) {
+            rtn.append(" + ");
+         }
+         rtn.append(blocks[i].getDescription());
+      }
+
+      return rtn.toString();
+   }
+
+   public double[] extract(WrapImage image) {
+      double[] rtn = new double[numFeatures];
+      extract(image, rtn);
+      return rtn;
+   }
+
+   /**
+    * Normalize |image| and put all the features in |features|.
+    * |image| must be already be binary.
+    */
+   public void extract(WrapImage image, double[] features) {
+      extract(normalize(image), features);
+   }
+
+   /**
+    * Put all the features for an already normalized character in |features|.
+    */
+   public void extract(NormalizedCharacter character, double[] features) {
+      assert(character.getSideLength() == sideLength);
+      assert(features.length == numFeatures);
+
+      for (int i = 0; i < blocks.length; i++) {
+         blocks[i].extract(character, features, offsets[i]);
+      }
+   }
+
+   /**
+    * Do all the shared preprocessing for an image.
+    * The result belongs to the calling thread and will be reused on the next call.
+    */
+   public NormalizedCharacter normalize(WrapImage image) {
+      NormalizedCharacter character = characters.get();
+
+      if (image.isEmpty()) {
+         character.set(null);
+         return character;
+      }
+
+      image = image.copy();
+      image.scale(sideLength, sideLength);
+
+      if (minBlobSize > 0) {
+         image.scrub(whiteThreshold, minBlobSize);
+      }
+
+      character.set(image.getDiscretePixels(whiteThreshold));
+      return character;
+   }
+}
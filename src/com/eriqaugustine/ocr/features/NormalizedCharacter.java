@@ -0,0 +1,66 @@
+package com.eriqaugustine.ocr.features;
+
+import com.eriqaugustine.ocr.image.PeripheralScanner;
+
+/**
+ * The shared result of preprocessing a character for a FeaturePipeline:
+ *  the discrete pixels after scaling and scrubbing and their peripheral points.
+ * Instances are reused by the pipeline (one per thread), so blocks should not hold onto them.
+ */
+public class NormalizedCharacter {
+   private final PeripheralScanner scanner;
+
+   // [layer][direction][line] flattened, see PeripheralScanner.
+   private final int[] peripherals;
+
+   private boolean[] pixels;
+
+   NormalizedCharacter(PeripheralScanner scanner) {
+      this.scanner = scanner;
+      peripherals = new int[scanner.getNumPoints()];
+      pixels = null;
+   }
+
+   /**
+    * Take a new set of pixels and find the peripheral points.
+    * Null pixels means an empty character.
+    */
+   void set(boolean[] discretePixels) {
+      pixels = discretePixels;
+
+      if (pixels != null) {
+         scanner.scan(pixels, peripherals);
+      }
+   }
+
+   /**
+    * Empty images (which sometimes make it into the training set) have no pixels or points.
+    */
+   public boolean isEmpty() {
+      return pixels == null;
+   }
+
+   public int getSideLength() {
+      return scanner.getSideLength();
+   }
+
+   public int getNumLayers() {
+      return scanner.getNumLayers();
+   }
+
+   /**
+    * The getSideLength() x getSideLength() discrete pixels.
+    * Do not modify.
+    */
+   public boolean[] getPixels() {
+      return pixels;
+   }
+
+   /**
+    * The peripheral points (including diagonals) in PeripheralScanner order.
+    * Do not modify.
+    */
+   public int[] getPeripherals() {
+      return peripherals;
+   }
+}
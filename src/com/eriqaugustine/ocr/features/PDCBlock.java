@@ -0,0 +1,61 @@
+package com.eriqaugustine.ocr.features;
+
+import com.eriqaugustine.ocr.pdc.PDCExtractor;
+
+import java.util.Arrays;
+
+/**
+ * PDC features (see PDCExtractor).
+ * Note that PDC.pdc() does not scrub, so these will only match it with a pipeline that does not
+ *  scrub and uses the default white threshold.
+ */
+public class PDCBlock implements FeatureBlock {
+   private final boolean combineDirections;
+   private final int groupSize;
+
+   private final ThreadLocal<PDCExtractor> extractors;
+
+   /**
+    * See PDCExtractor for |combineDirections| and |groupSize|.
+    */
+   public PDCBlock(boolean combineDirections, int groupSize) {
+      assert(groupSize > 0);
+
+      this.combineDirections = combineDirections;
+      this.groupSize = groupSize;
+
+      extractors = new ThreadLocal<PDCExtractor>();
+   }
+
+   public String getDescription() {
+      return String.format("pdc(combine_directions=%s, group_size=%d)", combineDirections, groupSize);
+   }
+
+   public int getNumberOfFeatures(int sideLength) {
+      return getExtractor(sideLength).getNumberOfFeatures();
+   }
+
+   public void extract(NormalizedCharacter character, double[] features, int offset) {
+      PDCExtractor extractor = getExtractor(character.getSideLength());
+
+      if (character.isEmpty()) {
+         Arrays.fill(features, offset, offset + extractor.getNumberOfFeatures(), 0);
+         return;
+      }
+
+      // The DCs only need the points, not the pixels.
+      assert(extractor.getPeripheralScanner().getNumLayers() == character.getNumLayers());
+      extractor.extract(character.getPeripherals(), features, offset);
+   }
+
+   private PDCExtractor getExtractor(int sideLength) {
+      PDCExtractor extractor = extractors.get();
+
+      if (extractor == null || extractor.getSideLength() != sideLength) {
+         extractor = new PDCExtractor(sideLength, combineDirections, groupSize);
+         extractors.set(extractor);
+      }
+
+      return extractor;
+   }
+}
@@ -0,0 +1,48 @@
+package com.eriqaugustine.ocr.features;
+
+import com.eriqaugustine.ocr.plove.PloveExtractor;
+
+import java.util.Arrays;
+
+/**
+ * P-LOVE features (see PloveExtractor).
+ * With the default FeaturePipeline normalization, these are exactly PLOVE.plove().
+ */
+public class PloveBlock implements FeatureBlock {
+   private final ThreadLocal<PloveExtractor> extractors;
+
+   public PloveBlock() {
+      extractors = new ThreadLocal<PloveExtractor>();
+   }
+
+   public String getDescription() {
+      return "plove";
+   }
+
+   public int getNumberOfFeatures(int sideLength) {
+      return getExtractor(sideLength).getNumberOfFeatures();
+   }
+
+   public void extract(NormalizedCharacter character, double[] features, int offset) {
+      PloveExtractor extractor = getExtractor(character.getSideLength());
+
+      if (character.isEmpty()) {
+         Arrays.fill(features, offset, offset + extractor.getNumberOfFeatures(), 0);
+         return;
+      }
+
+      assert(extractor.getPeripheralScanner().getNumLayers() == character.getNumLayers());
+      extractor.extract(character.getPixels(), character.getPeripherals(), features, offset);
+   }
+
+   private PloveExtractor getExtractor(int sideLength) {
+      PloveExtractor extractor = extractors.get();
+
+      if (extractor == null || extractor.getSideLength() != sideLength) {
+         extractor = new PloveExtractor(sideLength);
+         extractors.set(extractor);
+      }
+
+      return extractor;
+   }
+}
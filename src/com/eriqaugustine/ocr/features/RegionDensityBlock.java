@@ -0,0 +1,63 @@
+package com.eriqaugustine.ocr.features;
+
+/**
+ * The density of each region when the character is split up into a
+ *  |regionsPerSide| x |regionsPerSide| grid (like ImageUtils.regionDensities()).
+ * Density is the number of dark pixels over the size of the region.
+ * Just like ImageUtils.regionDensities(), pixels on the right and bottom edges that do not fit
+ *  into an even region are not counted.
+ */
+public class RegionDensityBlock implements FeatureBlock {
+   private final int regionsPerSide;
+
+   public RegionDensityBlock(int regionsPerSide) {
+      assert(regionsPerSide > 0);
+
+      this.regionsPerSide = regionsPerSide;
+   }
+
+   public String getDescription() {
+      return String.format("densities(regions_per_side=%d)", regionsPerSide);
+   }
+
+   public int getNumberOfFeatures(int sideLength) {
+      assert(sideLength >= regionsPerSide);
+      return regionsPerSide * regionsPerSide;
+   }
+
+   public void extract(NormalizedCharacter character, double[] features, int offset) {
+      int numFeatures = regionsPerSide * regionsPerSide;
+
+      if (character.isEmpty()) {
+         for (int i = 0; i < numFeatures; i++) {
+            features[offset + i] = 0;
+         }
+         return;
+      }
+
+      boolean[] pixels = character.getPixels();
+      int sideLength = character.getSideLength();
+      int regionSize = sideLength / regionsPerSide;
+
+      for (int i = 0; i < numFeatures; i++) {
+         features[offset + i] = 0;
+      }
+
+      // Count each row of the covered area into its regions, then divide at the end.
+      for (int row = 0; row < regionSize * regionsPerSide; row++) {
+         int regionBase = offset + (row / regionSize) * regionsPerSide;
+         int index = row * sideLength;
+
+         for (int col = 0; col < regionSize * regionsPerSide; col++) {
+            if (pixels[index + col]) {
+               features[regionBase + col / regionSize]++;
+            }
+         }
+      }
+
+      double regionArea = regionSize * regionSize;
+      for (int i = 0; i < numFeatures; i++) {
+         features[offset + i] /= regionArea;
+      }
+   }
+}
@@ -0,0 +1,5 @@
+/**
+ * Code that builds feature vectors for characters out of several kinds of features
+ *  (PLOVE, PDC, densities, ...) that all share the same preprocessing.
+ */
+package com.eriqaugustine.ocr.features;
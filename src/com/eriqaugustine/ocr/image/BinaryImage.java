@@ -0,0 +1,181 @@
+package com.eriqaugustine.ocr.image;
+
+/**
+ * A black and white image where every pixel is a single bit.
+ * This is the packed version of the discrete pixels that WrapImage gives out
+ * (true/set is a dark pixel, false/clear is white).
+ *
+ * Every row starts on a new word so that row operations can work a word (64 pixels) at a time.
+ * Bit (col % 64) of word (col / 64) in a row is the pixel at that col.
+ * The padding bits at the end of a row are always clear.
+ */
+public class BinaryImage {
+   private static final int WORD_SIZE = 64;
+
+   private final int imageWidth;
+   private final int imageHeight;
+   private final int wordsPerRow;
+
+   private final long[] bits;
+
+   /**
+    * Get an image that is all white.
+    */
+   public BinaryImage(int width, int height) {
+      assert(width >= 0 && height >= 0);
+
+      imageWidth = width;
+      imageHeight = height;
+      wordsPerRow = (width + WORD_SIZE - 1) / WORD_SIZE;
+
+      bits = new long[wordsPerRow * height];
+   }
+
+   public static BinaryImage fromDiscrete(boolean[] discretePixels, int width) {
+      assert(width > 0 || discretePixels.length == 0);
+
+      int height = width == 0 ? 0 : discretePixels.length / width;
+      BinaryImage rtn = new BinaryImage(width, height);
+
+      for (int row = 0; row < height; row++) {
+         int rowOffset = row * width;
+         int wordOffset = row * rtn.wordsPerRow;
+
+         for (int col = 0; col < width; col++) {
+            if (discretePixels[rowOffset + col]) {
+               rtn.bits[wordOffset + (col >>> 6)] |= 1L << col;
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Same discretization as WrapImage.getDiscretePixels(),
+    * a pixel is set if its intensity is at most |threshold|.
+    */
+   public static BinaryImage fromIntensities(byte[] intensities, int width, int threshold) {
+      assert(width > 0 || intensities.length == 0);
+
+      int height = width == 0 ? 0 : intensities.length / width;
+      BinaryImage rtn = new BinaryImage(width, height);
+
+      for (int row = 0; row < height; row++) {
+         int rowOffset = row * width;
+         int wordOffset = row * rtn.wordsPerRow;
+
+         for (int col = 0; col < width; col++) {
+            if ((0xFF & intensities[rowOffset + col]) <= threshold) {
+               rtn.bits[wordOffset + (col >>> 6)] |= 1L << col;
+            }
+         }
+      }
+
+      return rtn;
+   }
+
+   public int width() {
+      return imageWidth;
+   }
+
+   public int height() {
+      return imageHeight;
+   }
+
+   public boolean get(int row, int col) {
+      return (bits[row * wordsPerRow + (col >>> 6)] & (1L << col)) != 0;
+   }
+
+   public void set(int row, int col, boolean value) {
+      if (value) {
+         bits[row * wordsPerRow + (col >>> 6)] |= 1L << col;
+      } else {
+         bits[row * wordsPerRow + (col >>> 6)] &= ~(1L << col);
+      }
+   }
+
+   /**
+    * The number of set pixels in the entire image.
+    */
+   public int count() {
+      int rtn = 0;
+
+      for (int i = 0; i < bits.length; i++) {
+         rtn += Long.bitCount(bits[i]);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The number of set pixels in a region.
+    */
+   public int count(int startRow, int numRows, int startCol, int numCols) {
+      if (numRows <= 0 || numCols <= 0) {
+         return 0;
+      }
+
+      int endCol = startCol + numCols - 1;
+      int startWord = startCol >>> 6;
+      int endWord = endCol >>> 6;
+
+      long startMask = -1L << startCol;
+      long endMask = -1L >>> (WORD_SIZE - 1 - (endCol & (WORD_SIZE - 1)));
+
+      int rtn = 0;
+
+      for (int row = startRow; row < startRow + numRows; row++) {
+         int wordOffset = row * wordsPerRow;
+
+         if (startWord == endWord) {
+            rtn += Long.bitCount(bits[wordOffset + startWord] & startMask & endMask);
+            continue;
+         }
+
+         rtn += Long.bitCount(bits[wordOffset + startWord] & startMask);
+         for (int word = startWord + 1; word < endWord; word++) {
+            rtn += Long.bitCount(bits[wordOffset + word]);
+         }
+         rtn += Long.bitCount(bits[wordOffset + endWord] & endMask);
+      }
+
+      return rtn;
+   }
+
+   public boolean rowHasContent(int row) {
+      int wordOffset = row * wordsPerRow;
+
+      for (int word = 0; word < wordsPerRow; word++) {
+         if (bits[wordOffset + word] != 0) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Get a single row image where a pixel is set if any pixel in its column is set.
+    */
+   public BinaryImage columnProjection() {
+      return columnProjection(0, imageHeight);
+   }
+
+   /**
+    * columnProjection() for just the rows in [|startRow|, |startRow| + |numRows|).
+    */
+   public BinaryImage columnProjection(int startRow, int numRows) {
+      BinaryImage rtn = new BinaryImage(imageWidth, imageHeight == 0 ? 0 : 1);
+
+      for (int row = startRow; row < startRow + numRows; row++) {
+         int wordOffset = row * wordsPerRow;
+
+         for (int word = 0; word < wordsPerRow; word++) {
+            rtn.bits[word] |= bits[wordOffset + word];
+         }
+      }
+
+      return rtn;
+   }
+}
@@ -3,23 +3,21 @@ package com.eriqaugustine.ocr.image;
 import com.eriqaugustine.ocr.utils.MathUtils;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Stack;
 
 /**
  * A Blob is a collection of connected pixels.
  * This usually means a body of adjacent black pixels.
+ *
+ * The points are held as horizontal runs for every row (built during labeling,
+ * see ConnectedComponents.getRuns()).
+ * All the shape queries (outlines, boundaries, etc) are answered from the runs and are memoized.
+ * The memoized results are shared, so callers must not modify them.
  */
 public class Blob {
-   // The assumed percentage of the image that is consumed by a single blob.
-   // Will be used in the initial size of the blob's set.
-   public static final double BLOB_COVERAGE = 0.05;
-
    // The necessary percentage of points on an edge during adjustments.
    public static final double DEFAULT_SIDE_COVERAGE = 0.10;
 
@@ -32,10 +30,20 @@ public class Blob {
       new int[]{0, -1},
    };
 
+   private static final int[] EMPTY_RUNS = new int[0];
+
    private static int nextId = 0;
 
    private int id;
-   private Set<Integer> points;
+
+   private final ConnectedComponents components;
+   private final int label;
+
+   // Indexed by (row - runsMinRow): [startCol, endCol, startCol, endCol, ...].
+   private final int[][] runs;
+   private final int runsMinRow;
+
+   private int numPoints;
 
    private List<Blob> children;
    private Blob parent;
@@ -48,49 +56,53 @@ public class Blob {
    private final int imageWidth;
    private final int imageLength;
 
-   public Blob(int imageLength, int imageWidth) {
-      this(imageLength, imageWidth, BLOB_COVERAGE);
-   }
-
-   public Blob(int imageLength, int imageWidth, double blobCoverage) {
-      assert(blobCoverage <= 1);
+   // Memoized shape information.
+   // Everything here must be cleared if the points change.
+   private int[][] cacheOuterColumns;
+   private int[][] cacheOuterRows;
+   private Map<Integer, int[]> cacheBoundaries;
+   private Map<Integer, List<int[]>> cacheOutline;
+   private int[][] cacheApproximateOutline;
 
+   /**
+    * The blob for component |label| in |components|.
+    */
+   public Blob(ConnectedComponents components, int label) {
       id = nextId++;
-      points = new HashSet<Integer>((int)(imageLength * blobCoverage));
 
-      minRow = MathUtils.indexToRow(imageLength - 1, imageWidth);
-      maxRow = 0;
-      minCol = imageWidth - 1;
-      maxCol = 0;
+      this.components = components;
+      this.label = label;
 
-      this.imageWidth = imageWidth;
-      this.imageLength = imageLength;
+      runs = components.getRuns(label);
+      runsMinRow = components.minRow(label);
 
-      children = new ArrayList<Blob>();
-      parent = null;
-   }
+      numPoints = components.area(label);
 
-   public void addPoint(int index) {
-      points.add(index);
+      minRow = components.minRow(label);
+      maxRow = components.maxRow(label);
+      minCol = components.minCol(label);
+      maxCol = components.maxCol(label);
 
-      int row = MathUtils.indexToRow(index, imageWidth);
-      int col = MathUtils.indexToCol(index, imageWidth);
+      imageWidth = components.width();
+      imageLength = components.width() * components.height();
 
-      if (row < minRow) {
-         minRow = row;
-      }
+      children = new ArrayList<Blob>();
+      parent = null;
 
-      if (col < minCol) {
-         minCol = col;
-      }
+      clearShapeCache();
+   }
 
-      if (row > maxRow) {
-         maxRow = row;
-      }
+   /**
+    * Get all the blobs in a labeling (in label order).
+    */
+   public static List<Blob> getBlobs(ConnectedComponents components) {
+      List<Blob> rtn = new ArrayList<Blob>(components.numComponents());
 
-      if (col > maxCol) {
-         maxCol = col;
+      for (int i = 0; i < components.numComponents(); i++) {
+         rtn.add(new Blob(components, i));
       }
+
+      return rtn;
    }
 
    public void addChild(Blob kid) {
@@ -132,6 +144,7 @@ public class Blob {
     * As a result, blobs may not be disjoint.
     */
    public void geometryAdjust(double sideCoverage) {
+      clearShapeCache();
       adjustBoundaries(sideCoverage);
    }
 
@@ -220,52 +233,48 @@ public class Blob {
       assert(firstRow == lastRow || firstCol == lastCol);
 
       int length = (lastCol - firstCol) + (lastRow - firstRow) + 1;
-      List<Integer> edgePoints = new ArrayList<Integer>(length);
+      int numEdgePoints = 0;
 
       for (int row = firstRow; row <= lastRow; row++) {
          for (int col = firstCol; col <= lastCol; col++) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-
-            if (points.contains(index)) {
-               edgePoints.add(index);
+            if (hasPoint(row, col)) {
+               numEdgePoints++;
             }
          }
       }
 
-      if (edgePoints.size() / (double)length >= sideCoverage) {
+      if (numEdgePoints / (double)length >= sideCoverage) {
          return false;
-      } else {
-         for (Integer edgePoint : edgePoints) {
-            points.remove(edgePoint);
-         }
       }
 
+      for (int row = firstRow; row <= lastRow; row++) {
+         removeRange(row, firstCol, lastCol);
+      }
+      numPoints -= numEdgePoints;
+
       return true;
    }
 
    /**
     * Get the boundaries of the blob.
     * The boundaries are defined by a map: {row : [start col, end col]}.
-    * Note: This is not a getter, this requires computation.
+    * Only rows that have points are included.
     */
    public Map<Integer, int[]> getBoundaries() {
-      Map<Integer, int[]> boundaries = new HashMap<Integer, int[]>();
-
-      for (Integer index : points) {
-         int row = MathUtils.indexToRow(index, imageWidth);
-         int col = MathUtils.indexToCol(index, imageWidth);
-
-         if (!boundaries.containsKey(row)) {
-            int[] bounds = {col, col};
-            boundaries.put(row, bounds);
-         } else if (col < boundaries.get(row)[0]) {
-            boundaries.get(row)[0] = col;
-         } else if (col > boundaries.get(row)[1]) {
-            boundaries.get(row)[1] = col;
+      if (cacheBoundaries == null) {
+         Map<Integer, int[]> boundaries = new HashMap<Integer, int[]>();
+
+         for (int row = minRow; row <= maxRow; row++) {
+            int[] rowRuns = getRowRuns(row);
+            if (rowRuns.length > 0) {
+               boundaries.put(row, new int[]{rowRuns[0], rowRuns[rowRuns.length - 1]});
+            }
          }
+
+         cacheBoundaries = boundaries;
       }
 
-      return boundaries;
+      return cacheBoundaries;
    }
 
    public int getBoundingWidth() {
@@ -375,64 +384,84 @@ public class Blob {
 
    /**
     * Get the outmost column at every row.
-    * Get these by just scanning each row LTR and RTL.
+    * Rows without any points get the full bounding width.
     */
    public int[][] getOuterColumns() {
-      int[][] cols = new int[getBoundingHeight()][];
-
-      for (int row = minRow; row <= maxRow; row++) {
-         int firstCol = minCol;
-         int lastCol = maxCol;
+      if (cacheOuterColumns == null) {
+         int[][] cols = new int[getBoundingHeight()][];
 
-         for (int col = minCol; col <= maxCol; col++) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               firstCol = col;
-               break;
-            }
-         }
+         for (int row = minRow; row <= maxRow; row++) {
+            int[] rowRuns = getRowRuns(row);
 
-         for (int col = maxCol; col >= minCol; col--) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               lastCol = col;
-               break;
+            if (rowRuns.length == 0) {
+               cols[row - minRow] = new int[]{minCol, maxCol};
+            } else {
+               cols[row - minRow] = new int[]{rowRuns[0], rowRuns[rowRuns.length - 1]};
             }
          }
 
-         cols[row - minRow] = new int[]{firstCol, lastCol};
+         cacheOuterColumns = cols;
       }
 
-      return cols;
+      return cacheOuterColumns;
    }
 
+   /**
+    * Get the outmost row at every column.
+    * Columns without any points get the full bounding height.
+    */
    public int[][] getOuterRows() {
-      int[][] rows = new int[getBoundingWidth()][];
-
-      for (int col = minCol; col <= maxCol; col++) {
-         int firstRow = minRow;
-         int lastRow = maxRow;
+      if (cacheOuterRows == null) {
+         int width = getBoundingWidth();
+         int[][] rows = new int[width][];
 
+         // Go down the rows and let every run claim the columns it covers.
+         int unclaimed = width;
          for (int row = minRow; row <= maxRow; row++) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               firstRow = row;
-               break;
+            int[] rowRuns = getRowRuns(row);
+
+            for (int i = 0; i < rowRuns.length; i += 2) {
+               int start = Math.max(minCol, rowRuns[i]);
+               int end = Math.min(maxCol, rowRuns[i + 1]);
+
+               for (int col = start; col <= end; col++) {
+                  if (rows[col - minCol] == null) {
+                     rows[col - minCol] = new int[]{row, maxRow};
+                     unclaimed--;
+                  }
+               }
+            }
+         }
+
+         // Columns that never got claimed.
+         for (int i = 0; i < width && unclaimed > 0; i++) {
+            if (rows[i] == null) {
+               rows[i] = new int[]{minRow, maxRow};
             }
          }
 
+         // And the same thing going up.
+         boolean[] claimed = new boolean[width];
          for (int row = maxRow; row >= minRow; row--) {
-            int index = MathUtils.rowColToIndex(row, col, imageWidth);
-            if (points.contains(index)) {
-               lastRow = row;
-               break;
+            int[] rowRuns = getRowRuns(row);
+
+            for (int i = 0; i < rowRuns.length; i += 2) {
+               int start = Math.max(minCol, rowRuns[i]);
+               int end = Math.min(maxCol, rowRuns[i + 1]);
+
+               for (int col = start; col <= end; col++) {
+                  if (!claimed[col - minCol]) {
+                     rows[col - minCol][1] = row;
+                     claimed[col - minCol] = true;
+                  }
+               }
             }
          }
 
-         rows[col - minCol] = new int[]{firstRow, lastRow};
+         cacheOuterRows = rows;
       }
 
-      return rows;
+      return cacheOuterRows;
    }
 
    /**
@@ -441,6 +470,10 @@ public class Blob {
     * HACK(eriq): Cleanup this hackery (magic numbers and such).
     */
    public int[][] approximateOutline() {
+      if (cacheApproximateOutline != null) {
+         return cacheApproximateOutline;
+      }
+
       int[][] outerCols = getOuterColumns();
       int[][] outerRows = getOuterRows();
 
@@ -462,134 +495,31 @@ public class Blob {
          rtn[3][i] = MathUtils.rowColToIndex(minRow + i, outerCols[i][1], imageWidth);
       }
 
+      cacheApproximateOutline = rtn;
       return rtn;
    }
 
    /**
     * Get the outline of this blob.
-    * To get the outline, take the first point on the minRow.
-    * Then look at the adjacent points.
-    * If a point touches a spot that is not in the blob, then it is part of the outline.
+    * For every row, the outline is the span from the first point to the last point.
     * @return {row: [[begin, end], ... (ordered)]}
     *  ie. "For this row, the blob begins here and ends here,
     *  then starts again here and so on."
     */
    public Map<Integer, List<int[]>> getOutline() {
-      Map<Integer, List<Integer>> border = new HashMap<Integer, List<Integer>>();
-      for (int row = minRow; row <= maxRow; row++) {
-         border.put(new Integer(row), new ArrayList<Integer>());
-      }
-
-      Set<Integer> visited = new HashSet<Integer>();
-      Stack<Integer> candidates = new Stack<Integer>();
-
-      for (int col = minCol; col <= maxCol; col++) {
-         int index = MathUtils.rowColToIndex(minRow, col, imageWidth);
-         if (points.contains(new Integer(index))) {
-            candidates.push(new Integer(index));
-            break;
-         }
-      }
-
-      // The offsets for possible candidates.
-      // [[row, col], ...]
-      int[][] candidateOrientations = new int[][]{
-         new int[]{-1, 0},
-         new int[]{-1, 1},
-         new int[]{0, 1},
-         new int[]{1, 1},
-         new int[]{1, 0},
-         new int[]{1, -1},
-         new int[]{0, -1},
-         new int[]{-1, -1},
-      };
-
-      // Eventhough candidates can come from every 45 angle,
-      // we should only look at the cardinal direction for the border.
-      // This is to prevent two points right next to eachother from getting
-      // promoted to a border (one candidate was a diagnal one).
-      int[][] borderOrientations = new int[][]{
-         new int[]{-1, 0},
-         new int[]{0, 1},
-         new int[]{1, 0},
-         new int[]{0, -1},
-      };
-
-      while (!candidates.empty()) {
-         int candidate = candidates.pop().intValue();
-
-         // A double add can happen if a point is in the stack, but a neighbor
-         //  add it to the stack before getting checked.
-         if (visited.contains(candidate)) {
-            continue;
-         }
-
-         visited.add(candidate);
-
-         int row = MathUtils.indexToRow(candidate, imageWidth);
-         int col = MathUtils.indexToCol(candidate, imageWidth);
-
-         for (int[] offsets : borderOrientations) {
-            int offsetRow = row + offsets[0];
-            int offsetCol = col + offsets[1];
-
-            int index = MathUtils.rowColToIndex(offsetRow,
-                                                offsetCol,
-                                                imageWidth);
-            if (!points.contains(index)) {
-               border.get(row).add(col);
+      if (cacheOutline == null) {
+         Map<Integer, List<int[]>> outline = new HashMap<Integer, List<int[]>>();
 
-               for (int[] candidateOffsets : candidateOrientations) {
-                  int candidateRow = row + candidateOffsets[0];
-                  int candidateCol = col + candidateOffsets[1];
-
-                  int candidateIndex =
-                        MathUtils.rowColToIndex(candidateRow,
-                                                candidateCol,
-                                                imageWidth);
-
-                  if (!visited.contains(candidateIndex) &&
-                      points.contains(candidateIndex)) {
-                     candidates.push(candidateIndex);
-                  }
-               }
-
-               break;
-            }
+         for (Map.Entry<Integer, int[]> entry : getBoundaries().entrySet()) {
+            List<int[]> ranges = new ArrayList<int[]>(1);
+            ranges.add(entry.getValue());
+            outline.put(entry.getKey(), ranges);
          }
-      }
 
-      return collapseBorderPoints(border);
-   }
-
-   /**
-    * Collapse border to be a list of ranges that represent the blob's border.
-    * See getOutline()'s comment.
-    * Right now, |border| is: {row: [col, ... (unordered)]}.
-    * It needs to be: {row: [[begin, end], ... (ordered)]}.
-    * WARNING: The values in |border| will get changed.
-    */
-   private Map<Integer, List<int[]>> collapseBorderPoints(Map<Integer, List<Integer>> border) {
-      Map<Integer, List<int[]>> rtn = new HashMap<Integer, List<int[]>>();
-
-      for (Map.Entry<Integer, List<Integer>> entry : border.entrySet()) {
-         List<Integer> sortedCols = entry.getValue();
-
-         if (sortedCols.size() == 0) {
-            continue;
-         }
-
-         Collections.sort(sortedCols);
-
-         List<int[]> ranges = new ArrayList<int[]>();
-
-         ranges.add(new int[]{sortedCols.get(0),
-                              sortedCols.get(sortedCols.size() - 1)});
-
-         rtn.put(entry.getKey(), ranges);
+         cacheOutline = outline;
       }
 
-      return rtn;
+      return cacheOutline;
    }
 
    /**
@@ -609,7 +539,7 @@ public class Blob {
    }
 
    public int size(boolean includeKids) {
-      int size = points.size();
+      int size = numPoints;
 
       if (includeKids) {
          for (Blob kid : children) {
@@ -628,12 +558,36 @@ public class Blob {
       return id;
    }
 
-   public Set<Integer> getPoints() {
-      return points;
+   /**
+    * The component label for this blob.
+    */
+   public int getLabel() {
+      return label;
+   }
+
+   public ConnectedComponents getComponents() {
+      return components;
    }
 
    public boolean contains(int index) {
-      return points.contains(new Integer(index));
+      if (index < 0 || index >= imageLength) {
+         return false;
+      }
+
+      return hasPoint(MathUtils.indexToRow(index, imageWidth),
+                      MathUtils.indexToCol(index, imageWidth));
+   }
+
+   /**
+    * Get the runs ([startCol, endCol, ...]) for a row.
+    * Rows outside of the blob have no runs.
+    */
+   public int[] getRowRuns(int row) {
+      if (row < runsMinRow || row >= runsMinRow + runs.length) {
+         return EMPTY_RUNS;
+      }
+
+      return runs[row - runsMinRow];
    }
 
    /**
@@ -641,8 +595,11 @@ public class Blob {
     * -1 if there are no points.
     */
    public int getSinglePoint() {
-      for (Integer point : points) {
-         return point.intValue();
+      for (int row = minRow; row <= maxRow; row++) {
+         int[] rowRuns = getRowRuns(row);
+         if (rowRuns.length > 0) {
+            return MathUtils.rowColToIndex(row, rowRuns[0], imageWidth);
+         }
       }
 
       return -1;
@@ -653,10 +610,62 @@ public class Blob {
     * (the blob the surrounds the initial borders of the image).
     */
    public boolean isBorderBlob() {
-      return points.contains(0) &&
-             points.contains(imageLength - 1) &&
-             points.contains(imageWidth - 1) &&
-             points.contains(imageLength - imageWidth + 1);
+      return contains(0) &&
+             contains(imageLength - 1) &&
+             contains(imageWidth - 1) &&
+             contains(imageLength - imageWidth + 1);
+   }
+
+   private boolean hasPoint(int row, int col) {
+      int[] rowRuns = getRowRuns(row);
+
+      for (int i = 0; i < rowRuns.length; i += 2) {
+         if (col < rowRuns[i]) {
+            return false;
+         }
+
+         if (col <= rowRuns[i + 1]) {
+            return true;
+         }
+      }
+
+      return false;
+   }
+
+   /**
+    * Drop all the points in [firstCol, lastCol] on |row|.
+    */
+   private void removeRange(int row, int firstCol, int lastCol) {
+      int[] rowRuns = getRowRuns(row);
+      if (rowRuns.length == 0) {
+         return;
+      }
+
+      // At most one run can get split in two.
+      int[] newRuns = new int[rowRuns.length + 2];
+      int count = 0;
+
+      for (int i = 0; i < rowRuns.length; i += 2) {
+         if (rowRuns[i] < firstCol) {
+            newRuns[count++] = rowRuns[i];
+            newRuns[count++] = Math.min(rowRuns[i + 1], firstCol - 1);
+         }
+
+         if (rowRuns[i + 1] > lastCol) {
+            newRuns[count++] = Math.max(rowRuns[i], lastCol + 1);
+            newRuns[count++] = rowRuns[i + 1];
+         }
+      }
+
+      runs[row - runsMinRow] = Arrays.copyOf(newRuns, count);
+   }
+
+   private void clearShapeCache() {
+      cacheOuterColumns = null;
+      cacheOuterRows = null;
+      cacheBoundaries = null;
+      cacheOutline = null;
+      cacheApproximateOutline = null;
    }
 
    public int hashCode() {
@@ -0,0 +1,91 @@
+package com.eriqaugustine.ocr.image;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A spatial index over the bounding boxes of blobs.
+ * Answers "which blobs have a bounding box that is inside of this bounding box"
+ * without looking at every blob.
+ *
+ * The blobs are kept sorted by their min row.
+ * Any box that is inside of another box must start on one of that box's rows,
+ * so a query only needs to sweep the (contiguous) run of blobs that start between its min and max row.
+ * Index the small boxes and query with the large ones:
+ * a large query box only costs the blobs that start inside of it, and nothing is stored per cell.
+ */
+public class BoundingBoxIndex {
+   private final List<Blob> blobs;
+
+   // Indexes into |blobs|, sorted by min row (and then index).
+   private final int[] order;
+   // The min row of each blob in |order|.
+   private final int[] minRows;
+
+   public BoundingBoxIndex(List<Blob> blobs) {
+      this.blobs = new ArrayList<Blob>(blobs);
+
+      // Sort on (min row, index) packed into a long.
+      long[] keys = new long[this.blobs.size()];
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = ((long)this.blobs.get(i).getMinRow() << 32) | i;
+      }
+      Arrays.sort(keys);
+
+      order = new int[keys.length];
+      minRows = new int[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+         order[i] = (int)keys[i];
+         minRows[i] = (int)(keys[i] >>> 32);
+      }
+   }
+
+   public int size() {
+      return blobs.size();
+   }
+
+   public Blob get(int index) {
+      return blobs.get(index);
+   }
+
+   /**
+    * Get the indexes (into the list given to the index) of all the indexed blobs
+    *  whose bounding box is inside of the bounding box of |outer| (see Blob.contains(Blob)).
+    * The indexes come back sorted by the min row of their blob.
+    */
+   public int[] getContainedIndexes(Blob outer) {
+      int start = lowerBound(outer.getMinRow());
+      int end = lowerBound(outer.getMaxRow() + 1);
+
+      int[] rtn = new int[end - start];
+      int count = 0;
+
+      for (int i = start; i < end; i++) {
+         if (outer.contains(blobs.get(order[i]))) {
+            rtn[count++] = order[i];
+         }
+      }
+
+      return count == rtn.length ? rtn : Arrays.copyOf(rtn, count);
+   }
+
+   /**
+    * The first position in |order| with a min row of at least |row|.
+    */
+   private int lowerBound(int row) {
+      int low = 0;
+      int high = minRows.length;
+
+      while (low < high) {
+         int mid = (low + high) >>> 1;
+         if (minRows[mid] < row) {
+            low = mid + 1;
+         } else {
+            high = mid;
+         }
+      }
+
+      return low;
+   }
+}
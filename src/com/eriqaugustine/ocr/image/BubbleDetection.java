@@ -1,20 +1,18 @@
 package com.eriqaugustine.ocr.image;
 
-import static com.eriqaugustine.ocr.image.WrapImage.Pixel;
 import com.eriqaugustine.ocr.math.BinaryConfusionMatrix;
 import com.eriqaugustine.ocr.utils.FileUtils;
 import com.eriqaugustine.ocr.utils.MathUtils;
 
 import java.awt.Color;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 
 /**
@@ -128,33 +126,40 @@ public class BubbleDetection extends BubbleDetector {
    public BubbleInfo[] extractBubblesWithInfo(WrapImage image) {
       List<Blob> bubbles = getBubbles(image);
 
-      Pixel[] pixels = image.getPixels();
+      // Only the area around each bubble is ever pulled out of the base image.
+      List<Rectangle> boundingBoxes = new ArrayList<Rectangle>();
+      for (Blob blob : bubbles) {
+         boundingBoxes.add(new Rectangle(blob.getMinCol(), blob.getMinRow(),
+                                         blob.getBoundingWidth(), blob.getBoundingHeight()));
+      }
+      List<WrapImage> crops = image.crop(boundingBoxes);
 
       BubbleInfo[] infos = new BubbleInfo[bubbles.size()];
 
       int count = 0;
       for (Blob blob : bubbles) {
-         Pixel[] blobPixels = new Pixel[blob.getBoundingSize()];
+         byte[] blobChannels = crops.get(count).getRGBChannels();
          Map<Integer, int[]> bounds = blob.getBoundaries();
 
          int width = blob.getBoundingWidth();
 
+         // White out everything outside of the bubble.
          for (int row = blob.getMinRow(); row <= blob.getMaxRow(); row++) {
             for (int col = blob.getMinCol(); col <= blob.getMaxCol(); col++) {
-               int baseImageIndex = row * image.width() + col;
-               int baseBlobIndex = (row - blob.getMinRow()) * width + (col - blob.getMinCol());
-
                if (col < bounds.get(row)[0] || col > bounds.get(row)[1]) {
-                  blobPixels[baseBlobIndex] = new Pixel();
-               } else {
-                  blobPixels[baseBlobIndex] = new Pixel(pixels[baseImageIndex]);
+                  int baseBlobIndex = (row - blob.getMinRow()) * width + (col - blob.getMinCol());
+
+                  blobChannels[baseBlobIndex * 3 + 0] = (byte)0xFF;
+                  blobChannels[baseBlobIndex * 3 + 1] = (byte)0xFF;
+                  blobChannels[baseBlobIndex * 3 + 2] = (byte)0xFF;
                }
             }
          }
 
-         WrapImage blobImage = WrapImage.getImageFromPixels(blobPixels,
+         WrapImage blobImage = WrapImage.getImageFromPixels(blobChannels,
                                                             blob.getBoundingWidth(),
-                                                            blob.getBoundingHeight());
+                                                            blob.getBoundingHeight(),
+                                                            "RGB");
 
          infos[count++] = new BubbleInfo(blob.getMinRow(), blob.getMinCol(),
                                          blob.getBoundingWidth(), blob.getBoundingHeight(),
@@ -165,60 +170,12 @@ public class BubbleDetection extends BubbleDetector {
    }
 
    /**
-    * Get all the blobs.
+    * Get all the blobs (except for the one that borders the image).
     */
-   private List<Blob> getRawBlobs(int width, boolean[] pixels) {
+   private List<Blob> getRawBlobs(ConnectedComponents components) {
       List<Blob> allBlobs = new ArrayList<Blob>();
 
-      boolean[] visited = new boolean[pixels.length];
-      Queue<Integer> toVisit = new LinkedList<Integer>();
-
-      // All the offsets to check for blobs.
-      // left, right, up, down
-      int[] offsets = {-1, 1,
-                       -1 * width, 1 * width};
-
-      // Fill the visited pixels with edges.
-      for (int i = 0; i < visited.length; i++) {
-         if (!pixels[i]) {
-            visited[i] = true;
-         }
-      }
-
-      // Depth-first w.r.t. blobs.
-      for (int i = 0; i < visited.length; i++) {
-         if (visited[i]) {
-            continue;
-         }
-
-         // Keep track of the dimensions of the blob for density calculations.
-         Blob blob = new Blob(visited.length, width);
-
-         toVisit.add(new Integer(i));
-         visited[i] = true;
-
-         blob.addPoint(i);
-
-         while (!toVisit.isEmpty()) {
-            int index = toVisit.remove().intValue();
-
-            // Check all neighbors
-            // No need to check color, only visited is necessary
-            //  since the edges have already been marked as visited.
-            for (int offset : offsets) {
-               int newIndex = index + offset;
-               if (inBoundsAdjacent(index, newIndex, width, visited.length) &&
-                   !visited[newIndex]) {
-                  toVisit.add(newIndex);
-
-                  // Mark as visited a little early so that it is not added multiple times.
-                  visited[newIndex] = true;
-
-                  blob.addPoint(newIndex);
-               }
-            }
-         }
-
+      for (Blob blob : Blob.getBlobs(components)) {
          if (!blob.isBorderBlob()) {
             allBlobs.add(blob);
          }
@@ -233,7 +190,8 @@ public class BubbleDetection extends BubbleDetector {
    private List<Blob> getBubbles(int width, boolean[] edgedPixels, boolean[] rawPixels) {
       assert(edgedPixels.length == rawPixels.length);
 
-      List<Blob> allBlobs = getRawBlobs(width, edgedPixels);
+      ConnectedComponents components = ConnectedComponents.label(edgedPixels, width);
+      List<Blob> allBlobs = getRawBlobs(components);
 
       // Blobs for possible colors.
       List<Blob> characterBlobs = new ArrayList<Blob>();
@@ -255,15 +213,9 @@ public class BubbleDetection extends BubbleDetector {
       // Get all blobs that are black.
       // We need this because callout candidates need to the surrounded by
       // a single black block.
+      int[] blackCounts = components.countPixels(rawPixels);
       for (Blob blob : allBlobs) {
-         int blackCount = 0;
-         for (Integer point : blob.getPoints()) {
-            if (rawPixels[point.intValue()]) {
-               blackCount++;
-            }
-         }
-
-         if (blackCount >= blob.size() / 2) {
+         if (blackCounts[blob.getLabel()] >= blob.size() / 2) {
             blackBlobs.add(blob);
          }
       }
@@ -286,7 +238,7 @@ public class BubbleDetection extends BubbleDetector {
       }
 
       // Resolve the parentage of the callout candidates.
-      resolveParentage(candidateBlobs, allBlobs, edgedPixels, width);
+      resolveParentage(candidateBlobs, allBlobs, components, edgedPixels, width);
 
       // Only keep candidates that have a black parent.
       int index = 0;
@@ -320,11 +272,20 @@ public class BubbleDetection extends BubbleDetector {
     * Resolve the parentage of the kid blobs.
     * This one is expensive, but will find the optimal parent.
     * To be a parent, a blob must completley surround a child.
+    * |components| is the labeling that all the blobs came from,
+    *  it is used to go straight from a pixel to its blob.
     */
    private void resolveParentage(List<Blob> kids,
                                  List<Blob> possibleParents,
+                                 ConnectedComponents components,
                                  boolean[] edgedPixels,
                                  int imageWidth) {
+      // {label: blob}
+      Blob[] parentsByLabel = new Blob[components.numComponents()];
+      for (Blob blob : possibleParents) {
+         parentsByLabel[blob.getLabel()] = blob;
+      }
+
       for (Blob kidCandidate : kids) {
          int[][] outline = kidCandidate.approximateOutline();
          Blob parentCandidate = null;
@@ -344,7 +305,8 @@ public class BubbleDetection extends BubbleDetector {
                while (inBoundsAdjacent(base, index, imageWidth, edgedPixels.length)) {
                   if (edgedPixels[index]) {
                      // Found another blob.
-                     Blob blob = getBlobWithPixel(possibleParents, index);
+                     int label = components.getLabel(index);
+                     Blob blob = label == ConnectedComponents.NO_LABEL ? null : parentsByLabel[label];
 
                      if (blob != null) {
                         if (parentCandidate == null) {
@@ -384,16 +346,6 @@ public class BubbleDetection extends BubbleDetector {
       }
    }
 
-   private Blob getBlobWithPixel(List<Blob> blobs, int index) {
-      for (Blob blob : blobs) {
-         if (blob.contains(index)) {
-            return blob;
-         }
-      }
-
-      return null;
-   }
-
    /**
     * Resolve the parentage of the kid blobs.
     * Uses contains() (really avgContainingDistance()).
@@ -402,23 +354,31 @@ public class BubbleDetection extends BubbleDetector {
     */
    private void quickResolveParentage(List<Blob> kids,
                                       List<Blob> possibleParents) {
-      for (Blob kidCandidate : kids) {
-         double minContainingDist = Integer.MAX_VALUE;
-         Blob parent = null;
-
-         // Get the closest containing blob.
-         for (Blob parentCandidate : possibleParents) {
-            double containingDist = parentCandidate.avgContainingDistance(kidCandidate);
+      // The kids are the small boxes, so they get indexed and each parent looks up the kids inside of it.
+      BoundingBoxIndex index = new BoundingBoxIndex(kids);
+
+      Blob[] parents = new Blob[index.size()];
+      double[] minContainingDists = new double[index.size()];
+
+      // Get the closest containing blob for each kid.
+      // The parents are looked at in order and only a strictly closer parent replaces the current one,
+      //  so ties go to the first parent (just like looking at every parent for each kid).
+      for (Blob parentCandidate : possibleParents) {
+         for (int kid : index.getContainedIndexes(parentCandidate)) {
+            double containingDist = parentCandidate.avgContainingDistance(index.get(kid));
             if (containingDist > 0 &&
-                (parent == null || containingDist < minContainingDist)) {
-               minContainingDist = containingDist;
-               parent = parentCandidate;
+                (parents[kid] == null || containingDist < minContainingDists[kid])) {
+               minContainingDists[kid] = containingDist;
+               parents[kid] = parentCandidate;
             }
          }
+      }
 
-         if (parent != null) {
-            parent.addChild(kidCandidate);
-            kidCandidate.setParent(parent);
+      for (int kid = 0; kid < parents.length; kid++) {
+         if (parents[kid] != null) {
+            Blob kidCandidate = index.get(kid);
+            parents[kid].addChild(kidCandidate);
+            kidCandidate.setParent(parents[kid]);
          }
       }
    }
@@ -75,11 +75,15 @@ public abstract class BubbleDetector {
       for (Blob blob : blobs) {
          Color activeColor = color != null ? color : ColorUtils.nextColor();
 
-         for (Integer index : blob.getPoints()) {
-            int pixelIndex = index.intValue();
-
-            // Mark the blobs as red.
-            pixels[pixelIndex] = new Pixel(activeColor);
+         for (int row = blob.getMinRow(); row <= blob.getMaxRow(); row++) {
+            for (int col = blob.getMinCol(); col <= blob.getMaxCol(); col++) {
+               int pixelIndex = row * blob.getImageWidth() + col;
+
+               // Mark the blobs as red.
+               if (blob.contains(pixelIndex)) {
+                  pixels[pixelIndex] = new Pixel(activeColor);
+               }
+            }
          }
       }
    }
@@ -369,7 +369,7 @@ public class CharacterImage {
 
       double[][] densityMap = new double[rows][cols];
 
-      boolean[] pixels = image.getDiscretePixels();
+      BinaryImage pixels = image.getBinaryImage();
 
       int rowDelta = image.height() / rows;
       int colDelta = image.width() / cols;
@@ -381,10 +381,9 @@ public class CharacterImage {
       for (int row = 0; row < rows; row++) {
          for (int col = 0; col < cols; col++) {
             densityMap[row][col] =
-               ImageUtils.density(pixels, image.width(),
+               ImageUtils.density(pixels,
                                   row * rowDelta, rowDelta,
-                                  col * colDelta, colDelta,
-                                  whiteThreshold);
+                                  col * colDelta, colDelta);
          }
       }
 
@@ -0,0 +1,337 @@
+package com.eriqaugustine.ocr.image;
+
+/**
+ * A labeling of the 4-connected components (blobs) of the set pixels in a discrete image.
+ * The labeling is done in two passes over the image with a union-find over provisional labels,
+ * so there are no queues and no boxed points.
+ *
+ * Components are numbered [0, numComponents()) in the order of their first pixel (row-major).
+ * Pixels that are not set have the label NO_LABEL.
+ *
+ * The horizontal runs of every component are also collected, see getRuns().
+ */
+public class ConnectedComponents {
+   public static final int NO_LABEL = -1;
+
+   private final int imageWidth;
+   private final int imageHeight;
+
+   // {pixel index: component}
+   private final int[] labels;
+
+   private final int numComponents;
+
+   // Stats, indexed by component.
+   private final int[] areas;
+   private final int[] minRows;
+   private final int[] maxRows;
+   private final int[] minCols;
+   private final int[] maxCols;
+   private final boolean[] borderContacts;
+
+   // All the runs, grouped by component and then in row-major order.
+   // The runs for a component are in [runOffsets[label], runOffsets[label + 1]).
+   private final int[] runOffsets;
+   private final int[] runRows;
+   private final int[] runStartCols;
+   private final int[] runEndCols;
+
+   private ConnectedComponents(int width, int height, int[] labels, int numComponents) {
+      imageWidth = width;
+      imageHeight = height;
+      this.labels = labels;
+      this.numComponents = numComponents;
+
+      areas = new int[numComponents];
+      minRows = new int[numComponents];
+      maxRows = new int[numComponents];
+      minCols = new int[numComponents];
+      maxCols = new int[numComponents];
+      borderContacts = new boolean[numComponents];
+
+      for (int i = 0; i < numComponents; i++) {
+         minRows[i] = Integer.MAX_VALUE;
+         maxRows[i] = -1;
+         minCols[i] = Integer.MAX_VALUE;
+         maxCols[i] = -1;
+      }
+
+      for (int row = 0; row < height; row++) {
+         for (int col = 0; col < width; col++) {
+            int label = labels[row * width + col];
+            if (label == NO_LABEL) {
+               continue;
+            }
+
+            areas[label]++;
+
+            if (row < minRows[label]) {
+               minRows[label] = row;
+            }
+
+            if (row > maxRows[label]) {
+               maxRows[label] = row;
+            }
+
+            if (col < minCols[label]) {
+               minCols[label] = col;
+            }
+
+            if (col > maxCols[label]) {
+               maxCols[label] = col;
+            }
+
+            if (row == 0 || row == height - 1 || col == 0 || col == width - 1) {
+               borderContacts[label] = true;
+            }
+         }
+      }
+
+      // Count the runs for each component, then fill them in.
+      runOffsets = new int[numComponents + 1];
+      for (int row = 0; row < height; row++) {
+         for (int col = 0; col < width; col++) {
+            int label = labels[row * width + col];
+            if (label != NO_LABEL && (col == 0 || labels[row * width + col - 1] != label)) {
+               runOffsets[label + 1]++;
+            }
+         }
+      }
+
+      for (int i = 0; i < numComponents; i++) {
+         runOffsets[i + 1] += runOffsets[i];
+      }
+
+      runRows = new int[runOffsets[numComponents]];
+      runStartCols = new int[runRows.length];
+      runEndCols = new int[runRows.length];
+
+      int[] nextRun = new int[numComponents];
+      System.arraycopy(runOffsets, 0, nextRun, 0, numComponents);
+
+      for (int row = 0; row < height; row++) {
+         int col = 0;
+         while (col < width) {
+            int label = labels[row * width + col];
+            if (label == NO_LABEL) {
+               col++;
+               continue;
+            }
+
+            int start = col;
+            while (col < width && labels[row * width + col] == label) {
+               col++;
+            }
+
+            int run = nextRun[label]++;
+            runRows[run] = row;
+            runStartCols[run] = start;
+            runEndCols[run] = col - 1;
+         }
+      }
+   }
+
+   /**
+    * Label all the set pixels in |pixels|.
+    */
+   public static ConnectedComponents label(boolean[] pixels, int width) {
+      assert(width > 0 || pixels.length == 0);
+
+      int height = width == 0 ? 0 : pixels.length / width;
+      int[] labels = new int[pixels.length];
+
+      // A new provisional label only starts when the left pixel is not set,
+      // so there can be at most one for every other pixel in a row.
+      int[] parents = new int[height * ((width + 1) / 2) + 1];
+      int nextLabel = 0;
+
+      // First pass: provisional labels and record the equivalences.
+      for (int row = 0; row < height; row++) {
+         for (int col = 0; col < width; col++) {
+            int index = row * width + col;
+
+            if (!pixels[index]) {
+               labels[index] = NO_LABEL;
+               continue;
+            }
+
+            int left = (col > 0 && pixels[index - 1]) ? labels[index - 1] : NO_LABEL;
+            int up = (row > 0 && pixels[index - width]) ? labels[index - width] : NO_LABEL;
+
+            if (left == NO_LABEL && up == NO_LABEL) {
+               parents[nextLabel] = nextLabel;
+               labels[index] = nextLabel++;
+            } else if (left == NO_LABEL) {
+               labels[index] = up;
+            } else if (up == NO_LABEL) {
+               labels[index] = left;
+            } else {
+               labels[index] = union(parents, left, up);
+            }
+         }
+      }
+
+      // Every root is the smallest provisional label in its set,
+      // so handing out the final labels in provisional order keeps row-major order.
+      int[] finalLabels = new int[nextLabel];
+      int numComponents = 0;
+      for (int i = 0; i < nextLabel; i++) {
+         int root = find(parents, i);
+         if (root == i) {
+            finalLabels[i] = numComponents++;
+         } else {
+            finalLabels[i] = finalLabels[root];
+         }
+      }
+
+      // Second pass: final labels.
+      for (int i = 0; i < labels.length; i++) {
+         if (labels[i] != NO_LABEL) {
+            labels[i] = finalLabels[find(parents, labels[i])];
+         }
+      }
+
+      return new ConnectedComponents(width, height, labels, numComponents);
+   }
+
+   public int width() {
+      return imageWidth;
+   }
+
+   public int height() {
+      return imageHeight;
+   }
+
+   public int numComponents() {
+      return numComponents;
+   }
+
+   /**
+    * The component for the pixel at |index|.
+    * NO_LABEL if the pixel is not set or |index| is out of the image.
+    */
+   public int getLabel(int index) {
+      if (index < 0 || index >= labels.length) {
+         return NO_LABEL;
+      }
+
+      return labels[index];
+   }
+
+   public int getLabel(int row, int col) {
+      if (row < 0 || row >= imageHeight || col < 0 || col >= imageWidth) {
+         return NO_LABEL;
+      }
+
+      return labels[row * imageWidth + col];
+   }
+
+   /**
+    * The number of pixels in the component.
+    */
+   public int area(int label) {
+      return areas[label];
+   }
+
+   public int minRow(int label) {
+      return minRows[label];
+   }
+
+   public int maxRow(int label) {
+      return maxRows[label];
+   }
+
+   public int minCol(int label) {
+      return minCols[label];
+   }
+
+   public int maxCol(int label) {
+      return maxCols[label];
+   }
+
+   /**
+    * Does the component touch the edge of the image?
+    */
+   public boolean touchesBorder(int label) {
+      return borderContacts[label];
+   }
+
+   /**
+    * Get the horizontal runs of a component.
+    * The result is indexed by (row - minRow(label)) and each row is
+    * [startCol, endCol, startCol, endCol, ...] (inclusive and ordered).
+    */
+   public int[][] getRuns(int label) {
+      int minRow = minRows[label];
+      int numRows = maxRows[label] - minRow + 1;
+
+      int[] counts = new int[numRows];
+      for (int run = runOffsets[label]; run < runOffsets[label + 1]; run++) {
+         counts[runRows[run] - minRow]++;
+      }
+
+      int[][] rtn = new int[numRows][];
+      for (int i = 0; i < numRows; i++) {
+         rtn[i] = new int[counts[i] * 2];
+         counts[i] = 0;
+      }
+
+      for (int run = runOffsets[label]; run < runOffsets[label + 1]; run++) {
+         int row = runRows[run] - minRow;
+         rtn[row][counts[row]++] = runStartCols[run];
+         rtn[row][counts[row]++] = runEndCols[run];
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Count the pixels in each component that are also set in |mask|.
+    * Ex: the number of black pixels in each component of an edged image.
+    */
+   public int[] countPixels(boolean[] mask) {
+      assert(mask.length == labels.length);
+
+      int[] rtn = new int[numComponents];
+
+      for (int i = 0; i < labels.length; i++) {
+         if (labels[i] != NO_LABEL && mask[i]) {
+            rtn[labels[i]]++;
+         }
+      }
+
+      return rtn;
+   }
+
+   private static int find(int[] parents, int label) {
+      int root = label;
+      while (parents[root] != root) {
+         root = parents[root];
+      }
+
+      // Path compression.
+      while (parents[label] != root) {
+         int next = parents[label];
+         parents[label] = root;
+         label = next;
+      }
+
+      return root;
+   }
+
+   /**
+    * Merge the sets and return the new root (always the smaller of the two roots).
+    */
+   private static int union(int[] parents, int a, int b) {
+      int rootA = find(parents, a);
+      int rootB = find(parents, b);
+
+      if (rootA < rootB) {
+         parents[rootB] = rootA;
+         return rootA;
+      }
+
+      parents[rootA] = rootB;
+      return rootB;
+   }
+}
@@ -9,6 +9,7 @@ import com.eriqaugustine.ocr.classifier.prepost.PostClassifier;
 import com.eriqaugustine.ocr.plove.PLOVE;
 import com.eriqaugustine.ocr.translate.Translator;
 import com.eriqaugustine.ocr.utils.ImageUtils;
+import com.eriqaugustine.ocr.utils.Props;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,6 +18,12 @@ import java.awt.Rectangle;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Translate and replace the text in an image.
@@ -33,6 +40,11 @@ public class ImageTranslator {
    private Translator translator;
    private CalloutRenderer calloutRenderer;
 
+   private int parallelism;
+
+   // The bubble workers, lazily made by getPool() and kept as long as the parallelism does not change.
+   private ExecutorService pool;
+
    public ImageTranslator() throws Exception {
       this(new BubbleDetection(), new TextExtraction(),
            new BasePreClassifier(), new BasePostClassifier(),
@@ -58,12 +70,62 @@ public class ImageTranslator {
       this.classy = classy;
       this.translator = translator;
       this.calloutRenderer = calloutRenderer;
+
+      setParallelism(loadParallelism());
+   }
+
+   /**
+    * Get the default parallelism from the TRANSLATE_PARALLELISM property.
+    */
+   private static int loadParallelism() {
+      if (!Props.has("TRANSLATE_PARALLELISM")) {
+         return 1;
+      }
+
+      return Props.getInt("TRANSLATE_PARALLELISM");
+   }
+
+   /**
+    * The number of bubbles that get worked on at the same time.
+    * 1 means that everything happens on the calling thread.
+    * When this is more than 1, the OCRClassifier and Translator must be safe to call from multiple threads
+    *  (the built-in classifiers and RemoteClassifier are).
+    * Bubbles are only ever worked on concurrently with the PACKED image backend
+    *  (see WrapImage.Backend), JMagick is not known to be safe to use from multiple threads.
+    */
+   public int getParallelism() {
+      return parallelism;
+   }
+
+   /**
+    * Anything less than 1 means to use all the available processors.
+    */
+   public synchronized void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         parallelism = Runtime.getRuntime().availableProcessors();
+      }
+
+      if (pool != null && parallelism != this.parallelism) {
+         pool.shutdown();
+         pool = null;
+      }
+
+      this.parallelism = parallelism;
    }
 
    public WrapImage translate(WrapImage baseImage) {
       return translate(baseImage, false, null, null);
    }
 
+   /**
+    * Translate all the bubbles in |baseImage|.
+    * Bubbles are independent from each other, so each bubble (text extraction, cleaning,
+    *  classification, and translation) is its own task and up to getParallelism() bubbles are done at once.
+    * Rendering always happens in bubble order on the calling thread, so the result
+    *  does not depend on the parallelism.
+    * Debug output and the MAGICK backend are always done one bubble at a time
+    *  (so the output does not interleave, and JMagick is only ever used from one thread).
+    */
    // |outDirectory| and |prefix| must not be null if |debug| is true.
    public WrapImage translate(WrapImage baseImage, boolean debug, String outDirectory, String prefix) {
       assert(!debug || (outDirectory != null && prefix != null));
@@ -80,109 +142,200 @@ public class ImageTranslator {
          coloredBubbles.clear();
       }
 
+      String[] translations;
+      boolean concurrent = !debug && parallelism > 1 && bubbles.length > 1 &&
+                           WrapImage.getBackend() == WrapImage.Backend.PACKED;
+
+      if (!concurrent) {
+         translations = new String[bubbles.length];
+         for (int bubbleIndex = 0; bubbleIndex < bubbles.length; bubbleIndex++) {
+            translations[bubbleIndex] = translateBubble(bubbles[bubbleIndex], bubbleIndex,
+                                                        debug, outDirectory, prefix);
+         }
+      } else {
+         translations = translateBubbles(bubbles);
+      }
+
       for (int bubbleIndex = 0; bubbleIndex < bubbles.length; bubbleIndex++) {
          BubbleInfo bubble = bubbles[bubbleIndex];
 
-         String text = "";
-
-         List<TextSet> bubbleText = textExtractor.extractText(bubble.image);
-         if (bubbleText == null) {
-            // TODO(eriq): Add a metaword, or some indication of failure?
+         if (translations[bubbleIndex] == null) {
             continue;
          }
 
-         for (int textSetIndex = 0; textSetIndex < bubbleText.size(); textSetIndex++) {
-            TextSet textSet  = bubbleText.get(textSetIndex);
+         Rectangle renderArea = new Rectangle(bubble.startCol, bubble.startRow, bubble.width, bubble.height);
+         baseImage = calloutRenderer.renderInto(baseImage, translations[bubbleIndex], renderArea);
 
-            if (debug) {
-               WrapImage noFuriReplace = textSet.toImage(false);
-               WrapImage withFuriReplace = textSet.toImage(true);
+         if (debug) {
+            baseImage.write(String.format("%s/%s-translate-02-%02d-99-renderInto.png",
+                                          outDirectory, prefix, bubbleIndex));
+         }
+      }
 
-               noFuriReplace.write(String.format("%s/%s-translate-02-%02d-%02d-10-noFuriReplace.png",
-                                                 outDirectory, prefix, bubbleIndex, textSetIndex));
-               withFuriReplace.write(String.format("%s/%s-translate-02-%02d-%02d-11-yesFuriReplace.png",
-                                                   outDirectory, prefix, bubbleIndex, textSetIndex));
+      if (debug) {
+         baseImage.write(String.format("%s/%s-translate-99-final.png", outDirectory, prefix));
+      }
+
+      return baseImage;
+   }
+
+   /**
+    * Translate all the bubbles using the pool of getParallelism() threads.
+    * The translations come back in the same order as |bubbles|.
+    */
+   private String[] translateBubbles(final BubbleInfo[] bubbles) {
+      ExecutorService pool = getPool();
+      String[] rtn = new String[bubbles.length];
+
+      try {
+         List<Future<String>> futures = new ArrayList<Future<String>>(bubbles.length);
+
+         for (int i = 0; i < bubbles.length; i++) {
+            final int bubbleIndex = i;
+
+            futures.add(pool.submit(new Callable<String>() {
+               public String call() {
+                  return translateBubble(bubbles[bubbleIndex], bubbleIndex, false, null, null);
+               }
+            }));
+         }
 
-               noFuriReplace.clear();
-               withFuriReplace.clear();
+         for (int i = 0; i < futures.size(); i++) {
+            try {
+               rtn[i] = futures.get(i).get();
+            } catch (ExecutionException ex) {
+               logger.error("Error translating bubble " + i + ".", ex.getCause());
+               rtn[i] = null;
             }
+         }
+      } catch (InterruptedException ex) {
+         logger.error("Interrupted while translating bubbles.", ex);
+         Thread.currentThread().interrupt();
+      }
 
-            // Clean up the characters a bit.
-            List<WrapImage> characterImages = new ArrayList<WrapImage>();
-            for (WrapImage image : textSet.furiganaReplacementText) {
-               WrapImage cleanImage = image.copy();
-               cleanImage.scale(PLOVE.SCALE_SIZE, PLOVE.SCALE_SIZE);
-               cleanImage.scrub(PLOVE.WHITE_THRESHOLD, PLOVE.MIN_BLOB_SIZE);
-               characterImages.add(cleanImage);
+      return rtn;
+   }
+
+   private synchronized ExecutorService getPool() {
+      if (pool == null) {
+         pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+               Thread thread = new Thread(runnable, "translate-bubble");
+               thread.setDaemon(true);
+               return thread;
             }
+         });
+      }
 
-            if (debug) {
-               WrapImage withFuriReplace = ImageUtils.concatImages(characterImages);
+      return pool;
+   }
 
-               withFuriReplace.write(String.format("%s/%s-translate-02-%02d-%02d-21-yesFuriReplace-clean.png",
-                                                   outDirectory, prefix, bubbleIndex, textSetIndex));
+   /**
+    * Get the translation for a single bubble.
+    * Returns null if the bubble could not be translated (and should not be rendered).
+    */
+   private String translateBubble(BubbleInfo bubble, int bubbleIndex,
+                                  boolean debug, String outDirectory, String prefix) {
+      String text = "";
+
+      List<TextSet> bubbleText = textExtractor.extractText(bubble.image);
+      if (bubbleText == null) {
+         // TODO(eriq): Add a metaword, or some indication of failure?
+         return null;
+      }
 
-               withFuriReplace.clear();
-            }
+      for (int textSetIndex = 0; textSetIndex < bubbleText.size(); textSetIndex++) {
+         TextSet textSet  = bubbleText.get(textSetIndex);
 
-            List<ImageText> imageTexts = preClassy.preClassify(characterImages);
-            String currentSetText = "";
+         if (debug) {
+            WrapImage noFuriReplace = textSet.toImage(false);
+            WrapImage withFuriReplace = textSet.toImage(true);
 
-            if (debug) {
-               System.out.println("<PreClassify");
+            noFuriReplace.write(String.format("%s/%s-translate-02-%02d-%02d-10-noFuriReplace.png",
+                                              outDirectory, prefix, bubbleIndex, textSetIndex));
+            withFuriReplace.write(String.format("%s/%s-translate-02-%02d-%02d-11-yesFuriReplace.png",
+                                                outDirectory, prefix, bubbleIndex, textSetIndex));
 
-               System.out.print("{");
-               for (ImageText imageText : imageTexts) {
-                  if (imageText.text == null) {
-                     System.out.print(" ");
-                  } else {
-                     System.out.print(imageText.text);
-                  }
-               }
-               System.out.println("}");
-               System.out.println("</PreClassify");
-            }
+            noFuriReplace.clear();
+            withFuriReplace.clear();
+         }
+
+         // Clean up the characters a bit.
+         List<WrapImage> characterImages = new ArrayList<WrapImage>();
+         for (WrapImage image : textSet.furiganaReplacementText) {
+            WrapImage cleanImage = image.copy();
+            cleanImage.scale(PLOVE.SCALE_SIZE, PLOVE.SCALE_SIZE);
+            cleanImage.scrub(PLOVE.WHITE_THRESHOLD, PLOVE.MIN_BLOB_SIZE);
+            characterImages.add(cleanImage);
+         }
+
+         if (debug) {
+            WrapImage withFuriReplace = ImageUtils.concatImages(characterImages);
+
+            withFuriReplace.write(String.format("%s/%s-translate-02-%02d-%02d-21-yesFuriReplace-clean.png",
+                                                outDirectory, prefix, bubbleIndex, textSetIndex));
+
+            withFuriReplace.clear();
+         }
 
+         List<ImageText> imageTexts = preClassy.preClassify(characterImages);
+         String currentSetText = "";
+
+         if (debug) {
+            System.out.println("<PreClassify");
+
+            System.out.print("{");
             for (ImageText imageText : imageTexts) {
                if (imageText.text == null) {
-                  for (WrapImage image : imageText.images) {
-                     currentSetText += classy.classify(image);
-                  }
+                  System.out.print(" ");
                } else {
-                  currentSetText += imageText.text;
+                  System.out.print(imageText.text);
                }
             }
+            System.out.println("}");
+            System.out.println("</PreClassify");
+         }
 
-            String postClassifyText = postClassy.postClassify(currentSetText);
-
-            if (debug) {
-               System.out.println("<PostClassify");
-               System.out.println("Orig: " + currentSetText);
-               System.out.println("Post: " + postClassifyText);
-               System.out.println("</PostClassify");
+         // Classify all the unknown characters in the set in one batch.
+         List<WrapImage> unknownImages = new ArrayList<WrapImage>();
+         for (ImageText imageText : imageTexts) {
+            if (imageText.text == null) {
+               unknownImages.addAll(imageText.images);
             }
-
-            text += postClassifyText + " ";
          }
 
-         logger.debug(text.trim());
-
-         String translation = translator.translate(text.trim());
+         List<String> classifications = classy.classify(unknownImages);
+         int classificationIndex = 0;
 
-         Rectangle renderArea = new Rectangle(bubble.startCol, bubble.startRow, bubble.width, bubble.height);
-         baseImage = calloutRenderer.renderInto(baseImage, translation, renderArea);
+         for (ImageText imageText : imageTexts) {
+            if (imageText.text == null) {
+               for (int i = 0; i < imageText.images.size(); i++) {
+                  currentSetText += classifications.get(classificationIndex++);
+               }
+            } else {
+               currentSetText += imageText.text;
+            }
+         }
 
+         String postClassifyText = postClassy.postClassify(currentSetText);
 
          if (debug) {
-            baseImage.write(String.format("%s/%s-translate-02-%02d-99-renderInto.png",
-                                          outDirectory, prefix, bubbleIndex));
+            System.out.println("<PostClassify");
+            System.out.println("Orig: " + currentSetText);
+            System.out.println("Post: " + postClassifyText);
+            System.out.println("</PostClassify");
          }
+
+         text += postClassifyText + " ";
       }
 
-      if (debug) {
-         baseImage.write(String.format("%s/%s-translate-99-final.png", outDirectory, prefix));
+      logger.debug(text.trim());
+
+      String translation = translator.translate(text.trim());
+      if (translation == null) {
+         logger.warn("Unable to translate bubble " + bubbleIndex + ".");
       }
 
-      return baseImage;
+      return translation;
    }
 }
@@ -0,0 +1,152 @@
+package com.eriqaugustine.ocr.image;
+
+import static com.eriqaugustine.ocr.image.WrapImage.Pixel;
+
+import magick.ImageInfo;
+import magick.MagickException;
+import magick.MagickImage;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Raster that keeps everything inside of ImageMagick.
+ * This is the original WrapImage behavior.
+ * Every pixel read is a full JNI copy of the image, so the RGB channels are cached.
+ */
+class MagickRaster extends Raster {
+   private final MagickImage image;
+
+   private final int imageWidth;
+   private final int imageHeight;
+
+   private byte[] cacheChannels;
+   private byte[] cacheIntensities;
+
+   /**
+    * The raster now owns |image|.
+    */
+   public MagickRaster(MagickImage image) throws MagickException {
+      this.image = image;
+
+      Dimension dimensions = image.getDimension();
+      imageWidth = dimensions.width;
+      imageHeight = dimensions.height;
+
+      cacheChannels = null;
+      cacheIntensities = null;
+   }
+
+   public static MagickRaster fromChannels(byte[] channelPixels,
+                                           int width, int height,
+                                           String channelMap) throws MagickException {
+      MagickImage image = new MagickImage();
+      image.constituteImage(width, height, channelMap, channelPixels);
+      return new MagickRaster(image);
+   }
+
+   public int width() {
+      return imageWidth;
+   }
+
+   public int height() {
+      return imageHeight;
+   }
+
+   public MagickImage getMagickImage() {
+      return image;
+   }
+
+   public byte[] intensities() throws MagickException {
+      if (cacheIntensities == null) {
+         byte[] channels = loadChannels();
+         byte[] rtn = new byte[imageWidth * imageHeight];
+
+         for (int i = 0; i < rtn.length; i++) {
+            rtn[i] = Pixel.average(channels[i * 3 + 0], channels[i * 3 + 1], channels[i * 3 + 2]);
+         }
+
+         cacheIntensities = rtn;
+      }
+
+      return cacheIntensities;
+   }
+
+   public byte[] rgbChannels() throws MagickException {
+      return loadChannels().clone();
+   }
+
+   public Pixel getPixel(int row, int col) throws MagickException {
+      if (cacheChannels == null) {
+         return new Pixel(image.getOnePixel(col, row));
+      }
+
+      int index = (row * imageWidth + col) * 3;
+      return new Pixel(cacheChannels[index + 0], cacheChannels[index + 1], cacheChannels[index + 2]);
+   }
+
+   public Raster copy() throws MagickException {
+      return fromChannels(loadChannels(), imageWidth, imageHeight, "RGB");
+   }
+
+   public Raster blur(double radius, double sigma) throws MagickException {
+      return new MagickRaster(image.blurImage(radius, sigma));
+   }
+
+   public Raster edge(double radius) throws MagickException {
+      return new MagickRaster(image.edgeImage(radius));
+   }
+
+   public Raster scale(int newWidth, int newHeight) throws MagickException {
+      return new MagickRaster(image.scaleImage(newWidth, newHeight));
+   }
+
+   public Raster crop(Rectangle bounds) throws MagickException {
+      // ImageMagick is pretty flaky about crops of crops, so just make a full copy.
+      MagickImage copyImage = ((MagickRaster)copy()).image;
+      return new MagickRaster(copyImage.cropImage(bounds));
+   }
+
+   /**
+    * ImageMagick cannot crop a crop.
+    * So, if the base image is large, we would have to make many copies of it.
+    * Instead, we will make one copy and then crop that many times.
+    */
+   public List<Raster> crop(List<Rectangle> bounds) throws MagickException {
+      List<Raster> rtn = new ArrayList<Raster>();
+      MagickImage copyImage = ((MagickRaster)copy()).image;
+
+      for (Rectangle bound : bounds) {
+         try {
+            rtn.add(new MagickRaster(copyImage.cropImage(bound)));
+         } catch (MagickException ex) {
+            rtn.add(null);
+         }
+      }
+
+      return rtn;
+   }
+
+   public Raster fromDiscrete(boolean[] discretePixels) throws MagickException {
+      return fromChannels(PackedRaster.discreteToGray(discretePixels), imageWidth, imageHeight, "I");
+   }
+
+   public void write(String filename) throws MagickException {
+      ImageInfo info = new ImageInfo(filename);
+      image.setFileName(filename);
+      image.writeImage(info);
+   }
+
+   private byte[] loadChannels() throws MagickException {
+      if (cacheChannels == null) {
+         byte[] channels = new byte[imageWidth * imageHeight * 3];
+         image.dispatchImage(0, 0, imageWidth, imageHeight, "RGB", channels);
+         cacheChannels = channels;
+      }
+
+      return cacheChannels;
+   }
+}
@@ -0,0 +1,533 @@
+package com.eriqaugustine.ocr.image;
+
+import static com.eriqaugustine.ocr.image.WrapImage.Pixel;
+
+import magick.ImageInfo;
+import magick.MagickException;
+import magick.MagickImage;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * A Raster that keeps its pixels in flat primitive arrays and does all of its work in Java.
+ * ImageMagick is only used to decode and encode files.
+ *
+ * Grayscale images are held as a byte per pixel.
+ * Color images are held as an int per pixel (0xRRGGBB).
+ * Images that come in as RGB, but only have gray pixels will be stored as grayscale.
+ *
+ * Since rasters are never modified in place, copies and crops share the same buffer.
+ * A crop is just a view (offset, stride, width, height) into its parent's buffer.
+ * Any transformation on a view will only materialize the pixels inside of the view.
+ * Note that a view will keep the entire parent buffer alive.
+ */
+class PackedRaster extends Raster {
+   private final int imageWidth;
+   private final int imageHeight;
+
+   // Exactly one of these will be non-null.
+   private final byte[] gray;
+   private final int[] rgb;
+
+   // Where this raster's pixels start in the buffer and the length of a buffer row.
+   private final int offset;
+   private final int stride;
+
+   private byte[] cacheIntensities;
+
+   private PackedRaster(int width, int height, byte[] gray, int[] rgb) {
+      this(width, height, gray, rgb, 0, width);
+   }
+
+   private PackedRaster(int width, int height, byte[] gray, int[] rgb, int offset, int stride) {
+      assert((gray == null) != (rgb == null));
+
+      this.imageWidth = width;
+      this.imageHeight = height;
+      this.gray = gray;
+      this.rgb = rgb;
+      this.offset = offset;
+      this.stride = stride;
+
+      cacheIntensities = (gray != null && isCompact()) ? gray : null;
+   }
+
+   /**
+    * The raster now owns |gray|.
+    */
+   public static PackedRaster fromGray(byte[] gray, int width, int height) {
+      assert(gray.length == width * height);
+      return new PackedRaster(width, height, gray, null);
+   }
+
+   /**
+    * Build a raster from "RGB" channel data.
+    * |channels| is not kept.
+    */
+   public static PackedRaster fromRGBChannels(byte[] channels, int width, int height) {
+      assert(channels.length == width * height * 3);
+
+      boolean isGray = true;
+      for (int i = 0; i < channels.length; i += 3) {
+         if (channels[i] != channels[i + 1] || channels[i] != channels[i + 2]) {
+            isGray = false;
+            break;
+         }
+      }
+
+      if (isGray) {
+         byte[] gray = new byte[width * height];
+         for (int i = 0; i < gray.length; i++) {
+            gray[i] = channels[i * 3];
+         }
+         return fromGray(gray, width, height);
+      }
+
+      int[] rgb = new int[width * height];
+      for (int i = 0; i < rgb.length; i++) {
+         rgb[i] = ((0xFF & channels[i * 3 + 0]) << 16) |
+                  ((0xFF & channels[i * 3 + 1]) << 8) |
+                  (0xFF & channels[i * 3 + 2]);
+      }
+
+      return new PackedRaster(width, height, null, rgb);
+   }
+
+   /**
+    * Decode an ImageMagick image.
+    * This is the only time that the pixels will be pulled out of ImageMagick.
+    */
+   public static PackedRaster fromMagickImage(MagickImage image) throws MagickException {
+      Dimension dimensions = image.getDimension();
+
+      byte[] channels = new byte[dimensions.width * dimensions.height * 3];
+      image.dispatchImage(0, 0, dimensions.width, dimensions.height, "RGB", channels);
+
+      return fromRGBChannels(channels, dimensions.width, dimensions.height);
+   }
+
+   /**
+    * Black for true, white for false.
+    */
+   public static byte[] discreteToGray(boolean[] discretePixels) {
+      byte[] rtn = new byte[discretePixels.length];
+
+      for (int i = 0; i < discretePixels.length; i++) {
+         rtn[i] = discretePixels[i] ? 0 : (byte)0xFF;
+      }
+
+      return rtn;
+   }
+
+   public int width() {
+      return imageWidth;
+   }
+
+   public int height() {
+      return imageHeight;
+   }
+
+   public byte[] intensities() {
+      if (cacheIntensities == null) {
+         if (gray != null) {
+            cacheIntensities = compactGray();
+         } else {
+            int[] pixels = compactRGB();
+            byte[] rtn = new byte[pixels.length];
+
+            for (int i = 0; i < pixels.length; i++) {
+               rtn[i] = Pixel.average((byte)(pixels[i] >> 16), (byte)(pixels[i] >> 8), (byte)pixels[i]);
+            }
+
+            cacheIntensities = rtn;
+         }
+      }
+
+      return cacheIntensities;
+   }
+
+   public byte[] rgbChannels() {
+      byte[] rtn = new byte[imageWidth * imageHeight * 3];
+
+      if (gray != null) {
+         byte[] pixels = compactGray();
+         for (int i = 0; i < pixels.length; i++) {
+            rtn[i * 3 + 0] = pixels[i];
+            rtn[i * 3 + 1] = pixels[i];
+            rtn[i * 3 + 2] = pixels[i];
+         }
+      } else {
+         int[] pixels = compactRGB();
+         for (int i = 0; i < pixels.length; i++) {
+            rtn[i * 3 + 0] = (byte)(pixels[i] >> 16);
+            rtn[i * 3 + 1] = (byte)(pixels[i] >> 8);
+            rtn[i * 3 + 2] = (byte)pixels[i];
+         }
+      }
+
+      return rtn;
+   }
+
+   public Pixel getPixel(int row, int col) {
+      int index = offset + row * stride + col;
+
+      if (gray != null) {
+         return new Pixel(gray[index], gray[index], gray[index]);
+      }
+
+      return new Pixel(rgb[index] >> 16, rgb[index] >> 8, rgb[index]);
+   }
+
+   /**
+    * Rasters are never modified in place, so a copy can just share the buffer.
+    */
+   public Raster copy() {
+      return this;
+   }
+
+   /**
+    * A view into this raster, no pixels are copied.
+    * Like ImageMagick, a crop that does not overlap the image is an error.
+    */
+   public Raster crop(Rectangle bounds) throws MagickException {
+      assert(bounds.x >= 0 && bounds.y >= 0);
+
+      // Clip to the image the same way that ImageMagick does.
+      int width = Math.min(bounds.width, imageWidth - bounds.x);
+      int height = Math.min(bounds.height, imageHeight - bounds.y);
+
+      if (width <= 0 || height <= 0) {
+         throw new MagickException("Crop geometry does not contain the image: " + bounds);
+      }
+
+      return new PackedRaster(width, height, gray, rgb,
+                              offset + bounds.y * stride + bounds.x, stride);
+   }
+
+   /**
+    * Scale by area averaging.
+    * Every destination pixel is the average of the source area it covers.
+    * This matches the behavior of ImageMagick's scale (not resize).
+    */
+   public Raster scale(int newWidth, int newHeight) {
+      assert(newWidth > 0 && newHeight > 0);
+
+      ResampleTable colTable = new ResampleTable(imageWidth, newWidth);
+      ResampleTable rowTable = new ResampleTable(imageHeight, newHeight);
+
+      int[][] planes = planes();
+      int[][] rtn = new int[planes.length][];
+
+      // Reuse the intermediate buffer across channels.
+      double[] horizontal = new double[newWidth * imageHeight];
+
+      for (int channel = 0; channel < planes.length; channel++) {
+         int[] plane = planes[channel];
+
+         for (int row = 0; row < imageHeight; row++) {
+            int rowOffset = row * imageWidth;
+
+            for (int col = 0; col < newWidth; col++) {
+               double sum = 0;
+               for (int i = colTable.starts[col]; i < colTable.starts[col + 1]; i++) {
+                  sum += plane[rowOffset + colTable.indexes[i]] * colTable.weights[i];
+               }
+               horizontal[row * newWidth + col] = sum;
+            }
+         }
+
+         int[] scaled = new int[newWidth * newHeight];
+         for (int row = 0; row < newHeight; row++) {
+            for (int col = 0; col < newWidth; col++) {
+               double sum = 0;
+               for (int i = rowTable.starts[row]; i < rowTable.starts[row + 1]; i++) {
+                  sum += horizontal[rowTable.indexes[i] * newWidth + col] * rowTable.weights[i];
+               }
+               scaled[row * newWidth + col] = clamp((int)(sum + 0.5));
+            }
+         }
+
+         rtn[channel] = scaled;
+      }
+
+      return fromPlanes(rtn, newWidth, newHeight);
+   }
+
+   /**
+    * A separable gaussian blur.
+    * The kernel width follows ImageMagick: 2 * ceil(|radius|) + 1,
+    * or enough to cover three sigmas if |radius| is zero.
+    * Pixels past the border take the value of the closest border pixel.
+    */
+   public Raster blur(double radius, double sigma) {
+      assert(sigma > 0);
+
+      int halfWidth = radius > 0 ? (int)Math.ceil(radius) : (int)Math.ceil(3 * sigma);
+
+      double[] kernel = new double[halfWidth * 2 + 1];
+      double kernelSum = 0;
+      for (int i = -halfWidth; i <= halfWidth; i++) {
+         kernel[i + halfWidth] = Math.exp(-(i * i) / (2.0 * sigma * sigma));
+         kernelSum += kernel[i + halfWidth];
+      }
+      for (int i = 0; i < kernel.length; i++) {
+         kernel[i] /= kernelSum;
+      }
+
+      int[][] planes = planes();
+      int[][] rtn = new int[planes.length][];
+
+      double[] horizontal = new double[imageWidth * imageHeight];
+
+      for (int channel = 0; channel < planes.length; channel++) {
+         int[] plane = planes[channel];
+
+         for (int row = 0; row < imageHeight; row++) {
+            int rowOffset = row * imageWidth;
+
+            for (int col = 0; col < imageWidth; col++) {
+               double sum = 0;
+               for (int i = -halfWidth; i <= halfWidth; i++) {
+                  sum += plane[rowOffset + clampIndex(col + i, imageWidth)] * kernel[i + halfWidth];
+               }
+               horizontal[rowOffset + col] = sum;
+            }
+         }
+
+         int[] blurred = new int[imageWidth * imageHeight];
+         for (int row = 0; row < imageHeight; row++) {
+            for (int col = 0; col < imageWidth; col++) {
+               double sum = 0;
+               for (int i = -halfWidth; i <= halfWidth; i++) {
+                  sum += horizontal[clampIndex(row + i, imageHeight) * imageWidth + col] *
+                         kernel[i + halfWidth];
+               }
+               blurred[row * imageWidth + col] = clamp((int)(sum + 0.5));
+            }
+         }
+
+         rtn[channel] = blurred;
+      }
+
+      return fromPlanes(rtn, imageWidth, imageHeight);
+   }
+
+   /**
+    * The same kernel as ImageMagick's edge:
+    * a (2 * ceil(|radius|) + 1) square of -1 with (width^2 - 1) in the center.
+    * This works out to be (width^2 * center - windowSum), and the window sum is separable.
+    * Pixels past the border take the value of the closest border pixel.
+    */
+   public Raster edge(double radius) {
+      int halfWidth = radius > 0 ? (int)Math.ceil(radius) : 1;
+      int windowSize = (halfWidth * 2 + 1) * (halfWidth * 2 + 1);
+
+      int[][] planes = planes();
+      int[][] rtn = new int[planes.length][];
+
+      int[] horizontal = new int[imageWidth * imageHeight];
+
+      for (int channel = 0; channel < planes.length; channel++) {
+         int[] plane = planes[channel];
+
+         // Sliding window sums along the rows.
+         for (int row = 0; row < imageHeight; row++) {
+            int rowOffset = row * imageWidth;
+
+            int sum = 0;
+            for (int i = -halfWidth; i <= halfWidth; i++) {
+               sum += plane[rowOffset + clampIndex(i, imageWidth)];
+            }
+
+            for (int col = 0; col < imageWidth; col++) {
+               horizontal[rowOffset + col] = sum;
+               sum += plane[rowOffset + clampIndex(col + halfWidth + 1, imageWidth)] -
+                      plane[rowOffset + clampIndex(col - halfWidth, imageWidth)];
+            }
+         }
+
+         int[] edged = new int[imageWidth * imageHeight];
+
+         // Sliding window sums down the columns.
+         for (int col = 0; col < imageWidth; col++) {
+            int sum = 0;
+            for (int i = -halfWidth; i <= halfWidth; i++) {
+               sum += horizontal[clampIndex(i, imageHeight) * imageWidth + col];
+            }
+
+            for (int row = 0; row < imageHeight; row++) {
+               int index = row * imageWidth + col;
+               edged[index] = clamp(windowSize * plane[index] - sum);
+
+               sum += horizontal[clampIndex(row + halfWidth + 1, imageHeight) * imageWidth + col] -
+                      horizontal[clampIndex(row - halfWidth, imageHeight) * imageWidth + col];
+            }
+         }
+
+         rtn[channel] = edged;
+      }
+
+      return fromPlanes(rtn, imageWidth, imageHeight);
+   }
+
+   public Raster fromDiscrete(boolean[] discretePixels) {
+      assert(discretePixels.length == imageWidth * imageHeight);
+      return fromGray(discreteToGray(discretePixels), imageWidth, imageHeight);
+   }
+
+   public void write(String filename) throws MagickException {
+      MagickImage image = new MagickImage();
+
+      if (gray != null) {
+         image.constituteImage(imageWidth, imageHeight, "I", compactGray());
+      } else {
+         image.constituteImage(imageWidth, imageHeight, "RGB", rgbChannels());
+      }
+
+      ImageInfo info = new ImageInfo(filename);
+      image.setFileName(filename);
+      image.writeImage(info);
+   }
+
+   /**
+    * Get each channel as its own array of unsigned values.
+    */
+   private int[][] planes() {
+      if (gray != null) {
+         int[] plane = new int[imageWidth * imageHeight];
+         for (int row = 0; row < imageHeight; row++) {
+            int base = offset + row * stride;
+            for (int col = 0; col < imageWidth; col++) {
+               plane[row * imageWidth + col] = 0xFF & gray[base + col];
+            }
+         }
+         return new int[][]{plane};
+      }
+
+      int[][] rtn = new int[3][imageWidth * imageHeight];
+      for (int row = 0; row < imageHeight; row++) {
+         int base = offset + row * stride;
+         for (int col = 0; col < imageWidth; col++) {
+            int pixel = rgb[base + col];
+            rtn[0][row * imageWidth + col] = 0xFF & (pixel >> 16);
+            rtn[1][row * imageWidth + col] = 0xFF & (pixel >> 8);
+            rtn[2][row * imageWidth + col] = 0xFF & pixel;
+         }
+      }
+      return rtn;
+   }
+
+   /**
+    * Is this raster the entire buffer (and not just a view)?
+    */
+   private boolean isCompact() {
+      int length = gray != null ? gray.length : rgb.length;
+      return offset == 0 && stride == imageWidth && length == imageWidth * imageHeight;
+   }
+
+   /**
+    * Get just the gray pixels in this raster, one row after another.
+    * This will be the buffer itself if the raster is compact, so don't modify it.
+    */
+   private byte[] compactGray() {
+      if (isCompact()) {
+         return gray;
+      }
+
+      byte[] rtn = new byte[imageWidth * imageHeight];
+      for (int row = 0; row < imageHeight; row++) {
+         System.arraycopy(gray, offset + row * stride, rtn, row * imageWidth, imageWidth);
+      }
+      return rtn;
+   }
+
+   /**
+    * compactGray() for color rasters.
+    */
+   private int[] compactRGB() {
+      if (isCompact()) {
+         return rgb;
+      }
+
+      int[] rtn = new int[imageWidth * imageHeight];
+      for (int row = 0; row < imageHeight; row++) {
+         System.arraycopy(rgb, offset + row * stride, rtn, row * imageWidth, imageWidth);
+      }
+      return rtn;
+   }
+
+   /**
+    * The inverse of planes().
+    * All values must already be in [0, 255].
+    */
+   private static PackedRaster fromPlanes(int[][] planes, int width, int height) {
+      if (planes.length == 1) {
+         byte[] gray = new byte[width * height];
+         for (int i = 0; i < gray.length; i++) {
+            gray[i] = (byte)planes[0][i];
+         }
+         return fromGray(gray, width, height);
+      }
+
+      int[] rgb = new int[width * height];
+      for (int i = 0; i < rgb.length; i++) {
+         rgb[i] = (planes[0][i] << 16) | (planes[1][i] << 8) | planes[2][i];
+      }
+      return new PackedRaster(width, height, null, rgb);
+   }
+
+   private static int clamp(int value) {
+      return value < 0 ? 0 : (value > 255 ? 255 : value);
+   }
+
+   private static int clampIndex(int index, int length) {
+      return index < 0 ? 0 : (index >= length ? length - 1 : index);
+   }
+
+   /**
+    * The source pixels (and their weights) that contribute to each destination pixel
+    * when scaling a single dimension from |srcLength| to |dstLength|.
+    * The contributions for destination pixel i are in [starts[i], starts[i + 1]).
+    */
+   private static class ResampleTable {
+      public final int[] starts;
+      public final int[] indexes;
+      public final double[] weights;
+
+      public ResampleTable(int srcLength, int dstLength) {
+         // Each destination pixel can touch at most (ceil(src / dst) + 1) source pixels.
+         int maxContributions = dstLength * ((srcLength + dstLength - 1) / dstLength + 1);
+
+         starts = new int[dstLength + 1];
+         int[] workingIndexes = new int[maxContributions];
+         double[] workingWeights = new double[maxContributions];
+
+         double ratio = (double)srcLength / dstLength;
+         int count = 0;
+
+         for (int i = 0; i < dstLength; i++) {
+            double start = i * ratio;
+            double end = (i + 1) * ratio;
+
+            starts[i] = count;
+
+            for (int src = (int)start; src < end && src < srcLength; src++) {
+               double coverage = Math.min(end, src + 1) - Math.max(start, src);
+               if (coverage <= 0) {
+                  continue;
+               }
+
+               workingIndexes[count] = src;
+               workingWeights[count] = coverage / ratio;
+               count++;
+            }
+         }
+         starts[dstLength] = count;
+
+         indexes = Arrays.copyOf(workingIndexes, count);
+         weights = Arrays.copyOf(workingWeights, count);
+      }
+   }
+}
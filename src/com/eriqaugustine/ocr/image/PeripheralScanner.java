@@ -0,0 +1,182 @@
+package com.eriqaugustine.ocr.image;
+
+import java.util.Arrays;
+
+/**
+ * Finds the peripheral (edge) points of a square set of discrete pixels.
+ * See ImageUtils.getPeripheralPoints() for what a peripheral point is,
+ *  this gives the exact same points in the same order:
+ *  [layer][direction][line] with the directions
+ *  LTR, RTL, down, up (and then, with diagonals, TL to BR, TR to BL, BL to TR, BR to TL).
+ *
+ * Every scan line is walked once and all the layers are picked up along the way
+ *  (instead of rescanning from the border for every layer).
+ * Points are written as indexes into the pixels (row * sideLength + col), -1 for no point.
+ *
+ * A scanner holds no state between scans, so one can be shared by any number of threads.
+ * Since the points only depend on the pixels, feature extractors that work on the same pixels
+ *  (PloveExtractor and PDCExtractor) can share a single scan.
+ */
+public class PeripheralScanner {
+   private static final int NUM_CARDINAL_DIRECTIONS = 4;
+   private static final int NUM_DIAGONAL_DIRECTIONS = 4;
+
+   private final int sideLength;
+   private final int numLayers;
+   private final boolean includeDiagonal;
+
+   public PeripheralScanner(int sideLength, int numLayers, boolean includeDiagonal) {
+      assert(sideLength > 0);
+      assert(numLayers > 0);
+
+      this.sideLength = sideLength;
+      this.numLayers = numLayers;
+      this.includeDiagonal = includeDiagonal;
+   }
+
+   public int getSideLength() {
+      return sideLength;
+   }
+
+   public int getNumLayers() {
+      return numLayers;
+   }
+
+   public boolean includesDiagonal() {
+      return includeDiagonal;
+   }
+
+   /**
+    * The number of lines scanned in each layer.
+    */
+   public int getLayerSize() {
+      int rtn = NUM_CARDINAL_DIRECTIONS * sideLength;
+
+      if (includeDiagonal) {
+         rtn += NUM_DIAGONAL_DIRECTIONS * (int)(Math.ceil(sideLength / 2.0) * 2);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * The number of points that scan() writes.
+    */
+   public int getNumPoints() {
+      return numLayers * getLayerSize();
+   }
+
+   public int[] scan(boolean[] discretePixels) {
+      int[] rtn = new int[getNumPoints()];
+      scan(discretePixels, rtn);
+      return rtn;
+   }
+
+   /**
+    * Find all the peripheral points in |discretePixels| and put them in |peripherals|.
+    * |discretePixels| must be a getSideLength() x getSideLength() square.
+    */
+   public void scan(boolean[] discretePixels, int[] peripherals) {
+      assert(discretePixels.length == sideLength * sideLength);
+      assert(peripherals.length == getNumPoints());
+
+      int half = (int)(Math.ceil(sideLength / 2.0));
+      int last = sideLength - 1;
+      int layerSize = getLayerSize();
+
+      Arrays.fill(peripherals, -1);
+
+      for (int line = 0; line < sideLength; line++) {
+         // Horizontal LTR
+         walk(discretePixels, peripherals, layerSize, line, 0, 0, 1, sideLength, line);
+
+         // Horizontal RTL
+         walk(discretePixels, peripherals, layerSize, line, last, 0, -1, sideLength, sideLength + line);
+
+         // Vertical Down
+         walk(discretePixels, peripherals, layerSize, 0, line, 1, 0, sideLength, 2 * sideLength + line);
+
+         // Vertical Up
+         walk(discretePixels, peripherals, layerSize, last, line, -1, 0, sideLength, 3 * sideLength + line);
+      }
+
+      if (!includeDiagonal) {
+         return;
+      }
+
+      int base = NUM_CARDINAL_DIRECTIONS * sideLength;
+
+      // Top Left to Bottom Right
+      base = diagonalWalks(discretePixels, peripherals, layerSize,
+                           0, half, 0, 0, half, 0, 1, 1, base);
+
+      // Top Right to Bottom Left
+      base = diagonalWalks(discretePixels, peripherals, layerSize,
+                           last - half, last, 0, 0, half, last, 1, -1, base);
+
+      // Bottom Left to Top Right
+      base = diagonalWalks(discretePixels, peripherals, layerSize,
+                           0, half, last, last - half, last, 0, -1, 1, base);
+
+      // Bottom Right to Top Left
+      base = diagonalWalks(discretePixels, peripherals, layerSize,
+                           last - half, last, last, last - half, last, last, -1, -1, base);
+
+      assert(base == layerSize);
+   }
+
+   /**
+    * The very short diagonals (for ex, the one length ones at the corners) are not very useful.
+    * So, only the longest diagonals are used (same start points as the old ImageUtils.diagonalScan()).
+    * Returns the base for the next set of walks.
+    */
+   private int diagonalWalks(boolean[] pixels, int[] peripherals, int layerSize,
+                             int colStart, int colStop, int baseRow,
+                             int rowStart, int rowStop, int baseCol,
+                             int rowDelta, int colDelta, int base) {
+      for (int col = colStart; col < colStop; col++) {
+         walk(pixels, peripherals, layerSize, baseRow, col, rowDelta, colDelta,
+              diagonalLength(baseRow, col, rowDelta, colDelta), base++);
+      }
+
+      for (int row = rowStart; row < rowStop; row++) {
+         walk(pixels, peripherals, layerSize, row, baseCol, rowDelta, colDelta,
+              diagonalLength(row, baseCol, rowDelta, colDelta), base++);
+      }
+
+      return base;
+   }
+
+   private int diagonalLength(int row, int col, int rowDelta, int colDelta) {
+      int rowSteps = rowDelta > 0 ? sideLength - row : row + 1;
+      int colSteps = colDelta > 0 ? sideLength - col : col + 1;
+      return Math.min(rowSteps, colSteps);
+   }
+
+   /**
+    * Walk |length| pixels from (|row|, |col|) and record the first pixel of each of the first
+    *  |numLayers| bodies at |peripherals|[|position| + layer * |layerSize|].
+    */
+   private void walk(boolean[] pixels, int[] peripherals, int layerSize,
+                     int row, int col, int rowDelta, int colDelta, int length, int position) {
+      int index = row * sideLength + col;
+      int step = rowDelta * sideLength + colDelta;
+
+      int layer = 0;
+      boolean inBody = false;
+
+      for (int i = 0; i < length; i++, index += step) {
+         boolean pixel = pixels[index];
+
+         if (pixel && !inBody) {
+            peripherals[position + layer * layerSize] = index;
+
+            if (++layer == numLayers) {
+               return;
+            }
+         }
+
+         inBody = pixel;
+      }
+   }
+}
@@ -0,0 +1,74 @@
+package com.eriqaugustine.ocr.image;
+
+import static com.eriqaugustine.ocr.image.WrapImage.Pixel;
+
+import magick.MagickException;
+
+import java.awt.Rectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The storage and raw operations behind a WrapImage.
+ * WrapImage handles all the caching and error reporting, a Raster just holds pixels.
+ *
+ * Rasters are treated as immutable by WrapImage.
+ * Every transformation returns a new Raster (which is allowed to be |this| if nothing changed).
+ *
+ * Any MagickException is left for the WrapImage to deal with.
+ * Rasters that do not use ImageMagick for an operation will just never throw.
+ */
+abstract class Raster {
+   public abstract int width();
+
+   public abstract int height();
+
+   /**
+    * The average intensity (see Pixel.average()) of every pixel.
+    * The returned array may be shared with the raster, callers must not modify it.
+    */
+   public abstract byte[] intensities() throws MagickException;
+
+   /**
+    * Get the pixels in an "RGB" channel layout.
+    * The returned array is always a new array.
+    */
+   public abstract byte[] rgbChannels() throws MagickException;
+
+   public abstract Pixel getPixel(int row, int col) throws MagickException;
+
+   public abstract Raster copy() throws MagickException;
+
+   public abstract Raster blur(double radius, double sigma) throws MagickException;
+
+   /**
+    * See WrapImage.edge().
+    */
+   public abstract Raster edge(double radius) throws MagickException;
+
+   public abstract Raster scale(int newWidth, int newHeight) throws MagickException;
+
+   public abstract Raster crop(Rectangle bounds) throws MagickException;
+
+   /**
+    * Crop out many regions at once.
+    * Any region that could not be cropped will be null.
+    */
+   public List<Raster> crop(List<Rectangle> bounds) throws MagickException {
+      List<Raster> rtn = new ArrayList<Raster>();
+
+      for (Rectangle bound : bounds) {
+         rtn.add(crop(bound));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Get a single channel raster where every true pixel is black and every false pixel is white.
+    */
+   public abstract Raster fromDiscrete(boolean[] discretePixels) throws MagickException;
+
+   public abstract void write(String filename) throws MagickException;
+}
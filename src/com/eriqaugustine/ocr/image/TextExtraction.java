@@ -290,9 +290,10 @@ public class TextExtraction extends TextExtractor {
     */
    private List<Rectangle> findBoundingRectangles(WrapImage image) {
       boolean[] pixels = image.getDiscretePixels(WHITE_THRESHOLD);
+      BinaryImage packedPixels = BinaryImage.fromDiscrete(pixels, image.width());
 
-      List<int[]> rowStripes = findStripes(pixels, image.width(), true);
-      List<int[]> colStripes = findStripes(pixels, image.width(), false);
+      List<int[]> rowStripes = findStripes(packedPixels, null, true);
+      List<int[]> colStripes = findStripes(packedPixels, null, false);
 
       List<Rectangle> minimalRects = shrinkStripes(pixels, image.width(), rowStripes, colStripes);
 
@@ -369,27 +370,32 @@ public class TextExtraction extends TextExtractor {
 
    /**
     * Find the stripes of non-whitespace.
+    * Only the pixels inside of |window| count (null for the whole image),
+    *  just as if every pixel outside of it was masked out.
     * Returns: A list of arrays ([start, end] (inclusive)).
     */
-   private List<int[]> findStripes(boolean[] pixels, int width, boolean horizontal) {
+   private List<int[]> findStripes(BinaryImage pixels, Rectangle window, boolean horizontal) {
       List<int[]> stripes = new ArrayList<int[]>();
 
-      int stripeStart = -1;
+      // Stripes can end one past the image, so keep the window inside of it.
+      Rectangle bounds = new Rectangle(0, 0, pixels.width(), pixels.height());
+      window = window == null ? bounds : window.intersection(bounds);
 
-      int outerEnd = horizontal ? pixels.length / width : width;
-      int innerEnd = horizontal ? width : pixels.length / width;
+      int stripeStart = -1;
 
-      for (int outer = 0; outer < outerEnd; outer++) {
-         boolean hasContent = false;
+      int outerEnd = horizontal ? pixels.height() : pixels.width();
 
-         for (int inner = 0; inner < innerEnd; inner++) {
-            int index = horizontal ? MathUtils.rowColToIndex(outer, inner, width) :
-                                     MathUtils.rowColToIndex(inner, outer, width);
+      // A column has content if anything in it (inside of the window) is set.
+      BinaryImage projection = horizontal ? null : pixels.columnProjection(window.y, window.height);
 
-            if (pixels[index]) {
-               hasContent = true;
-               break;
-            }
+      for (int outer = 0; outer < outerEnd; outer++) {
+         boolean hasContent;
+         if (horizontal) {
+            hasContent = outer >= window.y && outer < window.y + window.height &&
+                         pixels.count(outer, 1, window.x, window.width) > 0;
+         } else {
+            hasContent = outer >= window.x && outer < window.x + window.width &&
+                         projection.get(0, outer);
          }
 
          if (stripeStart == -1 && hasContent) {
@@ -550,10 +556,10 @@ public class TextExtraction extends TextExtractor {
       //  Horizontal should be the same, but with the major and minor
       //  axis switched.
 
-      boolean[] pixels = image.getDiscretePixels(WHITE_THRESHOLD);
+      BinaryImage pixels = image.getBinaryImage(WHITE_THRESHOLD);
 
       // TODO(eriq): Direction
-      List<int[]> majorStripes = findStripes(pixels, image.width(), false);
+      List<int[]> majorStripes = findStripes(pixels, null, false);
 
       // Merge the stripes going RtL.
       // TODO(eriq): Direction
@@ -567,7 +573,7 @@ public class TextExtraction extends TextExtractor {
 
       for (int[] majorStripe : mergedStripes) {
          // TODO(eriq): Direction
-         List<int[]> minorStripes = findMinorStripes(pixels, image.width(), majorStripe, meanMajorStripeSize, true);
+         List<int[]> minorStripes = findMinorStripes(pixels, majorStripe, meanMajorStripeSize, true);
          double meanMinorStripeSize = getMeanStripeSize(minorStripes);
 
          for (int[] minorStripe : minorStripes) {
@@ -576,23 +582,10 @@ public class TextExtraction extends TextExtractor {
                                                     majorStripe[1] - majorStripe[0] + 1,
                                                     minorStripe[1] - minorStripe[0] + 1);
 
-            // Mask out the pixels that are not in this character.
-            boolean[] fullCharacherPixels = new boolean[pixels.length];
-            for (int index = 0; index < pixels.length; index++) {
-               int row = MathUtils.indexToRow(index, image.width());
-               int col = MathUtils.indexToCol(index, image.width());
-
-               if (col >= majorStripe[0] && col <= majorStripe[1]
-                   && row >= minorStripe[0] && row <= minorStripe[1]) {
-                  fullCharacherPixels[index] = pixels[index];
-               } else {
-                  fullCharacherPixels[index] = false;
-               }
-            }
-
             // Look for any furigana.
+            // Only the pixels in this character count.
             // TODO(eriq): Direction
-            List<int[]> fullCharacterStripes = findStripes(fullCharacherPixels, image.width(), false);
+            List<int[]> fullCharacterStripes = findStripes(pixels, fullCharacter, false);
 
             // TODO(eriq): Direction
             // TODO(eriq): Consider using the mean from the furi stripes.
@@ -612,24 +605,11 @@ public class TextExtraction extends TextExtractor {
                furiMajorStripe[0] = fullCharacterStripes.get(1)[0];
                furiMajorStripe[1] = fullCharacterStripes.get(fullCharacterStripes.size() - 1)[1];
 
-               // Mask out the pixels that are not in this furigana stripe.
-               boolean[] furiCharacherPixels = new boolean[pixels.length];
-               for (int index = 0; index < pixels.length; index++) {
-                  int row = MathUtils.indexToRow(index, image.width());
-                  int col = MathUtils.indexToCol(index, image.width());
-
-                  if (col >= majorStripe[0] && col <= majorStripe[1]
-                     && row >= minorStripe[0] && row <= minorStripe[1]) {
-                     furiCharacherPixels[index] = pixels[index];
-                  } else {
-                     furiCharacherPixels[index] = false;
-                  }
-               }
-
                // Split multiple furigana characters.
+               // Only the pixels in this character count.
                // TODO(eriq): Should we merge these? (forward?)
                // TODO(eriq): Direction
-               List<int[]> furiMinorStripes = findStripes(furiCharacherPixels, image.width(), true);
+               List<int[]> furiMinorStripes = findStripes(pixels, fullCharacter, true);
 
                // furiMinorStripes = mergeStripes(furiMinorStripes, getMeanStripeSize(furiMinorStripes), true);
 
@@ -662,24 +642,16 @@ public class TextExtraction extends TextExtractor {
     * axis is discovered (|majorStripe|).
     * So, we assume that the strip of text we get represents only a single row or column of text.
     */
-   private List<int[]> findMinorStripes(boolean[] oldPixels, int imageWidth, int[] majorStripe, double meanMajorStripeSize, boolean horizontal) {
+   private List<int[]> findMinorStripes(BinaryImage pixels, int[] majorStripe, double meanMajorStripeSize, boolean horizontal) {
       // TODO(eriq): This is a simplified, test version.
       //  See notes for full version.
 
-      // Mask out any pixels not in this stripe.
+      // Only the pixels in this stripe count.
       // TODO(eriq): Direction
-      boolean[] pixels = new boolean[oldPixels.length];
-      for (int index = 0; index < pixels.length; index++) {
-         int col = MathUtils.indexToCol(index, imageWidth);
-         if (col >= majorStripe[0] && col <= majorStripe[1]) {
-            pixels[index] = oldPixels[index];
-         } else {
-            pixels[index] = false;
-         }
-      }
+      Rectangle stripe = new Rectangle(majorStripe[0], 0, majorStripe[1] - majorStripe[0] + 1, pixels.height());
 
       // TODO(eriq): Direction.
-      List<int[]> minorStripes = findStripes(pixels, imageWidth, true);
+      List<int[]> minorStripes = findStripes(pixels, stripe, true);
 
       // Merge the stripes going Top to Bottom.
       // TODO(eriq): Direction
@@ -823,14 +795,14 @@ public class TextExtraction extends TextExtractor {
                                                 Rectangle furiganaBounds) {
       List<Rectangle> rtn = new ArrayList<Rectangle>();
 
-      boolean[] pixels = furiganaImage.getDiscretePixels(WHITE_THRESHOLD);
+      BinaryImage pixels = furiganaImage.getBinaryImage(WHITE_THRESHOLD);
 
       // Assert that |furiganaImage| is local while |furiganaBounds| is global.
       assert(furiganaImage.width() == furiganaBounds.width);
 
       int expectedHeight = furiganaImage.width();
 
-      List<int[]> rowStripes = findStripes(pixels, furiganaImage.width(), true);
+      List<int[]> rowStripes = findStripes(pixels, null, true);
 
       int currentStart = 0;
       int currentEnd = 0;
@@ -29,11 +29,12 @@ public class TextImage {
          return new WrapImage[0][0];
       }
 
-      byte[] pixels = image.getAveragePixels();
+      // Only completely black pixels count as content.
+      BinaryImage pixels = image.getBinaryImage(0);
 
       // [[rowStart, rowEnd], ...]
-      List<int[]> rows = findStripes(pixels, image.width(), true);
-      List<int[]> cols = findStripes(pixels, image.width(), false);
+      List<int[]> rows = findStripes(pixels, true);
+      List<int[]> cols = findStripes(pixels, false);
 
       rows = normalizeStripes(rows);
       cols = normalizeStripes(cols);
@@ -141,28 +142,20 @@ public class TextImage {
       return widths;
    }
 
-   private static List<int[]> findStripes(byte[] pixels, int width, boolean horizontal) {
+   private static List<int[]> findStripes(BinaryImage pixels, boolean horizontal) {
       List<int[]> stripes = new ArrayList<int[]>();
 
       // Note: The image has already been shrunk, so the first and last rows/cols MUST be
       // boundaries.
       int stripeStart = 0;
 
-      int outerEnd = horizontal ? pixels.length / width : width;
-      int innerEnd = horizontal ? width : pixels.length / width;
+      int outerEnd = horizontal ? pixels.height() : pixels.width();
 
-      for (int outer = 0; outer < outerEnd; outer++) {
-         boolean hasContent = false;
-
-         for (int inner = 0; inner < innerEnd; inner++) {
-            int index = horizontal ? MathUtils.rowColToIndex(outer, inner, width) :
-                                     MathUtils.rowColToIndex(inner, outer, width);
+      // A column has content if anything in it is set.
+      BinaryImage projection = horizontal ? null : pixels.columnProjection();
 
-            if (pixels[index] == 0) {
-               hasContent = true;
-               break;
-            }
-         }
+      for (int outer = 0; outer < outerEnd; outer++) {
+         boolean hasContent = horizontal ? pixels.rowHasContent(outer) : projection.get(0, outer);
 
          if (stripeStart == -1 && hasContent) {
             stripeStart = outer;
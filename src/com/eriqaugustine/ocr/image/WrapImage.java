@@ -14,22 +14,18 @@ import org.apache.logging.log4j.Logger;
 
 import java.awt.Color;
 import java.awt.Rectangle;
-import java.awt.Dimension;
 
 import java.nio.ByteBuffer;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Queue;
 
 /**
  * A wrapper for whatever image library/representation that we are using.
- * Currently ImageMagick.
+ * The pixels live in a Raster, see Backend for the choices.
+ * ImageMagick is always used to read/write files and render text.
  * This class strives to throw as few errors as possible during normal operations.
  *
  * This class will continually cache the image data in different forms.
@@ -50,12 +46,25 @@ import java.util.Queue;
 public class WrapImage {
    private static Logger logger = LogManager.getLogger(WrapImage.class.getName());
 
-   private MagickImage internalImage;
+   /**
+    * Where the pixels live and who does the work on them.
+    *  MAGICK - Everything stays inside of ImageMagick (the original behavior).
+    *  PACKED - Flat Java arrays, ImageMagick is only used for decoding and encoding.
+    */
+   public static enum Backend {
+      MAGICK,
+      PACKED
+   }
+
+   private static Backend backend = loadBackend();
+
+   private Raster raster;
 
    private int imageWidth;
    private int imageHeight;
 
-   private Pixel[] cachePixels;
+   // The average intensity of every pixel.
+   private byte[] cacheIntensities;
    // {<threshold>: discretePixels}
    private Map<Integer, boolean[]> cacheDiscretePixels;
 
@@ -63,29 +72,64 @@ public class WrapImage {
     * Call the static constructors for access.
     */
    private WrapImage() {
-      internalImage = null;
+      raster = null;
 
       imageWidth = 0;
       imageHeight = 0;
 
-      cachePixels = null;
+      cacheIntensities = null;
       cacheDiscretePixels = null;
    }
 
    /**
-    * The WrapImage now owns the MagickImage.
+    * The WrapImage now owns the Raster.
     */
-   private WrapImage(MagickImage image) throws MagickException {
-      internalImage = image;
+   private WrapImage(Raster raster) {
+      this.raster = raster;
 
-      Dimension dimensions = image.getDimension();
-      imageWidth = dimensions.width;
-      imageHeight = dimensions.height;
+      imageWidth = raster.width();
+      imageHeight = raster.height();
 
-      cachePixels = null;
+      cacheIntensities = null;
       cacheDiscretePixels = new HashMap<Integer, boolean[]>();
    }
 
+   /**
+    * The WrapImage now owns the MagickImage.
+    * With the PACKED backend, this is where the pixels leave ImageMagick.
+    */
+   private static WrapImage wrapMagickImage(MagickImage image) throws MagickException {
+      if (backend == Backend.PACKED) {
+         return new WrapImage(PackedRaster.fromMagickImage(image));
+      }
+
+      return new WrapImage(new MagickRaster(image));
+   }
+
+   public static Backend getBackend() {
+      return backend;
+   }
+
+   /**
+    * Only images created after this call will use |newBackend|.
+    */
+   public static void setBackend(Backend newBackend) {
+      backend = newBackend;
+   }
+
+   private static Backend loadBackend() {
+      if (!Props.has("IMAGE_BACKEND")) {
+         return Backend.MAGICK;
+      }
+
+      try {
+         return Backend.valueOf(Props.getString("IMAGE_BACKEND").toUpperCase());
+      } catch (IllegalArgumentException ex) {
+         logger.warn("Unknown image backend: " + Props.getString("IMAGE_BACKEND"), ex);
+         return Backend.MAGICK;
+      }
+   }
+
    // BEGIN Static contructors.
 
    /**
@@ -104,7 +148,7 @@ public class WrapImage {
       try {
          ImageInfo info = new ImageInfo(filename);
          MagickImage image = new MagickImage(info);
-         return new WrapImage(image);
+         return wrapMagickImage(image);
       } catch (MagickException ex) {
          logger.error("Could not load image from file.", ex);
          return null;
@@ -126,9 +170,17 @@ public class WrapImage {
       }
 
       try {
+         if (backend == Backend.PACKED) {
+            if (channelMap.equals("I")) {
+               return new WrapImage(PackedRaster.fromGray(channelPixels.clone(), width, height));
+            } else if (channelMap.equals("RGB")) {
+               return new WrapImage(PackedRaster.fromRGBChannels(channelPixels, width, height));
+            }
+         }
+
          MagickImage newImage = new MagickImage();
          newImage.constituteImage(width, height, channelMap, channelPixels);
-         return new WrapImage(newImage);
+         return wrapMagickImage(newImage);
       } catch (MagickException ex) {
          logger.error("Could not load image from pixels.", ex);
          return null;
@@ -254,7 +306,7 @@ public class WrapImage {
 
          image.annotateImage(draw);
 
-         WrapImage rtn = new WrapImage(image);
+         WrapImage rtn = wrapMagickImage(image);
 
          if (shrink) {
             rtn = rtn.shrink(threshold);
@@ -308,7 +360,7 @@ public class WrapImage {
          info.setFont(font);
          MagickImage image = new MagickImage(info);
 
-         WrapImage rtn = new WrapImage(image);
+         WrapImage rtn = wrapMagickImage(image);
 
          if (shrink) {
             rtn = rtn.shrink();
@@ -363,7 +415,7 @@ public class WrapImage {
          return new byte[0];
       }
 
-      byte[] pixels = pixelsToRGBChannel(getPixels(true));
+      byte[] pixels = getRGBChannels();
 
       ByteBuffer buffer = ByteBuffer.allocate(12 + pixels.length);
       buffer.putInt(imageWidth);
@@ -374,6 +426,17 @@ public class WrapImage {
       return buffer.array();
    }
 
+   /**
+    * The length of getBytes(), without making it.
+    */
+   public long getNumBytes() {
+      if (isEmpty()) {
+         return 0;
+      }
+
+      return 12 + (long)imageWidth * imageHeight * 3;
+   }
+
    /**
     * Get a single pixel from the image.
     * Typically, one would want much more than just a single pixel.
@@ -387,18 +450,16 @@ public class WrapImage {
          throw new IndexOutOfBoundsException();
       }
 
-      if (noCache) {
-         try {
-            return new Pixel(internalImage.getOnePixel(col, row));
-         } catch (MagickException ex) {
-            logger.warn("Could not get a single pixel.", ex);
-            // Let it fall through to the cache version.
-         }
+      if (!noCache) {
+         loadPixelCache();
       }
 
-      loadPixelCache();
-
-      return cachePixels[MathUtils.rowColToIndex(row, col, imageWidth)];
+      try {
+         return raster.getPixel(row, col);
+      } catch (MagickException ex) {
+         logger.error("Could not get a single pixel.", ex);
+         throw new RuntimeImageException("Could not get a single pixel.", ex);
+      }
    }
 
    public boolean getDiscretePixel(int row, int col, int threshold, boolean noCache) {
@@ -409,8 +470,7 @@ public class WrapImage {
 
       if (noCache) {
          try {
-            PixelPacket pixel = internalImage.getOnePixel(col, row);
-            return (new Pixel(internalImage.getOnePixel(col, row))).average() <= threshold;
+            return raster.getPixel(row, col).average() <= threshold;
          } catch (MagickException ex) {
             logger.warn("Could not get a single discrete pixel.", ex);
             // Let it fall through to the cache version.
@@ -426,42 +486,31 @@ public class WrapImage {
    /**
     * Get a new version of this image.
     * The new image will not have any cached data.
+    * With the PACKED backend, the pixels are shared until one of the images is transformed.
     */
    public WrapImage copy() {
       if (isEmpty()) {
          return getEmptyImage();
       }
 
-      loadPixelCache();
-      return getImageFromPixels(cachePixels, imageWidth, imageHeight);
+      try {
+         return new WrapImage(raster.copy());
+      } catch (MagickException ex) {
+         logger.error("Could not copy image.", ex);
+         return null;
+      }
    }
 
    /**
     * Returns the pixels for this image.
-    * If |fromCache| is true, then this WrapImage will sacrafice it's pixel cache (if it exists)
-    * and return it in this method. This means that the pixel cache will be emptied, but no
-    * copies will be made.
-    * The cache is guarenteed to be correct, it is purely a speed issue.
+    * The Pixels are not cached (only the intensities are), so these are always new.
     */
-   public Pixel[] getPixels(boolean fromCache) {
+   public Pixel[] getPixels() {
       if (isEmpty()) {
          return new Pixel[0];
       }
 
-      if (fromCache && cachePixels != null) {
-         Pixel[] rtn = cachePixels;
-         cachePixels = null;
-         return rtn;
-      }
-
-      return extractPixels();
-   }
-
-   /**
-    * Simple version of getPixels() that does not take from the cache.
-    */
-   public Pixel[] getPixels() {
-      return getPixels(false);
+      return rgbChannelToPixels(getRGBChannels());
    }
 
    public byte[] getAveragePixels() {
@@ -470,18 +519,30 @@ public class WrapImage {
       }
 
       loadPixelCache();
+      return cacheIntensities.clone();
+   }
 
-      byte[] rtn = new byte[cachePixels.length];
-      for (int i = 0; i < rtn.length; i++) {
-         rtn[i] = cachePixels[i].average();
+   /**
+    * Get the pixels in an "RGB" channel layout.
+    */
+   public byte[] getRGBChannels() {
+      if (isEmpty()) {
+         return new byte[0];
       }
 
-      return rtn;
+      try {
+         return raster.rgbChannels();
+      } catch (MagickException ex) {
+         logger.error("Could not get the image channels.", ex);
+         throw new RuntimeImageException("Could not get the image channels.", ex);
+      }
    }
 
    /**
     * Get the discrete pixels for this image.
-    * See getPixels() for all the notes on this.
+    * If |fromCache| is true, then this WrapImage will sacrifice its discrete pixel cache for |threshold|
+    *  (if it exists) and return it in this method, so no copy is made.
+    * The cache is guaranteed to be correct, it is purely a speed issue.
     */
    public boolean[] getDiscretePixels(int threshold, boolean fromCache) {
       if (isEmpty()) {
@@ -492,7 +553,8 @@ public class WrapImage {
          return cacheDiscretePixels.remove(new Integer(threshold));
       }
 
-      return extractDiscretePixels(extractPixels(), threshold);
+      loadPixelCache();
+      return extractDiscretePixels(cacheIntensities, threshold);
    }
 
    /**
@@ -506,6 +568,23 @@ public class WrapImage {
       return getDiscretePixels(Props.getInt("DEFAULT_WHITE_THRESHOLD", 150), false);
    }
 
+   /**
+    * Get the discrete pixels for this image packed into bits.
+    * Unlike getDiscretePixels(), this is never cached.
+    */
+   public BinaryImage getBinaryImage(int threshold) {
+      if (isEmpty()) {
+         return new BinaryImage(0, 0);
+      }
+
+      loadPixelCache();
+      return BinaryImage.fromIntensities(cacheIntensities, imageWidth, threshold);
+   }
+
+   public BinaryImage getBinaryImage() {
+      return getBinaryImage(Props.getInt("DEFAULT_WHITE_THRESHOLD", 150));
+   }
+
    /**
     * Write out the image to a file.
     * The image type is infered from the extension.
@@ -529,9 +608,7 @@ public class WrapImage {
       }
 
       try {
-         ImageInfo info = new ImageInfo(filename);
-         internalImage.setFileName(filename);
-         internalImage.writeImage(info);
+         raster.write(filename);
       } catch (MagickException ex) {
          logger.error("Unable to write image.", ex);
          return false;
@@ -545,7 +622,7 @@ public class WrapImage {
     * The only way to get an empty image is to call WrapImage.getEmptyImage().
     */
    public boolean isEmpty() {
-      return internalImage == null;
+      return raster == null;
    }
 
    // Transformations
@@ -567,7 +644,7 @@ public class WrapImage {
       clearCache();
 
       try {
-         internalImage = internalImage.blurImage(radius, sigma);
+         raster = raster.blur(radius, sigma);
       } catch (MagickException ex) {
          logger.error("Unable to blur image.", ex);
          return false;
@@ -588,7 +665,7 @@ public class WrapImage {
       clearCache();
 
       try {
-         internalImage = internalImage.edgeImage(radius);
+         raster = raster.edge(radius);
       } catch (MagickException ex) {
          logger.error("Unable to edge image.", ex);
          return false;
@@ -610,11 +687,10 @@ public class WrapImage {
       clearCache();
 
       try {
-         internalImage = internalImage.scaleImage(newWidth, newHeight);
+         raster = raster.scale(newWidth, newHeight);
 
-         Dimension dimensions = internalImage.getDimension();
-         imageWidth = dimensions.width;
-         imageHeight = dimensions.height;
+         imageWidth = raster.width();
+         imageHeight = raster.height();
       } catch (MagickException ex) {
          logger.error("Unable to scale image.", ex);
          return false;
@@ -634,49 +710,22 @@ public class WrapImage {
          return false;
       }
 
-      clearCache();
-
-      boolean[] pixels = extractDiscretePixels(extractPixels(), threshold);
-      List<Integer> blob;
+      loadPixelCache();
+      boolean[] pixels = extractDiscretePixels(cacheIntensities, threshold);
 
-      boolean[] visited = new boolean[pixels.length];
-      for (int i = 0; i < pixels.length; i++) {
-         visited[i] = false;
-      }
+      clearCache();
 
+      // If a blob is too small, clear out all its pixels.
+      ConnectedComponents components = ConnectedComponents.label(pixels, imageWidth);
       for (int i = 0; i < pixels.length; i++) {
-         if (visited[i]) {
-            continue;
-         }
-
-         visited[i] = true;
-
-         if (pixels[i]) {
-            blob = getBlob(pixels, imageWidth, i);
-
-            // If the blob is too small, clear out all its pixels.
-            if (blob.size() < minBlobSize) {
-               for (Integer blobPixel : blob) {
-                  pixels[blobPixel.intValue()] = false;
-               }
-            }
-
-            // Mark all the blob pixels as visited.
-            // Could use an else when checking the blob size, but this is
-            // more readable.
-            for (Integer blobPixel : blob) {
-               visited[blobPixel.intValue()] = true;
-            }
+         int label = components.getLabel(i);
+         if (label != ConnectedComponents.NO_LABEL && components.area(label) < minBlobSize) {
+            pixels[i] = false;
          }
       }
 
-      byte[] bytePixels = new byte[pixels.length];
-      for (int i = 0; i < pixels.length; i++) {
-         bytePixels[i] = pixels[i] ? 0 : (byte)0xFF;
-      }
-
       try {
-         internalImage.constituteImage(imageWidth, imageHeight, "I", bytePixels);
+         raster = raster.fromDiscrete(pixels);
       } catch (MagickException ex) {
          logger.error("Could not consitite scrubbed image from bytes.", ex);
          return false;
@@ -685,43 +734,6 @@ public class WrapImage {
       return true;
    }
 
-   /**
-    * Find the region of connecting pixels that contains |startIndex|.
-    */
-   private static List<Integer> getBlob(boolean[] pixels, int width, int startIndex) {
-      List<Integer> rtn = new ArrayList<Integer>();
-
-      if (!pixels[startIndex]) {
-         return rtn;
-      }
-
-      Set<Integer> explored = new HashSet<Integer>();
-      Queue<Integer> toExplore = new LinkedList<Integer>();
-      List<Integer> neighbors;
-
-      toExplore.add(new Integer(startIndex));
-      while (!toExplore.isEmpty()) {
-         int index = toExplore.remove().intValue();
-
-         if (explored.contains(new Integer(index))) {
-            continue;
-         }
-
-         explored.add(new Integer(index));
-         rtn.add(new Integer(index));
-
-         // Check all the cardinal directions.
-         neighbors = MathUtils.neighbors(index, width, pixels.length);
-         for (Integer neighborIndex : neighbors) {
-            if (pixels[neighborIndex.intValue()] && !explored.contains(neighborIndex.intValue())) {
-               toExplore.add(neighborIndex);
-            }
-         }
-      }
-
-      return rtn;
-   }
-
    // Immutable Transformations
 
    /**
@@ -751,6 +763,9 @@ public class WrapImage {
       return shrink(Props.getInt("DEFAULT_WHITE_THRESHOLD", 150));
    }
 
+   /**
+    * With the PACKED backend, the crop is just a view into this image's pixels.
+    */
    public WrapImage crop(Rectangle bounds) {
       if (isEmpty()) {
          return getEmptyImage();
@@ -759,9 +774,7 @@ public class WrapImage {
       assert(bounds.x >= 0 && bounds.y >= 0);
 
       try {
-         // ImageMagick is pretty flaky about crops of crops, so just make a full copy.
-         MagickImage image = copy().internalImage.cropImage(bounds);
-         return new WrapImage(image);
+         return new WrapImage(raster.crop(bounds));
       } catch (MagickException ex) {
          logger.error("Could not crop image.", ex);
          return null;
@@ -770,8 +783,7 @@ public class WrapImage {
 
    /**
     * We need a special crop method for many crops at once because ImageMagick cannot crop a crop.
-    * So, if the base image is large, we would have to make many copies of it.
-    * Instead, we will make one copy and then crop that many times.
+    * See MagickRaster.crop(List).
     */
    public List<WrapImage> crop(List<Rectangle> bounds) {
       List<WrapImage> rtn = new ArrayList<WrapImage>();
@@ -783,18 +795,23 @@ public class WrapImage {
          return rtn;
       }
 
-      MagickImage copyImage = copy().internalImage;
-
-      for (Rectangle bound : bounds) {
-         assert(bound.x >= 0 && bound.y >= 0);
+      List<Raster> crops;
+      try {
+         crops = raster.crop(bounds);
+      } catch (MagickException ex) {
+         logger.error("Could not crop image.", ex);
+         for (int i = 0; i < bounds.size(); i++) {
+            rtn.add(getEmptyImage());
+         }
+         return rtn;
+      }
 
-         try {
-            // ImageMagick is pretty flaky about crops of crops, so just make a full copy.
-            MagickImage image = copyImage.cropImage(bound);
-            rtn.add(new WrapImage(image));
-         } catch (MagickException ex) {
-            logger.error("Could not crop image.", ex);
+      for (Raster crop : crops) {
+         if (crop == null) {
+            logger.error("Could not crop image.");
             rtn.add(getEmptyImage());
+         } else {
+            rtn.add(new WrapImage(crop));
          }
       }
 
@@ -807,7 +824,7 @@ public class WrapImage {
     * Dump all of the internal cache that this image holds.
     */
    public void clearCache() {
-      cachePixels = null;
+      cacheIntensities = null;
       cacheDiscretePixels = new HashMap<Integer, boolean[]>();
    }
 
@@ -817,11 +834,16 @@ public class WrapImage {
     * It is best to call this in every method that will use the cache.
     */
    private void loadPixelCache() {
-      if (isEmpty() || cachePixels != null) {
+      if (isEmpty() || cacheIntensities != null) {
          return;
       }
 
-      cachePixels = extractPixels();
+      try {
+         cacheIntensities = raster.intensities();
+      } catch (MagickException ex) {
+         logger.error("Could not dispatch image for cache.", ex);
+         throw new RuntimeImageException("Could not dispatch image for cache.", ex);
+      }
    }
 
    /**
@@ -837,7 +859,7 @@ public class WrapImage {
       loadPixelCache();
 
       cacheDiscretePixels.put(new Integer(threshold),
-                              extractDiscretePixels(cachePixels, threshold));
+                              extractDiscretePixels(cacheIntensities, threshold));
    }
 
    // Non-Static Utilities
@@ -851,7 +873,7 @@ public class WrapImage {
       }
 
       loadPixelCache();
-      return scanRows(cachePixels, imageWidth, threshold, 0, imageHeight - 1, 1);
+      return scanRows(cacheIntensities, imageWidth, threshold, 0, imageHeight - 1, 1);
    }
 
    /**
@@ -863,7 +885,7 @@ public class WrapImage {
       }
 
       loadPixelCache();
-      return scanRows(cachePixels, imageWidth, threshold, imageHeight - 1, 0, -1);
+      return scanRows(cacheIntensities, imageWidth, threshold, imageHeight - 1, 0, -1);
    }
 
    public int forwardScanCols(int threshold) {
@@ -872,7 +894,7 @@ public class WrapImage {
       }
 
       loadPixelCache();
-      return scanCols(cachePixels, imageWidth, threshold, 0, imageWidth - 1, 1);
+      return scanCols(cacheIntensities, imageWidth, threshold, 0, imageWidth - 1, 1);
    }
 
    public int backScanCols(int threshold) {
@@ -881,7 +903,7 @@ public class WrapImage {
       }
 
       loadPixelCache();
-      return scanCols(cachePixels, imageWidth, threshold, imageWidth - 1, 0, -1);
+      return scanCols(cacheIntensities, imageWidth, threshold, imageWidth - 1, 0, -1);
    }
 
    // Static Utilities
@@ -956,6 +978,43 @@ public class WrapImage {
       return -1;
    }
 
+   /**
+    * scanRows() over average intensities (see getAveragePixels()).
+    */
+   public static int scanRows(byte[] intensities, int width, int threshold,
+                              int rowStart, int rowEnd, int rowStep) {
+      assert((Math.abs(rowEnd - rowStart) + 1) % Math.abs(rowStep) == 0);
+
+      for (int row = rowStart; row != rowEnd + rowStep; row += rowStep) {
+         int rowOffset = row * width;
+         for (int col = 0; col < width; col++) {
+            if ((0xFF & intensities[rowOffset + col]) <= threshold) {
+               return row;
+            }
+         }
+      }
+
+      return -1;
+   }
+
+   /**
+    * scanCols() over average intensities (see getAveragePixels()).
+    */
+   public static int scanCols(byte[] intensities, int width, int threshold,
+                              int colStart, int colEnd, int colStep) {
+      assert((Math.abs(colEnd - colStart) + 1) % Math.abs(colStep) == 0);
+
+      for (int col = colStart; col != colEnd + colStep; col += colStep) {
+         for (int index = col; index < intensities.length; index += width) {
+            if ((0xFF & intensities[index]) <= threshold) {
+               return col;
+            }
+         }
+      }
+
+      return -1;
+   }
+
    // Support Classes
 
    /**
@@ -1017,30 +1076,21 @@ public class WrapImage {
        * Return is byte, and not float on purpose.
        */
       public byte average() {
+         return average(red, green, blue);
+      }
+
+      public static byte average(byte red, byte green, byte blue) {
          return (byte)((red + green + blue) / 3);
       }
    }
 
    // Deep Internals
 
-   private Pixel[] extractPixels() {
-      byte[] channelPixels = new byte[length() * 3];
-
-      try {
-         internalImage.dispatchImage(0, 0, imageWidth, imageHeight, "RGB", channelPixels);
-      } catch (MagickException ex) {
-         logger.error("Could not dispatch image for cache.", ex);
-         throw new RuntimeImageException("Could not dispatch image for cache.", ex);
-      }
-
-      return rgbChannelToPixels(channelPixels);
-   }
-
-   private boolean[] extractDiscretePixels(Pixel[] pixels, int threshold) {
-      boolean[] discretePixels = new boolean[pixels.length];
+   private boolean[] extractDiscretePixels(byte[] intensities, int threshold) {
+      boolean[] discretePixels = new boolean[intensities.length];
 
       for (int i = 0; i < discretePixels.length; i++) {
-         discretePixels[i] = (0xFF & pixels[i].average()) <= threshold;
+         discretePixels[i] = (0xFF & intensities[i]) <= threshold;
       }
 
       return discretePixels;
@@ -1055,6 +1105,6 @@ public class WrapImage {
       imageWidth = 0;
       imageHeight = 0;
 
-      internalImage = null;
+      raster = null;
    }
 }
@@ -17,11 +17,13 @@ import java.util.Set;
 public final class PDC {
    public static final int SCALE_SIZE = 64;
 
-   private static final int NUM_LAYERS = 3;
+   static final int NUM_LAYERS = 3;
 
    private static final int NUM_CARDINAL_SCAN_DIRECTIONS = 4;
    private static final int NUM_DIAGONAL_SCAN_DIRECTIONS = 4;
 
+   static final int NUM_SCAN_DIRECTIONS = NUM_CARDINAL_SCAN_DIRECTIONS + NUM_DIAGONAL_SCAN_DIRECTIONS;
+
    /**
     * The deltas [row, col] for the different directions available to PDC.
     * Starts at 12 and moves clockwise by 1:30.
@@ -0,0 +1,248 @@
+package com.eriqaugustine.ocr.pdc;
+
+import com.eriqaugustine.ocr.image.PeripheralScanner;
+import com.eriqaugustine.ocr.image.WrapImage;
+
+import java.util.Arrays;
+
+/**
+ * A reusable PDC extractor that produces exactly the same features as the PDCInfo dimension methods.
+ * All the work after preprocessing (scale) is done in buffers that are allocated once,
+ *  so an extractor is NOT thread safe. Keep one per thread.
+ *
+ * The length of every ray (every pixel in every one of the PDC_DIRECTION_DELTAS) is put in a table
+ *  when the extractor is made.
+ * Each table is filled in a single sweep (a ray is one longer than the ray of the next pixel along it),
+ *  so looking up a DC's lengths is O(1) instead of walking every ray.
+ * Peripheral points come from a PeripheralScanner and can be passed in if they were already found
+ *  for the same pixels.
+ */
+public class PDCExtractor {
+   private static final int NUM_DIRECTIONS = PDC.PDC_DIRECTION_DELTAS.length;
+
+   private final int sideLength;
+   private final boolean combineDirections;
+   private final int groupSize;
+
+   // [direction][pixel] flattened.
+   private final int[] rayLengths;
+
+   private final PeripheralScanner scanner;
+
+   // [layer][direction][line] flattened, see PeripheralScanner.
+   private final int[] peripherals;
+
+   // The ungrouped DCs. Only used when grouping.
+   private final double[] ungrouped;
+
+   /**
+    * Use the current PDC.SCALE_SIZE.
+    */
+   public PDCExtractor(boolean combineDirections, int groupSize) {
+      this(PDC.SCALE_SIZE, combineDirections, groupSize);
+   }
+
+   /**
+    * |combineDirections| gives the half DCs (PDCInfo.halfPDCDimensions()).
+    * |groupSize| greater than 1 gives the grouped DCs (PDCInfo.*GroupedDimensions()).
+    */
+   public PDCExtractor(int sideLength, boolean combineDirections, int groupSize) {
+      assert(sideLength > 0 && sideLength % 2 == 0);
+      assert(groupSize > 0 && sideLength % groupSize == 0);
+
+      this.sideLength = sideLength;
+      this.combineDirections = combineDirections;
+      this.groupSize = groupSize;
+
+      rayLengths = new int[NUM_DIRECTIONS * sideLength * sideLength];
+      for (int direction = 0; direction < NUM_DIRECTIONS; direction++) {
+         fillRayLengths(direction);
+      }
+
+      scanner = new PeripheralScanner(sideLength, PDC.NUM_LAYERS, true);
+      peripherals = new int[scanner.getNumPoints()];
+      assert(peripherals.length == PDC.NUM_LAYERS * PDC.NUM_SCAN_DIRECTIONS * sideLength);
+
+      if (groupSize > 1) {
+         ungrouped = new double[peripherals.length * getNumDimensions()];
+      } else {
+         ungrouped = null;
+      }
+   }
+
+   public int getSideLength() {
+      return sideLength;
+   }
+
+   /**
+    * The scanner that gives the peripheral points this extractor expects.
+    */
+   public PeripheralScanner getPeripheralScanner() {
+      return scanner;
+   }
+
+   /**
+    * The number of values in each DC.
+    */
+   public int getNumDimensions() {
+      return combineDirections ? NUM_DIRECTIONS / 2 : NUM_DIRECTIONS;
+   }
+
+   public int getNumberOfFeatures() {
+      return peripherals.length / groupSize * getNumDimensions();
+   }
+
+   public double[] extract(WrapImage image) {
+      double[] rtn = new double[getNumberOfFeatures()];
+      extract(image, rtn);
+      return rtn;
+   }
+
+   /**
+    * Run PDC on an image and put the results in |features|.
+    * |image| must be already be binary (just like PDC.pdc()).
+    */
+   public void extract(WrapImage image, double[] features) {
+      assert(features.length == getNumberOfFeatures());
+
+      if (image.isEmpty()) {
+         Arrays.fill(features, 0);
+         return;
+      }
+
+      image = image.copy();
+      image.scale(sideLength, sideLength);
+
+      extract(image.getDiscretePixels(), features);
+   }
+
+   /**
+    * Run PDC on pixels that are already scaled.
+    * |discretePixels| must be a getSideLength() x getSideLength() square.
+    */
+   public void extract(boolean[] discretePixels, double[] features) {
+      scanner.scan(discretePixels, peripherals);
+      extract(peripherals, features);
+   }
+
+   /**
+    * Run PDC on the peripheral points from getPeripheralScanner() (or an equivalent scanner).
+    * The DCs only depend on where the points are, so the pixels are not needed.
+    * |peripherals| is not modified.
+    */
+   public void extract(int[] peripherals, double[] features) {
+      assert(features.length == getNumberOfFeatures());
+      extract(peripherals, features, 0);
+   }
+
+   /**
+    * Same as extract(int[], double[]), but the features are put in |features|
+    *  starting at |offset| (for building larger feature vectors).
+    */
+   public void extract(int[] peripherals, double[] features, int offset) {
+      assert(peripherals.length == scanner.getNumPoints());
+      assert(offset >= 0 && features.length >= offset + getNumberOfFeatures());
+
+      if (groupSize == 1) {
+         contributivities(peripherals, features, offset);
+      } else {
+         contributivities(peripherals, ungrouped, 0);
+         group(ungrouped, features, offset);
+      }
+   }
+
+   /**
+    * Fill in the ray lengths for a direction.
+    * The pixels are visited so that the next pixel along the ray is always done first.
+    */
+   private void fillRayLengths(int direction) {
+      int rowDelta = PDC.PDC_DIRECTION_DELTAS[direction][0];
+      int colDelta = PDC.PDC_DIRECTION_DELTAS[direction][1];
+
+      int base = direction * sideLength * sideLength;
+
+      for (int i = 0; i < sideLength; i++) {
+         int row = rowDelta > 0 ? sideLength - 1 - i : i;
+
+         for (int j = 0; j < sideLength; j++) {
+            int col = colDelta > 0 ? sideLength - 1 - j : j;
+
+            int nextRow = row + rowDelta;
+            int nextCol = col + colDelta;
+
+            int length = 0;
+            if (nextRow >= 0 && nextRow < sideLength && nextCol >= 0 && nextCol < sideLength) {
+               length = rayLengths[base + nextRow * sideLength + nextCol] + 1;
+            }
+
+            rayLengths[base + row * sideLength + col] = length;
+         }
+      }
+   }
+
+   /**
+    * Put the (full or half) DC for every peripheral point in |out| (starting at |outOffset|).
+    * Empty DCs are all zeros.
+    */
+   private void contributivities(int[] peripherals, double[] out, int outOffset) {
+      int numDimensions = getNumDimensions();
+      int pixels = sideLength * sideLength;
+
+      for (int i = 0; i < peripherals.length; i++) {
+         int point = peripherals[i];
+         int offset = outOffset + i * numDimensions;
+
+         if (point == -1) {
+            for (int dimension = 0; dimension < numDimensions; dimension++) {
+               out[offset + dimension] = 0;
+            }
+            continue;
+         }
+
+         // The lengths are small enough that the sum of squares is exact as an int.
+         int normalizationFactor = 0;
+         for (int dimension = 0; dimension < numDimensions; dimension++) {
+            int value = rayLengths[dimension * pixels + point];
+            if (combineDirections) {
+               value += rayLengths[(dimension + numDimensions) * pixels + point];
+            }
+
+            out[offset + dimension] = value;
+            normalizationFactor += value * value;
+         }
+
+         double norm = Math.sqrt(normalizationFactor);
+         for (int dimension = 0; dimension < numDimensions; dimension++) {
+            out[offset + dimension] /= norm;
+         }
+      }
+   }
+
+   /**
+    * Same as PDCInfo.averageDimensions().
+    * Just like PDCInfo, only the first (1 / |groupSize|) of the DCs get grouped
+    *  and the rest of the features are left as zeros.
+    *  Existing cached features and models depend on this, so keep them identical.
+    */
+   private void group(double[] base, double[] features, int offset) {
+      int numDimensions = getNumDimensions();
+      int numFeatures = getNumberOfFeatures();
+
+      int count = 0;
+      for (int groupIndex = 0; groupIndex < base.length / groupSize;
+           groupIndex += groupSize * numDimensions) {
+         for (int dimensionOffset = 0; dimensionOffset < numDimensions; dimensionOffset++) {
+            double sum = 0;
+            for (int groupMemberOffset = 0; groupMemberOffset < groupSize; groupMemberOffset++) {
+               sum += base[groupIndex + dimensionOffset + groupMemberOffset * numDimensions];
+            }
+
+            features[offset + count++] = sum / groupSize;
+         }
+      }
+
+      for (; count < numFeatures; count++) {
+         features[offset + count] = 0;
+      }
+   }
+}
@@ -14,6 +14,7 @@ import java.util.Set;
  * A class to extract the P-LOVE (Peripheral Local Outline Vector? ?) features from an image.
  * See papers in articles.
  * Note that this only uses a 3x3 window.
+ * PloveExtractor gives the same features without all the allocations.
  */
 public final class PLOVE {
    public static int SCALE_SIZE = 64;
@@ -22,26 +23,26 @@ public final class PLOVE {
    public static final int WHITE_THRESHOLD = 100;
    public static final int MIN_BLOB_SIZE = 9;
 
-   private static final int NUM_LAYERS = 3;
+   static final int NUM_LAYERS = 3;
 
-   private static final int NUM_SCANNING_DIRECTIONS = 8;
+   static final int NUM_SCANNING_DIRECTIONS = 8;
 
-   private static final int DIRECTION_BACK_SLASH = 0; // \
-   private static final int DIRECTION_VERTICAL = 1; // |
-   private static final int DIRECTION_SLASH = 2; // /
-   private static final int DIRECTION_HORIZONTAL = 3; // -
+   static final int DIRECTION_BACK_SLASH = 0; // \
+   static final int DIRECTION_VERTICAL = 1; // |
+   static final int DIRECTION_SLASH = 2; // /
+   static final int DIRECTION_HORIZONTAL = 3; // -
 
    /**
     * The Y deltas for the order to scan for connecting information.
     * Once a fg point is found, the scan stops.
     */
-   private static final int[] CONNECTING_SCAN_ORDER_Y = {1, 0, 0, -1, 1, 1, -1, -1};
+   static final int[] CONNECTING_SCAN_ORDER_Y = {1, 0, 0, -1, 1, 1, -1, -1};
 
    /**
     * The X deltas for the order to scan for connecting information.
     * Once a fg point is found, the scan stops.
     */
-   private static final int[] CONNECTING_SCAN_ORDER_X = {0, 1, -1, 0, 1, -1, 1, -1};
+   static final int[] CONNECTING_SCAN_ORDER_X = {0, 1, -1, 0, 1, -1, 1, -1};
 
    /**
     * This is a static-only class, don't construct.
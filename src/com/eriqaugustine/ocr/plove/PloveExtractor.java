@@ -0,0 +1,230 @@
+package com.eriqaugustine.ocr.plove;
+
+import com.eriqaugustine.ocr.image.PeripheralScanner;
+import com.eriqaugustine.ocr.image.WrapImage;
+
+import java.util.Arrays;
+
+/**
+ * A reusable P-LOVE extractor that produces exactly the same features as PLOVE.plove().
+ * All the work after preprocessing (scale and scrub) is done in buffers that are allocated once,
+ *  so an extractor is NOT thread safe. Keep one per thread.
+ *
+ * The pixels and connecting information are kept with a one pixel border around them
+ *  (background and no connecting information respectivley),
+ *  so the 3x3 windows never need bounds checks.
+ * Peripheral points come from a PeripheralScanner (indexes into the unpadded image, -1 for no point)
+ *  and can be passed in if they were already found for the same pixels.
+ */
+public class PloveExtractor {
+   private final int sideLength;
+   private final int paddedSideLength;
+
+   // The discrete pixels with a one pixel border.
+   private final boolean[] paddedPixels;
+
+   // The connecting information for every padded pixel (-1 for none).
+   private final int[] connectingInfo;
+
+   private final PeripheralScanner scanner;
+
+   // [layer][direction][line] flattened, see PeripheralScanner.
+   private final int[] peripherals;
+
+   // The padded index offsets for the connecting information scan order.
+   private final int[] connectingOffsets;
+   private final int[] connectingDirections;
+
+   // The padded index offsets for a 3x3 window.
+   private final int[] windowOffsets;
+
+   // Scratch for the directional components of a single point.
+   private final int[] componentCounts;
+
+   /**
+    * Use the current PLOVE.SCALE_SIZE.
+    */
+   public PloveExtractor() {
+      this(PLOVE.SCALE_SIZE);
+   }
+
+   public PloveExtractor(int sideLength) {
+      assert(sideLength > 0 && sideLength % 2 == 0);
+
+      this.sideLength = sideLength;
+      paddedSideLength = sideLength + 2;
+
+      paddedPixels = new boolean[paddedSideLength * paddedSideLength];
+      connectingInfo = new int[paddedSideLength * paddedSideLength];
+      scanner = new PeripheralScanner(sideLength, PLOVE.NUM_LAYERS, true);
+      peripherals = new int[scanner.getNumPoints()];
+      assert(peripherals.length == PLOVE.NUM_LAYERS * PLOVE.NUM_SCANNING_DIRECTIONS * sideLength);
+
+      connectingOffsets = new int[PLOVE.CONNECTING_SCAN_ORDER_Y.length];
+      connectingDirections = new int[PLOVE.CONNECTING_SCAN_ORDER_Y.length];
+      for (int i = 0; i < connectingOffsets.length; i++) {
+         int dy = PLOVE.CONNECTING_SCAN_ORDER_Y[i];
+         int dx = PLOVE.CONNECTING_SCAN_ORDER_X[i];
+
+         connectingOffsets[i] = dy * paddedSideLength + dx;
+
+         if (dy == 0) {
+            connectingDirections[i] = PLOVE.DIRECTION_HORIZONTAL;
+         } else if (dx == 0) {
+            connectingDirections[i] = PLOVE.DIRECTION_VERTICAL;
+         } else if (dx + dy == 0) {
+            connectingDirections[i] = PLOVE.DIRECTION_SLASH;
+         } else {
+            connectingDirections[i] = PLOVE.DIRECTION_BACK_SLASH;
+         }
+      }
+
+      windowOffsets = new int[9];
+      int count = 0;
+      for (int dy = -1; dy <= 1; dy++) {
+         for (int dx = -1; dx <= 1; dx++) {
+            windowOffsets[count++] = dy * paddedSideLength + dx;
+         }
+      }
+
+      componentCounts = new int[4];
+   }
+
+   public int getSideLength() {
+      return sideLength;
+   }
+
+   /**
+    * The scanner that gives the peripheral points this extractor expects.
+    */
+   public PeripheralScanner getPeripheralScanner() {
+      return scanner;
+   }
+
+   public int getNumberOfFeatures() {
+      return peripherals.length * 4;
+   }
+
+   public double[] extract(WrapImage image) {
+      double[] rtn = new double[getNumberOfFeatures()];
+      extract(image, rtn);
+      return rtn;
+   }
+
+   /**
+    * Run PLOVE on an image and put the results in |features|.
+    * |image| must be already be binary (just like PLOVE.plove()).
+    */
+   public void extract(WrapImage image, double[] features) {
+      assert(features.length == getNumberOfFeatures());
+
+      if (image.isEmpty()) {
+         Arrays.fill(features, 0);
+         return;
+      }
+
+      image = image.copy();
+      image.scale(sideLength, sideLength);
+      image.scrub(PLOVE.WHITE_THRESHOLD, PLOVE.MIN_BLOB_SIZE);
+
+      extract(image.getDiscretePixels(PLOVE.WHITE_THRESHOLD), features);
+   }
+
+   /**
+    * Run PLOVE on pixels that are already scaled and scrubbed.
+    * |discretePixels| must be a getSideLength() x getSideLength() square.
+    */
+   public void extract(boolean[] discretePixels, double[] features) {
+      scanner.scan(discretePixels, peripherals);
+      extract(discretePixels, peripherals, features);
+   }
+
+   /**
+    * Run PLOVE on pixels that are already scaled and scrubbed and have already been
+    *  scanned by getPeripheralScanner() (or an equivalent scanner).
+    * |peripherals| is not modified.
+    */
+   public void extract(boolean[] discretePixels, int[] peripherals, double[] features) {
+      assert(features.length == getNumberOfFeatures());
+      extract(discretePixels, peripherals, features, 0);
+   }
+
+   /**
+    * Same as extract(boolean[], int[], double[]), but the features are put in |features|
+    *  starting at |offset| (for building larger feature vectors).
+    */
+   public void extract(boolean[] discretePixels, int[] peripherals, double[] features, int offset) {
+      assert(discretePixels.length == sideLength * sideLength);
+      assert(peripherals.length == scanner.getNumPoints());
+      assert(offset >= 0 && features.length >= offset + getNumberOfFeatures());
+
+      for (int row = 0; row < sideLength; row++) {
+         System.arraycopy(discretePixels, row * sideLength,
+                          paddedPixels, (row + 1) * paddedSideLength + 1, sideLength);
+      }
+
+      findConnectingInformation();
+
+      for (int i = 0; i < peripherals.length; i++) {
+         directionalComponents(peripherals[i], features, offset + i * 4);
+      }
+   }
+
+   /**
+    * Same as PLOVE.getConnectingInformation(), but on the padded image.
+    * The border never gets touched, so it stays -1 forever.
+    */
+   private void findConnectingInformation() {
+      Arrays.fill(connectingInfo, -1);
+
+      for (int row = 1; row <= sideLength; row++) {
+         int index = row * paddedSideLength + 1;
+
+         for (int col = 0; col < sideLength; col++, index++) {
+            if (!paddedPixels[index]) {
+               continue;
+            }
+
+            for (int i = 0; i < connectingOffsets.length; i++) {
+               if (paddedPixels[index + connectingOffsets[i]]) {
+                  connectingInfo[index] = connectingDirections[i];
+                  break;
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Same as PLOVE.ploveDirectionalComponents(), but written right into |features|.
+    */
+   private void directionalComponents(int point, double[] features, int offset) {
+      if (point == -1) {
+         for (int i = 0; i < 4; i++) {
+            features[offset + i] = 0;
+         }
+         return;
+      }
+
+      // Move to the padded image.
+      point += (point / sideLength) * 2 + paddedSideLength + 1;
+
+      for (int i = 0; i < 4; i++) {
+         componentCounts[i] = 0;
+      }
+
+      int count = 0;
+      for (int windowOffset : windowOffsets) {
+         int direction = connectingInfo[point + windowOffset];
+
+         if (direction != -1) {
+            componentCounts[direction]++;
+            count++;
+         }
+      }
+
+      for (int i = 0; i < 4; i++) {
+         features[offset + i] = count == 0 ? 0 : componentCounts[i] / (double)count;
+      }
+   }
+}
@@ -1,5 +1,7 @@
 package com.eriqaugustine.ocr.utils;
 
+import com.eriqaugustine.ocr.image.BinaryImage;
+import com.eriqaugustine.ocr.image.PeripheralScanner;
 import com.eriqaugustine.ocr.image.WrapImage;
 import static com.eriqaugustine.ocr.image.WrapImage.Pixel;
 
@@ -105,8 +107,8 @@ public class ImageUtils {
       assert(rowOffset + overlayImage.height() <= baseImage.height());
       assert(colOffset + overlayImage.width() <= baseImage.width());
 
-      Pixel[] basePixels = baseImage.getPixels(true);
-      Pixel[] overlayPixels = overlayImage.getPixels(true);
+      Pixel[] basePixels = baseImage.getPixels();
+      Pixel[] overlayPixels = overlayImage.getPixels();
 
       for (int row = 0; row < overlayImage.height(); row++) {
          for (int col = 0; col < overlayImage.width(); col++) {
@@ -184,31 +186,38 @@ public class ImageUtils {
       return (double)nonWhite / (numRows * numCols);
    }
 
+   /**
+    * density() for an image that is already binary.
+    */
+   public static double density(BinaryImage image,
+                                int startRow, int numRows,
+                                int startCol, int numCols) {
+      return (double)image.count(startRow, numRows, startCol, numCols) / (numRows * numCols);
+   }
+
    public static double density(WrapImage image, int whiteThreshold) {
-      boolean[] pixels = image.getDiscretePixels(whiteThreshold);
+      BinaryImage pixels = image.getBinaryImage(whiteThreshold);
 
-      return density(pixels, image.width(),
+      return density(pixels,
                      0, image.height(),
-                     0, image.width(),
-                     whiteThreshold);
+                     0, image.width());
    }
 
    public static double[] regionDensities(WrapImage image,
                                           int whiteThreshold,
                                           int regionsPerSide) {
-      boolean[] pixels = image.getDiscretePixels(whiteThreshold);
+      BinaryImage pixels = image.getBinaryImage(whiteThreshold);
 
       double[] regionDensities = new double[regionsPerSide * regionsPerSide];
 
       for (int regionRow = 0; regionRow < regionsPerSide; regionRow++) {
          for (int regionCol = 0; regionCol < regionsPerSide; regionCol++) {
             regionDensities[regionRow * regionsPerSide + regionCol] =
-                  density(pixels, image.width(),
+                  density(pixels,
                           regionRow * image.height() / regionsPerSide,
                           image.height() / regionsPerSide,
                           regionCol * image.width() / regionsPerSide,
-                          image.width() / regionsPerSide,
-                          whiteThreshold);
+                          image.width() / regionsPerSide);
          }
       }
 
@@ -236,9 +245,7 @@ public class ImageUtils {
       image = image.copy();
       image.scale(scaleSize, scaleSize);
 
-      boolean[] discretePixels = image.getDiscretePixels();
-
-      return getPeripheralPoints(discretePixels, scaleSize, numLayers, includeDiagonal);
+      return getPeripheralPoints(image.getDiscretePixels(), scaleSize, numLayers, includeDiagonal);
    }
 
    /**
@@ -246,6 +253,7 @@ public class ImageUtils {
     * This should be used if the caller needs the discrete pixels for other work and does not want
     * want to recreate them.
     * |discretePixels| must be a |imageSideLength| x |imageSideLength| square.
+    * Callers that do this a lot should keep a PeripheralScanner and avoid all the boxing.
     */
    public static List<Integer> getPeripheralPoints(
          boolean[] discretePixels,
@@ -254,192 +262,12 @@ public class ImageUtils {
          boolean includeDiagonal) {
       assert(discretePixels.length == imageSideLength * imageSideLength);
 
-      int numScanDirections = includeDiagonal ? 8 : 4;
-      int numPeripherals = imageSideLength * numScanDirections * numLayers;
-
-      List<Integer> peripherals = new ArrayList<Integer>(numPeripherals);
-
-      int half = (int)(Math.ceil(imageSideLength / 2.0));
-      int last = imageSideLength - 1;
-
-
-      // Layers
-      for (int i = 0; i < numLayers; i++) {
-         // Horizontal LTR
-         peripherals.addAll(scan(discretePixels, imageSideLength, i, true, true));
-
-         // Horizontal RTL
-         peripherals.addAll(scan(discretePixels, imageSideLength, i, true, false));
-
-         // Vertial Down
-         peripherals.addAll(scan(discretePixels, imageSideLength, i, false, true));
-
-         // Vertical Up
-         peripherals.addAll(scan(discretePixels, imageSideLength, i, false, false));
+      PeripheralScanner scanner = new PeripheralScanner(imageSideLength, numLayers, includeDiagonal);
+      int[] points = scanner.scan(discretePixels);
 
-         // Diagnals
-         if (includeDiagonal) {
-            // Top Left to Bottom Right
-            peripherals.addAll(diagonalScan(discretePixels, imageSideLength, i, 0, half, 0,
-                                                                                0, half, 0,
-                                                                                1, 1));
-
-            // Top Right to Bottom Left
-            peripherals.addAll(diagonalScan(discretePixels, imageSideLength, i, last - half, last, 0,
-                                                                                0, half, last,
-                                                                                1, -1));
-
-            // Bottom Left to Top Right
-            peripherals.addAll(diagonalScan(discretePixels, imageSideLength, i, 0, half, last,
-                                                                                last - half, last, 0,
-                                                                                -1, 1));
-
-            // Bottom Right to Top Left
-            peripherals.addAll(diagonalScan(discretePixels, imageSideLength, i, last - half, last, last,
-                                                                                last - half, last, last,
-                                                                                -1, -1));
-         }
-      }
-
-      assert(peripherals.size() == numPeripherals);
-
-      return peripherals;
-   }
-
-   /**
-    * Scan a direction and get all of the peripheral (edge) points.
-    * |layerNumber| is the number of solid bodies to pass through before the final
-    * peripheral edge. 0 means that it will pass through no bodies.
-    * There will be a result for EVERY row/col that is scanned.
-    * If a row/col has no peripheral point, then a null will be the result.
-    */
-   private static List<Integer> scan(boolean[] image,
-                                     int imageWidth,
-                                     int layerNumber,
-                                     boolean horizontal,
-                                     boolean forward) {
-      assert(layerNumber >= 0);
-
-      // The end points should be out of bounds.
-      int outerStart, outerEnd, outerDelta;
-      int innerStart, innerEnd, innerDelta;
-      List<Integer> peripherals;
-
-      if (horizontal) {
-         // row
-         outerStart = 0;
-         outerEnd = image.length / imageWidth;
-         outerDelta = 1;
-
-         // col
-         innerStart = forward ? 0 : imageWidth - 1;
-         innerEnd = forward ? imageWidth : -1;
-         innerDelta = forward ? 1 : -1;
-      } else {
-         // col
-         outerStart = 0;
-         outerEnd = imageWidth;
-         outerDelta = 1;
-
-         // row
-         innerStart = forward ? 0 : image.length / imageWidth - 1;
-         innerEnd = forward ? image.length / imageWidth : -1;
-         innerDelta = forward ? 1 : -1;
-      }
-
-      peripherals = new ArrayList<Integer>(outerEnd);
-
-      for (int outer = outerStart; outer != outerEnd; outer += outerDelta) {
-         int currentLayerCount = 0;
-         boolean inBody = false;
-         boolean found = false;
-
-         for (int inner = innerStart; inner != innerEnd; inner += innerDelta) {
-            int index = horizontal ? MathUtils.rowColToIndex(outer, inner, imageWidth) :
-                                     MathUtils.rowColToIndex(inner, outer, imageWidth);
-
-            if (image[index] && !inBody) {
-               inBody = true;
-
-               if (currentLayerCount == layerNumber) {
-                  peripherals.add(new Integer(index));
-                  found = true;
-                  break;
-               }
-            } else if (!image[index] && inBody) {
-               inBody = false;
-               currentLayerCount++;
-            }
-         }
-
-         if (!found) {
-            peripherals.add(null);
-         }
-      }
-
-      assert(peripherals.size() == outerEnd);
-
-      return peripherals;
-   }
-
-   /**
-    * Do a diagonal scan and get the peripheral points.
-    * See scan(), this function follows all the same conventions.
-    * The very short diagonals (for ex, the one length ones at the corners)
-    * are not very useful. So, only the longest diagonals are used.
-    * This is why we need all the additional parameters.
-    */
-   private static List<Integer> diagonalScan(boolean[] image,
-                                             int imageWidth,
-                                             int layerNumber,
-                                             int colStart, int colStop, int baseRow,
-                                             int rowStart, int rowStop, int baseCol,
-                                             int rowDelta, int colDelta) {
-      List<Integer> peripherals = new ArrayList<Integer>();
-
-      int[][] startPoints = new int[colStop - colStart + rowStop - rowStart][];
-      int count = 0;
-      for (int col = colStart; col < colStop; col++) {
-         startPoints[count] = new int[]{baseRow, col};
-         count++;
-      }
-      for (int row = rowStart; row < rowStop; row++) {
-         startPoints[count] = new int[]{row, baseCol};
-         count++;
-      }
-
-      for (int[] startPoint : startPoints) {
-         int diagonalRow = startPoint[0];
-         int diagonalCol = startPoint[1];
-
-         int currentLayer = 0;
-         boolean inBody = false;
-         boolean found = false;
-
-         while (diagonalRow >= 0 && diagonalRow < image.length / imageWidth &&
-                diagonalCol >= 0 && diagonalCol < imageWidth) {
-            int index = MathUtils.rowColToIndex(diagonalRow, diagonalCol, imageWidth);
-
-            if (image[index] && !inBody) {
-               inBody = true;
-
-               if (currentLayer == layerNumber) {
-                  peripherals.add(new Integer(index));
-                  found = true;
-                  break;
-               }
-            } else if (!image[index] && inBody) {
-               inBody = false;
-               currentLayer++;
-            }
-
-            diagonalRow += rowDelta;
-            diagonalCol += colDelta;
-         }
-
-         if (!found) {
-            peripherals.add(null);
-         }
+      List<Integer> peripherals = new ArrayList<Integer>(points.length);
+      for (int point : points) {
+         peripherals.add(point == -1 ? null : new Integer(point));
       }
 
       return peripherals;
@@ -5,9 +5,13 @@ import com.eriqaugustine.ocr.image.WrapImage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A class for general network centered utilities.
@@ -16,6 +20,11 @@ import java.net.Socket;
 public class NetUtils {
    private static Logger logger = LogManager.getLogger(NetUtils.class.getName());
 
+   // The most that readImages() will take in a single batch, so a bad client can not make the reader
+   //  allocate without bound (see splitBatches() for the sending side).
+   public static final int MAX_BATCH_IMAGES = 4096;
+   public static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
    /**
     * Get an image from the socket.
     * Data layout:
@@ -93,4 +102,203 @@ public class NetUtils {
 
       return true;
    }
+
+   /**
+    * Get a batch of images from the socket.
+    * Data layout:
+    *  - Number of images (int)
+    *  - For each image:
+    *    - Number of image bytes (int)
+    *    - Image Data (bytes)
+    */
+   public static List<WrapImage> getImages(Socket socket) {
+      try {
+         return readImages(new DataInputStream(socket.getInputStream()));
+      } catch (Exception ex) {
+         logger.error("Unable to retreive images from socket", ex);
+         return null;
+      }
+   }
+
+   /**
+    * Same as getImages(), but the caller owns the stream and gets the errors.
+    * This way, a connection can carry more than one batch, and a connection that was closed
+    *  before a batch started (EOFException) can be told apart from a broken batch.
+    */
+   public static List<WrapImage> readImages(DataInputStream inStream) throws IOException {
+      return decodeImages(readImageBytes(inStream, readImageCount(inStream)));
+   }
+
+   /**
+    * Read the number of images at the start of a batch (see getImages()).
+    * Throws an IOException if it is negative or over MAX_BATCH_IMAGES.
+    */
+   public static int readImageCount(DataInputStream inStream) throws IOException {
+      int numImages = inStream.readInt();
+      if (numImages < 0 || numImages > MAX_BATCH_IMAGES) {
+         throw new IOException("Bad number of images in a batch: " + numImages);
+      }
+
+      return numImages;
+   }
+
+   /**
+    * Read the rest of a batch (after readImageCount()) without decoding any of the images,
+    *  so this never touches ImageMagick.
+    * Throws an IOException if an image has a negative length or the batch is over MAX_BATCH_BYTES.
+    */
+   public static List<byte[]> readImageBytes(DataInputStream inStream, int numImages) throws IOException {
+      List<byte[]> rtn = new ArrayList<byte[]>(numImages);
+      long totalBytes = 0;
+
+      for (int i = 0; i < numImages; i++) {
+         int numBytes = inStream.readInt();
+         totalBytes += numBytes;
+
+         if (numBytes < 0 || totalBytes > MAX_BATCH_BYTES) {
+            throw new IOException("Bad image length in a batch: " + numBytes);
+         }
+
+         byte[] imageBytes = new byte[numBytes];
+         inStream.readFully(imageBytes);
+         rtn.add(imageBytes);
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Decode the images from readImageBytes() (see WrapImage.getImageFromBytes()).
+    * No bytes is an empty image (see WrapImage.getBytes()).
+    */
+   public static List<WrapImage> decodeImages(List<byte[]> encodedImages) {
+      List<WrapImage> rtn = new ArrayList<WrapImage>(encodedImages.size());
+
+      for (byte[] imageBytes : encodedImages) {
+         if (imageBytes.length == 0) {
+            rtn.add(WrapImage.getEmptyImage());
+         } else {
+            rtn.add(WrapImage.getImageFromBytes(imageBytes));
+         }
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Split |images| into batches that readImages() will take (see MAX_BATCH_IMAGES and MAX_BATCH_BYTES).
+    * An image that is over MAX_BATCH_BYTES by itself still gets its own batch (which will be refused).
+    */
+   public static List<List<WrapImage>> splitBatches(List<WrapImage> images) {
+      List<List<WrapImage>> rtn = new ArrayList<List<WrapImage>>();
+
+      int start = 0;
+      long batchBytes = 0;
+
+      for (int i = 0; i < images.size(); i++) {
+         // Every image also has its length in front of it.
+         long imageBytes = 4 + images.get(i).getNumBytes();
+
+         if (i > start && (i - start == MAX_BATCH_IMAGES || batchBytes + imageBytes > MAX_BATCH_BYTES)) {
+            rtn.add(images.subList(start, i));
+            start = i;
+            batchBytes = 0;
+         }
+
+         batchBytes += imageBytes;
+      }
+
+      if (start < images.size()) {
+         rtn.add(images.subList(start, images.size()));
+      }
+
+      return rtn;
+   }
+
+   /**
+    * Send a batch of images to the socket.
+    * See getImages() for the data layout.
+    */
+   public static boolean sendImages(Socket socket, List<WrapImage> images) {
+      try {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         out.writeInt(images.size());
+
+         for (WrapImage image : images) {
+            byte[] imageBytes = image.getBytes();
+            out.writeInt(imageBytes.length);
+            out.write(imageBytes, 0, imageBytes.length);
+         }
+
+         out.flush();
+      } catch (Exception ex) {
+         logger.error("Unable to send images on socket", ex);
+         return false;
+      }
+
+      return true;
+   }
+
+   /**
+    * Get a batch of Strings from the socket.
+    * A null String is sent as a negative length.
+    * Data layout:
+    *  - Number of Strings (int)
+    *  - For each String:
+    *    - Number of String bytes (int)
+    *    - String Data (UTF-8 bytes)
+    */
+   public static List<String> getStrings(Socket socket) {
+      try {
+         DataInputStream inStream = new DataInputStream(socket.getInputStream());
+         int numStrings = inStream.readInt();
+         List<String> rtn = new ArrayList<String>(numStrings);
+
+         for (int i = 0; i < numStrings; i++) {
+            int numBytes = inStream.readInt();
+            if (numBytes < 0) {
+               rtn.add(null);
+               continue;
+            }
+
+            byte[] stringBytes = new byte[numBytes];
+            inStream.readFully(stringBytes);
+            rtn.add(new String(stringBytes, "UTF-8"));
+         }
+
+         return rtn;
+      } catch (Exception ex) {
+         logger.error("Unable to retreive strings from socket", ex);
+         return null;
+      }
+   }
+
+   /**
+    * Send a batch of Strings to the socket.
+    * See getStrings() for the data layout.
+    */
+   public static boolean sendStrings(Socket socket, List<String> texts) {
+      try {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         out.writeInt(texts.size());
+
+         for (String text : texts) {
+            if (text == null) {
+               out.writeInt(-1);
+               continue;
+            }
+
+            byte[] stringBytes = text.getBytes("UTF-8");
+            out.writeInt(stringBytes.length);
+            out.write(stringBytes, 0, stringBytes.length);
+         }
+
+         out.flush();
+      } catch (Exception ex) {
+         logger.error("Unable to send strings on socket", ex);
+         return false;
+      }
+
+      return true;
+   }
 }
@@ -11,6 +11,28 @@ public class SystemUtils {
 
    private static final int bytesToMB = 1024 * 1024;
 
+   // Threads that should do all their work themselves (see setSerialThread()).
+   private static final ThreadLocal<Boolean> serialThreads = new ThreadLocal<Boolean>() {
+      protected Boolean initialValue() {
+         return Boolean.FALSE;
+      }
+   };
+
+   /**
+    * Mark the current thread as one that is already one of many workers
+    *  (like a thread in a bounded pool).
+    * Code that would normally split its work over more threads (feature extraction,
+    *  nearest neighbor scans, ...) does it all on a serial thread instead,
+    *  so the number of busy threads stays at the number of workers.
+    */
+   public static void setSerialThread(boolean serial) {
+      serialThreads.set(serial);
+   }
+
+   public static boolean isSerialThread() {
+      return serialThreads.get();
+   }
+
    public static void memoryMark() {
       memoryMark("", System.err);
    }